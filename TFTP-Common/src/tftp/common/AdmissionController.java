@@ -0,0 +1,129 @@
+package tftp.common;
+
+/**
+ * Admission Control for Incoming Requests
+ * Caps the number of concurrent sessions and the bytes they have in flight.
+ * Requests over the limit wait in a bounded queue until a deadline,
+ * after which the caller tells the client the server is busy
+ * @author 105977
+ */
+public class AdmissionController {
+
+    protected int maxSessions; // concurrent transfers
+    protected long maxBytesInFlight; // total size of files being transferred
+    protected int maxQueued; // requests allowed to wait for a slot
+    protected long queueTimeout; // ms a request may wait before being refused
+
+    protected int sessions;
+    protected long bytesInFlight;
+    protected int queued;
+
+
+    /**
+     * Constructs an Admission Controller
+     * @param maxSessions maximum concurrent sessions
+     * @param maxBytesInFlight maximum total bytes of admitted transfers
+     * @param maxQueued maximum requests waiting for admission
+     * @param queueTimeout ms a request may wait for admission
+     */
+    public AdmissionController(int maxSessions, long maxBytesInFlight, int maxQueued, long queueTimeout)
+    {
+        this.maxSessions = maxSessions;
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.maxQueued = maxQueued;
+        this.queueTimeout = queueTimeout;
+    }
+
+
+    /**
+     * Reserves a Place in the Queue
+     * Called by the listener before handing the request to a session,
+     * so a full queue is refused straight away
+     * @return false if the queue is full
+     */
+    public synchronized boolean enqueue()
+    {
+        if (queued >= maxQueued)
+        {
+            return false;
+        }
+
+        queued++;
+        return true;
+    }
+
+    /**
+     * Waits for a Session Slot
+     * Must follow a successful enqueue, whose queue place it gives up however it returns
+     * @param bytes bytes the transfer will put in flight, 0 if unknown
+     * @return true if admitted, false if the deadline passed
+     * @throws InterruptedException
+     */
+    public synchronized boolean admit(long bytes) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + queueTimeout;
+
+        try
+        {
+            // a transfer bigger than the byte limit is still let in on its own
+            while (sessions >= maxSessions || (bytesInFlight > 0 && bytesInFlight + bytes > maxBytesInFlight))
+            {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0)
+                {
+                    return false;
+                }
+
+                wait(remaining);
+            }
+
+            sessions++;
+            bytesInFlight += bytes;
+            return true;
+        }
+        finally
+        {
+            queued--;
+        }
+    }
+
+    /**
+     * Gives Up a Queue Place Without Waiting for a Slot
+     * For a request that ends before it reaches admit, a client that drops the
+     * connection or never finishes its request
+     */
+    public synchronized void dequeue()
+    {
+        queued--;
+    }
+
+    /**
+     * Frees the Slot of a Finished Session
+     * @param bytes the bytes passed to admit
+     */
+    public synchronized void release(long bytes)
+    {
+        sessions--;
+        bytesInFlight -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Gets the Number of Admitted Sessions
+     * @return active sessions
+     */
+    public synchronized int getSessions()
+    {
+        return sessions;
+    }
+
+    /**
+     * Gets the Number of Requests Holding a Queue Place
+     * @return queued requests
+     */
+    public synchronized int getQueued()
+    {
+        return queued;
+    }
+}
@@ -0,0 +1,438 @@
+package tftp.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bandwidth Shaper Shared by all Transfers
+ * Enforces token bucket limits per client IP, per subnet and a global egress cap.
+ * The global cap is shared by weighted fair queuing: transfers waiting for it are
+ * served in order of their virtual start time, which moves on by bytes / weight
+ * per send, so backlogged transfers get bandwidth in proportion to their weights
+ * and whatever one of them leaves unused goes to the others.
+ * Limits are reloaded from a properties file while the server runs,
+ * a file with a bad value is logged and the last good limits are kept:
+ *   global.rate, client.rate, subnet.rate (bytes per second, 0 = unlimited)
+ *   subnet.prefix (bits, default 24)
+ *   weight.[client ip] (default 1)
+ * @author 105977
+ */
+public class BandwidthShaper {
+
+    protected static final long RELOAD_INTERVAL = 1000; // ms between checks of the config file
+
+    protected File configFile;
+    protected long configModified; // last modified time of the loaded config
+    protected volatile long lastReloadCheck;
+
+    protected volatile long globalRate;
+    protected volatile long clientRate;
+    protected volatile long subnetRate;
+    protected volatile int subnetPrefix = 24;
+    protected volatile Map<String, Integer> weights = new HashMap<>(); // client ip to weight
+
+    protected TokenBucket globalBucket = new TokenBucket(0);
+    protected Map<InetAddress, TokenBucket> clientBuckets = new ConcurrentHashMap<>();
+    protected Map<InetAddress, TokenBucket> subnetBuckets = new ConcurrentHashMap<>();
+
+    protected Set<Flow> flows = ConcurrentHashMap.newKeySet(); // active transfers
+
+    // fair queuing for the global cap, guarded by this
+    protected Set<Flow> waiting = new HashSet<>(); // transfers waiting for their turn
+    protected boolean sending; // a transfer holds the turn
+    protected double virtualTime; // start time of the last transfer given the turn
+
+
+    /**
+     * A Single Shaped Transfer
+     */
+    public class Flow {
+
+        protected InetAddress client;
+        protected InetAddress subnet;
+        protected int weight;
+        protected double start; // virtual start time of the send it is waiting for
+        protected double finish; // virtual finish time of its last send
+
+        /**
+         * Waits Until the Bytes may be Sent
+         * The client and subnet limits are waited for first, then the turn at the global cap
+         * @param bytes number of bytes about to be sent
+         * @throws java.io.IOException if interrupted
+         */
+        public void acquire(int bytes) throws IOException
+        {
+            reloadIfChanged();
+
+            // reserve from both buckets then wait for the slower
+            long wait = bucketFor(clientBuckets, client, clientRate).reserve(bytes);
+            wait = Math.max(wait, bucketFor(subnetBuckets, subnet, subnetRate).reserve(bytes));
+            sleep(wait);
+
+            if (globalRate > 0)
+            {
+                awaitTurn(this, bytes);
+                try
+                {
+                    sleep(globalBucket.reserve(bytes));
+                }
+                finally
+                {
+                    endTurn();
+                }
+            }
+        }
+
+        /**
+         * Ends the Transfer, its Share goes to the Others
+         */
+        public void close()
+        {
+            BandwidthShaper.this.close(this);
+        }
+    }
+
+
+    /**
+     * Constructs a Bandwidth Shaper
+     * @param configFile properties file holding the limits, may not exist
+     */
+    public BandwidthShaper(File configFile)
+    {
+        this.configFile = configFile;
+        reload();
+    }
+
+
+    /**
+     * Registers a New Transfer
+     * @param client the client IP address
+     * @return the flow to acquire bandwidth through
+     */
+    public Flow open(InetAddress client)
+    {
+        reloadIfChanged();
+
+        Flow flow = new Flow();
+        flow.client = client;
+        flow.subnet = subnetOf(client, subnetPrefix);
+        flow.weight = weights.getOrDefault(client.getHostAddress(), 1);
+        flows.add(flow);
+        return flow;
+    }
+
+    /**
+     * Sets the Limits Directly
+     * Takes effect for transfers already running
+     * @param globalRate global egress cap in bytes per second, 0 = unlimited
+     * @param clientRate per client IP limit in bytes per second, 0 = unlimited
+     * @param subnetRate per subnet limit in bytes per second, 0 = unlimited
+     * @param subnetPrefix prefix length grouping clients into subnets
+     */
+    public synchronized void configure(long globalRate, long clientRate, long subnetRate, int subnetPrefix)
+    {
+        this.globalRate = globalRate;
+        this.clientRate = clientRate;
+        this.subnetRate = subnetRate;
+
+        if (subnetPrefix != this.subnetPrefix)
+        {
+            // subnet groupings changed, old buckets no longer apply
+            this.subnetPrefix = subnetPrefix;
+            subnetBuckets.clear();
+            for (Flow flow : flows)
+            {
+                flow.subnet = subnetOf(flow.client, subnetPrefix);
+            }
+        }
+
+        globalBucket.setRate(globalRate);
+        for (TokenBucket bucket : clientBuckets.values())
+        {
+            bucket.setRate(clientRate);
+        }
+        for (TokenBucket bucket : subnetBuckets.values())
+        {
+            bucket.setRate(subnetRate);
+        }
+    }
+
+    /**
+     * Removes a Finished Transfer
+     * @param flow the flow
+     */
+    protected synchronized void close(Flow flow)
+    {
+        if (flows.remove(flow))
+        {
+            // drop buckets nobody uses any more
+            boolean clientActive = false;
+            boolean subnetActive = false;
+            for (Flow other : flows)
+            {
+                clientActive |= other.client.equals(flow.client);
+                subnetActive |= other.subnet.equals(flow.subnet);
+            }
+            if (!clientActive)
+            {
+                clientBuckets.remove(flow.client);
+            }
+            if (!subnetActive)
+            {
+                subnetBuckets.remove(flow.subnet);
+            }
+        }
+    }
+
+    /**
+     * Waits for a Transfer's Turn at the Global Cap
+     * The waiting transfer with the earliest virtual start goes next. A transfer that
+     * was idle starts from the current virtual time, so it gets no credit for the idle spell
+     * @param flow the transfer
+     * @param bytes bytes it is about to send
+     * @throws IOException if interrupted
+     */
+    protected synchronized void awaitTurn(Flow flow, int bytes) throws IOException
+    {
+        flow.start = Math.max(virtualTime, flow.finish);
+        waiting.add(flow);
+
+        try
+        {
+            while (sending || !isNext(flow))
+            {
+                wait();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            notifyAll(); // it may have been the one the others were waiting for
+            throw new IOException("Interrupted while shaping", e);
+        }
+        finally
+        {
+            waiting.remove(flow);
+        }
+
+        sending = true;
+        virtualTime = flow.start;
+        flow.finish = flow.start + (double) bytes / flow.weight;
+    }
+
+    /**
+     * Passes the Turn at the Global Cap On
+     */
+    protected synchronized void endTurn()
+    {
+        sending = false;
+        notifyAll();
+    }
+
+    /**
+     * Checks Whether a Waiting Transfer is the Next to be Served
+     * @param flow the transfer
+     * @return true if no other waiting transfer has an earlier virtual start
+     */
+    protected boolean isNext(Flow flow)
+    {
+        for (Flow other : waiting)
+        {
+            if (other.start < flow.start)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sleeps for a Shaping Delay
+     * @param nanos how long, nothing happens if 0
+     * @throws IOException if interrupted
+     */
+    protected static void sleep(long nanos) throws IOException
+    {
+        if (nanos > 0)
+        {
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while shaping", e);
+            }
+        }
+    }
+
+    /**
+     * Reloads the Config File if it has Changed
+     * Checked at most once a second
+     */
+    protected void reloadIfChanged()
+    {
+        long now = System.currentTimeMillis();
+
+        if (now - lastReloadCheck >= RELOAD_INTERVAL)
+        {
+            lastReloadCheck = now;
+            if (configFile.lastModified() != configModified)
+            {
+                reload();
+            }
+        }
+    }
+
+    /**
+     * Loads Limits from the Config File
+     * Every value is checked before any is applied, a bad file changes nothing
+     */
+    protected synchronized void reload()
+    {
+        Properties config = new Properties();
+        configModified = configFile.lastModified();
+
+        if (configFile.exists())
+        {
+            try (InputStream in = new FileInputStream(configFile))
+            {
+                config.load(in);
+            }
+            catch (IOException | IllegalArgumentException e)
+            {
+                rejected("can't be read: " + e);
+                return;
+            }
+        }
+
+        long global;
+        long client;
+        long subnet;
+        int prefix;
+        Map<String, Integer> loaded = new HashMap<>();
+
+        try
+        {
+            global = rate(config, "global.rate");
+            client = rate(config, "client.rate");
+            subnet = rate(config, "subnet.rate");
+            prefix = Integer.parseInt(config.getProperty("subnet.prefix", "24").trim());
+            if (prefix < 0 || prefix > 128)
+            {
+                throw new NumberFormatException("subnet.prefix out of range: " + prefix);
+            }
+
+            for (String key : config.stringPropertyNames())
+            {
+                if (key.startsWith("weight."))
+                {
+                    int weight = Integer.parseInt(config.getProperty(key).trim());
+                    if (weight < 1)
+                    {
+                        throw new NumberFormatException(key + " must be at least 1: " + weight);
+                    }
+                    loaded.put(key.substring("weight.".length()), weight);
+                }
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            rejected("has a bad value, " + e.getMessage());
+            return;
+        }
+
+        weights = loaded;
+        for (Flow flow : flows)
+        {
+            flow.weight = loaded.getOrDefault(flow.client.getHostAddress(), 1);
+        }
+        configure(global, client, subnet, prefix);
+    }
+
+    /**
+     * Parses a Rate
+     * @param config the loaded config
+     * @param key the property
+     * @return bytes per second, 0 if it isn't set
+     * @throws NumberFormatException if it isn't a whole number of 0 or more
+     */
+    protected static long rate(Properties config, String key)
+    {
+        long rate = Long.parseLong(config.getProperty(key, "0").trim());
+        if (rate < 0)
+        {
+            throw new NumberFormatException(key + " is negative: " + rate);
+        }
+        return rate;
+    }
+
+    /**
+     * Reports a Config File that wasn't Applied
+     * The shaper is built before the event log, so the first load goes to standard error
+     * @param reason what was wrong with it
+     */
+    protected void rejected(String reason)
+    {
+        String detail = "Shaping config " + reason + ", keeping the last good limits";
+
+        if (TransferEngine.events != null)
+        {
+            TransferEngine.events.log(EventLog.ERROR, null, configFile.getPath(), 0, 0, detail);
+        }
+        else
+        {
+            System.err.println(configFile.getPath() + ": " + detail);
+        }
+    }
+
+    /**
+     * Finds or Creates the Bucket for a Client or Subnet
+     * @param buckets the bucket map
+     * @param key client or subnet address
+     * @param rate rate for a new bucket
+     * @return the bucket
+     */
+    protected TokenBucket bucketFor(Map<InetAddress, TokenBucket> buckets, InetAddress key, long rate)
+    {
+        return buckets.computeIfAbsent(key, k -> new TokenBucket(rate));
+    }
+
+    /**
+     * Masks an Address down to its Subnet
+     * @param address the client address
+     * @param prefix prefix length in bits
+     * @return the subnet address
+     */
+    protected static InetAddress subnetOf(InetAddress address, int prefix)
+    {
+        byte[] bytes = address.getAddress();
+
+        for (int i = 0; i < bytes.length; i++)
+        {
+            int bits = Math.max(0, Math.min(8, prefix - i * 8));
+            bytes[i] &= (byte) (0xFF << (8 - bits));
+        }
+
+        try
+        {
+            return InetAddress.getByAddress(bytes);
+        }
+        catch (UnknownHostException e)
+        {
+            return address; // can't happen with a valid address length
+        }
+    }
+}
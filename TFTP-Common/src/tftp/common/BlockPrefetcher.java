@@ -0,0 +1,170 @@
+package tftp.common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Read Ahead for RRQ Sessions
+ * Keeps the next blocks of the file being read in a small ring of reusable buffers,
+ * so the next DATA packet is ready as soon as an ACK arrives.
+ * Blocks are read with positional asynchronous reads on a storage handle
+ * @author 105977
+ */
+public class BlockPrefetcher implements BlockReader {
+
+    protected Storage.Handle handle;
+    protected String filename; // named in stall events
+
+    protected int blockSize;
+    protected ByteBuffer[] buffers; // one per block in flight, reused round the ring
+    protected Future<?>[] pending; // read filling each buffer
+    protected long nextBlock; // next block handed to the session
+
+
+    /**
+     * Opens a File and Starts Reading Ahead
+     * @param storage storage the file is kept in
+     * @param filename the file
+     * @param blockSize bytes per block
+     * @param depth number of blocks to keep ready
+     * @return the prefetcher
+     * @throws IOException if the file can't be opened
+     */
+    public static BlockPrefetcher open(Storage storage, String filename, int blockSize, int depth) throws IOException
+    {
+        BlockPrefetcher prefetcher = new BlockPrefetcher(storage.open(filename), blockSize, depth);
+        prefetcher.filename = filename;
+        return prefetcher;
+    }
+
+    /**
+     * Constructs a Prefetcher and Issues the First Reads
+     * @param handle the open file
+     * @param blockSize bytes per block
+     * @param depth number of blocks to keep ready
+     */
+    protected BlockPrefetcher(Storage.Handle handle, int blockSize, int depth)
+    {
+        this.handle = handle;
+        this.blockSize = blockSize;
+
+        buffers = new ByteBuffer[Math.max(1, depth)];
+        pending = new Future<?>[buffers.length];
+
+        for (int i = 0; i < buffers.length; i++)
+        {
+            buffers[i] = ByteBuffer.allocate(blockSize);
+            issue(i);
+        }
+    }
+
+    @Override
+    public Storage.Stat stat()
+    {
+        return handle.stat();
+    }
+
+
+    /**
+     * Takes the Next Block
+     * Waits only if the read ahead has fallen behind
+     * @param block array of at least blockSize bytes the data is copied into
+     * @return bytes in the block, less than blockSize at the end of the file
+     * @throws IOException if the read failed
+     */
+    @Override
+    public int next(byte[] block) throws IOException
+    {
+        int slot = (int) (nextBlock % buffers.length);
+        ByteBuffer buffer = buffers[slot];
+
+        // time spent here is the read ahead falling behind
+        FlightEvents.DiskReadStall stall = new FlightEvents.DiskReadStall();
+        stall.begin();
+
+        await(pending[slot]);
+
+        // positional reads may come back short before the end of the file
+        while (buffer.hasRemaining())
+        {
+            int read = (Integer) await(handle.read(buffer, nextBlock * blockSize + buffer.position()));
+            if (read <= 0)
+            {
+                break;
+            }
+        }
+
+        stall.end();
+        if (stall.shouldCommit())
+        {
+            stall.file = filename;
+            stall.position = nextBlock * blockSize;
+            stall.bytes = buffer.position();
+            stall.commit();
+        }
+
+        buffer.flip();
+        int length = buffer.remaining();
+        buffer.get(block, 0, length);
+
+        // refill this buffer with the block one ring length ahead
+        issue(nextBlock + buffers.length);
+        nextBlock++;
+
+        return length;
+    }
+
+    /**
+     * Starts Reading a Block into its Ring Buffer
+     * @param block block index
+     */
+    protected void issue(long block)
+    {
+        int slot = (int) (block % buffers.length);
+        ByteBuffer buffer = buffers[slot];
+        buffer.clear();
+
+        pending[slot] = handle.read(buffer, block * blockSize);
+    }
+
+    /**
+     * Waits for a Read to Complete
+     * @param read the read
+     * @return its result
+     * @throws IOException if the read failed
+     */
+    protected Object await(Future<?> read) throws IOException
+    {
+        try
+        {
+            return read.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading ahead", e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException)
+            {
+                cause = cause.getCause();
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Stops Reading Ahead and Closes the File
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException
+    {
+        handle.close();
+    }
+}
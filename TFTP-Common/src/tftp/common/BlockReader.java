@@ -0,0 +1,26 @@
+package tftp.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sequential Reader of a File's Blocks for a RRQ
+ * Read ahead on its own, or shared with the other sessions reading the same file
+ * @author 105977
+ */
+public interface BlockReader extends Closeable {
+
+    /**
+     * Gets the State of the File when it was Opened
+     * @return the state
+     */
+    Storage.Stat stat();
+
+    /**
+     * Takes the Next Block
+     * @param block array of at least blockSize bytes the data is copied into
+     * @return bytes in the block, less than blockSize at the end of the file
+     * @throws IOException if the read failed
+     */
+    int next(byte[] block) throws IOException;
+}
@@ -0,0 +1,277 @@
+package tftp.common;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Pool of Packet Buffers of One Size
+ * Sessions borrow their send and receive buffers instead of allocating per packet.
+ * Each thread keeps a small magazine of free buffers it takes from and gives back to
+ * without contention, the shared pool behind the magazines is bounded so a burst of
+ * sessions doesn't pin memory for good. Buffers are on the heap, DatagramSocket only
+ * takes arrays and copies them into native memory itself.
+ * With -Dtftp.pool.debug every borrowed buffer is tracked, one collected without
+ * being released is logged as an error with the stack it was borrowed from
+ * @author 105977
+ */
+public class BufferPool {
+
+    protected static final int MAGAZINE = Integer.getInteger("tftp.pool.magazine", 16); // free buffers per thread
+    protected static final int MAX_SHARED = Integer.getInteger("tftp.pool.maxBuffers", 4096); // free buffers shared by all threads
+    protected static final boolean DEBUG = Boolean.getBoolean("tftp.pool.debug");
+
+    // one pool per buffer size
+    protected static Map<Integer, BufferPool> pools = new ConcurrentHashMap<>();
+
+    protected int size;
+    protected ThreadLocal<ArrayDeque<ByteBuffer>> magazines = ThreadLocal.withInitial(ArrayDeque::new);
+    protected ConcurrentLinkedDeque<ByteBuffer> shared = new ConcurrentLinkedDeque<>();
+    protected AtomicInteger sharedCount = new AtomicInteger(); // the deque's size() walks it
+
+    // counters
+    protected AtomicLong allocated = new AtomicLong();
+    protected AtomicLong reused = new AtomicLong();
+    protected AtomicLong leaked = new AtomicLong();
+
+    // debug mode, buffers out on loan by identity hash
+    protected Map<Integer, Loan> loans = new ConcurrentHashMap<>();
+    protected ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+
+    /**
+     * A Borrowed Buffer and Where it was Borrowed
+     */
+    protected static class Loan extends WeakReference<ByteBuffer> {
+        protected int identity;
+        protected Throwable borrowed = new Throwable("Buffer borrowed here");
+        protected Loan next; // another loan with the same identity hash
+
+        protected Loan(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue)
+        {
+            super(buffer, queue);
+            identity = System.identityHashCode(buffer);
+        }
+    }
+
+
+    /**
+     * Constructs a Pool
+     * @param size bytes per buffer
+     */
+    protected BufferPool(int size)
+    {
+        this.size = size;
+    }
+
+
+    /**
+     * Gets the Shared Pool for a Buffer Size
+     * @param size bytes per buffer, the largest packet at the negotiated block size
+     * @return the pool
+     */
+    public static BufferPool forSize(int size)
+    {
+        return pools.computeIfAbsent(size, BufferPool::new);
+    }
+
+    /**
+     * Borrows a Buffer
+     * From this thread's magazine, then the shared pool, a new one if both are empty
+     * @return a cleared buffer with a backing array
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = magazines.get().pollFirst();
+
+        if (buffer == null && (buffer = shared.pollFirst()) != null)
+        {
+            sharedCount.decrementAndGet();
+        }
+
+        if (buffer == null)
+        {
+            buffer = ByteBuffer.allocate(size);
+            allocated.incrementAndGet();
+        }
+        else
+        {
+            buffer.clear();
+            reused.incrementAndGet();
+        }
+
+        if (DEBUG)
+        {
+            track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a Buffer Back
+     * It must not be used again by the caller
+     * @param buffer a buffer from acquire, null is ignored
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null)
+        {
+            return;
+        }
+
+        if (DEBUG)
+        {
+            untrack(buffer);
+        }
+
+        ArrayDeque<ByteBuffer> magazine = magazines.get();
+        if (magazine.size() < MAGAZINE)
+        {
+            magazine.addFirst(buffer);
+        }
+        else
+        {
+            share(buffer);
+        }
+    }
+
+    /**
+     * Moves this Thread's Free Buffers to the Shared Pool
+     * Called by threads that are about to end, so their magazine isn't lost
+     */
+    public void flush()
+    {
+        ArrayDeque<ByteBuffer> magazine = magazines.get();
+        ByteBuffer buffer;
+
+        while ((buffer = magazine.pollFirst()) != null)
+        {
+            share(buffer);
+        }
+        magazines.remove();
+    }
+
+    /**
+     * Summarises the Pool
+     * @return counts as text
+     */
+    public String describe()
+    {
+        return size + " byte buffers: " + allocated.get() + " allocated, " + reused.get() + " reused, "
+                + sharedCount.get() + " free, " + leaked.get() + " leaked";
+    }
+
+    /**
+     * Puts a Buffer in the Shared Pool, or Lets it Go if the Pool is Full
+     * @param buffer the buffer
+     */
+    protected void share(ByteBuffer buffer)
+    {
+        if (sharedCount.incrementAndGet() <= MAX_SHARED)
+        {
+            shared.addFirst(buffer);
+        }
+        else
+        {
+            sharedCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Records a Loan, Reporting any Buffers Collected while Out on Loan
+     * @param buffer the buffer being borrowed
+     */
+    protected void track(ByteBuffer buffer)
+    {
+        Reference<? extends ByteBuffer> reference;
+        while ((reference = collected.poll()) != null)
+        {
+            Loan loan = (Loan) reference;
+            if (remove(loan.identity, l -> l == loan) != null)
+            {
+                leaked.incrementAndGet();
+                TransferEngine.events.log(EventLog.ERROR, null, null, size, 0, "Buffer never released, " + stack(loan.borrowed));
+            }
+        }
+
+        Loan loan = new Loan(buffer, collected);
+        loans.compute(loan.identity, (identity, first) ->
+        {
+            loan.next = first;
+            return loan;
+        });
+    }
+
+    /**
+     * Ends a Loan
+     * @param buffer the buffer being released
+     * @throws IllegalStateException if it isn't out on loan, released twice or not from this pool
+     */
+    protected void untrack(ByteBuffer buffer)
+    {
+        Loan loan = remove(System.identityHashCode(buffer), l -> l.get() == buffer);
+
+        if (loan == null)
+        {
+            throw new IllegalStateException("Buffer released twice or not borrowed from this pool");
+        }
+        loan.clear();
+    }
+
+    /**
+     * Takes a Loan out of its Identity Chain
+     * Chains are only changed inside compute, so one key's chain never changes under another thread
+     * @param identity identity hash of the buffer
+     * @param match picks the loan
+     * @return the loan removed, null if none matched
+     */
+    protected Loan remove(int identity, Predicate<Loan> match)
+    {
+        Loan[] removed = new Loan[1];
+
+        loans.computeIfPresent(identity, (key, first) ->
+        {
+            Loan previous = null;
+            for (Loan loan = first; loan != null; previous = loan, loan = loan.next)
+            {
+                if (match.test(loan))
+                {
+                    removed[0] = loan;
+                    if (previous == null)
+                    {
+                        return loan.next;
+                    }
+                    previous.next = loan.next;
+                    return first;
+                }
+            }
+            return first;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Formats Where a Buffer was Borrowed
+     * @param borrowed the stack captured when it was borrowed
+     * @return the first few frames
+     */
+    protected static String stack(Throwable borrowed)
+    {
+        StringBuilder frames = new StringBuilder("borrowed at");
+        StackTraceElement[] trace = borrowed.getStackTrace();
+
+        for (int i = 3; i < Math.min(trace.length, 9); i++) // past the pool's own frames
+        {
+            frames.append(' ').append(trace[i]);
+        }
+        return frames.toString();
+    }
+}
@@ -0,0 +1,714 @@
+package tftp.common;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+/**
+ * Content Addressed Chunk Store for Deduplicated Uploads
+ * Uploaded data is split into fixed size chunks, each chunk is stored once
+ * under its SHA-256 hash and the uploaded file becomes a manifest listing them.
+ * Chunks and manifests are kept in the storage underneath, manifests in a namespace
+ * of their own beside the chunks, so what a file is never depends on its contents.
+ * Reads of a name with a manifest are mapped onto its chunks, unless a plain file of
+ * that name was written since, and any other file is read straight through.
+ * With deduplication off nothing is treated as a manifest.
+ * Manifest format (text):
+ *   TFTP-MANIFEST 1
+ *   size [file length]
+ *   [chunk hash]...
+ * @author 105977
+ */
+public class ChunkStore implements Storage {
+
+    protected static final String MANIFEST_HEADER = "TFTP-MANIFEST 1";
+    protected static final Pattern SIZE_LINE = Pattern.compile("size [0-9]{1,18}");
+    protected static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    protected Storage backend; // holds the manifests, the chunks and every other file
+    protected String chunkDir; // where chunks are kept, two levels by hash prefix
+    protected String manifestDir; // where manifests are kept, under the names of their files
+    protected int chunkSize;
+    protected boolean dedup; // manifests are only read, and written, when deduplicating
+
+    // states of files, read through their manifests, by name
+    // with the stored state they were read at, valid while that is unchanged
+    protected static final int MAX_RESOLVED = 65536;
+    protected Map<String, Stat[]> resolved = new ConcurrentHashMap<>();
+
+
+    /**
+     * Streams an Upload into Chunks
+     * Hashes Each Chunk as the Data Arrives
+     */
+    public class ManifestUpload extends Upload {
+
+        protected String name; // the manifest being written
+        protected byte[] chunk = new byte[chunkSize];
+        protected int chunkLength;
+        protected MessageDigest digest = newDigest();
+        protected List<String> hashes = new ArrayList<>();
+        protected long size;
+        protected boolean finished;
+        protected boolean committed;
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (finished)
+            {
+                throw new IOException("Upload of " + name + " is finished");
+            }
+
+            while (len > 0)
+            {
+                int n = Math.min(len, chunk.length - chunkLength);
+
+                System.arraycopy(b, off, chunk, chunkLength, n);
+                digest.update(b, off, n);
+                chunkLength += n;
+                size += n;
+                off += n;
+                len -= n;
+
+                if (chunkLength == chunk.length)
+                {
+                    storeChunk();
+                }
+            }
+        }
+
+        /**
+         * Stores the Last Chunk and Writes the Manifest
+         * The manifest replaces any previous file once it is complete
+         * @throws IOException
+         */
+        @Override
+        public void commit() throws IOException
+        {
+            if (finished)
+            {
+                if (committed)
+                {
+                    return;
+                }
+                throw new IOException("Upload of " + name + " was discarded");
+            }
+            finished = true;
+
+            if (chunkLength > 0)
+            {
+                storeChunk();
+            }
+
+            StringBuilder manifest = new StringBuilder(MANIFEST_HEADER).append('\n');
+            manifest.append("size ").append(size).append('\n');
+            for (String hash : hashes)
+            {
+                manifest.append(hash).append('\n');
+            }
+
+            try (Upload out = backend.create(manifestName(name)))
+            {
+                out.write(manifest.toString().getBytes(StandardCharsets.US_ASCII));
+                out.commit();
+            }
+            committed = true;
+
+            // the manifest stands for the file now, an older plain copy would only take space
+            resolved.remove(name);
+            backend.delete(name);
+        }
+
+        /**
+         * Drops the Upload Without Writing its Manifest
+         * Chunks already stored stay, another file may share them
+         */
+        @Override
+        public void abort()
+        {
+            finished = true;
+        }
+
+        /**
+         * Stores the Buffered Chunk Unless an Identical one is Already Stored
+         * @throws IOException
+         */
+        protected void storeChunk() throws IOException
+        {
+            String hash = toHex(digest.digest());
+            String chunkName = chunkName(hash);
+
+            // another upload storing the same chunk at once writes the same data
+            if (backend.stat(chunkName) == null)
+            {
+                try (Upload out = backend.create(chunkName))
+                {
+                    out.write(chunk, 0, chunkLength);
+                    out.commit();
+                }
+            }
+
+            hashes.add(hash);
+            chunkLength = 0;
+        }
+    }
+
+    /**
+     * Reads a Manifest's Data from its Chunks
+     * Keeps the chunks being read open, closing each once reads have moved past it
+     */
+    protected class ManifestHandle implements Handle {
+
+        protected Stat stat;
+        protected List<String> hashes;
+        protected long manifestChunkSize; // chunk size the manifest was written with
+        protected TreeMap<Integer, ChunkHandle> open = new TreeMap<>();
+
+        @Override
+        public Stat stat()
+        {
+            return stat;
+        }
+
+        @Override
+        public CompletableFuture<Integer> read(ByteBuffer buffer, long position)
+        {
+            if (position >= stat.size)
+            {
+                return CompletableFuture.completedFuture(-1);
+            }
+
+            int index = (int) (position / manifestChunkSize);
+            ChunkHandle chunk;
+
+            try
+            {
+                chunk = chunk(index);
+            }
+            catch (IOException e)
+            {
+                // a lost chunk must fail the read, not look like a short file
+                CompletableFuture<Integer> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+
+            // a read never runs into the next chunk
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(slice.position() + (int) Math.min(slice.remaining(), manifestChunkSize - position % manifestChunkSize));
+
+            return chunk.handle.read(slice, position % manifestChunkSize).whenComplete((length, e) ->
+            {
+                if (length != null && length > 0)
+                {
+                    buffer.position(buffer.position() + length);
+                }
+                release(chunk);
+            });
+        }
+
+        /**
+         * Gets an Open Chunk, Opening it if Needed
+         * @param index chunk number
+         * @return the chunk, with a read counted against it
+         * @throws IOException if the chunk is missing
+         */
+        protected synchronized ChunkHandle chunk(int index) throws IOException
+        {
+            ChunkHandle chunk = open.get(index);
+
+            if (chunk == null)
+            {
+                chunk = new ChunkHandle();
+                chunk.handle = backend.open(chunkName(hashes.get(index)));
+                open.put(index, chunk);
+
+                // reads move forward, chunks two or more behind are finished with
+                Iterator<ChunkHandle> older = open.headMap(index - 1).values().iterator();
+                while (older.hasNext())
+                {
+                    ChunkHandle old = older.next();
+                    older.remove();
+                    old.evicted = true;
+                    if (old.pending == 0)
+                    {
+                        old.handle.close();
+                    }
+                }
+            }
+
+            chunk.pending++;
+            return chunk;
+        }
+
+        /**
+         * Ends a Read of a Chunk
+         * @param chunk the chunk
+         */
+        protected synchronized void release(ChunkHandle chunk)
+        {
+            chunk.pending--;
+
+            if (chunk.evicted && chunk.pending == 0)
+            {
+                try
+                {
+                    chunk.handle.close();
+                }
+                catch (IOException e)
+                {
+                    // nothing was being read from it any more
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException
+        {
+            for (ChunkHandle chunk : open.values())
+            {
+                chunk.handle.close();
+            }
+            open.clear();
+        }
+    }
+
+    /**
+     * An Open Chunk and the Reads Using it
+     */
+    protected static class ChunkHandle {
+        protected Handle handle;
+        protected int pending;
+        protected boolean evicted;
+    }
+
+
+    /**
+     * Constructs a Chunk Store
+     * @param backend storage the manifests and chunks are kept in
+     * @param chunkDir name under which the chunks and manifests are kept
+     * @param chunkSize bytes per chunk
+     * @param dedup false to read every file straight through and write no manifests
+     */
+    public ChunkStore(Storage backend, String chunkDir, int chunkSize, boolean dedup)
+    {
+        this.backend = backend;
+        this.chunkDir = chunkDir;
+        this.manifestDir = chunkDir + "/manifests";
+        this.chunkSize = chunkSize;
+        this.dedup = dedup;
+    }
+
+
+    /**
+     * Creates a Deduplicated File
+     * A plain file when not deduplicating
+     * @param filename the file being uploaded
+     * @return upload to write the file data to
+     * @throws AccessDeniedException if the name is inside the chunk directory
+     * @throws IOException if the name can't have a manifest
+     */
+    @Override
+    public Upload create(String filename) throws IOException
+    {
+        checkName(filename);
+        if (!dedup)
+        {
+            return backend.create(filename);
+        }
+        manifestName(filename);
+
+        ManifestUpload upload = new ManifestUpload();
+        upload.name = filename;
+        return upload;
+    }
+
+    /**
+     * Opens a File for Reading
+     * Manifests are read back chunk by chunk, plain files are read directly
+     * @param filename the requested file
+     * @return handle on the file data
+     * @throws FileNotFoundException if the file or one of its chunks is missing
+     * @throws AccessDeniedException if the name is inside the chunk directory
+     * @throws IOException
+     */
+    @Override
+    public Handle open(String filename) throws IOException
+    {
+        checkName(filename);
+        String manifestName = manifestFor(filename);
+        if (manifestName == null)
+        {
+            return backend.open(filename);
+        }
+
+        Handle handle = backend.open(manifestName);
+
+        try
+        {
+            ManifestHandle manifest = new ManifestHandle();
+            manifest.hashes = new ArrayList<>();
+            manifest.stat = new Stat(readManifest(handle, filename, manifest.hashes), handle.stat().modified);
+            manifest.manifestChunkSize = chunkSize;
+
+            // every chunk but the last is full, the first one says how big they were made
+            if (manifest.hashes.size() > 1)
+            {
+                Stat first = backend.stat(chunkName(manifest.hashes.get(0)));
+                if (first == null)
+                {
+                    throw new FileNotFoundException(filename + ": missing chunk " + manifest.hashes.get(0));
+                }
+                manifest.manifestChunkSize = first.size;
+            }
+
+            handle.close();
+            return manifest;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            handle.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Bad manifest " + filename, e);
+        }
+    }
+
+    /**
+     * Gets the State of a File
+     * @param filename the file
+     * @return the state, with the size of the data a manifest stands for
+     * @throws AccessDeniedException if the name is inside the chunk directory
+     * @throws IOException
+     */
+    @Override
+    public Stat stat(String filename) throws IOException
+    {
+        checkName(filename);
+        String manifestName = manifestFor(filename);
+        if (manifestName == null)
+        {
+            return backend.stat(filename);
+        }
+
+        Stat stat = backend.stat(manifestName);
+        if (stat == null)
+        {
+            return backend.stat(filename);
+        }
+
+        // the manifest was read before, and hasn't changed since
+        Stat[] known = resolved.get(filename);
+        if (known != null && known[0].modified == stat.modified && known[0].size == stat.size)
+        {
+            return known[1];
+        }
+
+        Stat data;
+        try (Handle handle = open(filename))
+        {
+            data = handle.stat();
+        }
+
+        if (resolved.size() >= MAX_RESOLVED)
+        {
+            resolved.clear();
+        }
+        resolved.put(filename, new Stat[] {stat, data});
+        return data;
+    }
+
+    @Override
+    public boolean delete(String filename) throws IOException
+    {
+        checkName(filename);
+        if (!dedup)
+        {
+            return backend.delete(filename);
+        }
+
+        // chunks may be shared, they stay
+        resolved.remove(filename);
+        boolean manifest = backend.delete(manifestName(filename));
+        return backend.delete(filename) || manifest;
+    }
+
+    /**
+     * Lists the Files Under a Directory
+     * Files with manifests are listed under their own names, the chunks never are
+     * @param directory the directory
+     * @return the names, or null if there is no such directory
+     * @throws AccessDeniedException if the directory is inside the chunk directory
+     * @throws IOException
+     */
+    @Override
+    public List<String> list(String directory) throws IOException
+    {
+        checkName(directory);
+        List<String> names = backend.list(directory);
+        String prefix = directory.isEmpty() || directory.endsWith("/") ? directory : directory + "/";
+
+        if (names != null)
+        {
+            names.removeIf(name -> (prefix + name).startsWith(chunkDir + "/"));
+        }
+        if (!dedup)
+        {
+            return names;
+        }
+
+        List<String> manifests = backend.list(manifestName(directory));
+        if (manifests == null)
+        {
+            return names;
+        }
+
+        TreeSet<String> all = new TreeSet<>(manifests);
+        if (names != null)
+        {
+            all.addAll(names);
+        }
+        return new ArrayList<>(all);
+    }
+
+    @Override
+    public String getName()
+    {
+        return backend.getName();
+    }
+
+    /**
+     * Refuses Names Inside the Chunk Directory
+     * Chunks and manifests are only reached through the files they make up, a client
+     * writing or deleting one by name would corrupt every file sharing it. The name is
+     * normalised first, so no spelling of it gets past
+     * @param filename the name a client asked for
+     * @throws AccessDeniedException if it is the chunk directory or under it
+     */
+    protected void checkName(String filename) throws AccessDeniedException
+    {
+        List<String> parts = new ArrayList<>();
+        for (String part : filename.split("[/\\\\]"))
+        {
+            if (part.equals(".."))
+            {
+                if (!parts.isEmpty())
+                {
+                    parts.remove(parts.size() - 1);
+                }
+            }
+            else if (!part.isEmpty() && !part.equals("."))
+            {
+                parts.add(part);
+            }
+        }
+
+        String name = String.join("/", parts);
+        if (name.equals(chunkDir) || name.startsWith(chunkDir + "/"))
+        {
+            throw new AccessDeniedException(filename, null, "inside the chunk store");
+        }
+    }
+
+    /**
+     * Finds the Manifest a File is Read Through
+     * A plain file written after the manifest, while deduplication was off, wins
+     * @param filename the file
+     * @return the manifest name, or null if the file is read straight through
+     * @throws IOException if the name can't have a manifest
+     */
+    protected String manifestFor(String filename) throws IOException
+    {
+        if (!dedup)
+        {
+            return null;
+        }
+
+        String manifestName = manifestName(filename);
+        Stat manifest = backend.stat(manifestName);
+        if (manifest == null)
+        {
+            return null;
+        }
+
+        Stat plain = backend.stat(filename);
+        return plain != null && plain.modified > manifest.modified ? null : manifestName;
+    }
+
+    /**
+     * Gets the Name a File's Manifest is Stored Under
+     * @param filename the file
+     * @return the manifest name
+     * @throws IOException if the name is absolute or climbs out of the manifests
+     */
+    protected String manifestName(String filename) throws IOException
+    {
+        for (String part : filename.split("[/\\\\]", -1))
+        {
+            if (part.equals(".."))
+            {
+                throw new IOException("Bad file name " + filename);
+            }
+        }
+        if (filename.startsWith("/") || filename.startsWith("\\"))
+        {
+            throw new IOException("Bad file name " + filename);
+        }
+
+        return filename.isEmpty() ? manifestDir : manifestDir + "/" + filename;
+    }
+
+    /**
+     * Reads the Size and Chunk Hashes of a Manifest
+     * Every line is checked, the hashes become names in the store
+     * @param handle the manifest
+     * @param filename the file it stands for, for errors
+     * @param hashes filled with the chunk hashes in order
+     * @return the size of the file
+     * @throws IOException if it isn't a well formed manifest
+     */
+    protected static long readManifest(Handle handle, String filename, List<String> hashes) throws IOException
+    {
+        long length = handle.stat().size;
+        if (length > Integer.MAX_VALUE)
+        {
+            throw new IOException("Bad manifest " + filename + ": " + length + " bytes");
+        }
+
+        ByteBuffer data = ByteBuffer.allocate((int) length);
+        readFully(handle, data, 0);
+
+        BufferedReader reader = new BufferedReader(new StringReader(new String(data.array(), 0, data.position(), StandardCharsets.US_ASCII)));
+
+        if (!MANIFEST_HEADER.equals(reader.readLine()))
+        {
+            throw new IOException("Bad manifest " + filename + ": no header");
+        }
+
+        String sizeLine = reader.readLine();
+        if (sizeLine == null || !SIZE_LINE.matcher(sizeLine).matches())
+        {
+            throw new IOException("Bad manifest " + filename + ": no size");
+        }
+        long size = Long.parseLong(sizeLine.substring("size ".length()));
+
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            if (!HASH.matcher(line).matches())
+            {
+                throw new IOException("Bad manifest " + filename + ": bad chunk hash");
+            }
+            hashes.add(line);
+        }
+
+        if ((size == 0) != hashes.isEmpty())
+        {
+            throw new IOException("Bad manifest " + filename + ": " + hashes.size() + " chunks for " + size + " bytes");
+        }
+        return size;
+    }
+
+    /**
+     * Fills a Buffer from a Handle
+     * @param handle the file
+     * @param buffer the buffer, left short at the end of the file
+     * @param position offset in the file
+     * @throws IOException
+     */
+    public static void readFully(Handle handle, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int read;
+            try
+            {
+                read = handle.read(buffer, position + buffer.position()).get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted reading " + position, e);
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+
+            if (read <= 0)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the Name a Chunk is Stored Under
+     * @param hash hex SHA-256 of the chunk
+     * @return the chunk name
+     * @throws IOException if it isn't 64 lower case hex digits
+     */
+    protected String chunkName(String hash) throws IOException
+    {
+        if (!HASH.matcher(hash).matches())
+        {
+            throw new IOException("Bad chunk hash " + hash);
+        }
+        return chunkDir + "/" + hash.substring(0, 2) + "/" + hash;
+    }
+
+    /**
+     * Creates a SHA-256 Digest
+     * @return the digest
+     */
+    public static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Converts Bytes to a Hex String
+     * @param bytes the bytes
+     * @return lower case hex
+     */
+    public static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
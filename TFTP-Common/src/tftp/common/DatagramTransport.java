@@ -0,0 +1,62 @@
+package tftp.common;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketException;
+
+/**
+ * Datagram Transport Used by the UDP Server and Client
+ * Implemented over a real socket, or over a simulated network for repeatable loss testing
+ * @author 105977
+ */
+public interface DatagramTransport {
+
+    /**
+     * Opens New Transports on Ephemeral Ports
+     * Used for the Session Sockets - the Server TID
+     */
+    interface Factory {
+        DatagramTransport open() throws IOException;
+    }
+
+    /**
+     * Sends a Packet to the Address and Port it Carries
+     * @param packet the packet
+     * @throws IOException
+     */
+    void send(DatagramPacket packet) throws IOException;
+
+    /**
+     * Receives a Packet
+     * Blocks for at most the Timeout
+     * @param packet filled with the data, length, address and port received
+     * @throws java.net.SocketTimeoutException if the timeout expires first
+     * @throws IOException
+     */
+    void receive(DatagramPacket packet) throws IOException;
+
+    /**
+     * Sets the Receive Timeout
+     * @param timeout ms, 0 waits forever
+     * @throws SocketException
+     */
+    void setSoTimeout(int timeout) throws SocketException;
+
+    /**
+     * Gets the Time on the Clock this Transport Runs On
+     * Timers built over several receives must use it, a simulated network has its own clock
+     * @return ms
+     */
+    long currentTimeMillis();
+
+    /**
+     * Gets the Local Port
+     * @return the port
+     */
+    int getLocalPort();
+
+    /**
+     * Closes the Transport
+     */
+    void close();
+}
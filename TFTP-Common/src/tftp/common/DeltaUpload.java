@@ -0,0 +1,202 @@
+package tftp.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Delta Uploads of Files the Server Already Has a Copy Of
+ * The server sends a rolling and a strong checksum for each whole block of its copy,
+ * the client finds those blocks anywhere in the new file and sends only the bytes
+ * in between plus references to the blocks. The new file is rebuilt from both while
+ * it is written, the old copy stays in place until the new one is complete.
+ * Wire format, after the OACK with delta [block size]:
+ *   server: SUMS opcode, [block count] int, per block [rolling] int [MD5] 16 bytes
+ *   client: [file length] long, then instructions until a 0:
+ *     n > 0  n literal bytes follow
+ *     n < 0  copy block -n - 1 of the old copy
+ * @author 105977
+ */
+public class DeltaUpload {
+
+    public static final int MIN_BLOCK = 512;
+    public static final int MAX_BLOCK = 64 * 1024;
+    public static final int MAX_BLOCKS = 1 << 20; // checksums per file, bigger files get bigger blocks
+    protected static final int COPY_SIZE = 64 * 1024; // bytes per literal read
+
+
+    /**
+     * Picks the Block Size for an Old Copy
+     * @param requested block size the client asked for
+     * @param size length of the old copy
+     * @return the block size to use
+     */
+    public static int blockSize(int requested, long size)
+    {
+        int blockSize = Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, requested));
+        while (blockSize < MAX_BLOCK && size / blockSize > MAX_BLOCKS)
+        {
+            blockSize *= 2;
+        }
+        return blockSize;
+    }
+
+    /**
+     * Computes the Rolling Checksum of a Block
+     * Two 16 bit sums as in rsync, the second weighting each byte by its distance from the end
+     * @param data the bytes
+     * @param offset start of the block
+     * @param length bytes in the block
+     * @return the checksum
+     */
+    public static int rolling(byte[] data, int offset, int length)
+    {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++)
+        {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Creates the Strong Checksum Digest
+     * @return an MD5 digest, only used to confirm rolling checksum matches
+     */
+    public static MessageDigest newStrong()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    /**
+     * Sends the Checksums of Every Whole Block of the Old Copy
+     * A short last block is left out, the client sends it as literal bytes
+     * @param old the old copy, null if there is none
+     * @param blockSize bytes per block
+     * @param out the connection
+     * @return blocks sent
+     * @throws IOException
+     */
+    public static int writeSums(Storage.Handle old, int blockSize, DataOutputStream out) throws IOException
+    {
+        int count = old == null ? 0 : (int) (old.stat().size / blockSize);
+        MessageDigest strong = newStrong();
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+
+        out.write(Packets.SUMS);
+        out.writeInt(count);
+
+        for (int i = 0; i < count; i++)
+        {
+            block.clear();
+            ChunkStore.readFully(old, block, (long) i * blockSize);
+            if (block.hasRemaining())
+            {
+                throw new IOException("Old copy shrank while reading block " + i);
+            }
+
+            out.writeInt(rolling(block.array(), 0, blockSize));
+            strong.update(block.array(), 0, blockSize);
+            out.write(strong.digest());
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Rebuilds the New File from the Client's Instructions
+     * @param old the old copy the checksums were taken from
+     * @param blockSize bytes per block
+     * @param count blocks the checksums were sent for
+     * @param in the connection, positioned after the file length
+     * @param length file length the client sent
+     * @param out where the new file is written
+     * @param digest hashes the new file, may be null
+     * @return literal bytes received, the rest was copied from the old copy
+     * @throws IOException if an instruction is out of range or the length doesn't add up
+     */
+    public static long rebuild(Storage.Handle old, int blockSize, int count, DataInputStream in, long length,
+            OutputStream out, MessageDigest digest) throws IOException
+    {
+        byte[] buffer = new byte[Math.max(blockSize, COPY_SIZE)];
+        long written = 0;
+        long literal = 0;
+        int instruction;
+
+        while ((instruction = in.readInt()) != 0)
+        {
+            int n;
+            if (instruction > 0)
+            {
+                // literal bytes, read through the buffer in pieces
+                for (int remaining = instruction; remaining > 0; remaining -= n)
+                {
+                    n = Math.min(buffer.length, remaining);
+                    in.readFully(buffer, 0, n);
+                    write(buffer, n, out, digest);
+                }
+                literal += instruction;
+                written += instruction;
+            }
+            else
+            {
+                long index = -(long) instruction - 1;
+                if (index >= count)
+                {
+                    throw new IOException("Delta refers to block " + index + " of " + count);
+                }
+
+                ByteBuffer block = ByteBuffer.wrap(buffer, 0, blockSize);
+                ChunkStore.readFully(old, block, index * blockSize);
+                if (block.hasRemaining())
+                {
+                    throw new IOException("Old copy shrank while reading block " + index);
+                }
+                write(buffer, blockSize, out, digest);
+                written += blockSize;
+            }
+
+            if (written > length)
+            {
+                throw new IOException("Delta is longer than " + length + " bytes");
+            }
+        }
+
+        if (written != length)
+        {
+            throw new IOException("Delta rebuilt " + written + " of " + length + " bytes");
+        }
+        return literal;
+    }
+
+    /**
+     * Writes and Hashes Part of the New File
+     * @param data the bytes
+     * @param length bytes to write
+     * @param out where the new file is written
+     * @param digest hashes the new file, may be null
+     * @throws IOException
+     */
+    protected static void write(byte[] data, int length, OutputStream out, MessageDigest digest) throws IOException
+    {
+        out.write(data, 0, length);
+        if (digest != null)
+        {
+            digest.update(data, 0, length);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package tftp.common;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of File Digests
+ * Entries are only valid while the file keeps the same
+ * modification time and size, so repeated RRQs don't rehash.
+ * Holds a bounded number of files, the least recently used goes first
+ * @author 105977
+ */
+public class DigestCache {
+
+    /**
+     * A Digest and the File State it was Computed For
+     */
+    protected static class Entry {
+        protected long modified;
+        protected long size;
+        protected String digest;
+    }
+
+    protected Map<String, Entry> entries; // in order of use, guarded by itself
+    protected Storage storage; // where the files are kept
+
+
+    /**
+     * Constructs a Digest Cache
+     * @param storage storage the files are kept in
+     * @param maxEntries most files held
+     */
+    public DigestCache(Storage storage, int maxEntries)
+    {
+        this.storage = storage;
+
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DigestCache.Entry> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+
+    /**
+     * Gets the Cached Digest of a File
+     * @param filename the file
+     * @return hex digest, or null if missing or the file has changed
+     */
+    public String get(String filename)
+    {
+        Entry entry;
+        synchronized (entries)
+        {
+            entry = entries.get(filename);
+        }
+
+        if (entry == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            Storage.Stat stat = storage.stat(filename);
+            return stat != null && entry.modified == stat.modified && entry.size == stat.size ? entry.digest : null;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Caches the Digest of a File
+     * @param filename the file
+     * @param modified modification time when hashing started
+     * @param size file size when hashing started
+     * @param digest hex digest of the file data
+     */
+    public void put(String filename, long modified, long size, String digest)
+    {
+        Entry entry = new Entry();
+        entry.modified = modified;
+        entry.size = size;
+        entry.digest = digest;
+
+        synchronized (entries)
+        {
+            entries.put(filename, entry);
+        }
+    }
+}
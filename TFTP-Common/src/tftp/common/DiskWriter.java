@@ -0,0 +1,308 @@
+package tftp.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Asynchronous Disk Writer for Uploads
+ * The network reader fills pooled buffers and hands them over,
+ * a separate thread flushes them to disk with gathering writes
+ * @author 105977
+ */
+public class DiskWriter extends Thread {
+
+    // fsync policies
+    public static final String FSYNC_NONE = "none"; // leave it to the OS
+    public static final String FSYNC_END = "end"; // sync once the transfer is complete
+    public static final String FSYNC_INTERVAL = "interval"; // sync every N MB written
+
+    // marks the end of the upload in the queue of full buffers
+    protected static final ByteBuffer END_OF_FILE = ByteBuffer.allocate(0);
+
+    protected WritableByteChannel channel; // file or chunk store being written
+    protected BufferPool pool;
+    protected ByteBuffer[] buffers; // every buffer borrowed, given back by finish
+    protected BlockingQueue<ByteBuffer> freeBuffers; // empty buffers for the network reader
+    protected BlockingQueue<ByteBuffer> fullBuffers; // filled buffers waiting for the disk
+
+    protected String fsyncPolicy;
+    protected long fsyncInterval; // bytes between syncs for the interval policy
+    protected long bytesSinceSync;
+    protected long bytesWritten;
+
+    protected volatile IOException failure; // first write error, reported to the reader
+    protected boolean ended; // finish has been called
+
+
+    /**
+     * Constructs a Disk Writer
+     * Borrows its buffers from the pool on the calling thread, the network reader
+     * @param channel the channel to write to, fsync applies to file channels
+     * @param fsyncPolicy none, end or interval
+     * @param fsyncIntervalMB MB written between syncs for the interval policy
+     * @param pool pool the buffers are borrowed from
+     * @param bufferCount number of buffers, bounds memory per upload
+     */
+    public DiskWriter(WritableByteChannel channel, String fsyncPolicy, int fsyncIntervalMB, BufferPool pool, int bufferCount)
+    {
+        super("TFTP Disk Writer");
+        setDaemon(true);
+
+        this.channel = channel;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncInterval = (long) fsyncIntervalMB * 1024 * 1024;
+        this.pool = pool;
+
+        freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        // one extra slot for the end of file marker
+        fullBuffers = new ArrayBlockingQueue<>(bufferCount + 1);
+
+        buffers = new ByteBuffer[bufferCount];
+        for (int i = 0; i < bufferCount; i++)
+        {
+            buffers[i] = pool.acquire();
+            freeBuffers.add(buffers[i]);
+        }
+    }
+
+
+    /**
+     * Takes an Empty Buffer from the Pool
+     * Blocks while the disk is behind - the socket is not read meanwhile,
+     * so TCP flow control pushes back on the client
+     * @return an empty buffer
+     * @throws IOException if a previous write failed
+     */
+    public ByteBuffer acquire() throws IOException
+    {
+        checkFailure();
+
+        try
+        {
+            return freeBuffers.take();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a buffer", e);
+        }
+    }
+
+    /**
+     * Hands a Filled Buffer to the Writer Thread
+     * @param buffer buffer filled from position 0 to its current position
+     * @throws IOException if a previous write failed
+     */
+    public void submit(ByteBuffer buffer) throws IOException
+    {
+        checkFailure();
+
+        buffer.flip();
+        enqueue(buffer);
+    }
+
+    /**
+     * Waits for all Submitted Buffers to Reach the Disk
+     * Applies the End of Transfer fsync, then gives the buffers back to the pool.
+     * A write failure is reported ahead of anything that went wrong while finishing,
+     * which is added to it as suppressed. Safe to call again
+     * @return total bytes written
+     * @throws IOException if any write or sync failed
+     */
+    public long finish() throws IOException
+    {
+        IOException finishing = null;
+
+        if (!ended)
+        {
+            ended = true;
+
+            try
+            {
+                enqueue(END_OF_FILE);
+                join();
+
+                // the writer has ended, so nothing touches the buffers any more
+                for (ByteBuffer buffer : buffers)
+                {
+                    pool.release(buffer);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                finishing = new IOException("Interrupted waiting for the disk writer", e);
+            }
+            catch (IOException e)
+            {
+                finishing = e;
+            }
+
+            if (finishing != null)
+            {
+                // the buffers are left to the collector, the writer may still hold some
+                interrupt();
+            }
+        }
+
+        IOException first = failure;
+        if (first != null)
+        {
+            if (finishing != null)
+            {
+                first.addSuppressed(finishing);
+            }
+            throw first;
+        }
+        if (finishing != null)
+        {
+            throw finishing;
+        }
+        return bytesWritten;
+    }
+
+
+    @Override
+    public void run()
+    {
+        List<ByteBuffer> batch = new ArrayList<>();
+        boolean finished = false;
+
+        while (!finished)
+        {
+            try
+            {
+                // wait for one buffer, then group commit whatever else is queued
+                batch.add(fullBuffers.take());
+                fullBuffers.drainTo(batch);
+
+                if (batch.get(batch.size() - 1) == END_OF_FILE)
+                {
+                    batch.remove(batch.size() - 1);
+                    finished = true;
+                }
+
+                if (failure == null)
+                {
+                    write(batch);
+
+                    if (finished && !FSYNC_NONE.equals(fsyncPolicy))
+                    {
+                        force();
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+            catch (InterruptedException e)
+            {
+                failure = new IOException("Disk writer interrupted", e);
+                finished = true;
+            }
+
+            // recycle buffers, even after a failure so the reader never blocks forever
+            for (ByteBuffer buffer : batch)
+            {
+                buffer.clear();
+                freeBuffers.offer(buffer);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes a Batch of Buffers with a Single Gathering Write
+     * @param batch the buffers to write
+     * @throws IOException
+     */
+    protected void write(List<ByteBuffer> batch) throws IOException
+    {
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers)
+        {
+            remaining += buffer.remaining();
+        }
+
+        while (remaining > 0)
+        {
+            long written;
+
+            if (channel instanceof GatheringByteChannel)
+            {
+                written = ((GatheringByteChannel) channel).write(buffers);
+            }
+            else
+            {
+                written = 0;
+                for (ByteBuffer buffer : buffers)
+                {
+                    written += channel.write(buffer);
+                }
+            }
+
+            remaining -= written;
+            bytesWritten += written;
+            bytesSinceSync += written;
+        }
+
+        if (FSYNC_INTERVAL.equals(fsyncPolicy) && bytesSinceSync >= fsyncInterval)
+        {
+            force();
+            bytesSinceSync = 0;
+        }
+    }
+
+    /**
+     * Syncs File Data to the Device
+     * Other channels are left to their own durability
+     * @throws IOException
+     */
+    protected void force() throws IOException
+    {
+        if (channel instanceof FileChannel)
+        {
+            ((FileChannel) channel).force(false);
+        }
+    }
+
+    /**
+     * Places a Buffer on the Queue for the Writer Thread
+     * @param buffer the buffer
+     * @throws IOException if interrupted
+     */
+    protected void enqueue(ByteBuffer buffer) throws IOException
+    {
+        try
+        {
+            fullBuffers.put(buffer);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted handing buffer to the disk writer", e);
+        }
+    }
+
+    /**
+     * Rethrows a Write Failure on the Calling Thread
+     * @throws IOException the failure
+     */
+    protected void checkFailure() throws IOException
+    {
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+}
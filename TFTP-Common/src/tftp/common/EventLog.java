@@ -0,0 +1,291 @@
+package tftp.common;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Asynchronous Transfer Event Log
+ * Session threads put events into a lock free ring buffer,
+ * a background thread writes them out as JSON lines.
+ * When the buffer is full events are dropped and counted,
+ * logging never blocks a session
+ * @author 105977
+ */
+public class EventLog extends Thread {
+
+    // event types
+    public static final String REQUEST = "request";
+    public static final String OACK = "oack";
+    public static final String RETRANSMIT = "retransmit";
+    public static final String TIMEOUT = "timeout";
+    public static final String COMPLETE = "complete";
+    public static final String ERROR = "error";
+    public static final String STORAGE = "storage"; // periodic storage latency, file is the backend
+    public static final String WARMUP = "warmup"; // warm start progress
+    public static final String RELAY = "relay"; // upstream fetches and revalidations in relay mode
+
+    /**
+     * A Single Event
+     */
+    protected static class Event {
+        protected long time;
+        protected String type;
+        protected String client;
+        protected String file;
+        protected long bytes;
+        protected long duration;
+        protected String detail;
+    }
+
+    protected Event[] events; // ring slots
+    protected AtomicLongArray sequences; // per slot, says whether it is free or published
+    protected int mask;
+    protected AtomicLong tail = new AtomicLong(); // next slot for producers
+    protected long head; // next slot for the drain thread
+    protected AtomicLong dropped = new AtomicLong();
+    protected long droppedReported;
+
+    protected Writer out;
+
+
+    /**
+     * Opens an Event Log and Starts its Drain Thread
+     * Falls back to standard output if the file can't be opened
+     * @param destination file to append to, "-" for standard output
+     * @param capacity ring size, rounded up to a power of two
+     * @return the running event log
+     */
+    public static EventLog open(String destination, int capacity)
+    {
+        Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+
+        if (!destination.equals("-"))
+        {
+            try
+            {
+                out = new OutputStreamWriter(new FileOutputStream(destination, true), StandardCharsets.UTF_8);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Can't open event log " + destination + ", using standard output");
+            }
+        }
+
+        EventLog log = new EventLog(new BufferedWriter(out), capacity);
+        log.start();
+        return log;
+    }
+
+    /**
+     * Constructs an Event Log
+     * @param out where the JSON lines are written
+     * @param capacity ring size, rounded up to a power of two
+     */
+    protected EventLog(Writer out, int capacity)
+    {
+        super("TFTP Event Log");
+        setDaemon(true);
+
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        events = new Event[size];
+        sequences = new AtomicLongArray(size);
+        mask = size - 1;
+
+        for (int i = 0; i < size; i++)
+        {
+            sequences.set(i, i);
+        }
+
+        this.out = out;
+    }
+
+
+    /**
+     * Records an Event
+     * Returns straight away, the event is dropped if the buffer is full
+     * @param type event type
+     * @param client client address and port
+     * @param file file being transferred, may be null
+     * @param bytes bytes transferred, 0 if not relevant
+     * @param duration ms taken, 0 if not relevant
+     * @param detail extra text, may be null
+     */
+    public void log(String type, String client, String file, long bytes, long duration, String detail)
+    {
+        Event event = new Event();
+        event.time = System.currentTimeMillis();
+        event.type = type;
+        event.client = client;
+        event.file = file;
+        event.bytes = bytes;
+        event.duration = duration;
+        event.detail = detail;
+
+        while (true)
+        {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long sequence = sequences.get(slot);
+
+            if (sequence == position)
+            {
+                // slot is free, claim it
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    events[slot] = event;
+                    sequences.lazySet(slot, position + 1); // publish
+                    return;
+                }
+            }
+            else if (sequence < position)
+            {
+                // drain thread hasn't freed this slot yet, the buffer is full
+                dropped.incrementAndGet();
+                return;
+            }
+            // another producer claimed the slot first, try the next one
+        }
+    }
+
+    /**
+     * Gets the Number of Events Dropped Because the Buffer was Full
+     * @return dropped events
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+
+    @Override
+    public void run()
+    {
+        StringBuilder line = new StringBuilder(256);
+
+        while (true)
+        {
+            int drained = 0;
+
+            try
+            {
+                int slot = (int) head & mask;
+
+                // write everything published so far, then flush once
+                while (sequences.get(slot) == head + 1)
+                {
+                    Event event = events[slot];
+                    events[slot] = null;
+                    sequences.lazySet(slot, head + events.length); // free for the next lap
+                    head++;
+                    slot = (int) head & mask;
+
+                    line.setLength(0);
+                    format(event, line);
+                    out.write(line.toString());
+                    drained++;
+                }
+
+                long droppedNow = dropped.get();
+                if (droppedNow != droppedReported)
+                {
+                    out.write("{\"ts\":" + System.currentTimeMillis() + ",\"event\":\"dropped\",\"count\":" + (droppedNow - droppedReported) + "}\n");
+                    droppedReported = droppedNow;
+                    drained++;
+                }
+
+                if (drained > 0)
+                {
+                    out.flush();
+                }
+            }
+            catch (IOException e)
+            {
+                // nowhere left to report it, keep draining so sessions never notice
+            }
+
+            if (drained == 0)
+            {
+                try
+                {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Formats an Event as a JSON Line
+     * @param event the event
+     * @param line builder the line is appended to
+     */
+    protected void format(Event event, StringBuilder line)
+    {
+        line.append("{\"ts\":").append(event.time);
+        line.append(",\"event\":");
+        quote(event.type, line);
+
+        if (event.client != null)
+        {
+            line.append(",\"client\":");
+            quote(event.client, line);
+        }
+        if (event.file != null)
+        {
+            line.append(",\"file\":");
+            quote(event.file, line);
+        }
+        if (event.bytes != 0)
+        {
+            line.append(",\"bytes\":").append(event.bytes);
+        }
+        if (event.duration != 0)
+        {
+            line.append(",\"ms\":").append(event.duration);
+        }
+        if (event.detail != null)
+        {
+            line.append(",\"detail\":");
+            quote(event.detail, line);
+        }
+        line.append("}\n");
+    }
+
+    /**
+     * Appends a JSON String
+     * @param value the text
+     * @param line builder the string is appended to
+     */
+    protected static void quote(String value, StringBuilder line)
+    {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\')
+            {
+                line.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                line.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+}
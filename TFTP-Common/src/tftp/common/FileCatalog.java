@@ -0,0 +1,577 @@
+package tftp.common;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local Storage with the Served Root Catalogued in Memory
+ * Every file under the root is listed with its size and modification time when the
+ * catalog starts, and kept current from the directories' watch events. Once listed,
+ * a stat is a map lookup and a name that isn't in the map is missing, without asking
+ * the disk - PXE firmware probes many config names that don't exist.
+ * Names under a directory or file starting with a dot aren't listed, the chunk store
+ * and uploads in progress live there, nor is anything while the root is being listed
+ * again after the watch service lost events. Those lookups go to the disk, and the
+ * names found missing are kept for a moment in a negative lookup cache.
+ * Names are confined to the root, hidden or not: absolute names, ones climbing out of it
+ * and ones a link leads out of it are refused
+ * @author 105977
+ */
+public class FileCatalog extends LocalStorage {
+
+    protected volatile Map<String, Stat> files = new ConcurrentHashMap<>(); // by name relative to the root, '/' separated
+    protected volatile boolean listed; // the map holds every listable file
+    protected WatchService watcher;
+    protected Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    protected Set<String> changedWhileListing; // names to bring up to date once a rescan is in, null otherwise
+
+    // names found missing on disk, with the time they stop counting, oldest first
+    protected int negativeSize;
+    protected long negativeMillis;
+    protected LinkedHashMap<String, Long> negative = new LinkedHashMap<>();
+
+    // counters
+    protected AtomicLong hits = new AtomicLong(); // answered from the catalog
+    protected AtomicLong misses = new AtomicLong(); // missing, answered from memory
+    protected AtomicLong lookups = new AtomicLong(); // went to the disk
+    protected AtomicLong refused = new AtomicLong(); // outside the root
+    protected AtomicLong rescans = new AtomicLong();
+
+
+    /**
+     * Upload that Lists the File Once it is in Place
+     */
+    protected class CatalogUpload extends ReplacingUpload {
+
+        protected String name;
+
+        protected CatalogUpload(File temp, File target, String name) throws FileNotFoundException
+        {
+            super(temp, target);
+            this.name = name;
+        }
+
+        @Override
+        public void commit() throws IOException
+        {
+            try
+            {
+                super.commit();
+            }
+            finally
+            {
+                changed(name);
+            }
+        }
+    }
+
+
+    /**
+     * Constructs a Catalog and Starts Listing the Root
+     * Until listing is done, lookups go to the disk
+     * @param root the served directory
+     * @param negativeSize names kept in the negative lookup cache
+     * @param negativeMillis ms a name found missing is remembered
+     */
+    public FileCatalog(File root, int negativeSize, long negativeMillis)
+    {
+        super(root);
+        this.negativeSize = negativeSize;
+        this.negativeMillis = negativeMillis;
+
+        Thread thread = new Thread(this::watch, "TFTP Catalog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    @Override
+    public Stat stat(String name) throws IOException
+    {
+        String key = confine(name);
+
+        if (isListed(key))
+        {
+            Stat stat = files.get(key);
+            (stat == null ? misses : hits).incrementAndGet();
+            return stat;
+        }
+
+        if (isKnownMissing(key))
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        lookups.incrementAndGet();
+        Stat stat = super.stat(key);
+        if (stat == null)
+        {
+            missing(key);
+        }
+        return stat;
+    }
+
+    @Override
+    public Handle open(String name) throws IOException
+    {
+        String key = confine(name);
+
+        if (isListed(key) ? !files.containsKey(key) : isKnownMissing(key))
+        {
+            misses.incrementAndGet();
+            throw new FileNotFoundException(name);
+        }
+
+        try
+        {
+            return super.open(key);
+        }
+        catch (FileNotFoundException e)
+        {
+            // deleted, and the watch event isn't in yet
+            if (isListed(key))
+            {
+                changed(key);
+            }
+            else
+            {
+                missing(key);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public Upload create(String name) throws IOException
+    {
+        return super.create(confine(name));
+    }
+
+    @Override
+    protected Upload replacing(File temp, File target, String name) throws FileNotFoundException
+    {
+        return new CatalogUpload(temp, target, name);
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException
+    {
+        String key = confine(name);
+        try
+        {
+            return super.delete(key);
+        }
+        finally
+        {
+            changed(key);
+        }
+    }
+
+    @Override
+    public List<String> list(String directory) throws IOException
+    {
+        String key = confine(directory);
+
+        if (!isListed(key))
+        {
+            lookups.incrementAndGet();
+            return super.list(key);
+        }
+
+        String prefix = key + "/";
+        List<String> names = new ArrayList<>();
+        for (String name : files.keySet())
+        {
+            if (name.startsWith(prefix))
+            {
+                names.add(name.substring(prefix.length()));
+            }
+        }
+
+        // only files are catalogued, an empty directory is still a directory
+        if (names.isEmpty() && !Files.isDirectory(path(key)))
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "catalog";
+    }
+
+    /**
+     * Summarises the Catalog
+     * @return counts as text
+     */
+    public String describe()
+    {
+        int remembered;
+        synchronized (negative)
+        {
+            remembered = negative.size();
+        }
+        return files.size() + " files" + (listed ? "" : " (listing)") + ", " + hits.get() + " hits, " + misses.get()
+                + " misses from memory, " + lookups.get() + " from disk, " + refused.get() + " refused, "
+                + remembered + " known missing, " + rescans.get() + " rescans";
+    }
+
+
+    /**
+     * Confines a Name to the Root
+     * Listed names are answered from memory, their links were followed when they were
+     * listed. Anything else goes on to the disk through path, which follows them now
+     * @param name the name a client asked for
+     * @return the name relative to the root, '/' separated
+     * @throws AccessDeniedException if it is absolute or leads out of the root
+     */
+    protected String confine(String name) throws AccessDeniedException
+    {
+        try
+        {
+            return key(normalize(name));
+        }
+        catch (AccessDeniedException e)
+        {
+            refused.incrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    protected Path path(String name) throws AccessDeniedException
+    {
+        try
+        {
+            return super.path(name);
+        }
+        catch (AccessDeniedException e)
+        {
+            refused.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the Catalog Name of a Path Under the Root
+     * @param path the path
+     * @return the name relative to the root, '/' separated
+     */
+    protected String key(Path path)
+    {
+        String key = rootPath.relativize(path).toString();
+        return File.separatorChar == '/' ? key : key.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Checks Whether the Catalog Answers for a Name
+     * @param key the name
+     * @return true if the name is listable and listing is done
+     */
+    protected boolean isListed(String key)
+    {
+        return listed && !isHidden(key);
+    }
+
+    /**
+     * Checks Whether a Name is Under a Dot Directory or is a Dot File
+     * @param key the name
+     * @return true if it isn't listed
+     */
+    protected static boolean isHidden(String key)
+    {
+        return key.startsWith(".") || key.contains("/.");
+    }
+
+    /**
+     * Checks the Negative Lookup Cache
+     * @param key the name
+     * @return true if the name was found missing a moment ago
+     */
+    protected boolean isKnownMissing(String key)
+    {
+        synchronized (negative)
+        {
+            Long until = negative.get(key);
+            if (until == null)
+            {
+                return false;
+            }
+            if (until > System.currentTimeMillis())
+            {
+                return true;
+            }
+            negative.remove(key);
+            return false;
+        }
+    }
+
+    /**
+     * Remembers a Name Found Missing
+     * @param key the name
+     */
+    protected void missing(String key)
+    {
+        synchronized (negative)
+        {
+            negative.remove(key); // so it goes to the end
+            negative.put(key, System.currentTimeMillis() + negativeMillis);
+
+            while (negative.size() > negativeSize)
+            {
+                negative.remove(negative.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * Brings a Name up to Date after it Changed on Disk
+     * @param key the name
+     */
+    protected void changed(String key)
+    {
+        synchronized (negative)
+        {
+            negative.remove(key);
+        }
+
+        // a rescan may already have listed past it, or not yet reached it
+        synchronized (this)
+        {
+            if (changedWhileListing != null)
+            {
+                changedWhileListing.add(key);
+            }
+        }
+
+        if (isHidden(key))
+        {
+            return;
+        }
+
+        Path path = rootPath.resolve(key);
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.isRegularFile() && (!Files.isSymbolicLink(path) || path.toRealPath().startsWith(realRoot)))
+            {
+                files.put(key, new Stat(attributes.size(), attributes.lastModifiedTime().toMillis()));
+                return;
+            }
+        }
+        catch (NoSuchFileException e)
+        {
+            // deleted
+        }
+        catch (IOException e)
+        {
+            // unreadable, served as missing
+        }
+        files.remove(key);
+    }
+
+
+    /**
+     * Lists the Root then Follows its Watch Events
+     * Runs on the catalog thread. If the watch service can't be had the catalog
+     * stays unlisted and every lookup goes to the disk
+     */
+    protected void watch()
+    {
+        try
+        {
+            watcher = FileSystems.getDefault().newWatchService();
+            list(rootPath, files);
+            listed = true;
+
+            while (true)
+            {
+                WatchKey watchKey = watcher.take();
+                Path directory = directories.get(watchKey);
+
+                for (WatchEvent<?> event : watchKey.pollEvents())
+                {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                    {
+                        rescan();
+                        continue;
+                    }
+                    if (directory == null)
+                    {
+                        continue;
+                    }
+
+                    Path path = directory.resolve((Path) event.context());
+                    String key = key(path);
+
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+                    {
+                        // a directory takes everything under it along
+                        String prefix = key + "/";
+                        files.keySet().removeIf(name -> name.startsWith(prefix));
+                        changed(key);
+                    }
+                    else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                            && Files.isDirectory(path) && !Files.isSymbolicLink(path) && !isHidden(key))
+                    {
+                        list(path, files);
+                        synchronized (negative)
+                        {
+                            negative.clear(); // names under it may have been probed
+                        }
+                    }
+                    else
+                    {
+                        changed(key);
+                    }
+                }
+
+                if (!watchKey.reset())
+                {
+                    directories.remove(watchKey);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            listed = false;
+            System.err.println("Can't watch " + rootPath + ", file lookups go to the disk: " + e);
+        }
+        catch (InterruptedException e)
+        {
+            listed = false;
+        }
+    }
+
+    /**
+     * Lists the Root Again after Watch Events were Lost
+     * Lookups go to the disk until the new listing replaces the old one. Names changed
+     * meanwhile, by uploads and deletes on other threads, are brought up to date in the
+     * new listing before it answers
+     * @throws IOException
+     */
+    protected void rescan() throws IOException
+    {
+        listed = false;
+        rescans.incrementAndGet();
+
+        synchronized (this)
+        {
+            changedWhileListing = new HashSet<>();
+        }
+
+        Map<String, Stat> relisted = new ConcurrentHashMap<>();
+        Set<String> changed;
+        try
+        {
+            list(rootPath, relisted);
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                files = relisted;
+                changed = changedWhileListing;
+                changedWhileListing = null;
+            }
+        }
+
+        for (String key : changed)
+        {
+            changed(key);
+        }
+        listed = true;
+    }
+
+    /**
+     * Lists a Directory Tree and Watches Every Directory in it
+     * @param start the top of the tree
+     * @param into map the files are added to
+     * @throws IOException
+     */
+    protected void list(Path start, Map<String, Stat> into) throws IOException
+    {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException
+            {
+                if (!directory.equals(rootPath) && isHidden(key(directory)))
+                {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                directories.put(directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), directory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+            {
+                String key = key(file);
+
+                if (isHidden(key))
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (attributes.isRegularFile())
+                {
+                    into.put(key, new Stat(attributes.size(), attributes.lastModifiedTime().toMillis()));
+                }
+                else if (attributes.isSymbolicLink())
+                {
+                    // listed as the file it leads to, if that is under the root
+                    try
+                    {
+                        BasicFileAttributes target = Files.readAttributes(file, BasicFileAttributes.class);
+                        if (target.isRegularFile() && file.toRealPath().startsWith(realRoot))
+                        {
+                            into.put(key, new Stat(target.size(), target.lastModifiedTime().toMillis()));
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        // a dangling link
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e)
+            {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,344 @@
+package tftp.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder Events for Each Transfer Phase
+ * Recorded on the session thread, so GC pauses and I/O stalls in a recording line up
+ * with the transfer they held up. Fields are only filled in once shouldCommit() says
+ * the event will be kept, with no recording running an event costs an allocation the
+ * JIT removes. Waits and stalls have thresholds, only slow ones are recorded unless a
+ * recording setting lowers them.
+ * The client events are named like the server's with a client prefix, so recordings
+ * from both ends can be opened together. TCP does its own retransmits, so the TCP
+ * client records no retransmit or ACK wait events
+ * @author 105977
+ */
+public class FlightEvents {
+
+    /**
+     * A RRQ or WRQ Arrived
+     */
+    @Name("tftp.Request")
+    @Label("Request Received")
+    @Category("TFTP")
+    @StackTrace(false)
+    public static class Request extends Event {
+        @Label("Transport")
+        public String transport;
+
+        @Label("Client")
+        public String client;
+
+        @Label("File")
+        public String file;
+
+        @Label("Type")
+        public String type;
+    }
+
+    /**
+     * A File was Opened for a Transfer
+     */
+    @Name("tftp.FileOpen")
+    @Label("File Opened")
+    @Category("TFTP")
+    @StackTrace(false)
+    public static class FileOpen extends Event {
+        @Label("Transport")
+        public String transport;
+
+        @Label("Client")
+        public String client;
+
+        @Label("File")
+        public String file;
+
+        @Label("Size")
+        @Description("File length for a RRQ, 0 for a WRQ")
+        @DataAmount
+        public long bytes;
+    }
+
+    /**
+     * A Packet was Sent Again after a Timeout
+     */
+    @Name("tftp.Retransmit")
+    @Label("Retransmit")
+    @Category("TFTP")
+    @StackTrace(false)
+    public static class Retransmit extends Event {
+        @Label("Transport")
+        public String transport;
+
+        @Label("Client")
+        public String client;
+
+        @Label("File")
+        public String file;
+
+        @Label("Block Size")
+        @DataAmount
+        public int blksize;
+
+        @Label("Retry")
+        public int retry;
+
+        @Label("Bytes So Far")
+        @DataAmount
+        public long bytes;
+    }
+
+    /**
+     * Waiting for the ACK of the Packet Just Sent
+     */
+    @Name("tftp.AckWait")
+    @Label("ACK Wait")
+    @Category("TFTP")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    public static class AckWait extends Event {
+        @Label("Transport")
+        public String transport;
+
+        @Label("Client")
+        public String client;
+
+        @Label("File")
+        public String file;
+
+        @Label("Block Size")
+        @DataAmount
+        public int blksize;
+
+        @Label("Bytes So Far")
+        @DataAmount
+        public long bytes;
+
+        @Label("RTT")
+        @Description("From the last send of the packet to its ACK")
+        @Timespan(Timespan.NANOSECONDS)
+        public long rtt;
+    }
+
+    /**
+     * A Session Waited for File Data to be Read
+     */
+    @Name("tftp.DiskReadStall")
+    @Label("Disk Read Stall")
+    @Category("TFTP")
+    @StackTrace(false)
+    @Threshold("5 ms")
+    public static class DiskReadStall extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Position")
+        @DataAmount
+        public long position;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    /**
+     * A Session Waited for File Data to be Written
+     */
+    @Name("tftp.DiskWriteStall")
+    @Label("Disk Write Stall")
+    @Category("TFTP")
+    @StackTrace(false)
+    @Threshold("5 ms")
+    public static class DiskWriteStall extends Event {
+        @Label("Transport")
+        public String transport;
+
+        @Label("Client")
+        public String client;
+
+        @Label("File")
+        public String file;
+
+        @Label("Bytes So Far")
+        @DataAmount
+        public long bytes;
+    }
+
+    /**
+     * A Transfer Finished
+     * Lasts from the request to the end of the transfer
+     */
+    @Name("tftp.Complete")
+    @Label("Transfer Complete")
+    @Category("TFTP")
+    @StackTrace(false)
+    public static class Complete extends Event {
+        @Label("Transport")
+        public String transport;
+
+        @Label("Client")
+        public String client;
+
+        @Label("File")
+        public String file;
+
+        @Label("Block Size")
+        @DataAmount
+        public int blksize;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+
+        @Label("Average RTT")
+        @Description("Mean time from a send to its ACK, 0 over TCP")
+        @Timespan(Timespan.NANOSECONDS)
+        public long rtt;
+    }
+
+    /**
+     * The Client Sent a RRQ or WRQ
+     */
+    @Name("tftp.client.Request")
+    @Label("Request Sent")
+    @Category({"TFTP", "Client"})
+    @StackTrace(false)
+    public static class ClientRequest extends Event {
+        @Label("Transport")
+        public String transport;
+
+        @Label("Server")
+        public String server;
+
+        @Label("File")
+        public String file;
+
+        @Label("Type")
+        public String type;
+    }
+
+    /**
+     * The Client Sent a Packet Again after a Timeout
+     */
+    @Name("tftp.client.Retransmit")
+    @Label("Retransmit")
+    @Category({"TFTP", "Client"})
+    @StackTrace(false)
+    public static class ClientRetransmit extends Event {
+        @Label("Transport")
+        public String transport;
+
+        @Label("Server")
+        public String server;
+
+        @Label("File")
+        public String file;
+
+        @Label("Block Size")
+        @DataAmount
+        public int blksize;
+
+        @Label("Retry")
+        public int retry;
+
+        @Label("Bytes So Far")
+        @DataAmount
+        public long bytes;
+    }
+
+    /**
+     * The Client Waited for the ACK of the Packet Just Sent
+     */
+    @Name("tftp.client.AckWait")
+    @Label("ACK Wait")
+    @Category({"TFTP", "Client"})
+    @StackTrace(false)
+    @Threshold("10 ms")
+    public static class ClientAckWait extends Event {
+        @Label("Transport")
+        public String transport;
+
+        @Label("Server")
+        public String server;
+
+        @Label("File")
+        public String file;
+
+        @Label("Block Size")
+        @DataAmount
+        public int blksize;
+
+        @Label("Bytes So Far")
+        @DataAmount
+        public long bytes;
+
+        @Label("RTT")
+        @Description("From the last send of the packet to its ACK")
+        @Timespan(Timespan.NANOSECONDS)
+        public long rtt;
+    }
+
+    /**
+     * Data the Client Received Waited to be Written
+     */
+    @Name("tftp.client.DiskWriteStall")
+    @Label("Disk Write Stall")
+    @Category({"TFTP", "Client"})
+    @StackTrace(false)
+    @Threshold("5 ms")
+    public static class ClientDiskWriteStall extends Event {
+        @Label("Transport")
+        public String transport;
+
+        @Label("Server")
+        public String server;
+
+        @Label("File")
+        public String file;
+
+        @Label("Bytes So Far")
+        @DataAmount
+        public long bytes;
+    }
+
+    /**
+     * A Client Transfer Finished
+     * Lasts from the request to the end of the transfer
+     */
+    @Name("tftp.client.Complete")
+    @Label("Transfer Complete")
+    @Category({"TFTP", "Client"})
+    @StackTrace(false)
+    public static class ClientComplete extends Event {
+        @Label("Transport")
+        public String transport;
+
+        @Label("Server")
+        public String server;
+
+        @Label("File")
+        public String file;
+
+        @Label("Block Size")
+        @DataAmount
+        public int blksize;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+
+        @Label("Average RTT")
+        @Description("Mean time from a send to its ACK, 0 over TCP")
+        @Timespan(Timespan.NANOSECONDS)
+        public long rtt;
+    }
+}
@@ -0,0 +1,378 @@
+package tftp.common;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Storage in a Local Directory
+ * Reads are asynchronous positional reads on the file,
+ * uploads are written aside and moved into place when complete.
+ * Every name is confined to the root, links included
+ * @author 105977
+ */
+public class LocalStorage implements Storage {
+
+    protected File root;
+    protected Path rootPath; // absolute and normalised, names are resolved against it
+    protected Path realRoot; // with its links followed, every name must lead under it
+
+
+    /**
+     * Replaces the Target File Once the Upload is Committed
+     * Written to a temp file beside it, which callers can also write through its channel
+     */
+    protected static class ReplacingUpload extends Upload {
+
+        protected File temp;
+        protected File target;
+        protected FileOutputStream out;
+        protected boolean finished;
+        protected boolean committed;
+
+        protected ReplacingUpload(File temp, File target) throws FileNotFoundException
+        {
+            this.temp = temp;
+            this.target = target;
+            out = new FileOutputStream(temp);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+        }
+
+        /**
+         * Gets the Channel of the Temp File
+         * @return the channel, writes through it are part of the upload
+         */
+        public FileChannel getChannel()
+        {
+            return out.getChannel();
+        }
+
+        @Override
+        public void commit() throws IOException
+        {
+            synchronized (this)
+            {
+                if (finished)
+                {
+                    if (committed)
+                    {
+                        return;
+                    }
+                    throw new IOException("Upload of " + target + " was discarded");
+                }
+                finished = true;
+            }
+
+            try
+            {
+                out.close();
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                committed = true;
+            }
+            finally
+            {
+                temp.delete();
+            }
+        }
+
+        @Override
+        public void abort()
+        {
+            synchronized (this)
+            {
+                if (finished)
+                {
+                    return;
+                }
+                finished = true;
+            }
+
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                // the temp file goes either way
+            }
+            finally
+            {
+                temp.delete();
+            }
+        }
+    }
+
+
+    /**
+     * Constructs Local Storage
+     * @param root directory names are resolved against
+     */
+    public LocalStorage(File root)
+    {
+        this.root = root;
+
+        rootPath = root.toPath().toAbsolutePath().normalize();
+        try
+        {
+            realRoot = rootPath.toRealPath();
+        }
+        catch (IOException e)
+        {
+            realRoot = rootPath;
+        }
+    }
+
+
+    @Override
+    public Stat stat(String name) throws IOException
+    {
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(path(name), BasicFileAttributes.class);
+            return attributes.isRegularFile() ? new Stat(attributes.size(), attributes.lastModifiedTime().toMillis()) : null;
+        }
+        catch (NoSuchFileException e)
+        {
+            return null;
+        }
+    }
+
+    @Override
+    public Handle open(String name) throws IOException
+    {
+        Path path = path(name);
+        AsynchronousFileChannel channel;
+
+        try
+        {
+            channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        }
+        catch (NoSuchFileException e)
+        {
+            throw new FileNotFoundException(name);
+        }
+
+        try
+        {
+            Stat stat = new Stat(channel.size(), Files.getLastModifiedTime(path).toMillis());
+            return new Handle()
+            {
+                @Override
+                public Stat stat()
+                {
+                    return stat;
+                }
+
+                @Override
+                public CompletableFuture<Integer> read(ByteBuffer buffer, long position)
+                {
+                    CompletableFuture<Integer> read = new CompletableFuture<>();
+
+                    channel.read(buffer, position, read, new CompletionHandler<Integer, CompletableFuture<Integer>>()
+                    {
+                        @Override
+                        public void completed(Integer result, CompletableFuture<Integer> read)
+                        {
+                            read.complete(result);
+                        }
+
+                        @Override
+                        public void failed(Throwable e, CompletableFuture<Integer> read)
+                        {
+                            read.completeExceptionally(e);
+                        }
+                    });
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    channel.close(); // cancels outstanding reads
+                }
+            };
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Upload create(String name) throws IOException
+    {
+        File target = path(name).toFile();
+        File directory = target.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+
+        // same directory, so the final move is atomic
+        File temp = File.createTempFile(".upload", ".tmp", directory);
+        return replacing(temp, target, name);
+    }
+
+    /**
+     * Opens the Upload a File is Written Through
+     * @param temp file written aside
+     * @param target file it replaces once committed
+     * @param name the name it was created under
+     * @return the upload
+     * @throws FileNotFoundException if the temp file can't be opened
+     */
+    protected Upload replacing(File temp, File target, String name) throws FileNotFoundException
+    {
+        return new ReplacingUpload(temp, target);
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException
+    {
+        return Files.deleteIfExists(path(name));
+    }
+
+    @Override
+    public List<String> list(String directory) throws IOException
+    {
+        Path start = path(directory);
+        if (!Files.isDirectory(start))
+        {
+            return null;
+        }
+
+        List<String> names = new ArrayList<>();
+
+        try (Stream<Path> paths = Files.walk(start))
+        {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator)
+            {
+                String name = start.relativize(path).toString().replace(File.separatorChar, '/');
+
+                // the chunk store and uploads being written aside
+                if (!name.startsWith(".") && !name.contains("/."))
+                {
+                    names.add(name);
+                }
+            }
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "local";
+    }
+
+    /**
+     * Resolves a Name Against the Root Directory
+     * The name is normalised under the root, then the links on its way are followed as far
+     * as it exists - for a file not there yet, its nearest existing directory - and that
+     * has to be under the root too
+     * @param name the file
+     * @return its path
+     * @throws AccessDeniedException if it is absolute, climbs out of the root or a link leads out
+     */
+    protected Path path(String name) throws AccessDeniedException
+    {
+        Path path = normalize(name);
+        if (!isUnderRoot(path))
+        {
+            throw new AccessDeniedException(name, null, "outside the served root");
+        }
+        return path;
+    }
+
+    /**
+     * Normalises a Name Under the Root Directory
+     * Only the name is looked at, the disk isn't
+     * @param name the file
+     * @return its path, not yet checked for links leading out
+     * @throws AccessDeniedException if it is absolute or climbs out of the root
+     */
+    protected Path normalize(String name) throws AccessDeniedException
+    {
+        Path path;
+        try
+        {
+            path = rootPath.resolve(name).normalize();
+        }
+        catch (InvalidPathException e)
+        {
+            path = null;
+        }
+
+        if (path == null || name.isEmpty() || !path.startsWith(rootPath) || path.equals(rootPath))
+        {
+            throw new AccessDeniedException(name, null, "outside the served root");
+        }
+        return path;
+    }
+
+    /**
+     * Checks Where a Path Really Leads
+     * @param path a normalised path under the root
+     * @return true if it, or its nearest existing directory, is under the real root
+     */
+    protected boolean isUnderRoot(Path path)
+    {
+        Path existing = path;
+        while (existing != null && !Files.exists(existing, LinkOption.NOFOLLOW_LINKS))
+        {
+            existing = existing.getParent();
+        }
+        if (existing == null)
+        {
+            return false;
+        }
+        if (!existing.startsWith(rootPath))
+        {
+            return true; // the root isn't there yet, so nothing under it is a link
+        }
+
+        try
+        {
+            return existing.toRealPath().startsWith(realRoot);
+        }
+        catch (IOException e)
+        {
+            return false; // a dangling link, it could lead anywhere once created
+        }
+    }
+}
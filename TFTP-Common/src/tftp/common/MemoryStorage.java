@@ -0,0 +1,221 @@
+package tftp.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Storage Held Entirely in Memory
+ * For the hottest files, boot images can be loaded from a directory at startup.
+ * Nothing is written back, uploads are lost when the server stops
+ * @author 105977
+ */
+public class MemoryStorage implements Storage {
+
+    /**
+     * The Data of One File
+     * Never changed once stored, a new upload replaces the whole entry
+     */
+    protected static class Entry {
+        protected byte[] data;
+        protected long modified;
+    }
+
+    protected Map<String, Entry> files = new ConcurrentHashMap<>();
+    protected long lastModified; // keeps modification times distinct within a ms
+
+
+    /**
+     * Constructs Empty Memory Storage
+     */
+    public MemoryStorage()
+    {
+    }
+
+    /**
+     * Constructs Memory Storage Holding a Copy of a Directory
+     * @param preload directory whose files are loaded, names relative to it
+     * @throws IOException if a file can't be read
+     */
+    public MemoryStorage(File preload) throws IOException
+    {
+        Path root = preload.toPath();
+
+        try (Stream<Path> paths = Files.walk(root))
+        {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator)
+            {
+                String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+                put(name, Files.readAllBytes(path));
+            }
+        }
+    }
+
+
+    @Override
+    public Stat stat(String name)
+    {
+        Entry entry = files.get(name);
+        return entry == null ? null : new Stat(entry.data.length, entry.modified);
+    }
+
+    @Override
+    public Handle open(String name) throws IOException
+    {
+        Entry entry = files.get(name);
+
+        if (entry == null)
+        {
+            throw new FileNotFoundException(name);
+        }
+
+        Stat stat = new Stat(entry.data.length, entry.modified);
+        return new Handle()
+        {
+            @Override
+            public Stat stat()
+            {
+                return stat;
+            }
+
+            @Override
+            public CompletableFuture<Integer> read(ByteBuffer buffer, long position)
+            {
+                // already in memory, completes straight away
+                if (position >= entry.data.length)
+                {
+                    return CompletableFuture.completedFuture(-1);
+                }
+
+                int length = (int) Math.min(buffer.remaining(), entry.data.length - position);
+                buffer.put(entry.data, (int) position, length);
+                return CompletableFuture.completedFuture(length);
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+
+    @Override
+    public Upload create(String name)
+    {
+        return new Upload()
+        {
+            protected ByteArrayOutputStream data = new ByteArrayOutputStream(); // null once finished
+            protected boolean committed;
+
+            @Override
+            public synchronized void write(int b) throws IOException
+            {
+                open().write(b);
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) throws IOException
+            {
+                open().write(b, off, len);
+            }
+
+            @Override
+            public synchronized void commit() throws IOException
+            {
+                if (!committed)
+                {
+                    put(name, open().toByteArray());
+                    data = null;
+                    committed = true;
+                }
+            }
+
+            @Override
+            public synchronized void abort()
+            {
+                data = null;
+            }
+
+            /**
+             * Gets the Data Written So Far
+             * @return the buffer
+             * @throws IOException if the upload is finished
+             */
+            protected ByteArrayOutputStream open() throws IOException
+            {
+                if (data == null)
+                {
+                    throw new IOException("Upload of " + name + " is finished");
+                }
+                return data;
+            }
+        };
+    }
+
+    @Override
+    public boolean delete(String name)
+    {
+        return files.remove(name) != null;
+    }
+
+    @Override
+    public List<String> list(String directory)
+    {
+        String prefix = directory.endsWith("/") ? directory : directory + "/";
+        List<String> names = new ArrayList<>();
+
+        for (String name : files.keySet())
+        {
+            String below = name.startsWith(prefix) ? name.substring(prefix.length()) : null;
+            if (below != null && !below.startsWith(".") && !below.contains("/."))
+            {
+                names.add(below);
+            }
+        }
+
+        // there are no directories, only names with a common prefix
+        if (names.isEmpty())
+        {
+            return null;
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "memory";
+    }
+
+    /**
+     * Stores a File
+     * @param name the file
+     * @param data its data, not copied
+     */
+    protected void put(String name, byte[] data)
+    {
+        Entry entry = new Entry();
+        entry.data = data;
+
+        synchronized (this)
+        {
+            // a replaced file must never look unchanged to the digest cache
+            entry.modified = Math.max(System.currentTimeMillis(), lastModified + 1);
+            lastModified = entry.modified;
+        }
+
+        files.put(name, entry);
+    }
+}
@@ -0,0 +1,269 @@
+package tftp.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage that Measures its Backend
+ * Counts every operation and how long it took, so backends can be compared
+ * from the storage events in the event log
+ * @author 105977
+ */
+public class MeteredStorage implements Storage {
+
+    /**
+     * Latency of One Kind of Operation
+     */
+    public static class Latency {
+        protected String operation;
+        protected AtomicLong count = new AtomicLong();
+        protected AtomicLong totalNanos = new AtomicLong();
+        protected AtomicLong maxNanos = new AtomicLong();
+
+        protected Latency(String operation)
+        {
+            this.operation = operation;
+        }
+
+        /**
+         * Records an Operation
+         * @param start System.nanoTime() when it started
+         */
+        public void record(long start)
+        {
+            long nanos = System.nanoTime() - start;
+            long max;
+
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos))
+            {
+                // another thread raised it, try again
+            }
+        }
+
+        /**
+         * Summarises the Operations So Far
+         * @param line builder the summary is appended to
+         */
+        protected void describe(StringBuilder line)
+        {
+            long n = count.get();
+            line.append(operation).append(' ').append(n);
+
+            if (n > 0)
+            {
+                line.append(String.format(" avg %.3fms max %.3fms", totalNanos.get() / 1e6 / n, maxNanos.get() / 1e6));
+            }
+        }
+    }
+
+    /**
+     * Upload that Times its Writes and the Final Commit
+     */
+    public class MeteredUpload extends Upload {
+
+        protected Upload upload;
+
+        protected MeteredUpload(Upload upload)
+        {
+            this.upload = upload;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            upload.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                upload.write(b, off, len);
+            }
+            finally
+            {
+                writes.record(start);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            upload.flush();
+        }
+
+        @Override
+        public void commit() throws IOException
+        {
+            long start = System.nanoTime();
+            try
+            {
+                upload.commit();
+            }
+            finally
+            {
+                commits.record(start);
+            }
+        }
+
+        @Override
+        public void abort()
+        {
+            upload.abort();
+        }
+
+        /**
+         * Gets a Channel to Write Through
+         * A local file is written through its own channel, so gathering writes and fsync
+         * still work, at the cost of not timing the individual writes
+         * @return the channel
+         */
+        public WritableByteChannel getChannel()
+        {
+            return upload instanceof LocalStorage.ReplacingUpload ? ((LocalStorage.ReplacingUpload) upload).getChannel() : Channels.newChannel(this);
+        }
+    }
+
+    protected Storage backend;
+
+    public final Latency stats = new Latency("stat");
+    public final Latency opens = new Latency("open");
+    public final Latency reads = new Latency("read");
+    public final Latency writes = new Latency("write"); // each write call on an upload
+    public final Latency commits = new Latency("commit"); // committing an upload, publishes the file
+    public final Latency deletes = new Latency("delete");
+
+
+    /**
+     * Constructs Metered Storage
+     * @param backend the storage measured
+     */
+    public MeteredStorage(Storage backend)
+    {
+        this.backend = backend;
+    }
+
+
+    @Override
+    public Stat stat(String name) throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return backend.stat(name);
+        }
+        finally
+        {
+            stats.record(start);
+        }
+    }
+
+    @Override
+    public Handle open(String name) throws IOException
+    {
+        long start = System.nanoTime();
+        Handle handle;
+        try
+        {
+            handle = backend.open(name);
+        }
+        finally
+        {
+            opens.record(start);
+        }
+
+        return new Handle()
+        {
+            @Override
+            public Stat stat()
+            {
+                return handle.stat();
+            }
+
+            @Override
+            public CompletableFuture<Integer> read(ByteBuffer buffer, long position)
+            {
+                // timed until the data is there, not until the read is issued
+                long start = System.nanoTime();
+                CompletableFuture<Integer> read = handle.read(buffer, position);
+                read.whenComplete((length, e) -> reads.record(start));
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                handle.close();
+            }
+        };
+    }
+
+    @Override
+    public Upload create(String name) throws IOException
+    {
+        return new MeteredUpload(backend.create(name));
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return backend.delete(name);
+        }
+        finally
+        {
+            deletes.record(start);
+        }
+    }
+
+    @Override
+    public List<String> list(String directory) throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return backend.list(directory);
+        }
+        finally
+        {
+            stats.record(start);
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return backend.getName();
+    }
+
+    /**
+     * Summarises Every Operation So Far
+     * @return counts and latencies as text
+     */
+    public String describe()
+    {
+        StringBuilder line = new StringBuilder();
+        Latency[] all = {stats, opens, reads, writes, commits, deletes};
+
+        for (int i = 0; i < all.length; i++)
+        {
+            if (i > 0)
+            {
+                line.append(", ");
+            }
+            all[i].describe(line);
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,516 @@
+package tftp.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunked Object Store Style Storage
+ * Behaves like a remote object store: files are uploaded in fixed size parts and
+ * published by writing a small manifest, reads fetch whole parts on a request pool.
+ * A local directory stands in for the bucket, with an optional delay on every request
+ * so remote latency can be tried out without a real store.
+ * Layout:
+ *   [bucket]/objects/[encoded name].meta - size, modification time, upload id and part count
+ *   [bucket]/parts/[upload id]/[part number] - file data
+ * @author 105977
+ */
+public class ObjectStorage implements Storage {
+
+    // fetches parts in the background, like HTTP requests to a store
+    protected static ExecutorService requests = Executors.newCachedThreadPool(r ->
+    {
+        Thread thread = new Thread(r, "TFTP Object Store");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    protected File objects;
+    protected File parts;
+    protected int partSize;
+    protected long latency; // ms added to every request
+
+
+    /**
+     * What an Object Manifest Says
+     */
+    protected static class Manifest {
+        protected long size;
+        protected long modified;
+        protected String upload;
+        protected int parts;
+    }
+
+    /**
+     * Uploads a File Part by Part
+     * Nothing is visible until the manifest is written on commit
+     */
+    protected class MultipartUpload extends Upload {
+
+        protected String name;
+        protected String upload = UUID.randomUUID().toString();
+        protected byte[] part = new byte[partSize];
+        protected int partLength;
+        protected int partCount;
+        protected long size;
+        protected boolean finished;
+        protected boolean committed;
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (finished)
+            {
+                throw new IOException("Upload of " + name + " is finished");
+            }
+
+            while (len > 0)
+            {
+                int n = Math.min(len, part.length - partLength);
+
+                System.arraycopy(b, off, part, partLength, n);
+                partLength += n;
+                size += n;
+                off += n;
+                len -= n;
+
+                if (partLength == part.length)
+                {
+                    putPart();
+                }
+            }
+        }
+
+        /**
+         * Uploads the Last Part and Publishes the Manifest
+         * Parts of the object it replaces are deleted
+         * @throws IOException
+         */
+        @Override
+        public void commit() throws IOException
+        {
+            if (finished)
+            {
+                if (committed)
+                {
+                    return;
+                }
+                throw new IOException("Upload of " + name + " was discarded");
+            }
+            finished = true;
+
+            Manifest manifest = new Manifest();
+            Manifest replaced;
+            try
+            {
+                if (partLength > 0 || partCount == 0)
+                {
+                    putPart();
+                }
+
+                manifest.size = size;
+                manifest.modified = System.currentTimeMillis();
+                manifest.upload = upload;
+                manifest.parts = partCount;
+
+                replaced = readManifest(name);
+                writeManifest(name, manifest);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // never published, nothing refers to the parts
+                deleteParts(uploaded());
+                throw e;
+            }
+            committed = true;
+
+            if (replaced != null)
+            {
+                deleteParts(replaced);
+            }
+        }
+
+        /**
+         * Deletes the Parts Uploaded So Far, Leaving the Object it Would Replace
+         */
+        @Override
+        public void abort()
+        {
+            if (!finished)
+            {
+                finished = true;
+                deleteParts(uploaded());
+            }
+        }
+
+        /**
+         * Describes the Parts Uploaded So Far
+         * @return manifest of the parts
+         */
+        protected Manifest uploaded()
+        {
+            Manifest uploaded = new Manifest();
+            uploaded.upload = upload;
+            uploaded.parts = partCount;
+            return uploaded;
+        }
+
+        /**
+         * Uploads the Buffered Part
+         * @throws IOException
+         */
+        protected void putPart() throws IOException
+        {
+            request();
+
+            File file = partFile(upload, partCount);
+            file.getParentFile().mkdirs();
+            try (OutputStream out = new FileOutputStream(file))
+            {
+                out.write(part, 0, partLength);
+            }
+
+            partCount++;
+            partLength = 0;
+        }
+    }
+
+
+    /**
+     * Constructs Object Storage
+     * @param bucket directory standing in for the bucket
+     * @param partSize bytes per part
+     * @param latency ms added to every request
+     */
+    public ObjectStorage(File bucket, int partSize, long latency)
+    {
+        objects = new File(bucket, "objects");
+        parts = new File(bucket, "parts");
+        this.partSize = partSize;
+        this.latency = latency;
+    }
+
+
+    @Override
+    public Stat stat(String name) throws IOException
+    {
+        Manifest manifest = readManifest(name);
+        return manifest == null ? null : new Stat(manifest.size, manifest.modified);
+    }
+
+    @Override
+    public Handle open(String name) throws IOException
+    {
+        Manifest manifest = readManifest(name);
+
+        if (manifest == null)
+        {
+            throw new FileNotFoundException(name);
+        }
+
+        Stat stat = new Stat(manifest.size, manifest.modified);
+        return new Handle()
+        {
+            // parts fetched or being fetched, only the latest two are kept
+            protected TreeMap<Integer, CompletableFuture<byte[]>> fetched = new TreeMap<>();
+
+            @Override
+            public Stat stat()
+            {
+                return stat;
+            }
+
+            @Override
+            public CompletableFuture<Integer> read(ByteBuffer buffer, long position)
+            {
+                if (position >= manifest.size)
+                {
+                    return CompletableFuture.completedFuture(-1);
+                }
+
+                int offset = (int) (position % partSize);
+                return part((int) (position / partSize)).thenApply(data ->
+                {
+                    int length = Math.min(buffer.remaining(), data.length - offset);
+                    buffer.put(data, offset, length);
+                    return length;
+                });
+            }
+
+            /**
+             * Fetches a Part Unless it is Already on its Way
+             * @param index part number
+             * @return the part data
+             */
+            protected synchronized CompletableFuture<byte[]> part(int index)
+            {
+                CompletableFuture<byte[]> part = fetched.get(index);
+
+                if (part == null)
+                {
+                    part = CompletableFuture.supplyAsync(() -> getPart(manifest, index), requests);
+                    fetched.put(index, part);
+
+                    // reads move forward, older parts won't be asked for again
+                    Iterator<Map.Entry<Integer, CompletableFuture<byte[]>>> older = fetched.headMap(index - 1).entrySet().iterator();
+                    while (older.hasNext())
+                    {
+                        older.next();
+                        older.remove();
+                    }
+                }
+                return part;
+            }
+
+            @Override
+            public synchronized void close()
+            {
+                fetched.clear();
+            }
+        };
+    }
+
+    @Override
+    public Upload create(String name)
+    {
+        MultipartUpload upload = new MultipartUpload();
+        upload.name = name;
+        return upload;
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException
+    {
+        Manifest manifest = readManifest(name);
+
+        if (manifest == null)
+        {
+            return false;
+        }
+
+        request();
+        Files.deleteIfExists(manifestFile(name).toPath());
+        deleteParts(manifest);
+        return true;
+    }
+
+    @Override
+    public List<String> list(String directory) throws IOException
+    {
+        String prefix = directory.endsWith("/") ? directory : directory + "/";
+        List<String> names = new ArrayList<>();
+
+        // one listing request, as a store lists a prefix
+        request();
+        String[] manifests = objects.list();
+
+        for (String manifest : manifests == null ? new String[0] : manifests)
+        {
+            if (!manifest.endsWith(".meta"))
+            {
+                continue;
+            }
+
+            String name = URLDecoder.decode(manifest.substring(0, manifest.length() - 5), "UTF-8");
+            String below = name.startsWith(prefix) ? name.substring(prefix.length()) : null;
+            if (below != null && !below.startsWith(".") && !below.contains("/."))
+            {
+                names.add(below);
+            }
+        }
+
+        if (names.isEmpty())
+        {
+            return null;
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "object";
+    }
+
+
+    /**
+     * Fetches a Whole Part
+     * A reader of an object replaced since it was opened fails here, as with a real store
+     * @param manifest object the part belongs to
+     * @param index part number
+     * @return the part data
+     */
+    protected byte[] getPart(Manifest manifest, int index)
+    {
+        try
+        {
+            request();
+            return Files.readAllBytes(partFile(manifest.upload, index).toPath());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads an Object Manifest
+     * @param name the file
+     * @return the manifest, or null if there is no such object
+     * @throws IOException
+     */
+    protected Manifest readManifest(String name) throws IOException
+    {
+        request();
+
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(manifestFile(name)))
+        {
+            properties.load(in);
+        }
+        catch (FileNotFoundException e)
+        {
+            return null;
+        }
+
+        try
+        {
+            Manifest manifest = new Manifest();
+            manifest.size = Long.parseLong(properties.getProperty("size"));
+            manifest.modified = Long.parseLong(properties.getProperty("modified"));
+            manifest.upload = properties.getProperty("upload");
+            manifest.parts = Integer.parseInt(properties.getProperty("parts"));
+            return manifest;
+        }
+        catch (RuntimeException e)
+        {
+            throw new IOException("Bad object manifest for " + name, e);
+        }
+    }
+
+    /**
+     * Publishes an Object Manifest
+     * Replaces any previous one atomically
+     * @param name the file
+     * @param manifest the manifest
+     * @throws IOException
+     */
+    protected void writeManifest(String name, Manifest manifest) throws IOException
+    {
+        request();
+
+        Properties properties = new Properties();
+        properties.setProperty("size", Long.toString(manifest.size));
+        properties.setProperty("modified", Long.toString(manifest.modified));
+        properties.setProperty("upload", manifest.upload);
+        properties.setProperty("parts", Integer.toString(manifest.parts));
+
+        File file = manifestFile(name);
+        file.getParentFile().mkdirs();
+        File temp = File.createTempFile(".manifest", ".tmp", file.getParentFile());
+
+        try
+        {
+            try (OutputStream out = new FileOutputStream(temp))
+            {
+                properties.store(out, name);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Deletes the Parts of an Upload
+     * @param manifest the upload
+     */
+    protected void deleteParts(Manifest manifest)
+    {
+        for (int i = 0; i < manifest.parts; i++)
+        {
+            partFile(manifest.upload, i).delete();
+        }
+        partFile(manifest.upload, 0).getParentFile().delete();
+    }
+
+    /**
+     * Gets the File Holding an Object's Manifest
+     * @param name the file
+     * @return the manifest file
+     */
+    protected File manifestFile(String name)
+    {
+        try
+        {
+            // encoded, so any name is a single file in the objects directory
+            return new File(objects, URLEncoder.encode(name, "UTF-8") + ".meta");
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Gets the File Holding a Part
+     * @param upload upload id
+     * @param index part number
+     * @return the part file
+     */
+    protected File partFile(String upload, int index)
+    {
+        return new File(new File(parts, upload), Integer.toString(index));
+    }
+
+    /**
+     * Waits Out the Configured Request Latency
+     * @throws IOException if interrupted
+     */
+    protected void request() throws IOException
+    {
+        if (latency > 0)
+        {
+            try
+            {
+                TimeUnit.MILLISECONDS.sleep(latency);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the object store", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package tftp.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TFTP Packet Formats Shared by the UDP and TCP Front Ends
+ * Opcodes, error codes and the packets both transports build the same way
+ * @author 105977
+ */
+public class Packets {
+
+    // TFTP opcodes
+    public static final byte RRQ [] = new byte[] {0,1};
+    public static final byte WRQ [] = new byte[] {0,2};
+    public static final byte DATA [] = new byte[] {0,3};
+    public static final byte ACK [] = new byte[] {0,4};
+    public static final byte ERROR [] = new byte[] {0,5};
+    public static final byte OACK [] = new byte[] {0,6};
+    public static final byte DIGEST [] = new byte[] {0,10}; // extension, carries the digest of the file data
+    public static final byte BLAST [] = new byte[] {0,11}; // extension, blast mode data with a 32 bit block number
+    public static final byte NAK [] = new byte[] {0,12}; // extension, blast mode progress and missing blocks
+    public static final byte SUMS [] = new byte[] {0,13}; // extension, block checksums of the server's copy for a delta upload
+
+    // File Not Found Error Code
+    public static final byte ERROR_CODE [] = new byte[] {0,1};
+    public static final String ERROR_MSG = "File not found";
+
+    // Server Busy Error
+    public static final byte BUSY_ERROR_CODE [] = new byte[] {0,0};
+    public static final String BUSY_MSG = "Server busy";
+
+    // Checksum Mismatch Error
+    public static final byte CHECKSUM_ERROR_CODE [] = new byte[] {0,0};
+    public static final String CHECKSUM_MSG = "Checksum mismatch";
+
+    // Name Outside the Served Root
+    public static final byte ACCESS_ERROR_CODE [] = new byte[] {0,2};
+    public static final String ACCESS_MSG = "Access violation";
+
+    // Upload Received but Not Stored, RFC 1350 disk full or allocation exceeded
+    public static final byte STORE_ERROR_CODE [] = new byte[] {0,3};
+    public static final String STORE_MSG = "File could not be stored";
+
+    // Option Negotiation Ended by the Client, RFC 2347
+    public static final byte OPTION_ERROR_CODE [] = new byte[] {0,8};
+
+    // Upstream Server Unavailable, relay mode
+    public static final byte UPSTREAM_ERROR_CODE [] = new byte[] {0,0};
+    public static final String UPSTREAM_MSG = "Upstream server unavailable";
+
+    public static final byte SEPARATOR = 0;
+
+
+    /**
+     * Builds a TFTP Error Packet
+     * @param errorCode the error code
+     * @param errorMsg the error message
+     * @return the packet
+     */
+    public static byte[] error(byte[] errorCode, String errorMsg)
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] message = errorMsg.getBytes(StandardCharsets.UTF_8);
+
+        os.write(ERROR, 0, ERROR.length);
+        os.write(errorCode, 0, errorCode.length);
+        os.write(message, 0, message.length);
+        os.write(SEPARATOR);
+
+        return os.toByteArray();
+    }
+
+    /**
+     * Builds a RRQ or WRQ Packet
+     * @param opCode RRQ or WRQ
+     * @param filename the file
+     * @param options option values by name, may be empty
+     * @return the packet, in octet mode
+     */
+    public static byte[] request(byte[] opCode, String filename, Map<String, String> options)
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+
+        os.write(opCode, 0, opCode.length);
+        os.write(name, 0, name.length);
+        os.write(SEPARATOR);
+        os.write("octet".getBytes(StandardCharsets.US_ASCII), 0, "octet".length());
+        os.write(SEPARATOR);
+        writeOptions(os, options);
+
+        return os.toByteArray();
+    }
+
+    /**
+     * Builds a TFTP Option Acknowledgement Packet
+     * @param options the accepted options
+     * @return the packet
+     */
+    public static byte[] oack(Map<String, String> options)
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        os.write(OACK, 0, OACK.length);
+        writeOptions(os, options);
+
+        return os.toByteArray();
+    }
+
+    /**
+     * Writes Options as Zero Terminated Name and Value Pairs
+     * @param os the packet being built
+     * @param options option values by name
+     */
+    protected static void writeOptions(ByteArrayOutputStream os, Map<String, String> options)
+    {
+        for (Map.Entry<String, String> option : options.entrySet())
+        {
+            byte[] name = option.getKey().getBytes(StandardCharsets.US_ASCII);
+            byte[] value = option.getValue().getBytes(StandardCharsets.US_ASCII);
+            os.write(name, 0, name.length);
+            os.write(SEPARATOR);
+            os.write(value, 0, value.length);
+            os.write(SEPARATOR);
+        }
+    }
+
+    /**
+     * Builds a Digest Packet
+     * @param fileDigest hex digest of the file data
+     * @return the packet
+     */
+    public static byte[] digest(String fileDigest)
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] hex = fileDigest.getBytes(StandardCharsets.US_ASCII);
+
+        os.write(DIGEST, 0, DIGEST.length);
+        os.write(hex, 0, hex.length);
+        os.write(SEPARATOR);
+
+        return os.toByteArray();
+    }
+
+    /**
+     * Reads a Zero Terminated String
+     * @param in the packet or stream
+     * @return the string, empty at the end of the packet
+     * @throws IOException
+     */
+    public static String readString(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        int stringByte;
+
+        while ((stringByte = in.read()) != 0 && stringByte != -1)
+        {
+            stringBytes.write(stringByte);
+        }
+
+        return stringBytes.toString("US-ASCII");
+    }
+
+    /**
+     * Reads Request Options up to an Empty Name or the End of the Packet
+     * Keeps the ones this server supports
+     * @param in the request, positioned after the mode
+     * @param acceptedOptions filled with the options sent back in the OACK
+     * @throws IOException
+     */
+    public static void readOptions(InputStream in, Map<String, String> acceptedOptions) throws IOException
+    {
+        acceptOptions(readRequestOptions(in), acceptedOptions);
+    }
+
+    /**
+     * Reads Every Request Option up to an Empty Name or the End of the Packet
+     * @param in the request, positioned after the mode
+     * @return option values by lower case name, in request order
+     * @throws IOException
+     */
+    public static Map<String, String> readRequestOptions(InputStream in) throws IOException
+    {
+        Map<String, String> options = new LinkedHashMap<>();
+        String name;
+        while (!(name = readString(in)).isEmpty())
+        {
+            options.put(name.toLowerCase(), readString(in));
+        }
+        return options;
+    }
+
+    /**
+     * Checks a Block Number Follows the Last One
+     * Accepts the clients' numbering, where the 2nd byte counts to 9,
+     * and plain 16 bit numbering from other peers
+     * @param blockNumber the last block number
+     * @param high 1st byte of the new block number
+     * @param low 2nd byte of the new block number
+     * @return true if it is the next block
+     */
+    public static boolean isNextBlock(byte[] blockNumber, byte high, byte low)
+    {
+        boolean next = blockNumber[1] == 9
+                ? high == (byte) (blockNumber[0] + 1) && low == 0
+                : high == blockNumber[0] && low == (byte) (blockNumber[1] + 1);
+
+        int number = ((blockNumber[0] & 0xFF) << 8 | (blockNumber[1] & 0xFF)) + 1;
+        boolean plainNext = high == (byte) (number >> 8) && low == (byte) number;
+
+        return next || plainNext;
+    }
+
+    /**
+     * Keeps the Requested Options Both Front Ends Support
+     * @param requested option values by lower case name
+     * @param acceptedOptions filled with the options sent back in the OACK
+     */
+    public static void acceptOptions(Map<String, String> requested, Map<String, String> acceptedOptions)
+    {
+        // only SHA-256 digests are supported
+        if ("sha256".equalsIgnoreCase(requested.get("digest")))
+        {
+            acceptedOptions.put("digest", "sha256");
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package tftp.common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Single Flight Reads for RRQs of the Same File
+ * Sessions reading the same version of a file attach to one shared window of pages,
+ * each page is read from storage once and every session copies its own blocks out of
+ * it at its own pace, whatever its block size. A page is dropped once every attached
+ * session has moved past it, so a boot wave of clients costs one pass over the disk.
+ * A session joining late starts at the first page, which is read again once for all
+ * the late joiners. The window has a limit, pages a fast session reads beyond it
+ * aren't kept and are read again by the sessions behind it
+ * @author 105977
+ */
+public class ReadCoalescer {
+
+    protected Storage storage;
+    protected int pageSize;
+    protected long maxWindow; // bytes of pages kept per file
+
+    // files being read, by name, modification time and size
+    protected Map<String, SharedFile> files = new HashMap<>();
+
+
+    /**
+     * A Page of a Shared File
+     */
+    protected static class Page {
+        protected ByteBuffer data;
+        protected CompletableFuture<ByteBuffer> loaded;
+    }
+
+    /**
+     * One Version of a File and the Sessions Reading It
+     */
+    protected class SharedFile {
+        protected String key;
+        protected String filename;
+        protected Storage.Handle handle;
+        protected Map<Long, Page> window = new HashMap<>();
+        protected long windowBytes;
+        protected TreeMap<Long, Integer> positions = new TreeMap<>(); // sessions at each page
+        protected int readers;
+
+        protected SharedFile(String key, String filename, Storage.Handle handle)
+        {
+            this.key = key;
+            this.filename = filename;
+            this.handle = handle;
+        }
+
+        /**
+         * Gets a Page, Reading it Unless it is in the Window
+         * The page after it is read ahead while the window has room
+         * @param index page index
+         * @return the page, maybe still loading
+         */
+        protected synchronized Page page(long index)
+        {
+            Page page = window.get(index);
+            if (page == null)
+            {
+                page = load(index);
+            }
+
+            if (!window.containsKey(index + 1) && (index + 1) * pageSize < handle.stat().size
+                    && windowBytes + pageSize <= maxWindow)
+            {
+                load(index + 1);
+            }
+            return page;
+        }
+
+        /**
+         * Starts Reading a Page
+         * Kept in the window while there is room
+         * @param index page index
+         * @return the page
+         */
+        protected Page load(long index)
+        {
+            Page page = new Page();
+            page.data = ByteBuffer.allocate((int) Math.min(pageSize, Math.max(0, handle.stat().size - index * pageSize)));
+            page.loaded = fill(page.data, index * pageSize);
+
+            if (windowBytes + page.data.capacity() <= maxWindow)
+            {
+                window.put(index, page);
+                windowBytes += page.data.capacity();
+
+                // a failed read isn't kept, the next session to want the page tries again
+                page.loaded.whenComplete((data, failure) ->
+                {
+                    if (failure != null)
+                    {
+                        drop(index, page);
+                    }
+                });
+            }
+            return page;
+        }
+
+        /**
+         * Reads Until a Buffer is Full
+         * Positional reads may come back short before the end of the file
+         * @param buffer the page's buffer
+         * @param position offset of the page in the file
+         * @return completes with the buffer once it is full
+         */
+        protected CompletableFuture<ByteBuffer> fill(ByteBuffer buffer, long position)
+        {
+            if (!buffer.hasRemaining())
+            {
+                return CompletableFuture.completedFuture(buffer);
+            }
+
+            return handle.read(buffer, position + buffer.position()).thenCompose(read -> read <= 0
+                    ? CompletableFuture.completedFuture(buffer)
+                    : fill(buffer, position));
+        }
+
+        /**
+         * Takes a Failed Page out of the Window
+         * @param index page index
+         * @param page the page
+         */
+        protected synchronized void drop(long index, Page page)
+        {
+            if (window.remove(index, page))
+            {
+                windowBytes -= page.data.capacity();
+            }
+        }
+
+        /**
+         * Moves a Session to Another Page
+         * Pages every session has moved past are dropped
+         * @param from page the session was at, -1 if it is attaching
+         * @param to page the session is at now, -1 if it is detaching
+         */
+        protected synchronized void move(long from, long to)
+        {
+            if (from >= 0)
+            {
+                positions.computeIfPresent(from, (page, count) -> count == 1 ? null : count - 1);
+            }
+            if (to >= 0)
+            {
+                positions.merge(to, 1, Integer::sum);
+            }
+
+            long first = positions.isEmpty() ? Long.MAX_VALUE : positions.firstKey();
+            window.entrySet().removeIf(entry ->
+            {
+                if (entry.getKey() < first)
+                {
+                    windowBytes -= entry.getValue().data.capacity();
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
+    /**
+     * One Session's Blocks out of a Shared File
+     */
+    protected class Reader implements BlockReader {
+        protected SharedFile file;
+        protected int blockSize;
+        protected long position; // next byte handed to the session
+        protected long pageIndex; // page the session is at
+        protected Page page; // that page, held while the session copies from it
+        protected boolean closed;
+
+        protected Reader(SharedFile file, int blockSize)
+        {
+            this.file = file;
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        public Storage.Stat stat()
+        {
+            return file.handle.stat();
+        }
+
+        /**
+         * Takes the Next Block
+         * Copied from one or two pages, waits only if the page is still being read
+         * @param block array of at least blockSize bytes the data is copied into
+         * @return bytes in the block, less than blockSize at the end of the file
+         * @throws IOException if the read failed
+         */
+        @Override
+        public int next(byte[] block) throws IOException
+        {
+            int length = 0;
+
+            while (length < blockSize)
+            {
+                long index = position / pageSize;
+                if (index != pageIndex || page == null)
+                {
+                    if (index != pageIndex)
+                    {
+                        file.move(pageIndex, index);
+                        pageIndex = index;
+                    }
+                    page = file.page(index);
+                }
+
+                ByteBuffer data = await(page);
+                int offset = (int) (position - index * pageSize);
+                int n = Math.min(blockSize - length, data.position() - offset);
+
+                if (n <= 0)
+                {
+                    break; // end of the file
+                }
+
+                System.arraycopy(data.array(), offset, block, length, n);
+                length += n;
+                position += n;
+            }
+            return length;
+        }
+
+        /**
+         * Waits for a Page to be Read
+         * Time spent here is recorded as a disk read stall
+         * @param page the page
+         * @return its data, positioned after the bytes read
+         * @throws IOException if the read failed
+         */
+        protected ByteBuffer await(Page page) throws IOException
+        {
+            FlightEvents.DiskReadStall stall = new FlightEvents.DiskReadStall();
+            stall.begin();
+
+            try
+            {
+                return page.loaded.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted reading " + file.filename, e);
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException)
+                {
+                    cause = cause.getCause();
+                }
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+            finally
+            {
+                stall.end();
+                if (stall.shouldCommit())
+                {
+                    stall.file = file.filename;
+                    stall.position = position;
+                    stall.bytes = page.data.capacity();
+                    stall.commit();
+                }
+            }
+        }
+
+        /**
+         * Detaches from the Shared File
+         * The last session to detach closes it
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException
+        {
+            if (!closed)
+            {
+                closed = true;
+                detach(this);
+            }
+        }
+    }
+
+
+    /**
+     * Constructs a Coalescer
+     * @param storage storage files are read from
+     * @param pageSize bytes per shared page
+     * @param maxWindow bytes of pages kept per file
+     */
+    public ReadCoalescer(Storage storage, int pageSize, long maxWindow)
+    {
+        this.storage = storage;
+        this.pageSize = pageSize;
+        this.maxWindow = maxWindow;
+    }
+
+
+    /**
+     * Opens a File, Joining the Sessions Already Reading the Same Version
+     * @param filename the file
+     * @param blockSize bytes per block the session takes
+     * @return the reader
+     * @throws java.io.FileNotFoundException if the file is missing
+     * @throws IOException
+     */
+    public BlockReader open(String filename, int blockSize) throws IOException
+    {
+        Storage.Stat stat = storage.stat(filename);
+        String key = filename + "@" + (stat == null ? 0 : stat.modified) + ":" + (stat == null ? 0 : stat.size);
+        SharedFile file;
+
+        synchronized (this)
+        {
+            file = files.get(key);
+            if (file != null)
+            {
+                file.readers++;
+            }
+        }
+
+        if (file == null)
+        {
+            // opened outside the lock, a slow open doesn't hold up other files
+            Storage.Handle handle = storage.open(filename);
+            Storage.Stat opened = handle.stat();
+            key = filename + "@" + opened.modified + ":" + opened.size;
+
+            synchronized (this)
+            {
+                file = files.get(key);
+                if (file == null)
+                {
+                    file = new SharedFile(key, filename, handle);
+                    files.put(key, file);
+                    handle = null;
+                }
+                file.readers++;
+            }
+
+            // another session opened the same version meanwhile
+            if (handle != null)
+            {
+                handle.close();
+            }
+        }
+
+        file.move(-1, 0);
+        return new Reader(file, blockSize);
+    }
+
+    /**
+     * Detaches a Session
+     * @param reader the session's reader
+     * @throws IOException
+     */
+    protected void detach(Reader reader) throws IOException
+    {
+        SharedFile file = reader.file;
+        file.move(reader.pageIndex, -1);
+
+        synchronized (this)
+        {
+            if (--file.readers > 0)
+            {
+                return;
+            }
+            files.remove(file.key);
+        }
+        file.handle.close();
+    }
+
+    /**
+     * Summarises the Files Being Shared
+     * @return counts as text
+     */
+    public synchronized String describe()
+    {
+        int readers = 0;
+        long bytes = 0;
+
+        for (SharedFile file : files.values())
+        {
+            readers += file.readers;
+            bytes += file.windowBytes;
+        }
+        return files.size() + " files shared by " + readers + " sessions, " + bytes + " bytes in windows";
+    }
+}
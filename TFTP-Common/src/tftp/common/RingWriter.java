@@ -0,0 +1,331 @@
+package tftp.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock Free Disk Writer for Uploads in Small Blocks
+ * A single receiving thread copies each block into the next slot of a fixed ring of pooled
+ * buffers and publishes it by moving the tail on, a single writer thread drains every
+ * published slot with one gathering write and hands the slots back by moving the head on.
+ * Each position is written by one thread only, so neither side takes a lock.
+ * The writer parks while the ring is empty; the receiver parks while it is full, which
+ * is the backpressure - a block can't be acknowledged until it has a slot, so a disk
+ * that falls a whole ring behind slows the client down and anything less doesn't.
+ * The ring never grows, memory per upload is its slots
+ * @author 105977
+ */
+public class RingWriter extends Thread {
+
+    protected static final int MAX_GATHER = 1024; // buffers per gathering write, IOV_MAX on Linux
+    protected static final int SPINS = 64; // empty polls before the writer parks
+    protected static final long FULL_PARK = TimeUnit.MICROSECONDS.toNanos(100); // longest the receiver parks per check
+
+    protected WritableByteChannel channel; // file or chunk store being written
+    protected BufferPool pool;
+    protected ByteBuffer[] slots;
+    protected int mask;
+
+    // positions only ever increase, slot = position & mask
+    protected AtomicLong head = new AtomicLong(); // next slot to write, moved by the writer
+    protected AtomicLong tail = new AtomicLong(); // next slot to fill, moved by the receiver
+    protected long cachedHead; // the receiver's last view of head, read again only when the ring looks full
+
+    // parking, set before a side parks and checked by the other after moving its position
+    protected volatile Thread receiver;
+    protected volatile boolean writerParked;
+    protected volatile boolean finishing;
+
+    protected String fsyncPolicy;
+    protected long fsyncInterval; // bytes between syncs for the interval policy
+    protected long bytesSinceSync;
+    protected long bytesWritten;
+    protected long fullWaits; // blocks that had to wait for a slot
+
+    protected volatile IOException failure; // first write error, reported to the receiver
+
+
+    /**
+     * Constructs a Ring Writer
+     * Borrows its slots from the pool on the calling thread, the receiving thread
+     * @param channel the channel to write to, fsync applies to file channels
+     * @param fsyncPolicy none, end or interval, as for the DiskWriter
+     * @param fsyncIntervalMB MB written between syncs for the interval policy
+     * @param pool pool the slots are borrowed from, a block must fit one of its buffers
+     * @param slots number of slots, rounded up to a power of 2
+     */
+    public RingWriter(WritableByteChannel channel, String fsyncPolicy, int fsyncIntervalMB, BufferPool pool, int slots)
+    {
+        super("TFTP Ring Writer");
+        setDaemon(true);
+
+        this.channel = channel;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncInterval = (long) fsyncIntervalMB * 1024 * 1024;
+        this.pool = pool;
+
+        int size = slots <= 2 ? 2 : Integer.highestOneBit(slots - 1) << 1;
+        this.slots = new ByteBuffer[size];
+        mask = size - 1;
+
+        for (int i = 0; i < size; i++)
+        {
+            this.slots[i] = pool.acquire();
+        }
+    }
+
+
+    /**
+     * Copies a Block into the Ring
+     * Returns once it has a slot, waiting while the ring is full
+     * @param data the block
+     * @param offset where it starts
+     * @param length bytes in it
+     * @throws IOException if a previous write failed
+     */
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        checkFailure();
+
+        long position = tail.get();
+        if (position - cachedHead == slots.length)
+        {
+            cachedHead = head.get();
+            if (position - cachedHead == slots.length)
+            {
+                awaitSlot(position);
+            }
+        }
+
+        ByteBuffer slot = slots[(int) position & mask];
+        slot.clear();
+        slot.put(data, offset, length);
+        slot.flip();
+
+        // publishes the slot's contents along with the position
+        tail.set(position + 1);
+
+        if (writerParked)
+        {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * Waits for Every Block to Reach the Disk
+     * Applies the end of transfer fsync, then gives the slots back to the pool.
+     * Safe to call again, later calls return straight away
+     * @return total bytes written
+     * @throws IOException if any write or sync failed
+     */
+    public long finish() throws IOException
+    {
+        if (!finishing)
+        {
+            finishing = true;
+            LockSupport.unpark(this);
+
+            try
+            {
+                join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the ring writer", e);
+            }
+
+            for (ByteBuffer slot : slots)
+            {
+                pool.release(slot);
+            }
+        }
+
+        checkFailure();
+        return bytesWritten;
+    }
+
+    /**
+     * Gets the Number of Blocks that Waited for a Slot
+     * @return blocks held up by the disk
+     */
+    public long getFullWaits()
+    {
+        return fullWaits;
+    }
+
+
+    @Override
+    public void run()
+    {
+        ByteBuffer[] batch = new ByteBuffer[Math.min(slots.length, MAX_GATHER)];
+        long position = head.get();
+        int idle = 0;
+
+        while (true)
+        {
+            long available = tail.get() - position;
+
+            if (available == 0)
+            {
+                // the final tail is published before finishing is set
+                if (finishing && tail.get() == position)
+                {
+                    break;
+                }
+                if (++idle < SPINS)
+                {
+                    continue;
+                }
+
+                writerParked = true;
+                if (tail.get() == position && !finishing)
+                {
+                    LockSupport.park(this);
+                }
+                writerParked = false;
+                idle = 0;
+                continue;
+            }
+            idle = 0;
+
+            int count = (int) Math.min(available, batch.length);
+            for (int i = 0; i < count; i++)
+            {
+                batch[i] = slots[(int) (position + i) & mask];
+            }
+
+            // after a failure the ring is still drained, so the receiver never waits forever
+            if (failure == null)
+            {
+                try
+                {
+                    write(batch, count);
+                }
+                catch (IOException e)
+                {
+                    failure = e;
+                }
+            }
+
+            position += count;
+            head.set(position);
+
+            Thread waiting = receiver;
+            if (waiting != null)
+            {
+                LockSupport.unpark(waiting);
+            }
+        }
+
+        if (failure == null && !DiskWriter.FSYNC_NONE.equals(fsyncPolicy))
+        {
+            try
+            {
+                force();
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Waits Until the Writer Frees the Slot at a Position
+     * @param position the position to fill
+     * @throws IOException if a write failed meanwhile
+     */
+    protected void awaitSlot(long position) throws IOException
+    {
+        fullWaits++;
+        receiver = Thread.currentThread();
+
+        try
+        {
+            while (position - (cachedHead = head.get()) == slots.length)
+            {
+                checkFailure();
+                LockSupport.parkNanos(this, FULL_PARK);
+            }
+        }
+        finally
+        {
+            receiver = null;
+        }
+    }
+
+    /**
+     * Writes Slots with a Single Gathering Write
+     * @param batch the slots, each flipped for reading
+     * @param count slots to write
+     * @throws IOException
+     */
+    protected void write(ByteBuffer[] batch, int count) throws IOException
+    {
+        long remaining = 0;
+        for (int i = 0; i < count; i++)
+        {
+            remaining += batch[i].remaining();
+        }
+
+        while (remaining > 0)
+        {
+            long written;
+
+            if (channel instanceof GatheringByteChannel)
+            {
+                written = ((GatheringByteChannel) channel).write(batch, 0, count);
+            }
+            else
+            {
+                written = 0;
+                for (int i = 0; i < count; i++)
+                {
+                    written += channel.write(batch[i]);
+                }
+            }
+
+            remaining -= written;
+            bytesWritten += written;
+            bytesSinceSync += written;
+        }
+
+        if (DiskWriter.FSYNC_INTERVAL.equals(fsyncPolicy) && bytesSinceSync >= fsyncInterval)
+        {
+            force();
+            bytesSinceSync = 0;
+        }
+    }
+
+    /**
+     * Syncs File Data to the Device
+     * Other channels are left to their own durability
+     * @throws IOException
+     */
+    protected void force() throws IOException
+    {
+        if (channel instanceof FileChannel)
+        {
+            ((FileChannel) channel).force(false);
+        }
+    }
+
+    /**
+     * Rethrows a Write Failure on the Receiving Thread
+     * @throws IOException the failure
+     */
+    protected void checkFailure() throws IOException
+    {
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package tftp.common;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
+/**
+ * Datagram Transport over a Real UDP Socket
+ * @author 105977
+ */
+public class SocketTransport implements DatagramTransport {
+
+    protected DatagramSocket socket;
+
+
+    /**
+     * Constructs a Transport
+     * @param socket an open socket
+     */
+    public SocketTransport(DatagramSocket socket)
+    {
+        this.socket = socket;
+    }
+
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException
+    {
+        socket.send(packet);
+    }
+
+    @Override
+    public void receive(DatagramPacket packet) throws IOException
+    {
+        socket.receive(packet);
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException
+    {
+        socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public int getLocalPort()
+    {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public void close()
+    {
+        socket.close();
+    }
+}
@@ -0,0 +1,134 @@
+package tftp.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where Served Files are Kept
+ * Files are read through open handles with positional asynchronous reads,
+ * and written as an upload that only becomes visible once it is committed.
+ * Names are the filenames clients ask for
+ * @author 105977
+ */
+public interface Storage {
+
+    /**
+     * State of a Stored File
+     */
+    class Stat {
+        public final long size; // bytes of file data
+        public final long modified; // ms, changes whenever the data does
+
+        public Stat(long size, long modified)
+        {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * An Open File
+     * Reads see the data as it was when the handle was opened where the backend allows it
+     */
+    interface Handle extends Closeable {
+
+        /**
+         * Gets the State of the File when it was Opened
+         * @return the state
+         */
+        Stat stat();
+
+        /**
+         * Reads from a Position
+         * May read less than asked for, reads nothing at the end of the file
+         * @param buffer filled from its position
+         * @param position offset in the file
+         * @return bytes read, -1 past the end of the file
+         */
+        CompletableFuture<Integer> read(ByteBuffer buffer, long position);
+    }
+
+    /**
+     * A File Being Written
+     * Nothing is visible until it is committed, closing it without committing discards it,
+     * so a transfer that fails part way leaves the old file as it was
+     */
+    abstract class Upload extends OutputStream {
+
+        /**
+         * Replaces the File with the Data Written, then Closes the Upload
+         * Does nothing once committed
+         * @throws IOException if it couldn't be published, the old file is left as it was
+         */
+        public abstract void commit() throws IOException;
+
+        /**
+         * Discards the Data Written, Leaving the Old File as it was
+         * Does nothing once committed or discarded
+         */
+        public abstract void abort();
+
+        /**
+         * Discards the Upload Unless it was Committed
+         */
+        @Override
+        public void close()
+        {
+            abort();
+        }
+    }
+
+
+    /**
+     * Gets the State of a File
+     * @param name the file
+     * @return the state, or null if there is no such file
+     * @throws IOException
+     */
+    Stat stat(String name) throws IOException;
+
+    /**
+     * Opens a File for Reading
+     * @param name the file
+     * @return the handle
+     * @throws java.io.FileNotFoundException if there is no such file
+     * @throws IOException
+     */
+    Handle open(String name) throws IOException;
+
+    /**
+     * Creates or Replaces a File
+     * Readers see the old data until the upload is committed
+     * @param name the file
+     * @return upload to write the file data to
+     * @throws IOException
+     */
+    Upload create(String name) throws IOException;
+
+    /**
+     * Deletes a File
+     * @param name the file
+     * @return true if it existed
+     * @throws IOException
+     */
+    boolean delete(String name) throws IOException;
+
+    /**
+     * Lists the Files Under a Directory
+     * Every file below it, however deep, but not names starting with a dot
+     * @param directory the directory
+     * @return names relative to the directory, '/' separated and sorted, or null if there is no such directory
+     * @throws IOException
+     */
+    List<String> list(String directory) throws IOException;
+
+    /**
+     * Gets the Name of the Backend
+     * @return the name used in metrics
+     */
+    String getName();
+}
@@ -0,0 +1,215 @@
+package tftp.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the Timing Wheel with a ScheduledThreadPoolExecutor
+ * Both hold the same number of pending retransmit timers, 1 to 10 s out, and are
+ * timed for scheduling them, for the cancel and schedule again every ACK causes, and
+ * for firing a batch of short timers on top of the pending ones. Allocation is read
+ * from the thread's allocation counter where the JVM has one.
+ * Settings are system properties:
+ *   bench.timers (pending timers), bench.rounds (cancel and schedule passes), bench.seed
+ * @author 105977
+ */
+public class TimerBenchmark {
+
+    protected int timers;
+    protected int rounds;
+    protected long[] delays; // ms, the same for both
+    protected com.sun.management.ThreadMXBean allocation; // null where the JVM doesn't count
+    protected boolean printing; // off while warming up
+
+
+    /**
+     * Constructs a Benchmark
+     * @param timers pending timers
+     * @param rounds cancel and schedule passes
+     * @param seed seeds the delays
+     */
+    public TimerBenchmark(int timers, int rounds, long seed)
+    {
+        this.timers = timers;
+        this.rounds = rounds;
+
+        Random random = new Random(seed);
+        delays = new long[timers];
+        for (int i = 0; i < timers; i++)
+        {
+            delays[i] = 1000 + random.nextInt(9000);
+        }
+
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)
+        {
+            allocation = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        }
+    }
+
+
+    /**
+     * Runs the Passes on the Timing Wheel
+     * @throws InterruptedException
+     */
+    public void wheel() throws InterruptedException
+    {
+        TimingWheel wheel = new TimingWheel("Benchmark Wheel", 1, TimeUnit.MILLISECONDS);
+        TimingWheel.Timer[] pending = new TimingWheel.Timer[timers];
+        Runnable nothing = () -> { };
+
+        for (int i = 0; i < timers; i++)
+        {
+            pending[i] = new TimingWheel.Timer(nothing);
+        }
+
+        long bytes = allocated();
+        long start = System.nanoTime();
+        for (int i = 0; i < timers; i++)
+        {
+            wheel.schedule(pending[i], delays[i], TimeUnit.MILLISECONDS);
+        }
+        report("wheel schedule", timers, start, bytes);
+
+        bytes = allocated();
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++)
+        {
+            for (int i = 0; i < timers; i++)
+            {
+                wheel.cancel(pending[i]);
+                wheel.schedule(pending[i], delays[i], TimeUnit.MILLISECONDS);
+            }
+        }
+        report("wheel cancel+schedule", timers * rounds, start, bytes);
+
+        CountDownLatch done = new CountDownLatch(1000);
+        AtomicLong late = new AtomicLong();
+        for (int i = 0; i < 1000; i++)
+        {
+            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+            wheel.schedule(new TimingWheel.Timer(() ->
+            {
+                late.addAndGet(System.nanoTime() - due);
+                done.countDown();
+            }), 50, TimeUnit.MILLISECONDS);
+        }
+        done.await();
+        print(String.format("%-28s %10.3f ms mean lateness of 1000 timers at 50 ms, %d pending",
+                "wheel fire", late.get() / 1000 / 1e6, wheel.size()));
+
+        for (int i = 0; i < timers; i++)
+        {
+            wheel.cancel(pending[i]);
+        }
+    }
+
+    /**
+     * Runs the Passes on a ScheduledThreadPoolExecutor
+     * Cancelled tasks are removed from its queue, as a server holding them would need
+     * @throws InterruptedException
+     */
+    public void executor() throws InterruptedException
+    {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        ScheduledFuture<?>[] pending = new ScheduledFuture<?>[timers];
+        Runnable nothing = () -> { };
+
+        long bytes = allocated();
+        long start = System.nanoTime();
+        for (int i = 0; i < timers; i++)
+        {
+            pending[i] = executor.schedule(nothing, delays[i], TimeUnit.MILLISECONDS);
+        }
+        report("executor schedule", timers, start, bytes);
+
+        bytes = allocated();
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++)
+        {
+            for (int i = 0; i < timers; i++)
+            {
+                pending[i].cancel(false);
+                pending[i] = executor.schedule(nothing, delays[i], TimeUnit.MILLISECONDS);
+            }
+        }
+        report("executor cancel+schedule", timers * rounds, start, bytes);
+
+        CountDownLatch done = new CountDownLatch(1000);
+        AtomicLong late = new AtomicLong();
+        for (int i = 0; i < 1000; i++)
+        {
+            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+            executor.schedule(() ->
+            {
+                late.addAndGet(System.nanoTime() - due);
+                done.countDown();
+            }, 50, TimeUnit.MILLISECONDS);
+        }
+        done.await();
+        print(String.format("%-28s %10.3f ms mean lateness of 1000 timers at 50 ms, %d pending",
+                "executor fire", late.get() / 1000 / 1e6, executor.getQueue().size()));
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * Prints the Time and Allocation per Operation of a Pass
+     * @param name the pass
+     * @param operations operations in it
+     * @param start nanos when it started
+     * @param bytes allocation counter when it started
+     */
+    protected void report(String name, long operations, long start, long bytes)
+    {
+        long nanos = System.nanoTime() - start;
+        long used = allocated() - bytes;
+
+        print(String.format("%-28s %10.1f ns/op %10.1f bytes/op",
+                name, (double) nanos / operations, bytes < 0 ? Double.NaN : (double) used / operations));
+    }
+
+    /**
+     * Prints a Line Unless Warming Up
+     * @param line the line
+     */
+    protected void print(String line)
+    {
+        if (printing)
+        {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Gets the Bytes this Thread has Allocated
+     * @return bytes, -1 if not counted
+     */
+    protected long allocated()
+    {
+        return allocation == null ? -1 : allocation.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        int timers = Integer.getInteger("bench.timers", 100000);
+        int rounds = Integer.getInteger("bench.rounds", 10);
+        TimerBenchmark benchmark = new TimerBenchmark(timers, rounds, Long.getLong("bench.seed", 1L));
+
+        System.out.println(timers + " pending timers, " + rounds + " cancel and schedule passes");
+
+        // the first runs warm the JIT, only the last are the figures
+        for (int i = 0; i < 3; i++)
+        {
+            benchmark.printing = i == 2;
+            benchmark.wheel();
+            benchmark.executor();
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package tftp.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Hierarchical Timing Wheel for Large Numbers of Short Lived Timers
+ * Four wheels of 256 slots, each slot of a wheel spans a whole turn of the wheel below.
+ * A timer goes in the slot of the smallest wheel its deadline fits, and moves down a
+ * wheel each time the one below comes round to it, so scheduling, cancelling and firing
+ * are O(1) however many timers are pending. With 1 ms ticks the wheels cover 49 days.
+ * Timers are intrusive list nodes owned by their user: scheduling one again moves it,
+ * and neither that nor cancelling allocates. A daemon thread turns the wheels, started
+ * with the first timer, and runs the actions of expired timers - they must be short.
+ * A wheel on another clock, such as a simulated network's, has no thread; its owner
+ * turns it with expireDue whenever that clock moves
+ * @author 105977
+ */
+public class TimingWheel {
+
+    protected static final int BITS = 8;
+    protected static final int SLOTS = 1 << BITS;
+    protected static final int MASK = SLOTS - 1;
+    protected static final int LEVELS = 4;
+
+    // where a timer is, slots are numbered level * SLOTS + slot
+    protected static final int IDLE = -1;
+    protected static final int FIRING = -2; // taken off its slot, its action not yet run
+
+    protected String name;
+    protected long tickNanos;
+    protected LongSupplier clock; // nanos, must not block on anything that holds the wheel
+    protected long origin;
+    protected boolean manual; // turned by expireDue, never by a thread of its own
+    protected long current; // last tick processed
+    protected Timer[] slots = new Timer[LEVELS * SLOTS];
+    protected int pending; // timers in slots
+    protected Timer fired; // expired timers waiting for their actions, linked through nextFired
+    protected Thread thread;
+
+
+    /**
+     * A Timer, Scheduled Again as Often as Needed
+     */
+    public static class Timer {
+        protected Runnable action;
+        protected long deadline; // tick
+        protected int slot = IDLE;
+        protected Timer next;
+        protected Timer previous;
+        protected Timer nextFired;
+
+        /**
+         * Constructs a Timer
+         * @param action run when the timer expires, on the wheel's thread or expireDue's caller
+         */
+        public Timer(Runnable action)
+        {
+            this.action = action;
+        }
+    }
+
+
+    /**
+     * Constructs a Timing Wheel
+     * @param name name of its thread
+     * @param tick resolution, timers expire up to a tick late
+     * @param unit unit of the tick
+     */
+    public TimingWheel(String name, long tick, TimeUnit unit)
+    {
+        this.name = name;
+        tickNanos = Math.max(1, unit.toNanos(tick));
+        clock = System::nanoTime;
+        origin = clock.getAsLong();
+    }
+
+    /**
+     * Constructs a Timing Wheel on Another Clock
+     * Starts no thread, timers expire only when expireDue is called
+     * @param clock the time in nanos
+     * @param tick resolution, timers expire up to a tick late
+     * @param unit unit of the tick
+     */
+    public TimingWheel(LongSupplier clock, long tick, TimeUnit unit)
+    {
+        tickNanos = Math.max(1, unit.toNanos(tick));
+        this.clock = clock;
+        origin = clock.getAsLong();
+        manual = true;
+    }
+
+
+    /**
+     * Schedules a Timer, Moving it if Already Scheduled
+     * @param timer the timer
+     * @param delay time until it expires
+     * @param unit unit of the delay
+     */
+    public synchronized void schedule(Timer timer, long delay, TimeUnit unit)
+    {
+        if (timer.slot >= 0)
+        {
+            unlink(timer);
+        }
+
+        // the first tick at or after the due time, never one already processed
+        long due = clock.getAsLong() - origin + unit.toNanos(delay);
+        timer.deadline = Math.max((due + tickNanos - 1) / tickNanos, current + 1);
+        place(timer);
+
+        if (manual)
+        {
+            return;
+        }
+        if (thread == null)
+        {
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        else if (pending == 1)
+        {
+            notifyAll(); // the wheel was idle
+        }
+    }
+
+    /**
+     * Cancels a Timer
+     * @param timer the timer
+     * @return true if it was pending, false if it had expired or wasn't scheduled
+     */
+    public synchronized boolean cancel(Timer timer)
+    {
+        if (timer.slot >= 0)
+        {
+            unlink(timer);
+            timer.slot = IDLE;
+            return true;
+        }
+        if (timer.slot == FIRING)
+        {
+            timer.slot = IDLE; // still on the fired list, its action is skipped
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the Number of Pending Timers
+     * @return timers
+     */
+    public synchronized int size()
+    {
+        return pending;
+    }
+
+    /**
+     * Turns the Wheels up to the Clock
+     * Runs the actions of expired timers on the calling thread, for wheels on another clock
+     */
+    public void expireDue()
+    {
+        synchronized (this)
+        {
+            advance((clock.getAsLong() - origin) / tickNanos);
+        }
+        runFired();
+    }
+
+
+    /**
+     * Puts a Timer in the Slot its Deadline Falls in
+     * @param timer the timer, not in any slot
+     */
+    protected void place(Timer timer)
+    {
+        long delta = timer.deadline - current;
+        int level = 0;
+
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1)))
+        {
+            level++;
+        }
+
+        int index = level * SLOTS + (int) (timer.deadline >>> (BITS * level) & MASK);
+        timer.slot = index;
+        timer.previous = null;
+        timer.next = slots[index];
+        if (timer.next != null)
+        {
+            timer.next.previous = timer;
+        }
+        slots[index] = timer;
+        pending++;
+    }
+
+    /**
+     * Takes a Timer out of its Slot
+     * @param timer the timer
+     */
+    protected void unlink(Timer timer)
+    {
+        if (timer.previous != null)
+        {
+            timer.previous.next = timer.next;
+        }
+        else
+        {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null)
+        {
+            timer.next.previous = timer.previous;
+        }
+        timer.next = null;
+        timer.previous = null;
+        pending--;
+    }
+
+    /**
+     * Turns the Wheels up to a Tick
+     * Expired timers are moved to the fired list
+     * @param now the tick
+     */
+    protected void advance(long now)
+    {
+        // nothing can expire, jump straight there
+        if (pending == 0)
+        {
+            current = Math.max(current, now);
+            return;
+        }
+
+        while (current < now)
+        {
+            current++;
+
+            // a wheel coming round empties the slot above into the wheels below
+            for (int level = 1; level < LEVELS && (current & (1L << (BITS * level)) - 1) == 0; level++)
+            {
+                cascade(level * SLOTS + (int) (current >>> (BITS * level) & MASK));
+            }
+
+            int index = (int) (current & MASK);
+            Timer timer = slots[index];
+            slots[index] = null;
+
+            while (timer != null)
+            {
+                Timer next = timer.next;
+                timer.next = null;
+                timer.previous = null;
+                timer.slot = FIRING;
+                timer.nextFired = fired;
+                fired = timer;
+                pending--;
+                timer = next;
+            }
+        }
+    }
+
+    /**
+     * Places Every Timer of a Slot Again
+     * They land in lower wheels, or back in the same slot if they are a turn away
+     * @param index the slot
+     */
+    protected void cascade(int index)
+    {
+        Timer timer = slots[index];
+        slots[index] = null;
+
+        while (timer != null)
+        {
+            Timer next = timer.next;
+            pending--;
+            place(timer);
+            timer = next;
+        }
+    }
+
+    /**
+     * Takes the Next Fired Timer Whose Action Should Run
+     * @return the timer, or null when none are left
+     */
+    protected synchronized Timer takeFired()
+    {
+        while (fired != null)
+        {
+            Timer timer = fired;
+            fired = timer.nextFired;
+            timer.nextFired = null;
+
+            // cancelled or scheduled again since it expired
+            if (timer.slot == FIRING)
+            {
+                timer.slot = IDLE;
+                return timer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Turns the Wheels in Real Time
+     * Sleeps while no timers are pending
+     */
+    protected void run()
+    {
+        while (true)
+        {
+            long now;
+
+            synchronized (this)
+            {
+                while (pending == 0)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+
+                now = (clock.getAsLong() - origin) / tickNanos;
+                advance(now);
+            }
+
+            runFired();
+            LockSupport.parkNanos(origin + (now + 1) * tickNanos - clock.getAsLong());
+        }
+    }
+
+    /**
+     * Runs the Actions of Fired Timers
+     * Outside the lock, so an action can schedule or cancel timers
+     */
+    protected void runFired()
+    {
+        Timer timer;
+        while ((timer = takeFired()) != null)
+        {
+            try
+            {
+                timer.action.run();
+            }
+            catch (RuntimeException e)
+            {
+                // one failing action mustn't stop the other timers
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package tftp.common;
+
+/**
+ * Token Bucket Rate Limiter
+ * Callers reserve bytes and are told how long to wait,
+ * the bucket may go into debt so large sends are still allowed
+ * @author 105977
+ */
+public class TokenBucket {
+
+    protected long rate; // bytes per second, 0 means unlimited
+    protected double capacity; // largest burst in bytes
+    protected double tokens;
+    protected long lastRefill; // nano time of last refill
+
+
+    /**
+     * Constructs a Token Bucket
+     * @param rate bytes per second, 0 for unlimited
+     */
+    public TokenBucket(long rate)
+    {
+        lastRefill = System.nanoTime();
+        setRate(rate);
+        tokens = capacity;
+    }
+
+
+    /**
+     * Changes the Rate of the Bucket
+     * Can be called while transfers are running
+     * @param rate bytes per second, 0 for unlimited
+     */
+    public synchronized void setRate(long rate)
+    {
+        refill();
+        this.rate = rate;
+        // allow a burst of a tenth of a second
+        capacity = Math.max(rate / 10.0, 1024);
+        tokens = Math.min(tokens, capacity);
+    }
+
+    /**
+     * Gets the Rate of the Bucket
+     * @return bytes per second, 0 for unlimited
+     */
+    public synchronized long getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * Takes Tokens for a Send
+     * @param bytes the number of bytes about to be sent
+     * @return nanoseconds the caller must wait before sending
+     */
+    public synchronized long reserve(int bytes)
+    {
+        if (rate <= 0)
+        {
+            return 0;
+        }
+
+        refill();
+        tokens -= bytes;
+
+        if (tokens >= 0)
+        {
+            return 0;
+        }
+
+        return (long) (-tokens * 1000000000L / rate);
+    }
+
+    /**
+     * Adds Tokens for the Time Passed Since the Last Refill
+     */
+    protected void refill()
+    {
+        long now = System.nanoTime();
+
+        if (rate > 0)
+        {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1000000000.0);
+        }
+
+        lastRefill = now;
+    }
+}
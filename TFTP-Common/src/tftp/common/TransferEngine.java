@@ -0,0 +1,226 @@
+package tftp.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage, Caches and Limits Shared by Every Front End
+ * The UDP and TCP servers only differ in how blocks move over the network,
+ * opening, checking and caching files happens here. When both front ends run
+ * in one process they share these, so a file warmed over one transport is warm for the other
+ * @author 105977
+ */
+public class TransferEngine {
+
+    // per client, per subnet and global send limits, shared by all transfers
+    public static final BandwidthShaper shaper = new BandwidthShaper(new File(System.getProperty("tftp.shaping", "shaping.properties")));
+
+    // limits concurrent sessions and bytes in flight, shared by all sessions
+    public static final AdmissionController admission = new AdmissionController(
+            Integer.getInteger("tftp.maxSessions", 64),
+            Long.getLong("tftp.maxInFlightMB", 1024L) * 1024 * 1024,
+            Integer.getInteger("tftp.queueLength", 256),
+            Long.getLong("tftp.queueTimeout", 5000L));
+
+    // transfer events, written out by a background thread so sessions never wait on the console
+    public static final EventLog events = EventLog.open(System.getProperty("tftp.events", "-"), 8192);
+
+    // where files are kept: local, memory or object, every operation is timed
+    public static final MeteredStorage backend = new MeteredStorage(openStorage(System.getProperty("tftp.storage", "local")));
+
+    // deduplicating storage for uploads, manifests are only read while it is on
+    public static final boolean DEDUP = Boolean.getBoolean("tftp.dedup");
+    public static final ChunkStore store = new ChunkStore(backend, System.getProperty("tftp.dedup.dir", ".chunks"),
+            Integer.getInteger("tftp.dedup.chunkKB", 64) * 1024, DEDUP);
+
+    // digests of the most recently served files, valid while their mtime and size are unchanged
+    public static final DigestCache digests = new DigestCache(store, Integer.getInteger("tftp.digests", 65536));
+    
+    // concurrent RRQs of the same file share one read of it
+    public static final boolean COALESCE = Boolean.parseBoolean(System.getProperty("tftp.coalesce", "true"));
+    public static final ReadCoalescer coalescer = new ReadCoalescer(store, Integer.getInteger("tftp.coalesce.pageKB", 64) * 1024,
+            Long.getLong("tftp.coalesce.windowMB", 64L) * 1024 * 1024);
+
+    // session timers, one wheel however many sessions are open
+    public static final TimingWheel timers = new TimingWheel("TFTP Timers", 1, TimeUnit.MILLISECONDS);
+
+    // storage latency is logged this often, seconds, 0 turns it off
+    public static final int METRICS_INTERVAL = Integer.getInteger("tftp.metrics.interval", 60);
+
+    // the most requested files are saved here and read back in after a restart, empty turns it off
+    public static final String WARM_MANIFEST = System.getProperty("tftp.warm.manifest", "warm.manifest");
+    public static final WarmStart warmStart = new WarmStart(new File(WARM_MANIFEST), Integer.getInteger("tftp.warm.files", 32),
+            store, digests, events);
+
+    static
+    {
+        if (METRICS_INTERVAL > 0)
+        {
+            ScheduledExecutorService metrics = Executors.newSingleThreadScheduledExecutor(r ->
+            {
+                Thread thread = new Thread(r, "TFTP Metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            metrics.scheduleAtFixedRate(() -> events.log(EventLog.STORAGE, null, backend.getName(), 0, 0, backend.describe()),
+                    METRICS_INTERVAL, METRICS_INTERVAL, TimeUnit.SECONDS);
+            if (COALESCE)
+            {
+                metrics.scheduleAtFixedRate(() -> events.log(EventLog.STORAGE, null, "coalescer", 0, 0, coalescer.describe()),
+                        METRICS_INTERVAL, METRICS_INTERVAL, TimeUnit.SECONDS);
+            }
+            if (backend.backend instanceof FileCatalog)
+            {
+                FileCatalog catalog = (FileCatalog) backend.backend;
+                metrics.scheduleAtFixedRate(() -> events.log(EventLog.STORAGE, null, "catalog", 0, 0, catalog.describe()),
+                        METRICS_INTERVAL, METRICS_INTERVAL, TimeUnit.SECONDS);
+            }
+        }
+        
+        if (!WARM_MANIFEST.isEmpty())
+        {
+            warmStart.start(Integer.getInteger("tftp.warm.interval", 300));
+        }
+    }
+
+
+    /**
+     * Opens the Configured Storage Backend
+     * local - files in tftp.storage.dir, the working directory by default, catalogued in memory
+     *         unless tftp.catalog is false, names outside it are refused
+     * memory - held in memory, loaded from tftp.storage.dir if it is set
+     * object - parts and manifests in tftp.storage.dir standing in for a bucket,
+     *          tftp.storage.partKB per part and tftp.storage.latency ms per request
+     * @param type backend name
+     * @return the storage
+     */
+    protected static Storage openStorage(String type)
+    {
+        String dir = System.getProperty("tftp.storage.dir");
+
+        try
+        {
+            switch (type)
+            {
+                case "memory":
+                    return dir == null ? new MemoryStorage() : new MemoryStorage(new File(dir));
+                case "object":
+                    return new ObjectStorage(new File(dir == null ? "objects" : dir),
+                            Integer.getInteger("tftp.storage.partKB", 256) * 1024,
+                            Long.getLong("tftp.storage.latency", 0L));
+                case "local":
+                    // catalogued unless turned off, misses are then answered from memory
+                    return Boolean.parseBoolean(System.getProperty("tftp.catalog", "true"))
+                            ? new FileCatalog(new File(dir == null ? "." : dir), Integer.getInteger("tftp.catalog.negative", 4096),
+                                    Long.getLong("tftp.catalog.negativeMs", 1000L))
+                            : new LocalStorage(new File(dir == null ? "." : dir));
+                default:
+                    throw new IllegalArgumentException("Unknown storage " + type);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Can't load storage from " + dir, e);
+        }
+    }
+
+    /**
+     * Gets the Length of a File's Data
+     * @param filename the file
+     * @return bytes a RRQ will send, 0 if there is no such file
+     */
+    public static long length(String filename)
+    {
+        try
+        {
+            Storage.Stat stat = store.stat(filename);
+            return stat == null ? 0 : stat.size;
+        }
+        catch (IOException e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Opens a File for a RRQ and Starts Reading Ahead
+     * Joins the other sessions reading the same file when coalescing
+     * @param filename the file
+     * @param blockSize bytes per block
+     * @param depth number of blocks to keep ready, when reading alone
+     * @return the reader
+     * @throws java.io.FileNotFoundException if the file is missing
+     * @throws IOException
+     */
+    public static BlockReader openRead(String filename, int blockSize, int depth) throws IOException
+    {
+        BlockReader reader = COALESCE ? coalescer.open(filename, blockSize) : BlockPrefetcher.open(store, filename, blockSize, depth);
+        warmStart.requested(filename);
+        return reader;
+    }
+
+    /**
+     * Opens a File for a WRQ
+     * Chunked when deduplicating, written straight to storage otherwise
+     * @param filename the file
+     * @return upload to write the file data to, committed once it is all received
+     * @throws IOException
+     */
+    public static Storage.Upload openWrite(String filename) throws IOException
+    {
+        return DEDUP ? store.create(filename) : backend.create(filename);
+    }
+
+    /**
+     * Gets the Digest of a File if it is Still Known
+     * @param filename the file
+     * @return hex digest, or null
+     */
+    public static String cachedDigest(String filename)
+    {
+        return digests.get(filename);
+    }
+
+    /**
+     * Remembers the Digest Computed While Sending a File
+     * @param filename the file
+     * @param stat file state when sending started
+     * @param digest hex digest of the data sent
+     */
+    public static void sent(String filename, Storage.Stat stat, String digest)
+    {
+        digests.put(filename, stat.modified, stat.size, digest);
+    }
+
+    /**
+     * Checks a Finished Upload Against the Client's Digest
+     * A good upload is committed and its digest cached, a corrupt one is discarded
+     * @param filename the file
+     * @param upload the upload, with all of its data written
+     * @param actual hex digest of the data received
+     * @param expected hex digest sent by the client, may be null
+     * @return true if they match
+     * @throws IOException if a good upload couldn't be committed
+     */
+    public static boolean verifyUpload(String filename, Storage.Upload upload, String actual, String expected) throws IOException
+    {
+        if (!actual.equalsIgnoreCase(expected))
+        {
+            // don't keep a corrupt upload
+            upload.abort();
+            return false;
+        }
+
+        upload.commit();
+        Storage.Stat stat = store.stat(filename);
+        if (stat != null)
+        {
+            digests.put(filename, stat.modified, stat.size, actual);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,264 @@
+package tftp.common;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Warm Start After a Restart
+ * Counts RRQs per file and every so often saves the most requested files to a manifest.
+ * On startup the files listed are read through once in the background, which fills the
+ * OS page cache and the digest cache before the first boot wave asks for them.
+ * Progress goes to the event log as warmup events.
+ * Manifest format (text):
+ *   [requests] [filename]
+ * @author 105977
+ */
+public class WarmStart {
+
+    protected static final int READ_SIZE = 64 * 1024; // bytes per read while warming
+    protected static final int READ_AHEAD = 4;
+
+    protected File manifest;
+    protected int maxFiles; // files kept in the manifest
+    protected Storage storage;
+    protected DigestCache digests;
+    protected EventLog events;
+
+    protected Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+
+
+    /**
+     * Constructs a Warm Start
+     * @param manifest file the hottest files are saved to
+     * @param maxFiles files kept in the manifest
+     * @param storage storage the files are read from
+     * @param digests cache the digests are put in while warming
+     * @param events log for progress
+     */
+    public WarmStart(File manifest, int maxFiles, Storage storage, DigestCache digests, EventLog events)
+    {
+        this.manifest = manifest;
+        this.maxFiles = maxFiles;
+        this.storage = storage;
+        this.digests = digests;
+        this.events = events;
+    }
+
+
+    /**
+     * Starts Warming Up and Saving
+     * Warming runs on a low priority background thread, requests are served meanwhile
+     * @param saveInterval seconds between saves, the manifest is also saved on shutdown
+     */
+    public void start(int saveInterval)
+    {
+        List<String> files = load();
+
+        Thread warmer = new Thread(() -> warm(files), "TFTP Warm Up");
+        warmer.setDaemon(true);
+        warmer.setPriority(Thread.MIN_PRIORITY);
+        warmer.start();
+
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "TFTP Warm Start Save");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(this::saveQuietly, saveInterval, saveInterval, TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveQuietly, "TFTP Warm Start Save"));
+    }
+
+    /**
+     * Counts a RRQ for a File
+     * @param filename the file
+     */
+    public void requested(String filename)
+    {
+        requests.computeIfAbsent(filename, name -> new LongAdder()).increment();
+    }
+
+    /**
+     * Gets the Most Requested Files
+     * @return up to maxFiles names, most requested first
+     */
+    public List<String> hottest()
+    {
+        List<Map.Entry<String, Long>> counts = new ArrayList<>();
+        for (Map.Entry<String, LongAdder> entry : requests.entrySet())
+        {
+            long count = entry.getValue().sum();
+            if (count > 0)
+            {
+                counts.add(new AbstractMap.SimpleEntry<>(entry.getKey(), count));
+            }
+        }
+        counts.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < Math.min(maxFiles, counts.size()); i++)
+        {
+            names.add(counts.get(i).getKey());
+        }
+        return names;
+    }
+
+    /**
+     * Saves the Most Requested Files
+     * Written aside and moved into place, a crash never leaves half a manifest
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException
+    {
+        List<String> names = hottest();
+        if (names.isEmpty())
+        {
+            return; // keep the last manifest until something has been served
+        }
+
+        File directory = manifest.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(".warm", ".tmp", directory);
+
+        try
+        {
+            try (Writer out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8))
+            {
+                for (String name : names)
+                {
+                    out.write(requests.get(name).sum() + " " + name + "\n");
+                }
+            }
+            Files.move(temp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Saves, Reporting Failures to the Event Log
+     */
+    protected void saveQuietly()
+    {
+        try
+        {
+            save();
+        }
+        catch (IOException e)
+        {
+            events.log(EventLog.ERROR, null, manifest.getPath(), 0, 0, "Can't save warm start manifest: " + e);
+        }
+    }
+
+    /**
+     * Reads the Saved Manifest
+     * Saved counts are halved, so files that stop being requested drop out over time
+     * @return names to warm, most requested first
+     */
+    protected List<String> load()
+    {
+        List<String> names = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                int space = line.indexOf(' ');
+                if (space <= 0)
+                {
+                    continue;
+                }
+
+                String name = line.substring(space + 1);
+                long count = Long.parseLong(line.substring(0, space));
+                requests.computeIfAbsent(name, key -> new LongAdder()).add(count / 2);
+                names.add(name);
+            }
+        }
+        catch (NoSuchFileException e)
+        {
+            // first start, nothing to warm
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            events.log(EventLog.ERROR, null, manifest.getPath(), 0, 0, "Can't read warm start manifest: " + e);
+        }
+        return names;
+    }
+
+    /**
+     * Reads Each File Through Once
+     * Digests are cached on the way, so the first RRQs with a digest option don't hash
+     * @param names files to warm, most requested first
+     */
+    protected void warm(List<String> names)
+    {
+        if (names.isEmpty())
+        {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long total = 0;
+        int warmed = 0;
+
+        events.log(EventLog.WARMUP, null, manifest.getPath(), 0, 0, "starting " + names.size() + " files");
+
+        for (String name : names)
+        {
+            long fileStart = System.currentTimeMillis();
+
+            try (BlockPrefetcher in = BlockPrefetcher.open(storage, name, READ_SIZE, READ_AHEAD))
+            {
+                MessageDigest digest = ChunkStore.newDigest();
+                byte[] block = new byte[READ_SIZE];
+                long bytes = 0;
+                int length;
+
+                do
+                {
+                    length = in.next(block);
+                    digest.update(block, 0, length);
+                    bytes += length;
+                }
+                while (length == block.length);
+
+                digests.put(name, in.stat().modified, in.stat().size, ChunkStore.toHex(digest.digest()));
+
+                total += bytes;
+                warmed++;
+                events.log(EventLog.WARMUP, null, name, bytes, System.currentTimeMillis() - fileStart, warmed + "/" + names.size());
+            }
+            catch (IOException e)
+            {
+                // gone since the manifest was saved, or unreadable, serving will report it
+                events.log(EventLog.WARMUP, null, name, 0, System.currentTimeMillis() - fileStart, "skipped: " + e);
+            }
+        }
+
+        // the uptime says how long after the restart the hot set was ready
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        events.log(EventLog.WARMUP, null, manifest.getPath(), total, System.currentTimeMillis() - start,
+                "done " + warmed + "/" + names.size() + " files, warm " + uptime + " ms after start");
+    }
+}
@@ -0,0 +1,21 @@
+package tftp.server;
+
+import java.io.IOException;
+import tftp.tcp.server.TFTPTCPServer;
+import tftp.udp.server.TFTPUDPServer;
+
+/**
+ * TFTP Server for Both UDP and TCP in One Process
+ * Each transport listens on port 9000 as usual, while storage, the digest cache,
+ * admission control, bandwidth shaping and the event log are shared between them
+ * @author 105977
+ */
+public class TFTPServer {
+
+    public static void main(String[] args) throws IOException
+    {
+        TFTPUDPServer.listen();
+        TFTPTCPServer.listen();
+        System.out.println("TFTP Server Started");
+    }
+}
@@ -0,0 +1,150 @@
+package tftp.common;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read Only Storage for Tests, whose Reads Complete Later on Other Threads
+ * Reads come back short, as positional reads may, and can be made to fail past a point.
+ * Counts what was read and the handles left open
+ * @author 105977
+ */
+public class AsyncStorage implements Storage {
+
+    protected Map<String, byte[]> files = new ConcurrentHashMap<>();
+    protected int maxRead; // most bytes a read returns
+    protected volatile long failFrom = Long.MAX_VALUE; // reads at or past this offset fail
+
+    protected AtomicLong bytesRead = new AtomicLong();
+    protected AtomicInteger openHandles = new AtomicInteger();
+
+
+    /**
+     * Constructs Empty Storage
+     * @param maxRead most bytes a read returns
+     */
+    public AsyncStorage(int maxRead)
+    {
+        this.maxRead = maxRead;
+    }
+
+
+    /**
+     * Stores a File
+     * @param name the file
+     * @param data its contents
+     */
+    public void put(String name, byte[] data)
+    {
+        files.put(name, data);
+    }
+
+    @Override
+    public Stat stat(String name)
+    {
+        byte[] data = files.get(name);
+        return data == null ? null : new Stat(data.length, 1);
+    }
+
+    @Override
+    public Handle open(String name) throws IOException
+    {
+        byte[] data = files.get(name);
+        if (data == null)
+        {
+            throw new FileNotFoundException(name);
+        }
+
+        openHandles.incrementAndGet();
+        return new Handle()
+        {
+            protected boolean closed;
+
+            @Override
+            public Stat stat()
+            {
+                return new Stat(data.length, 1);
+            }
+
+            @Override
+            public CompletableFuture<Integer> read(ByteBuffer buffer, long position)
+            {
+                return CompletableFuture.supplyAsync(() ->
+                {
+                    if (position >= failFrom)
+                    {
+                        throw new UncheckedIOException(new IOException("Read failed at " + position));
+                    }
+                    if (position >= data.length)
+                    {
+                        return -1;
+                    }
+
+                    int length = (int) Math.min(Math.min(buffer.remaining(), maxRead), data.length - position);
+                    buffer.put(data, (int) position, length);
+                    bytesRead.addAndGet(length);
+                    return length;
+                });
+            }
+
+            @Override
+            public synchronized void close()
+            {
+                if (!closed)
+                {
+                    closed = true;
+                    openHandles.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    @Override
+    public Upload create(String name) throws IOException
+    {
+        throw new IOException("Read only");
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException
+    {
+        throw new IOException("Read only");
+    }
+
+    @Override
+    public List<String> list(String directory)
+    {
+        return new ArrayList<>(files.keySet());
+    }
+
+    @Override
+    public String getName()
+    {
+        return "async";
+    }
+
+
+    /**
+     * Makes File Contents Whose Bytes Depend on their Offsets
+     * @param length bytes
+     * @return the contents
+     */
+    public static byte[] contents(int length)
+    {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            data[i] = (byte) (i * 7 + i / 251);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,134 @@
+package tftp.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests Read Ahead with Many Sessions Reading at Once
+ * @author 105977
+ */
+public class BlockPrefetcherTest {
+
+    protected static final int[] BLOCK_SIZES = {512, 1428, 8192};
+    protected static final int[] DEPTHS = {1, 4, 8};
+
+    protected AsyncStorage storage = new AsyncStorage(300);
+    protected ExecutorService sessions = Executors.newFixedThreadPool(9);
+
+
+    @After
+    public void stopSessions()
+    {
+        sessions.shutdownNow();
+    }
+
+    /**
+     * Every Session Gets the Whole File, Whatever its Block Size and Depth
+     * @throws Exception
+     */
+    @Test
+    public void concurrentReadersGetTheWholeFile() throws Exception
+    {
+        byte[] odd = AsyncStorage.contents(100000 + 13);
+        byte[] whole = AsyncStorage.contents(64 * 512); // ends with an empty block
+        storage.put("odd.bin", odd);
+        storage.put("whole.bin", whole);
+
+        List<Future<byte[]>> oddReads = new ArrayList<>();
+        List<Future<byte[]>> wholeReads = new ArrayList<>();
+
+        for (int blockSize : BLOCK_SIZES)
+        {
+            for (int depth : DEPTHS)
+            {
+                oddReads.add(sessions.submit(session("odd.bin", blockSize, depth)));
+                wholeReads.add(sessions.submit(session("whole.bin", blockSize, depth)));
+            }
+        }
+
+        for (Future<byte[]> read : oddReads)
+        {
+            assertArrayEquals(odd, read.get(30, TimeUnit.SECONDS));
+        }
+        for (Future<byte[]> read : wholeReads)
+        {
+            assertArrayEquals(whole, read.get(30, TimeUnit.SECONDS));
+        }
+        assertEquals("handles left open", 0, storage.openHandles.get());
+    }
+
+    /**
+     * A Failed Read Ahead Fails the Block it was For, it Doesn't End the File Early
+     * @throws Exception
+     */
+    @Test
+    public void failedReadReachesTheSession() throws Exception
+    {
+        byte[] data = AsyncStorage.contents(20 * 512);
+        storage.put("file", data);
+        storage.failFrom = 10 * 512;
+
+        List<Future<byte[]>> reads = new ArrayList<>();
+        for (int depth : DEPTHS)
+        {
+            reads.add(sessions.submit(session("file", 512, depth)));
+        }
+
+        for (Future<byte[]> read : reads)
+        {
+            try
+            {
+                read.get(30, TimeUnit.SECONDS);
+                fail("read past a failed block");
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+            }
+        }
+        assertEquals("handles left open", 0, storage.openHandles.get());
+    }
+
+
+    /**
+     * Makes a Session that Reads a File Block by Block to its Short Block
+     * @param filename the file
+     * @param blockSize bytes per block
+     * @param depth blocks read ahead
+     * @return the session, returning the file's contents
+     */
+    protected Callable<byte[]> session(String filename, int blockSize, int depth)
+    {
+        return () ->
+        {
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            byte[] block = new byte[blockSize];
+
+            try (BlockPrefetcher prefetcher = BlockPrefetcher.open(storage, filename, blockSize, depth))
+            {
+                int length;
+                do
+                {
+                    length = prefetcher.next(block);
+                    read.write(block, 0, length);
+                }
+                while (length == blockSize);
+            }
+            return read.toByteArray();
+        };
+    }
+}
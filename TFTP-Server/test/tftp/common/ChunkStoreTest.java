@@ -0,0 +1,319 @@
+package tftp.common;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests Deduplicated Uploads Read Back, and Manifests that Must be Refused
+ * @author 105977
+ */
+public class ChunkStoreTest {
+
+    protected static final int CHUNK = 16;
+    protected static final String HASH = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    protected MemoryStorage backend = new MemoryStorage();
+    protected ChunkStore store = new ChunkStore(backend, "chunks", CHUNK, true);
+
+
+    /**
+     * Data Comes Back as Written, Through Chunks Stored Once Each
+     * @throws IOException
+     */
+    @Test
+    public void roundTrip() throws IOException
+    {
+        // chunks 0, 2 and 4 are the same, the last is partial
+        byte[] data = new byte[5 * CHUNK + 7];
+        for (int i = 0; i < data.length; i++)
+        {
+            int chunk = i / CHUNK;
+            data[i] = (byte) (chunk % 2 == 0 && chunk < 5 ? i % CHUNK : i);
+        }
+
+        // written in pieces that don't line up with the chunks
+        try (Storage.Upload out = store.create("dir/image.bin"))
+        {
+            for (int offset = 0; offset < data.length; offset += 5)
+            {
+                out.write(data, offset, Math.min(5, data.length - offset));
+            }
+            out.commit();
+        }
+
+        assertArrayEquals(data, read("dir/image.bin"));
+        assertEquals(data.length, store.stat("dir/image.bin").size);
+        assertNull("plain copy left beside the manifest", backend.stat("dir/image.bin"));
+        assertEquals(Arrays.asList("image.bin"), store.list("dir"));
+
+        long chunks = backend.list("chunks").stream().filter(name -> !name.startsWith("manifests/")).count();
+        assertEquals(4, chunks);
+    }
+
+    /**
+     * Empty Files Have No Chunks
+     * @throws IOException
+     */
+    @Test
+    public void emptyFile() throws IOException
+    {
+        store.create("empty").commit();
+
+        assertEquals(0, read("empty").length);
+        assertEquals(0, store.stat("empty").size);
+    }
+
+    /**
+     * A Plain File Written After the Manifest is Read Instead
+     * @throws IOException
+     */
+    @Test
+    public void newerPlainFileWins() throws IOException
+    {
+        try (Storage.Upload out = store.create("file"))
+        {
+            out.write(new byte[3 * CHUNK]);
+            out.commit();
+        }
+        try (Storage.Upload out = backend.create("file"))
+        {
+            out.write(new byte[] {1, 2, 3});
+            out.commit();
+        }
+
+        assertArrayEquals(new byte[] {1, 2, 3}, read("file"));
+    }
+
+    /**
+     * An Upload that isn't Committed Leaves the Old File, Deduplicated or Plain
+     * @throws IOException
+     */
+    @Test
+    public void droppedUploadKeepsTheOldFile() throws IOException
+    {
+        byte[] data = new byte[2 * CHUNK + 3];
+        Arrays.fill(data, (byte) 5);
+        try (Storage.Upload out = store.create("file"))
+        {
+            out.write(data);
+            out.commit();
+        }
+
+        for (Storage storage : new Storage[] {store, new ChunkStore(backend, "chunks", CHUNK, false)})
+        {
+            try (Storage.Upload out = storage.create("file"))
+            {
+                out.write(new byte[3 * CHUNK]);
+            }
+
+            Storage.Upload out = storage.create("file");
+            out.write(new byte[] {1, 2, 3});
+            out.abort();
+            try
+            {
+                out.commit();
+                fail("committed a dropped upload");
+            }
+            catch (IOException e)
+            {
+                // already discarded
+            }
+
+            assertArrayEquals(data, read("file"));
+        }
+    }
+
+    /**
+     * Malformed Manifests are Refused Rather than Read
+     * @throws IOException
+     */
+    @Test
+    public void badManifestsAreRefused() throws IOException
+    {
+        List<String> manifests = Arrays.asList(
+                "",
+                "TFTP-MANIFEST 2\nsize 1\n" + HASH + "\n",
+                "TFTP-MANIFEST 1\n" + HASH + "\n",
+                "TFTP-MANIFEST 1\nsize -1\n" + HASH + "\n",
+                "TFTP-MANIFEST 1\nsize 1234567890123456789\n" + HASH + "\n",
+                "TFTP-MANIFEST 1\nsize 1\n../../../etc/passwd\n",
+                "TFTP-MANIFEST 1\nsize 1\n" + HASH.toUpperCase() + "\n",
+                "TFTP-MANIFEST 1\nsize 1\n" + HASH + "/x\n",
+                "TFTP-MANIFEST 1\nsize 0\n" + HASH + "\n",
+                "TFTP-MANIFEST 1\nsize 5\n");
+
+        for (String manifest : manifests)
+        {
+            try (Storage.Upload out = backend.create("chunks/manifests/bad"))
+            {
+                out.write(manifest.getBytes(StandardCharsets.US_ASCII));
+                out.commit();
+            }
+
+            try
+            {
+                read("bad");
+                fail("read through " + manifest);
+            }
+            catch (IOException e)
+            {
+                // refused
+            }
+
+            try
+            {
+                store.stat("bad");
+                fail("stat through " + manifest);
+            }
+            catch (IOException e)
+            {
+                // refused
+            }
+        }
+    }
+
+    /**
+     * A Manifest Naming a Chunk that Isn't There Fails, it Doesn't Read Short
+     * @throws IOException
+     */
+    @Test
+    public void missingChunkFails() throws IOException
+    {
+        try (Storage.Upload out = backend.create("chunks/manifests/lost"))
+        {
+            out.write(("TFTP-MANIFEST 1\nsize 10\n" + HASH + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.commit();
+        }
+
+        try
+        {
+            read("lost");
+            fail("read a missing chunk");
+        }
+        catch (FileNotFoundException e)
+        {
+            // refused
+        }
+    }
+
+    /**
+     * Chunks and Manifests Can't be Reached by Name, However it is Spelt
+     * @throws IOException
+     */
+    @Test
+    public void chunkDirectoryIsRefused() throws IOException
+    {
+        byte[] data = new byte[3 * CHUNK];
+        Arrays.fill(data, (byte) 7);
+        try (Storage.Upload out = store.create("file"))
+        {
+            out.write(data);
+            out.commit();
+        }
+
+        String chunk = "chunks/" + backend.list("chunks").stream().filter(name -> !name.startsWith("manifests/")).findFirst().get();
+        String[] names = {"chunks", chunk, "./" + chunk, "dir/../" + chunk, chunk.replace('/', '\\'), "/" + chunk,
+                chunk.replace("/", "//"), "chunks/manifests/file"};
+
+        for (String name : names)
+        {
+            try
+            {
+                store.create(name).close();
+                fail("created " + name);
+            }
+            catch (AccessDeniedException e)
+            {
+                // refused
+            }
+
+            try
+            {
+                store.open(name).close();
+                fail("opened " + name);
+            }
+            catch (AccessDeniedException e)
+            {
+                // refused
+            }
+
+            try
+            {
+                store.stat(name);
+                fail("stat " + name);
+            }
+            catch (AccessDeniedException e)
+            {
+                // refused
+            }
+
+            try
+            {
+                store.delete(name);
+                fail("deleted " + name);
+            }
+            catch (AccessDeniedException e)
+            {
+                // refused
+            }
+        }
+
+        // the chunk shared by every block of the file is still there
+        assertArrayEquals(data, read("file"));
+
+        // only the directory itself is refused, not names that start the same
+        try (Storage.Upload out = store.create("chunks.txt"))
+        {
+            out.write(1);
+            out.commit();
+        }
+        assertArrayEquals(new byte[] {1}, read("chunks.txt"));
+    }
+
+    /**
+     * Names that Would Put a Manifest Outside its Namespace are Refused
+     */
+    @Test
+    public void badNamesAreRefused()
+    {
+        for (String name : new String[] {"../escape", "dir/../../escape", "/absolute", "\\absolute", "dir\\..\\..\\escape"})
+        {
+            try
+            {
+                store.create(name).close();
+                fail("created " + name);
+            }
+            catch (IOException e)
+            {
+                // refused
+            }
+        }
+    }
+
+
+    /**
+     * Reads a Whole File from the Store
+     * @param name the file
+     * @return its data
+     * @throws IOException
+     */
+    protected byte[] read(String name) throws IOException
+    {
+        try (Storage.Handle handle = store.open(name))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate((int) handle.stat().size);
+            ChunkStore.readFully(handle, buffer, 0);
+            return buffer.array();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package tftp.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNoException;
+
+/**
+ * Tests that the Catalog Serves Nothing from Outside its Root
+ * Both from its listing and, before that is done, from the disk
+ * @author 105977
+ */
+public class FileCatalogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    protected Path root;
+    protected Path outside;
+
+
+    @Before
+    public void makeTree() throws IOException
+    {
+        root = folder.newFolder("root").toPath();
+        outside = folder.newFolder("outside").toPath();
+
+        Files.createDirectories(root.resolve("pub"));
+        Files.write(root.resolve("pub/a.txt"), "public".getBytes(StandardCharsets.US_ASCII));
+        Files.write(outside.resolve("secret.txt"), "secret".getBytes(StandardCharsets.US_ASCII));
+
+        try
+        {
+            Files.createSymbolicLink(root.resolve("out"), outside);
+            Files.createSymbolicLink(root.resolve(".out"), outside);
+            Files.createSymbolicLink(root.resolve("leak.txt"), outside.resolve("secret.txt"));
+            Files.createSymbolicLink(root.resolve(".leak"), outside.resolve("secret.txt"));
+            Files.createSymbolicLink(root.resolve("alias.txt"), root.resolve("pub/a.txt"));
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            assumeNoException(e);
+        }
+    }
+
+
+    /**
+     * Absolute Names and Names Climbing Out are Refused Outright
+     * @throws Exception
+     */
+    @Test
+    public void refusesNamesOutsideTheRoot() throws Exception
+    {
+        FileCatalog catalog = listed();
+        String[] names = {"../outside/secret.txt", "pub/../../outside/secret.txt", "..",
+                outside.resolve("secret.txt").toAbsolutePath().toString()};
+
+        for (String name : names)
+        {
+            try
+            {
+                catalog.stat(name);
+                fail("stat " + name);
+            }
+            catch (AccessDeniedException e)
+            {
+                // refused
+            }
+
+            try
+            {
+                catalog.open(name).close();
+                fail("opened " + name);
+            }
+            catch (AccessDeniedException e)
+            {
+                // refused
+            }
+
+            try
+            {
+                catalog.create(name).close();
+                fail("created " + name);
+            }
+            catch (AccessDeniedException e)
+            {
+                // refused
+            }
+
+            try
+            {
+                catalog.delete(name);
+                fail("deleted " + name);
+            }
+            catch (AccessDeniedException e)
+            {
+                // refused
+            }
+        }
+
+        assertEquals(4 * names.length, catalog.refused.get());
+        assertTrue(Files.exists(outside.resolve("secret.txt")));
+    }
+
+    /**
+     * Links Leading Out are Never Followed Once the Root is Listed
+     * @throws Exception
+     */
+    @Test
+    public void linksOutAreNotFollowedWhenListed() throws Exception
+    {
+        FileCatalog catalog = listed();
+
+        assertConfined(catalog);
+        assertTrue(catalog.files.containsKey("alias.txt"));
+        assertFalse(catalog.files.containsKey("leak.txt"));
+        assertFalse(catalog.files.containsKey("out/secret.txt"));
+    }
+
+    /**
+     * Links Leading Out are Never Followed by Lookups that Go to the Disk
+     * @throws Exception
+     */
+    @Test
+    public void linksOutAreNotFollowedFromTheDisk() throws Exception
+    {
+        // never lists, as when the watch service can't be had
+        FileCatalog catalog = new FileCatalog(root.toFile(), 16, 60000)
+        {
+            @Override
+            protected void watch()
+            {
+            }
+        };
+
+        assertConfined(catalog);
+    }
+
+    /**
+     * An Upload Only Replaces the File Once Committed, One Dropped Leaves Nothing Behind
+     * @throws Exception
+     */
+    @Test
+    public void uploadReplacesOnlyOnceCommitted() throws Exception
+    {
+        FileCatalog catalog = listed();
+
+        try (Storage.Upload upload = catalog.create("pub/a.txt"))
+        {
+            upload.write("part".getBytes(StandardCharsets.US_ASCII));
+        }
+        assertEquals("public", read(catalog, "pub/a.txt"));
+        try (Stream<Path> files = Files.list(root.resolve("pub")))
+        {
+            assertEquals("upload left beside the file", 1, files.count());
+        }
+
+        try (Storage.Upload upload = catalog.create("pub/a.txt"))
+        {
+            upload.write("replaced".getBytes(StandardCharsets.US_ASCII));
+            upload.commit();
+        }
+        assertEquals("replaced", read(catalog, "pub/a.txt"));
+    }
+
+
+    /**
+     * Gets a Catalog of the Root Once it is Listed
+     * @return the catalog
+     * @throws InterruptedException
+     */
+    protected FileCatalog listed() throws InterruptedException
+    {
+        FileCatalog catalog = new FileCatalog(root.toFile(), 16, 60000);
+
+        for (int i = 0; i < 500 && !catalog.listed; i++)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue("never listed", catalog.listed);
+        return catalog;
+    }
+
+    /**
+     * Checks Files Under the Root are Served and Nothing Else Is
+     * @param catalog the catalog
+     * @throws IOException
+     */
+    protected void assertConfined(FileCatalog catalog) throws IOException
+    {
+        assertEquals("public", read(catalog, "pub/a.txt"));
+        assertEquals("public", read(catalog, "alias.txt"));
+
+        for (String name : new String[] {"out/secret.txt", ".out/secret.txt", "leak.txt", ".leak"})
+        {
+            try
+            {
+                assertNull(name, catalog.stat(name));
+            }
+            catch (AccessDeniedException e)
+            {
+                // refused
+            }
+
+            try
+            {
+                fail("read " + read(catalog, name) + " from " + name);
+            }
+            catch (IOException e)
+            {
+                // missing or refused
+            }
+        }
+
+        for (String name : new String[] {"out/new.txt", ".out/new.txt", "out/pub/new.txt"})
+        {
+            try
+            {
+                catalog.create(name).close();
+                fail("created " + name);
+            }
+            catch (AccessDeniedException e)
+            {
+                // refused
+            }
+        }
+
+        assertFalse(Files.exists(outside.resolve("new.txt")));
+        assertFalse(Files.exists(outside.resolve("pub")));
+        assertEquals("secret", new String(Files.readAllBytes(outside.resolve("secret.txt")), StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Reads a Whole File from the Catalog
+     * @param catalog the catalog
+     * @param name the file
+     * @return its contents
+     * @throws IOException
+     */
+    protected static String read(FileCatalog catalog, String name) throws IOException
+    {
+        try (Storage.Handle handle = catalog.open(name))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate((int) handle.stat().size);
+            ChunkStore.readFully(handle, buffer, 0);
+            return new String(buffer.array(), StandardCharsets.US_ASCII);
+        }
+    }
+}
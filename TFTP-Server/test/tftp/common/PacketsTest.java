@@ -0,0 +1,78 @@
+package tftp.common;
+
+import org.junit.Test;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests Block Number Sequencing Across Both Numberings
+ * @author 105977
+ */
+public class PacketsTest {
+
+    /**
+     * Plain 16 Bit Numbering Counts Through Every Value
+     */
+    @Test
+    public void plainNumbering()
+    {
+        assertTrue(next(0x0000, 0x0001));
+        assertTrue(next(0x0009, 0x000A));
+        assertTrue(next(0x00FF, 0x0100));
+        assertTrue(next(0x7FFF, 0x8000));
+        assertTrue(next(0xFFFE, 0xFFFF));
+    }
+
+    /**
+     * The Clients' Numbering Carries into the 1st Byte After 9
+     */
+    @Test
+    public void clientNumbering()
+    {
+        assertTrue(next(0x0008, 0x0009));
+        assertTrue(next(0x0009, 0x0100));
+        assertTrue(next(0x0109, 0x0200));
+        assertTrue(next(0xFE09, 0xFF00));
+    }
+
+    /**
+     * Both Numberings Wrap to Zero at the Top
+     */
+    @Test
+    public void wrapsAtTheTop()
+    {
+        assertTrue(next(0xFFFF, 0x0000));
+        assertTrue(next(0xFF09, 0x0000));
+    }
+
+    /**
+     * Duplicates, Gaps and Going Back are Not the Next Block
+     */
+    @Test
+    public void rejectsAnythingElse()
+    {
+        assertFalse(next(0x0009, 0x0009));
+        assertFalse(next(0x0009, 0x0008));
+        assertFalse(next(0x0009, 0x000B));
+        assertFalse(next(0x0009, 0x0101));
+        assertFalse(next(0x0009, 0x0200));
+        assertFalse(next(0x0100, 0x0100));
+        assertFalse(next(0xFFFF, 0xFFFF));
+        assertFalse(next(0xFFFF, 0x0001));
+        assertFalse(next(0xFFFF, 0x0100));
+        assertFalse(next(0xFF09, 0xFF09));
+    }
+
+
+    /**
+     * Checks a Block Number Against the Last
+     * @param last the last block number
+     * @param number the new block number
+     * @return true if it is the next block
+     */
+    protected static boolean next(int last, int number)
+    {
+        byte[] blockNumber = {(byte) (last >> 8), (byte) last};
+        return Packets.isNextBlock(blockNumber, (byte) (number >> 8), (byte) number);
+    }
+}
@@ -0,0 +1,207 @@
+package tftp.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests Sessions Sharing the Reads of One File
+ * @author 105977
+ */
+public class ReadCoalescerTest {
+
+    protected static final int PAGE = 4096;
+    protected static final int[] BLOCK_SIZES = {512, 1428, 8192, 65464};
+
+    protected AsyncStorage storage = new AsyncStorage(1000);
+    protected ExecutorService sessions = Executors.newFixedThreadPool(16);
+
+
+    @After
+    public void stopSessions()
+    {
+        sessions.shutdownNow();
+    }
+
+    /**
+     * Sessions Attached Together Read Every Page from Storage Once Between Them
+     * @throws Exception
+     */
+    @Test
+    public void attachedSessionsShareOnePass() throws Exception
+    {
+        byte[] data = AsyncStorage.contents(100000 + 13);
+        storage.put("boot.img", data);
+        ReadCoalescer coalescer = new ReadCoalescer(storage, PAGE, data.length);
+
+        // all attached before any reads, so no page can be dropped before the last of them
+        List<BlockReader> readers = new ArrayList<>();
+        for (int i = 0; i < 16; i++)
+        {
+            readers.add(coalescer.open("boot.img", BLOCK_SIZES[i % BLOCK_SIZES.length]));
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<byte[]>> reads = new ArrayList<>();
+        for (int i = 0; i < readers.size(); i++)
+        {
+            reads.add(sessions.submit(session(readers.get(i), BLOCK_SIZES[i % BLOCK_SIZES.length], start)));
+        }
+        start.countDown();
+
+        for (Future<byte[]> read : reads)
+        {
+            assertArrayEquals(data, read.get(30, TimeUnit.SECONDS));
+        }
+
+        assertEquals("pages read more than once", data.length, storage.bytesRead.get());
+        assertFinished(coalescer);
+    }
+
+    /**
+     * Sessions Coming and Going, with a Window Too Small to Hold the File, Still Read it Whole
+     * @throws Exception
+     */
+    @Test
+    public void sessionsJoiningAtAnyTime() throws Exception
+    {
+        byte[] data = AsyncStorage.contents(200000 + 1);
+        byte[] whole = AsyncStorage.contents(16 * PAGE); // ends on a page and a block boundary
+        storage.put("big.img", data);
+        storage.put("whole.img", whole);
+        ReadCoalescer coalescer = new ReadCoalescer(storage, PAGE, 2 * PAGE);
+
+        List<Future<byte[]>> bigReads = new ArrayList<>();
+        List<Future<byte[]>> wholeReads = new ArrayList<>();
+
+        for (int round = 0; round < 4; round++)
+        {
+            for (int blockSize : BLOCK_SIZES)
+            {
+                bigReads.add(sessions.submit(session(coalescer, "big.img", blockSize)));
+                wholeReads.add(sessions.submit(session(coalescer, "whole.img", blockSize)));
+            }
+            Thread.sleep(5);
+        }
+
+        for (Future<byte[]> read : bigReads)
+        {
+            assertArrayEquals(data, read.get(30, TimeUnit.SECONDS));
+        }
+        for (Future<byte[]> read : wholeReads)
+        {
+            assertArrayEquals(whole, read.get(30, TimeUnit.SECONDS));
+        }
+        assertFinished(coalescer);
+    }
+
+    /**
+     * A Failed Page Fails Every Session that Needs it
+     * @throws Exception
+     */
+    @Test
+    public void failedPageReachesEverySession() throws Exception
+    {
+        storage.put("file", AsyncStorage.contents(10 * PAGE));
+        storage.failFrom = 5 * PAGE;
+        ReadCoalescer coalescer = new ReadCoalescer(storage, PAGE, 10 * PAGE);
+
+        List<Future<byte[]>> reads = new ArrayList<>();
+        for (int blockSize : BLOCK_SIZES)
+        {
+            reads.add(sessions.submit(session(coalescer, "file", blockSize)));
+        }
+
+        for (Future<byte[]> read : reads)
+        {
+            try
+            {
+                read.get(30, TimeUnit.SECONDS);
+                fail("read past a failed page");
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+            }
+        }
+        assertFinished(coalescer);
+    }
+
+
+    /**
+     * Makes a Session that Opens a File and Reads it to its Short Block
+     * @param coalescer the coalescer
+     * @param filename the file
+     * @param blockSize bytes per block
+     * @return the session, returning the file's contents
+     */
+    protected Callable<byte[]> session(ReadCoalescer coalescer, String filename, int blockSize)
+    {
+        return () -> read(coalescer.open(filename, blockSize), blockSize);
+    }
+
+    /**
+     * Makes a Session that Reads from an Attached Reader Once Started
+     * @param reader the reader
+     * @param blockSize bytes per block
+     * @param start released when every session may begin
+     * @return the session, returning the file's contents
+     */
+    protected Callable<byte[]> session(BlockReader reader, int blockSize, CountDownLatch start)
+    {
+        return () ->
+        {
+            start.await();
+            return read(reader, blockSize);
+        };
+    }
+
+    /**
+     * Reads a File Block by Block to its Short Block, then Closes the Reader
+     * @param reader the reader
+     * @param blockSize bytes per block
+     * @return the contents
+     * @throws IOException
+     */
+    protected static byte[] read(BlockReader reader, int blockSize) throws IOException
+    {
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] block = new byte[blockSize];
+
+        try (BlockReader session = reader)
+        {
+            int length;
+            do
+            {
+                length = session.next(block);
+                read.write(block, 0, length);
+            }
+            while (length == blockSize);
+        }
+        return read.toByteArray();
+    }
+
+    /**
+     * Checks Every Session Detached and Every Shared File was Closed
+     * @param coalescer the coalescer
+     */
+    protected void assertFinished(ReadCoalescer coalescer)
+    {
+        assertEquals("0 files shared by 0 sessions, 0 bytes in windows", coalescer.describe());
+        assertEquals("handles left open", 0, storage.openHandles.get());
+    }
+}
@@ -0,0 +1,241 @@
+package tftp.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the Ring Writer's Backpressure and Failure Reporting
+ * @author 105977
+ */
+public class RingWriterTest {
+
+    protected static final int BLOCK = 16;
+
+    protected BufferPool pool = BufferPool.forSize(BLOCK);
+    protected ExecutorService receiver = Executors.newSingleThreadExecutor();
+
+
+    /**
+     * Channel that Holds Every Write Until Opened, then Fails or Keeps the Data
+     */
+    protected static class GatedChannel implements WritableByteChannel {
+        protected CountDownLatch gate = new CountDownLatch(1);
+        protected CountDownLatch entered = new CountDownLatch(1); // a write has reached the gate
+        protected IOException failure; // thrown once the gate opens, if set
+        protected ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        @Override
+        public int write(ByteBuffer source) throws IOException
+        {
+            entered.countDown();
+            try
+            {
+                gate.await();
+            }
+            catch (InterruptedException e)
+            {
+                throw new IOException(e);
+            }
+
+            if (failure != null)
+            {
+                throw failure;
+            }
+
+            int length = source.remaining();
+            byte[] bytes = new byte[length];
+            source.get(bytes);
+            synchronized (written)
+            {
+                written.write(bytes, 0, length);
+            }
+            return length;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+
+    @After
+    public void stopReceiver()
+    {
+        receiver.shutdownNow();
+    }
+
+    /**
+     * Blocks Reach the Channel in Order
+     * @throws Exception
+     */
+    @Test
+    public void writesEveryBlockInOrder() throws Exception
+    {
+        GatedChannel channel = new GatedChannel();
+        channel.gate.countDown();
+
+        RingWriter ring = new RingWriter(channel, DiskWriter.FSYNC_NONE, 64, pool, 8);
+        ring.start();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++)
+        {
+            byte[] block = block(i, 1 + i % BLOCK);
+            ring.write(block, 0, block.length);
+            expected.write(block, 0, block.length);
+        }
+
+        assertEquals(expected.size(), ring.finish());
+        assertArrayEquals(expected.toByteArray(), channel.written.toByteArray());
+    }
+
+    /**
+     * A Full Ring Holds the Receiver Until the Disk Frees a Slot
+     * @throws Exception
+     */
+    @Test
+    public void fullRingBlocksTheReceiver() throws Exception
+    {
+        GatedChannel channel = new GatedChannel();
+        RingWriter ring = new RingWriter(channel, DiskWriter.FSYNC_NONE, 64, pool, 2);
+        ring.start();
+
+        ring.write(block(0, BLOCK), 0, BLOCK);
+        assertTrue("writer never reached the disk", channel.entered.await(5, TimeUnit.SECONDS));
+        ring.write(block(1, BLOCK), 0, BLOCK);
+
+        // both slots are taken, the third block has to wait for the writer
+        Future<?> third = receiver.submit(() ->
+        {
+            ring.write(block(2, BLOCK), 0, BLOCK);
+            return null;
+        });
+
+        try
+        {
+            third.get(200, TimeUnit.MILLISECONDS);
+            fail("write returned with the ring full");
+        }
+        catch (TimeoutException e)
+        {
+            // still waiting, as it should be
+        }
+
+        channel.gate.countDown();
+        third.get(5, TimeUnit.SECONDS);
+
+        assertEquals(3 * BLOCK, ring.finish());
+        assertTrue(ring.getFullWaits() >= 1);
+    }
+
+    /**
+     * A Write Failure is Thrown to the Receiver, by Write and by Finish
+     * @throws Exception
+     */
+    @Test
+    public void writeFailureReachesTheReceiver() throws Exception
+    {
+        GatedChannel channel = new GatedChannel();
+        channel.failure = new IOException("disk full");
+
+        RingWriter ring = new RingWriter(channel, DiskWriter.FSYNC_NONE, 64, pool, 2);
+        ring.start();
+
+        ring.write(block(0, BLOCK), 0, BLOCK);
+        assertTrue("writer never reached the disk", channel.entered.await(5, TimeUnit.SECONDS));
+        ring.write(block(1, BLOCK), 0, BLOCK);
+
+        // waiting on a full ring when the write fails
+        Future<?> blocked = receiver.submit(() ->
+        {
+            for (int i = 2; i < 100; i++)
+            {
+                ring.write(block(i, BLOCK), 0, BLOCK);
+            }
+            return null;
+        });
+        channel.gate.countDown();
+
+        try
+        {
+            blocked.get(5, TimeUnit.SECONDS);
+            fail("writes went on after the disk failed");
+        }
+        catch (ExecutionException e)
+        {
+            assertSame(channel.failure, e.getCause());
+        }
+
+        try
+        {
+            ring.finish();
+            fail("finish hid the failure");
+        }
+        catch (IOException e)
+        {
+            assertSame(channel.failure, e);
+        }
+
+        // the writer is gone and its slots are back in the pool
+        assertFalse(ring.isAlive());
+    }
+
+    /**
+     * Finishing Again Reports the Same Outcome
+     * @throws Exception
+     */
+    @Test
+    public void finishIsRepeatable() throws Exception
+    {
+        GatedChannel channel = new GatedChannel();
+        channel.gate.countDown();
+
+        RingWriter ring = new RingWriter(channel, DiskWriter.FSYNC_END, 64, pool, 4);
+        ring.start();
+        ring.write(block(0, BLOCK), 0, BLOCK);
+
+        assertEquals(BLOCK, ring.finish());
+        assertEquals(BLOCK, ring.finish());
+    }
+
+
+    /**
+     * Makes a Block Whose Bytes Depend on its Number
+     * @param number block number
+     * @param length bytes in it
+     * @return the block
+     */
+    protected static byte[] block(int number, int length)
+    {
+        byte[] block = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            block[i] = (byte) (number * 31 + i);
+        }
+        return block;
+    }
+}
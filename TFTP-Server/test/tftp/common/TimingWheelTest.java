@@ -0,0 +1,166 @@
+package tftp.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the Timing Wheel on a Clock Moved by Hand
+ * @author 105977
+ */
+public class TimingWheelTest {
+
+    protected AtomicLong now = new AtomicLong(); // ms
+    protected TimingWheel wheel = new TimingWheel(() -> TimeUnit.MILLISECONDS.toNanos(now.get()), 1, TimeUnit.MILLISECONDS);
+
+
+    /**
+     * Timers on Every Wheel Fire on their Own Tick, Not Before
+     * Those beyond the first wheel only get there by cascading down
+     */
+    @Test
+    public void cascadesToTheExactTick()
+    {
+        long[] delays = {1, 255, 256, 257, 511, 65535, 65536, 65537, 70000, (1L << 24) - 1, 1L << 24, (1L << 24) + 300};
+        List<Long> firedAt = new ArrayList<>();
+
+        for (long delay : delays)
+        {
+            wheel.schedule(new TimingWheel.Timer(() -> firedAt.add(now.get())), delay, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(delays.length, wheel.size());
+
+        for (int i = 0; i < delays.length; i++)
+        {
+            now.set(delays[i] - 1);
+            wheel.expireDue();
+            assertEquals("fired early, before " + delays[i] + " ms", i, firedAt.size());
+
+            now.set(delays[i]);
+            wheel.expireDue();
+            assertEquals("didn't fire at " + delays[i] + " ms", i + 1, firedAt.size());
+            assertEquals(delays[i], (long) firedAt.get(i));
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * A Timer Scheduled Partway Through a Turn Lands in the Right Slot
+     */
+    @Test
+    public void schedulesFromAnyTick()
+    {
+        AtomicInteger fired = new AtomicInteger();
+
+        now.set(1000);
+        wheel.expireDue();
+        wheel.schedule(new TimingWheel.Timer(fired::incrementAndGet), 300, TimeUnit.MILLISECONDS);
+
+        now.set(1299);
+        wheel.expireDue();
+        assertEquals(0, fired.get());
+
+        now.set(1300);
+        wheel.expireDue();
+        assertEquals(1, fired.get());
+    }
+
+    /**
+     * A Cancelled Timer Never Fires, Wherever it Was
+     */
+    @Test
+    public void cancelledTimersDontFire()
+    {
+        AtomicInteger fired = new AtomicInteger();
+        TimingWheel.Timer near = new TimingWheel.Timer(fired::incrementAndGet);
+        TimingWheel.Timer far = new TimingWheel.Timer(fired::incrementAndGet);
+        TimingWheel.Timer kept = new TimingWheel.Timer(fired::incrementAndGet);
+
+        wheel.schedule(near, 10, TimeUnit.MILLISECONDS);
+        wheel.schedule(far, 100000, TimeUnit.MILLISECONDS);
+        wheel.schedule(kept, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(wheel.cancel(near));
+        assertTrue(wheel.cancel(far));
+        assertFalse("cancelled twice", wheel.cancel(near));
+        assertEquals(1, wheel.size());
+
+        now.set(200000);
+        wheel.expireDue();
+        assertEquals(1, fired.get());
+        assertFalse("cancelled after firing", wheel.cancel(kept));
+    }
+
+    /**
+     * A Timer Cancelled Between Expiring and its Action Running is Skipped
+     */
+    @Test
+    public void cancelBeforeTheActionRuns()
+    {
+        AtomicInteger fired = new AtomicInteger();
+        TimingWheel.Timer[] timers = new TimingWheel.Timer[2];
+
+        // whichever runs first cancels the other, which has already expired
+        for (int i = 0; i < 2; i++)
+        {
+            int other = 1 - i;
+            timers[i] = new TimingWheel.Timer(() ->
+            {
+                fired.incrementAndGet();
+                assertTrue(wheel.cancel(timers[other]));
+            });
+            wheel.schedule(timers[i], 5, TimeUnit.MILLISECONDS);
+        }
+
+        now.set(5);
+        wheel.expireDue();
+        assertEquals(1, fired.get());
+    }
+
+    /**
+     * Scheduling a Pending Timer Again Moves it
+     */
+    @Test
+    public void rescheduleMovesTheTimer()
+    {
+        AtomicInteger fired = new AtomicInteger();
+        TimingWheel.Timer timer = new TimingWheel.Timer(fired::incrementAndGet);
+
+        wheel.schedule(timer, 10, TimeUnit.MILLISECONDS);
+        wheel.schedule(timer, 1000, TimeUnit.MILLISECONDS);
+        assertEquals(1, wheel.size());
+
+        now.set(999);
+        wheel.expireDue();
+        assertEquals(0, fired.get());
+
+        now.set(1000);
+        wheel.expireDue();
+        assertEquals(1, fired.get());
+    }
+
+    /**
+     * A Failing Action Doesn't Stop the Others
+     */
+    @Test
+    public void failingActionIsContained()
+    {
+        AtomicInteger fired = new AtomicInteger();
+
+        wheel.schedule(new TimingWheel.Timer(() ->
+        {
+            throw new IllegalStateException("action failed");
+        }), 3, TimeUnit.MILLISECONDS);
+        wheel.schedule(new TimingWheel.Timer(fired::incrementAndGet), 3, TimeUnit.MILLISECONDS);
+
+        now.set(3);
+        wheel.expireDue();
+        assertEquals(1, fired.get());
+    }
+}
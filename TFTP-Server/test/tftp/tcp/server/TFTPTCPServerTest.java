@@ -0,0 +1,233 @@
+package tftp.tcp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import tftp.common.AdmissionController;
+import tftp.common.ChunkStore;
+import tftp.common.Storage;
+import tftp.common.TransferEngine;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests TCP Sessions that End Before their Request or Upload is Complete
+ * @author 105977
+ */
+public class TFTPTCPServerTest {
+
+    protected static final int MAX_QUEUED = 2;
+
+    protected static ServerSocket listener;
+
+
+    @BeforeClass
+    public static void startListener() throws IOException
+    {
+        // the shared engine is kept in memory and quiet
+        System.setProperty("tftp.storage", "memory");
+        System.setProperty("tftp.warm.manifest", "");
+        System.setProperty("tftp.metrics.interval", "0");
+
+        listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    @AfterClass
+    public static void stopListener() throws IOException
+    {
+        listener.close();
+    }
+
+    /**
+     * Dropped Connections Give Back their Queue Places
+     * Many more than the queue holds, so a leaked place would refuse the next request
+     * @throws Exception
+     */
+    @Test
+    public void droppedRequestsLeaveTheQueue() throws Exception
+    {
+        AdmissionController admission = new AdmissionController(4, Long.MAX_VALUE, MAX_QUEUED, 1000);
+        TFTPTCPServer.admission = admission;
+
+        byte[][] partial = {
+            {},
+            {0},
+            {0, 1},
+            {0, 1, 'b', 'o', 'o', 't'},
+            {0, 2, 'u', 'p', 0, 'o', 'c'},
+        };
+
+        for (int i = 0; i < 4 * MAX_QUEUED; i++)
+        {
+            for (byte[] sent : partial)
+            {
+                drop(admission, sent);
+            }
+        }
+
+        assertEquals(0, admission.getQueued());
+        assertEquals(0, admission.getSessions());
+        assertTrue("queue place leaked", admission.enqueue());
+        admission.dequeue();
+    }
+
+    /**
+     * A Request that Names a File and Ends is Admitted, then Released
+     * @throws Exception
+     */
+    @Test
+    public void completeRequestIsAdmitted() throws Exception
+    {
+        AdmissionController admission = new AdmissionController(4, Long.MAX_VALUE, MAX_QUEUED, 1000);
+        TFTPTCPServer.admission = admission;
+
+        for (int i = 0; i < 4 * MAX_QUEUED; i++)
+        {
+            drop(admission, request("missing.bin"));
+        }
+
+        assertEquals(0, admission.getQueued());
+        assertEquals(0, admission.getSessions());
+    }
+
+    /**
+     * A Delta Upload that Fails Part Way Leaves the Old Copy, One that Completes Replaces it
+     * @throws Exception
+     */
+    @Test
+    public void failedDeltaKeepsTheOldCopy() throws Exception
+    {
+        AdmissionController admission = new AdmissionController(4, Long.MAX_VALUE, MAX_QUEUED, 1000);
+        TFTPTCPServer.admission = admission;
+
+        byte[] old = "the old copy".getBytes(StandardCharsets.US_ASCII);
+        try (Storage.Upload upload = TransferEngine.openWrite("delta.bin"))
+        {
+            upload.write(old);
+            upload.commit();
+        }
+
+        byte[] literal = "new".getBytes(StandardCharsets.US_ASCII);
+        byte[][] deltas = {
+            delta(10, literal), // ends before the instructions do
+            delta(10, -1, 0), // names a block the old copy doesn't have
+            delta(10, literal, 0), // rebuilds less than it said
+            delta(2, literal, 0), // rebuilds more than it said
+        };
+
+        for (byte[] delta : deltas)
+        {
+            drop(admission, delta);
+            assertArrayEquals(old, read("delta.bin"));
+        }
+
+        drop(admission, delta(literal.length, literal, 0));
+        assertArrayEquals(literal, read("delta.bin"));
+    }
+
+
+    /**
+     * Queues a Connection as the Listener Does, Sends Part of a Request and Drops it
+     * @param admission the admission controller sessions use
+     * @param sent bytes sent before the connection is closed
+     * @throws Exception
+     */
+    protected static void drop(AdmissionController admission, byte[] sent) throws Exception
+    {
+        try (Socket client = new Socket(listener.getInetAddress(), listener.getLocalPort()))
+        {
+            Socket accepted = listener.accept();
+            assertTrue("queue full", admission.enqueue());
+
+            TFTPTCPServer session = new TFTPTCPServer(accepted);
+            session.start();
+
+            OutputStream out = client.getOutputStream();
+            out.write(sent);
+            out.flush();
+            client.shutdownOutput();
+
+            session.join(5000);
+            assertFalse("session still running", session.isAlive());
+        }
+    }
+
+    /**
+     * Builds a WRQ Asking for a Delta Upload, Followed by the Client's Side of the Upload
+     * @param length file length announced
+     * @param instructions literal data as byte[], block references and the final 0 as Integer
+     * @return the bytes sent
+     * @throws IOException
+     */
+    protected static byte[] delta(long length, Object... instructions) throws IOException
+    {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(sent);
+
+        out.write(new byte[] {0, 2});
+        for (String field : new String[] {"delta.bin", "octet-options", "delta", "0", ""})
+        {
+            out.write(field.getBytes(StandardCharsets.US_ASCII));
+            out.write(0);
+        }
+
+        out.writeLong(length);
+        for (Object instruction : instructions)
+        {
+            if (instruction instanceof byte[])
+            {
+                out.writeInt(((byte[]) instruction).length);
+                out.write((byte[]) instruction);
+            }
+            else
+            {
+                out.writeInt((Integer) instruction);
+            }
+        }
+        return sent.toByteArray();
+    }
+
+    /**
+     * Reads a Whole File from the Server's Storage
+     * @param name the file
+     * @return its data
+     * @throws IOException
+     */
+    protected static byte[] read(String name) throws IOException
+    {
+        try (Storage.Handle handle = TransferEngine.store.open(name))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate((int) handle.stat().size);
+            ChunkStore.readFully(handle, buffer, 0);
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Builds a Whole RRQ
+     * @param filename the file
+     * @return the request
+     */
+    protected static byte[] request(String filename)
+    {
+        byte[] name = filename.getBytes(StandardCharsets.US_ASCII);
+        byte[] mode = "octet".getBytes(StandardCharsets.US_ASCII);
+        byte[] request = new byte[2 + name.length + 1 + mode.length + 1];
+
+        request[1] = 1;
+        System.arraycopy(name, 0, request, 2, name.length);
+        System.arraycopy(mode, 0, request, 2 + name.length + 1, mode.length);
+        return request;
+    }
+}
@@ -0,0 +1,469 @@
+package tftp.tcp.client;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+/**
+ * Unpacks a Tar Archive as it Streams in
+ * Files are written as their data arrives, nothing is held but one buffer.
+ * Reads ustar and GNU long name entries, other entry types are skipped,
+ * and entries that would land outside the target directory are refused
+ * @author 105977
+ */
+public class ArchiveReceiver {
+
+    protected static final int BLOCK = 512;
+
+    protected Path target; // the archive is unpacked under it
+    protected byte[] buffer;
+
+    // counters
+    protected int files;
+    protected long dataBytes;
+
+
+    /**
+     * Reads the Archive Out of its Framing
+     * The server sends it in chunks each preceded by its length, an empty chunk ends it.
+     * Every chunk is hashed as it is read
+     */
+    public static class FramedInputStream extends InputStream {
+
+        protected DataInputStream in;
+        protected MessageDigest digest; // may be null
+        protected int remaining; // bytes left in the current chunk
+        protected boolean ended;
+        protected long bytes; // archive bytes read
+
+        /**
+         * Constructs a Framed Stream
+         * @param in the connection, positioned after the DATA opcode
+         * @param digest hashes the archive, may be null
+         */
+        public FramedInputStream(DataInputStream in, MessageDigest digest)
+        {
+            this.in = in;
+            this.digest = digest;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+
+            while (remaining == 0)
+            {
+                if (ended)
+                {
+                    return -1;
+                }
+
+                remaining = in.readInt();
+                ended = remaining == 0;
+            }
+
+            int read = in.read(b, off, Math.min(len, remaining));
+            if (read == -1)
+            {
+                throw new EOFException("Connection closed inside the archive");
+            }
+
+            if (digest != null)
+            {
+                digest.update(b, off, read);
+            }
+            remaining -= read;
+            bytes += read;
+            return read;
+        }
+
+        /**
+         * Reads Whatever is Left up to the Empty Chunk
+         * Padding the archive reader had no need for is still part of the digest
+         * @throws IOException
+         */
+        public void drain() throws IOException
+        {
+            byte[] rest = new byte[8192];
+            while (read(rest, 0, rest.length) != -1)
+            {
+            }
+        }
+
+        /**
+         * Gets the Archive Bytes Read
+         * @return bytes, not counting the chunk lengths
+         */
+        public long getBytes()
+        {
+            return bytes;
+        }
+    }
+
+
+    /**
+     * Constructs a Receiver
+     * @param target directory the archive is unpacked under
+     * @param bufferSize bytes per write to a file
+     */
+    public ArchiveReceiver(Path target, int bufferSize)
+    {
+        this.target = target.toAbsolutePath().normalize();
+        buffer = new byte[Math.max(bufferSize, BLOCK)];
+    }
+
+
+    /**
+     * Unpacks the Archive up to its End Blocks
+     * @param in the archive
+     * @throws IOException if it is malformed, ends early or names a path outside the target
+     */
+    public void unpack(InputStream in) throws IOException
+    {
+        byte[] header = new byte[BLOCK];
+        String longName = null;
+
+        while (true)
+        {
+            if (!readBlock(in, header))
+            {
+                throw new EOFException("Archive ended without its end blocks");
+            }
+
+            // an empty block ends the archive
+            if (isZero(header))
+            {
+                return;
+            }
+
+            checkHeader(header);
+
+            long size = size(header);
+            byte type = header[156];
+            String name = longName != null ? longName : name(header);
+            longName = null;
+
+            switch (type)
+            {
+                case 'L':
+                    // the next entry's name, longer than its header can hold
+                    if (size > 65536)
+                    {
+                        throw new IOException("Long name of " + size + " bytes");
+                    }
+                    byte[] bytes = new byte[(int) size];
+                    readFully(in, bytes, bytes.length);
+                    skip(in, padding(size));
+                    longName = string(bytes, 0, bytes.length);
+                    break;
+
+                case '0':
+                case 0:
+                    writeFile(in, resolve(name), size);
+                    break;
+
+                case '5':
+                    Files.createDirectories(resolve(name));
+                    skip(in, size + padding(size));
+                    break;
+
+                default:
+                    // links, devices and extended headers aren't unpacked
+                    skip(in, size + padding(size));
+            }
+        }
+    }
+
+    /**
+     * Gets the Number of Files Unpacked
+     * @return files
+     */
+    public int getFiles()
+    {
+        return files;
+    }
+
+    /**
+     * Gets the Bytes of File Data Unpacked
+     * @return bytes
+     */
+    public long getDataBytes()
+    {
+        return dataBytes;
+    }
+
+
+    /**
+     * Writes the Data of a File Entry
+     * @param in the archive
+     * @param file where it goes, replaced if it exists
+     * @param size bytes of data
+     * @throws IOException
+     */
+    protected void writeFile(InputStream in, Path file, long size) throws IOException
+    {
+        Files.createDirectories(file.getParent());
+
+        try (OutputStream out = Files.newOutputStream(file))
+        {
+            long remaining = size;
+            while (remaining > 0)
+            {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1)
+                {
+                    throw new EOFException("Archive ended inside " + file);
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+
+        skip(in, padding(size));
+        files++;
+        dataBytes += size;
+    }
+
+    /**
+     * Resolves an Entry Name Under the Target Directory
+     * @param name the name in the archive
+     * @return the path
+     * @throws IOException if it is absolute or climbs out of the target
+     */
+    protected Path resolve(String name) throws IOException
+    {
+        Path path = target.resolve(name).normalize();
+
+        if (name.startsWith("/") || !path.startsWith(target) || path.equals(target))
+        {
+            throw new IOException("Refusing archive entry outside " + target + ": " + name);
+        }
+        return path;
+    }
+
+    /**
+     * Checks the Header Checksum
+     * It is taken with its own field as spaces, some writers sum signed bytes
+     * @param header the header
+     * @throws IOException if it doesn't match
+     */
+    protected static void checkHeader(byte[] header) throws IOException
+    {
+        long unsigned = 0;
+        long signed = 0;
+        for (int i = 0; i < BLOCK; i++)
+        {
+            byte b = i >= 148 && i < 156 ? (byte) ' ' : header[i];
+            unsigned += b & 0xFF;
+            signed += b;
+        }
+
+        long expected = octal(header, 148, 8);
+        if (expected != unsigned && expected != signed)
+        {
+            throw new IOException("Bad tar header checksum");
+        }
+    }
+
+    /**
+     * Gets the Name of an Entry, Joining the ustar Prefix
+     * @param header the header
+     * @return the name
+     */
+    protected static String name(byte[] header)
+    {
+        String name = string(header, 0, 100);
+        boolean ustar = header[257] == 'u' && header[258] == 's' && header[259] == 't'
+                && header[260] == 'a' && header[261] == 'r';
+
+        String prefix = ustar ? string(header, 345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    /**
+     * Gets the Size of an Entry
+     * Octal, or GNU base 256 for 8 GB and over
+     * @param header the header
+     * @return bytes of data
+     * @throws IOException if it is negative or too big
+     */
+    protected static long size(byte[] header) throws IOException
+    {
+        if ((header[124] & 0x80) == 0)
+        {
+            return octal(header, 124, 12);
+        }
+
+        long size = 0;
+        for (int i = 125; i < 136; i++)
+        {
+            if (i < 128 && header[i] != 0)
+            {
+                throw new IOException("Tar entry too big");
+            }
+            size = size << 8 | header[i] & 0xFF;
+        }
+        if (size < 0)
+        {
+            throw new IOException("Tar entry too big");
+        }
+        return size;
+    }
+
+    /**
+     * Reads an Octal Field
+     * Leading spaces and zeros are skipped, a space or zero byte ends it
+     * @param header the header
+     * @param offset where the field starts
+     * @param length bytes in the field
+     * @return the value
+     * @throws IOException if it has something other than octal digits
+     */
+    protected static long octal(byte[] header, int offset, int length) throws IOException
+    {
+        long value = 0;
+        int i = offset;
+        int end = offset + length;
+
+        while (i < end && header[i] == ' ')
+        {
+            i++;
+        }
+        for (; i < end && header[i] != 0 && header[i] != ' '; i++)
+        {
+            if (header[i] < '0' || header[i] > '7')
+            {
+                throw new IOException("Bad octal field in tar header");
+            }
+            value = value << 3 | header[i] - '0';
+        }
+        return value;
+    }
+
+    /**
+     * Decodes a Zero Terminated Field
+     * @param bytes the bytes
+     * @param offset where it starts
+     * @param length most bytes it can have
+     * @return the string
+     */
+    protected static String string(byte[] bytes, int offset, int length)
+    {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0)
+        {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the Padding After Data to a Whole Block
+     * @param size bytes of data
+     * @return bytes of padding
+     */
+    protected static long padding(long size)
+    {
+        return (BLOCK - size % BLOCK) % BLOCK;
+    }
+
+    /**
+     * Reads a Whole Block
+     * @param in the archive
+     * @param block filled with it
+     * @return false if the archive ended cleanly first
+     * @throws IOException if it ended inside the block
+     */
+    protected static boolean readBlock(InputStream in, byte[] block) throws IOException
+    {
+        int read = 0;
+        while (read < BLOCK)
+        {
+            int n = in.read(block, read, BLOCK - read);
+            if (n == -1)
+            {
+                if (read == 0)
+                {
+                    return false;
+                }
+                throw new EOFException("Archive ended inside a header");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    /**
+     * Reads Bytes that Must be There
+     * @param in the archive
+     * @param bytes filled with them
+     * @param length how many
+     * @throws IOException if the archive ends first
+     */
+    protected static void readFully(InputStream in, byte[] bytes, int length) throws IOException
+    {
+        int read = 0;
+        while (read < length)
+        {
+            int n = in.read(bytes, read, length - read);
+            if (n == -1)
+            {
+                throw new EOFException("Archive ended inside an entry");
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Skips Bytes that Must be There
+     * @param in the archive
+     * @param count how many
+     * @throws IOException if the archive ends first
+     */
+    protected void skip(InputStream in, long count) throws IOException
+    {
+        while (count > 0)
+        {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (n == -1)
+            {
+                throw new EOFException("Archive ended inside an entry");
+            }
+            count -= n;
+        }
+    }
+
+    /**
+     * Checks Whether a Block is All Zeros
+     * @param block the block
+     * @return true if it is
+     */
+    protected static boolean isZero(byte[] block)
+    {
+        for (byte b : block)
+        {
+            if (b != 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -3,14 +3,29 @@
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
+import tftp.common.FlightEvents;
 
 /**
  * TFTP Client Built on TCP
@@ -19,9 +34,13 @@ import java.util.Scanner;
 public class TFTPTCPClient {
     
     protected Socket clientSocket;
+    protected SocketChannel channel; // file data goes straight between the socket and the file
     protected DataOutputStream outToServer;
     protected DataInputStream inFromServer;
     
+    protected static int BUFFER_SIZE = 64 * 1024; // bytes per read of the file or the socket
+    protected ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE); // reused by every transfer
+    
     protected String filename;
     
     // TFTP opcodes
@@ -29,8 +48,30 @@ public class TFTPTCPClient {
     protected static final byte DATA [] = new byte[] {0,3};
     protected static final byte RRQ [] = new byte[] {0,1};
     protected static final byte ERROR [] = new byte[] {0,5};
+    protected static final byte OACK [] = new byte[] {0,6};
+    protected static final byte DIGEST [] = new byte[] {0,10}; // extension, carries the digest of the file data
+    protected static final byte SUMS [] = new byte[] {0,13}; // extension, block checksums of the server's copy for a delta upload
    
     protected static byte SEPARATOR = 0;
+    
+    // mode of requests followed by options, servers only read options after it
+    protected static final String OPTIONS_MODE = "octet-options";
+    
+    // end to end check of the file data, off unless asked for - servers without options store a WRQ's option bytes as data
+    protected static String DIGEST_OPTION = System.getProperty("tftp.digest", "none");
+    
+    // send only the changes when storing a file the server already has a copy of
+    protected static boolean DELTA_MODE = Boolean.getBoolean("tftp.delta");
+    protected static int DELTA_BLOCK = Integer.getInteger("tftp.delta.block", 2048); // bytes per block asked for
+    
+    // asked for with every retrieve, a directory then comes as a tar unpacked here, "tar.gz" compresses it, "none" turns it off
+    protected static String ARCHIVE_OPTION = System.getProperty("tftp.archive", "tar");
+    
+    // flight recorder state of the current transfer
+    protected FlightEvents.ClientComplete complete;
+    protected long bytesTransferred;
+    
+    protected boolean optionsSent; // the request carried options, so the server answers a WRQ first
 
 
     /**
@@ -90,60 +131,241 @@ public class TFTPTCPClient {
      * Sends a Read/Write Packet
      * @param opCode The opCode is 01
      * @param filename The desired filename set by the user
-     * @param mode mode of TFTP
+     * @param mode mode of TFTP, sent as the options mode when options follow
      * @throws java.io.UnsupportedEncodingException If UTF-8 is not supported
      */
     public void sendRequest(byte[] opCode, String filename, String mode) throws UnsupportedEncodingException, IOException
     {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         
+        // options only go out when one is asked for, older servers don't expect any
+        ByteArrayOutputStream options = new ByteArrayOutputStream();
+        
+        // ask for a digest of the file data
+        if (!DIGEST_OPTION.equals("none"))
+        {
+            options.write("digest".getBytes("US-ASCII"), 0, "digest".length());
+            options.write(SEPARATOR);
+            options.write(DIGEST_OPTION.getBytes("US-ASCII"), 0, DIGEST_OPTION.length());
+            options.write(SEPARATOR);
+        }
+        
+        // ask for the checksums of the server's copy, servers without delta mode ignore it
+        // the file is mapped to find the blocks, so bigger files are always sent whole
+        if (DELTA_MODE && Arrays.equals(opCode, WRQ) && new File(filename).length() <= Integer.MAX_VALUE)
+        {
+            String block = Integer.toString(DELTA_BLOCK);
+            options.write("delta".getBytes("US-ASCII"), 0, "delta".length());
+            options.write(SEPARATOR);
+            options.write(block.getBytes("US-ASCII"), 0, block.length());
+            options.write(SEPARATOR);
+        }
+        
+        // servers only acknowledge it when the name is a directory
+        if (!ARCHIVE_OPTION.equals("none") && Arrays.equals(opCode, RRQ))
+        {
+            options.write("archive".getBytes("US-ASCII"), 0, "archive".length());
+            options.write(SEPARATOR);
+            options.write(ARCHIVE_OPTION.getBytes("US-ASCII"), 0, ARCHIVE_OPTION.length());
+            options.write(SEPARATOR);
+        }
+        
+        optionsSent = options.size() > 0;
+        if (optionsSent)
+        {
+            mode = OPTIONS_MODE;
+        }
+        
         os.write(opCode, 0, opCode.length);
         os.write(filename.getBytes("UTF-8"), 0, filename.getBytes().length);
         os.write(SEPARATOR);   
         os.write(mode.getBytes("UTF-8"),0,mode.getBytes().length);
         os.write(SEPARATOR); 
         
+        if (optionsSent)
+        {
+            options.writeTo(os);
+            os.write(SEPARATOR); // empty name ends the option list
+        }
+        
         byte[] requestPacket = os.toByteArray();
         
+        bytesTransferred = 0;
+        complete = new FlightEvents.ClientComplete();
+        complete.begin();
+        
         outToServer.write(requestPacket,0,requestPacket.length);
+        
+        FlightEvents.ClientRequest sent = new FlightEvents.ClientRequest();
+        if (sent.shouldCommit())
+        {
+            sent.transport = "tcp";
+            sent.server = serverName();
+            sent.file = filename;
+            sent.type = Arrays.equals(opCode, RRQ) ? "RRQ" : "WRQ";
+            sent.commit();
+        }
+    }
+    
+    /**
+     * Gets the Server Address and Port
+     * @return ip:port
+     */
+    public String serverName()
+    {
+        return clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
+    }
+    
+    /**
+     * Records the End of a Transfer in the Flight Recorder
+     * Lasts from the request
+     */
+    protected void completed()
+    {
+        complete.end();
+        if (complete.shouldCommit())
+        {
+            complete.transport = "tcp";
+            complete.server = serverName();
+            complete.file = filename;
+            complete.bytes = bytesTransferred;
+            complete.commit();
+        }
     }
     
     /**
      * Sends The File Data To Server
+     * The data goes from the file to the socket with transferTo, never through the heap,
+     * with a digest the file is hashed through a fixed buffer first
      * @throws IOException
      */
     public void sendToServer() throws IOException
     {
-        try
+        try (FileChannel file = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
         {
-            // create the input stream to read file data
-            FileInputStream fis = new FileInputStream(filename);
+            long length = file.size();
             
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            // with options the server answers the request before any data is sent
+            MessageDigest digest = null;
+            Map<String, String> options = new LinkedHashMap<>();
+            if (optionsSent)
+            {
+                byte[] opcode = new byte[2];
+                inFromServer.readFully(opcode,0,2);
+                
+                if (!Arrays.equals(opcode,OACK))
+                {
+                    printError(opcode);
+                    clientSocket.close();
+                    return;
+                }
+                
+                options = readOptions();
+            }
             
-            // start reading
-            // handles unlimited file size
-            int byteRead;
-            while ((byteRead = fis.read()) != -1)
+            if (options.containsKey("digest"))
             {
-                bos.write(byteRead);
+                digest = hashFile(file, length);
             }
             
-            // convert data to byte array and send
-            byte[] fileData = bos.toByteArray();
+            if (options.containsKey("delta"))
+            {
+                // the server rebuilds the file from its copy and what we send
+                outToServer.writeLong(length);
+                sendDelta(file, length, Integer.parseInt(options.get("delta")));
+            }
+            else
+            {
+                // length first so the digest can follow the data
+                if (digest != null)
+                {
+                    outToServer.writeLong(length);
+                }
+                
+                sendFileData(file, 0, length);
+                bytesTransferred = length;
+            }
             
-            outToServer.write(fileData,0, fileData.length);
+            if (digest != null)
+            {
+                sendDigestPacket(toHex(digest.digest()));
+                clientSocket.shutdownOutput();
+                
+                // the server closes without a reply if its digest matches
+                byte[] opcode = new byte[2];
+                if (inFromServer.read(opcode,0,2) > 0)
+                {
+                    printError(opcode);
+                    clientSocket.close();
+                    return;
+                }
+                System.out.println("Checksum verified by server");
+            }
 
-            System.out.println("The file " + filename + " has been transferred"); 
+            System.out.println("The file " + filename + " has been transferred" + (options.containsKey("delta")
+                    ? ", " + bytesTransferred + " of " + length + " bytes sent" : "")); 
+            completed();
             
             clientSocket.close();
         }
-        catch (FileNotFoundException ex)
+        catch (NoSuchFileException ex)
         {
             System.out.println("File Not Found on Client!"); 
         }
     }
     
+    /**
+     * Sends Part of the File
+     * With transferTo, sendfile on Linux, the data never leaves the kernel
+     * @param file the file
+     * @param position offset of the first byte
+     * @param count bytes to send
+     * @throws IOException if the file shrank while sending
+     */
+    public void sendFileData(FileChannel file, long position, long count) throws IOException
+    {
+        while (count > 0)
+        {
+            long sent = file.transferTo(position, count, channel);
+            if (sent <= 0 && position >= file.size())
+            {
+                throw new IOException("The file " + filename + " shrank while sending");
+            }
+            position += sent;
+            count -= sent;
+        }
+    }
+    
+    /**
+     * Hashes the File Through the Transfer Buffer
+     * @param file the file
+     * @param length bytes to hash, the length sent to the server
+     * @return the digest
+     * @throws IOException
+     */
+    public MessageDigest hashFile(FileChannel file, long length) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        long position = 0;
+        
+        while (position < length)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            
+            int read = file.read(buffer, position);
+            if (read < 0)
+            {
+                throw new IOException("The file " + filename + " shrank while hashing");
+            }
+            
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+        return digest;
+    }
+    
     /**
      * Writes Data Sent from Server To File
      * @throws IOException
@@ -153,43 +375,420 @@ public class TFTPTCPClient {
         // extract opcode
         byte[] opcode = new byte[2];
         
-        inFromServer.read(opcode,0,2);
+        inFromServer.readFully(opcode,0,2);
         
-        // File Not Found on Server
-        if (Arrays.equals(opcode,ERROR))
+        // Server Accepted Our Options - the Data is Framed by its Length
+        MessageDigest digest = null;
+        long remaining = Long.MAX_VALUE;
+        
+        if (Arrays.equals(opcode,OACK))
         {
-            int available = inFromServer.available();      
-            byte[] errorInfo = new byte[available];   // error info as byte array
-            inFromServer.read(errorInfo,0,errorInfo.length);
+            Map<String, String> options = readOptions();
             
-            // error info could be extracted to identify error message
-            // however, only read for simplicity
-            
-            System.out.println("File Not Found on Server");
+            // the name was a directory, it comes as an archive
+            if (options.containsKey("archive"))
+            {
+                receiveArchive(options);
+                return;
+            }
+            digest = options.containsKey("digest") ? newDigest() : null;
             
+            inFromServer.readFully(opcode,0,2);
+            remaining = inFromServer.readLong();
+        }
+        
+        // File Not Found on Server or Server Busy
+        if (Arrays.equals(opcode,ERROR))
+        {
+            printError(opcode);
         }
         else
         {
             // Create File To Write Data To
-            FileOutputStream fos = new FileOutputStream(filename);
-            
-            // read remaining bytes (file data)
-            int available = inFromServer.available();
-            byte[] fileData = new byte[available];
-            
-            inFromServer.read(fileData, 0, fileData.length);
+            try (FileChannel file = FileChannel.open(Paths.get(filename),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                // read remaining bytes (file data) until the server closes
+                // through one direct buffer, so the data is hashed on the way without a copy into the heap
+                while (remaining > 0)
+                {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                    
+                    int bytesRead = channel.read(buffer);
+                    if (bytesRead == -1)
+                    {
+                        break;
+                    }
+                    buffer.flip();
+                    
+                    FlightEvents.ClientDiskWriteStall stall = new FlightEvents.ClientDiskWriteStall();
+                    stall.begin();
+                    
+                    // write the file data to the file
+                    while (buffer.hasRemaining())
+                    {
+                        file.write(buffer);
+                    }
+                    remaining -= bytesRead;
+                    bytesTransferred += bytesRead;
+                    
+                    stall.end();
+                    if (stall.shouldCommit())
+                    {
+                        stall.transport = "tcp";
+                        stall.server = serverName();
+                        stall.file = filename;
+                        stall.bytes = bytesTransferred;
+                        stall.commit();
+                    }
+                    
+                    if (digest != null)
+                    {
+                        buffer.rewind();
+                        digest.update(buffer);
+                    }
+                }
+            }
             
-            // write the file data to the file
-            fos.write(fileData,0,fileData.length);
-
-            fos.close();
+            // compare the digest that follows the data with ours
+            if (digest != null)
+            {
+                inFromServer.readFully(opcode,0,2);
+                
+                if (!Arrays.equals(opcode,DIGEST) || !readString().equalsIgnoreCase(toHex(digest.digest())))
+                {
+                    System.out.println("Checksum mismatch - the file " + filename + " is corrupt");
+                    clientSocket.close();
+                    return;
+                }
+                System.out.println("Checksum verified");
+            }
             
             System.out.println("The file " + filename + " has been stored ");
+            completed();
            
             clientSocket.close();
         }   
     }
     
+    /**
+     * Unpacks a Directory Sent as an Archive into the Working Directory
+     * The archive comes in length framed chunks, unpacked as they arrive,
+     * followed by its digest if the server acknowledged the digest option
+     * @param options the options of the OACK
+     * @throws IOException
+     */
+    public void receiveArchive(Map<String, String> options) throws IOException
+    {
+        byte[] opcode = new byte[2];
+        inFromServer.readFully(opcode,0,2);
+        
+        if (!Arrays.equals(opcode,DATA))
+        {
+            printError(opcode);
+            clientSocket.close();
+            return;
+        }
+        
+        MessageDigest digest = options.containsKey("digest") ? newDigest() : null;
+        ArchiveReceiver.FramedInputStream framed = new ArchiveReceiver.FramedInputStream(inFromServer, digest);
+        ArchiveReceiver receiver = new ArchiveReceiver(Paths.get(""), BUFFER_SIZE);
+        
+        try
+        {
+            // the files are written as the archive streams in
+            receiver.unpack(options.get("archive").equals("tar.gz") ? new GZIPInputStream(framed, BUFFER_SIZE) : framed);
+            framed.drain();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Archive of " + filename + " failed: " + e.getMessage());
+            clientSocket.close();
+            return;
+        }
+        bytesTransferred = framed.getBytes();
+        
+        // compare the digest that follows the archive with ours
+        if (digest != null)
+        {
+            inFromServer.readFully(opcode,0,2);
+            
+            if (!Arrays.equals(opcode,DIGEST) || !readString().equalsIgnoreCase(toHex(digest.digest())))
+            {
+                System.out.println("Checksum mismatch - the directory " + filename + " is corrupt");
+                clientSocket.close();
+                return;
+            }
+            System.out.println("Checksum verified");
+        }
+        
+        System.out.println("The directory " + filename + " has been stored, " + receiver.getFiles() + " files of "
+                + receiver.getDataBytes() + " bytes");
+        completed();
+        
+        clientSocket.close();
+    }
+    
+    /**
+     * Reads the Options of an OACK
+     * The list ends with an empty name
+     * @return option values by name
+     * @throws IOException
+     */
+    public Map<String, String> readOptions() throws IOException
+    {
+        Map<String, String> options = new LinkedHashMap<>();
+        String name;
+        while (!(name = readString()).isEmpty())
+        {
+            options.put(name.toLowerCase(), readString());
+        }
+        return options;
+    }
+    
+    /**
+     * Sends a File as Changes to the Server's Copy
+     * Reads the checksums of the server's blocks, then slides a window over the mapped file
+     * a byte at a time. Where the window's rolling checksum and MD5 match a block of the
+     * server's copy a reference to it is sent, the bytes in between are sent as literals
+     * @param file the file
+     * @param size bytes to send, at most Integer.MAX_VALUE
+     * @param blockSize bytes per block from the OACK
+     * @throws IOException
+     */
+    public void sendDelta(FileChannel file, long size, int blockSize) throws IOException
+    {
+        byte[] opcode = new byte[2];
+        inFromServer.readFully(opcode,0,2);
+        
+        if (!Arrays.equals(opcode,SUMS))
+        {
+            throw new IOException("Expected block checksums from the server");
+        }
+        
+        // blocks by rolling checksum, most have only one
+        int count = inFromServer.readInt();
+        Map<Integer, List<Integer>> blocks = new HashMap<>();
+        byte[][] strong = new byte[count][16];
+        
+        for (int i = 0; i < count; i++)
+        {
+            blocks.computeIfAbsent(inFromServer.readInt(), sum -> new ArrayList<>(1)).add(i);
+            inFromServer.readFully(strong[i]);
+        }
+        
+        // the file is paged in as the window slides, not read into the heap
+        MappedByteBuffer fileData = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        ByteBuffer window = fileData.duplicate();
+        MessageDigest md5 = newStrong();
+        int length = (int) size;
+        int literalStart = 0;
+        int i = 0;
+        int a = 0;
+        int b = 0;
+        
+        if (length >= blockSize && count > 0)
+        {
+            int sum = rolling(fileData, 0, blockSize);
+            a = sum & 0xFFFF;
+            b = sum >>> 16;
+        }
+        
+        while (count > 0 && i + blockSize <= length)
+        {
+            int match = -1;
+            List<Integer> candidates = blocks.get((a & 0xFFFF) | (b << 16));
+            
+            if (candidates != null)
+            {
+                window.clear();
+                window.position(i);
+                window.limit(i + blockSize);
+                md5.update(window);
+                byte[] hash = md5.digest();
+                
+                for (int block : candidates)
+                {
+                    if (Arrays.equals(hash, strong[block]))
+                    {
+                        match = block;
+                        break;
+                    }
+                }
+            }
+            
+            if (match >= 0)
+            {
+                sendLiteral(file, literalStart, i - literalStart);
+                outToServer.writeInt(-match - 1);
+                
+                i += blockSize;
+                literalStart = i;
+                
+                if (i + blockSize <= length)
+                {
+                    int sum = rolling(fileData, i, blockSize);
+                    a = sum & 0xFFFF;
+                    b = sum >>> 16;
+                }
+            }
+            else
+            {
+                // slide the window a byte, the sums only need their low 16 bits
+                if (i + blockSize < length)
+                {
+                    int out = fileData.get(i) & 0xFF;
+                    a += (fileData.get(i + blockSize) & 0xFF) - out;
+                    b += a - blockSize * out;
+                }
+                i++;
+            }
+        }
+        
+        sendLiteral(file, literalStart, length - literalStart);
+        outToServer.writeInt(0);
+    }
+    
+    /**
+     * Sends Bytes the Server's Copy Doesn't Have
+     * @param file the file
+     * @param offset start of the bytes
+     * @param length bytes to send, nothing is sent for 0
+     * @throws IOException
+     */
+    public void sendLiteral(FileChannel file, int offset, int length) throws IOException
+    {
+        if (length > 0)
+        {
+            outToServer.writeInt(length);
+            sendFileData(file, offset, length);
+            bytesTransferred += length;
+        }
+    }
+    
+    /**
+     * Computes the Rolling Checksum of a Block
+     * Two 16 bit sums as in rsync, the second weighting each byte by its distance from the end
+     * @param data the bytes
+     * @param offset start of the block
+     * @param length bytes in the block
+     * @return the checksum
+     */
+    public static int rolling(ByteBuffer data, int offset, int length)
+    {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++)
+        {
+            int x = data.get(offset + i) & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+    
+    /**
+     * Creates the Strong Checksum Digest
+     * @return an MD5 digest, only used to confirm rolling checksum matches
+     */
+    public MessageDigest newStrong()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+    
+    /**
+     * Reads a Zero Terminated String from the Server
+     * @return the string
+     * @throws IOException
+     */
+    public String readString() throws IOException
+    {
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        int stringByte;
+        
+        while ((stringByte = inFromServer.read()) != 0 && stringByte != -1)
+        {
+            stringBytes.write(stringByte);
+        }
+        
+        return stringBytes.toString("US-ASCII");
+    }
+    
+    /**
+     * Prints the Message of a TFTP Error Packet
+     * @param opcode the opcode already read
+     * @throws IOException
+     */
+    public void printError(byte[] opcode) throws IOException
+    {
+        if (!Arrays.equals(opcode,ERROR))
+        {
+            System.out.println("Unexpected Reply from Server");
+            return;
+        }
+        
+        // skip the error code, the message follows
+        inFromServer.readFully(new byte[2],0,2);
+        System.out.println("Server Error: " + readString());
+    }
+    
+    /**
+     * Sends the Digest of the File Data
+     * @param fileDigest hex digest
+     * @throws IOException
+     */
+    public void sendDigestPacket(String fileDigest) throws IOException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        
+        os.write(DIGEST, 0, DIGEST.length);
+        os.write(fileDigest.getBytes("US-ASCII"), 0, fileDigest.length());
+        os.write(SEPARATOR);
+        
+        byte[] digestPacket = os.toByteArray();
+        outToServer.write(digestPacket, 0, digestPacket.length);
+    }
+    
+    /**
+     * Creates the Digest Named by the Digest Option
+     * @return a new digest
+     */
+    public MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+    
+    /**
+     * Converts Bytes to a Hex String
+     * @param bytes the bytes
+     * @return lower case hex
+     */
+    public static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+    
     /**
      * Constructs a Socket
      * Creates Input and Output Streams
@@ -197,7 +796,8 @@ public class TFTPTCPClient {
      */
     public void createSocket() throws IOException
     {
-        clientSocket = new Socket("127.0.0.1",9000);
+        channel = SocketChannel.open(new InetSocketAddress("127.0.0.1",9000));
+        clientSocket = channel.socket();
         outToServer = new DataOutputStream(clientSocket.getOutputStream());
         inFromServer = new DataInputStream(clientSocket.getInputStream());
     }
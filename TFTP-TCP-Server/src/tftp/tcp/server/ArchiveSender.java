@@ -0,0 +1,571 @@
+package tftp.tcp.server;
+
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import tftp.common.BandwidthShaper;
+import tftp.common.BlockReader;
+import tftp.common.ChunkStore;
+import tftp.common.Storage;
+import tftp.common.TransferEngine;
+
+/**
+ * Streams a Directory Tree as a Tar Archive
+ * Small files are read whole on a pool of reader threads, in parallel and ahead of the
+ * stream, up to a byte budget per archive, and written in name order as soon as the file
+ * at the head is in. Bigger files are streamed through the usual read ahead when their
+ * turn comes. Nothing waits on the client between files, so a tree of small files goes
+ * at the speed of the connection rather than a round trip per file.
+ * The archive is ustar, names too long for its header use GNU long name entries
+ * @author 105977
+ */
+public class ArchiveSender {
+
+    protected static final int BLOCK = 512; // tar header and data padding
+    protected static final int RECORD = 20 * BLOCK; // archives are padded to whole records
+    protected static final int MAX_FILES_AHEAD = 1024; // bounds the queue when files are empty
+
+    // reads files ahead for every archive being sent
+    protected static ExecutorService readers = Executors.newFixedThreadPool(Integer.getInteger("tftp.archive.readers", 8), r ->
+    {
+        Thread thread = new Thread(r, "TFTP Archive Reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    protected String directory; // as requested, '/' terminated
+    protected String base; // name of the directory in the archive, entries go under it
+    protected List<String> names; // relative to the directory
+    protected long budget; // bytes of files read ahead at most
+    protected int wholeFile; // bigger files are streamed
+    protected int chunkSize;
+
+    protected ArrayDeque<Entry> ahead = new ArrayDeque<>();
+    protected long reserved; // bytes of the files being read ahead
+    protected int next; // index of the next name to read
+    protected long written; // bytes of the archive so far
+
+    // counters
+    protected int files;
+    protected long dataBytes;
+    protected int streamed;
+
+
+    /**
+     * A File Queued for the Archive
+     */
+    protected static class Entry {
+        protected String name; // relative to the directory
+        protected long modified; // ms, when it was listed
+        protected long reserved; // bytes of the budget it holds
+        protected CompletableFuture<byte[]> data; // null if the file is streamed
+    }
+
+    /**
+     * Frames the Archive for the Connection
+     * The archive has no length up front, so it goes in chunks each preceded by its
+     * length, and an empty chunk ends it. Every chunk is shaped and hashed on its way out
+     */
+    public static class FramedOutputStream extends OutputStream {
+
+        protected DataOutputStream out;
+        protected BandwidthShaper.Flow flow;
+        protected MessageDigest digest; // may be null
+        protected byte[] frame; // the length, then the data
+        protected int length; // data bytes in the frame
+        protected long bytes; // archive bytes sent
+
+        /**
+         * Constructs a Framed Stream
+         * @param out the connection
+         * @param flow shapes the chunks
+         * @param digest hashes the archive, may be null
+         * @param chunkSize bytes of data per chunk
+         */
+        public FramedOutputStream(DataOutputStream out, BandwidthShaper.Flow flow, MessageDigest digest, int chunkSize)
+        {
+            this.out = out;
+            this.flow = flow;
+            this.digest = digest;
+            frame = new byte[4 + chunkSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (4 + length == frame.length)
+            {
+                send();
+            }
+            frame[4 + length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                if (4 + length == frame.length)
+                {
+                    send();
+                }
+                int copied = Math.min(len, frame.length - 4 - length);
+                System.arraycopy(b, off, frame, 4 + length, copied);
+                length += copied;
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        /**
+         * Sends the Data Buffered so Far
+         * @throws IOException
+         */
+        @Override
+        public void flush() throws IOException
+        {
+            if (length > 0)
+            {
+                send();
+            }
+            out.flush();
+        }
+
+        /**
+         * Sends the Rest and the Empty Chunk, Leaving the Connection Open
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException
+        {
+            flush();
+            out.writeInt(0);
+            out.flush();
+        }
+
+        /**
+         * Gets the Archive Bytes Sent
+         * @return bytes, not counting the chunk lengths
+         */
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        /**
+         * Sends the Frame in One Write
+         * @throws IOException
+         */
+        protected void send() throws IOException
+        {
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+
+            if (digest != null)
+            {
+                digest.update(frame, 4, length);
+            }
+
+            flow.acquire(length);
+            out.write(frame, 0, 4 + length);
+            bytes += length;
+            length = 0;
+        }
+    }
+
+
+    /**
+     * Lists a Directory for an Archive
+     * @param directory the directory a RRQ named
+     * @param budget bytes of files read ahead at most
+     * @param wholeFile files up to this size are read whole, bigger ones are streamed
+     * @param chunkSize bytes per read of a streamed file
+     * @return the archive, or null if there is no such directory
+     * @throws java.nio.file.AccessDeniedException if the name is outside the served root
+     * @throws IOException
+     */
+    public static ArchiveSender open(String directory, long budget, int wholeFile, int chunkSize) throws IOException
+    {
+        List<String> names = TransferEngine.store.list(directory);
+        return names == null ? null : new ArchiveSender(directory, names, budget, wholeFile, chunkSize);
+    }
+
+    /**
+     * Constructs an Archive of Listed Files
+     * @param directory the directory
+     * @param names files relative to it
+     * @param budget bytes of files read ahead at most
+     * @param wholeFile files up to this size are read whole, bigger ones are streamed
+     * @param chunkSize bytes per read of a streamed file
+     */
+    protected ArchiveSender(String directory, List<String> names, long budget, int wholeFile, int chunkSize)
+    {
+        this.directory = directory.endsWith("/") ? directory : directory + "/";
+        this.names = names;
+        this.budget = budget;
+        this.wholeFile = (int) Math.min(wholeFile, budget);
+        this.chunkSize = chunkSize;
+
+        Path name = Paths.get(directory).normalize().getFileName();
+        base = name == null || name.toString().isEmpty() ? "" : name + "/";
+    }
+
+
+    /**
+     * Writes the Whole Archive
+     * @param out where it goes, not closed
+     * @throws IOException
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        try
+        {
+            readAhead();
+
+            while (!ahead.isEmpty())
+            {
+                Entry entry = ahead.poll();
+
+                if (entry.data == null)
+                {
+                    stream(out, entry);
+                }
+                else
+                {
+                    byte[] data = take(entry);
+                    if (data != null)
+                    {
+                        // the header goes after the read, so it has the size actually read
+                        writeHeader(out, base + entry.name, data.length, entry.modified, (byte) '0');
+                        out.write(data);
+                        pad(out, data.length);
+                        files++;
+                        dataBytes += data.length;
+                    }
+                }
+
+                reserved -= entry.reserved;
+                readAhead();
+            }
+
+            // two empty blocks end the archive, then the record is filled out
+            byte[] zeros = new byte[RECORD];
+            out.write(zeros, 0, 2 * BLOCK);
+            written += 2 * BLOCK;
+            out.write(zeros, 0, (int) ((RECORD - written % RECORD) % RECORD));
+        }
+        finally
+        {
+            // a failed archive doesn't wait for reads nobody will take
+            for (Entry entry : ahead)
+            {
+                if (entry.data != null)
+                {
+                    entry.data.cancel(false);
+                }
+            }
+            ahead.clear();
+        }
+    }
+
+    /**
+     * Gets the Number of Files Archived
+     * @return files
+     */
+    public int getFiles()
+    {
+        return files;
+    }
+
+    /**
+     * Gets the Bytes of File Data Archived
+     * @return bytes, not counting headers and padding
+     */
+    public long getDataBytes()
+    {
+        return dataBytes;
+    }
+
+    /**
+     * Gets the Number of Files Too Big to Read Ahead
+     * @return files streamed
+     */
+    public int getStreamed()
+    {
+        return streamed;
+    }
+
+
+    /**
+     * Starts Reading the Next Files While the Budget Allows
+     * The head of the queue is always read, however big
+     * @throws IOException
+     */
+    protected void readAhead() throws IOException
+    {
+        while (next < names.size() && ahead.size() < MAX_FILES_AHEAD)
+        {
+            String name = names.get(next);
+            Storage.Stat stat = TransferEngine.store.stat(directory + name);
+
+            // deleted since the directory was listed
+            if (stat == null)
+            {
+                next++;
+                continue;
+            }
+
+            Entry entry = new Entry();
+            entry.name = name;
+            entry.modified = stat.modified;
+            entry.reserved = stat.size <= wholeFile ? stat.size : 0;
+
+            if (!ahead.isEmpty() && reserved + entry.reserved > budget)
+            {
+                return;
+            }
+
+            // a big file holds no budget, it is read a chunk at a time at its turn
+            if (stat.size <= wholeFile)
+            {
+                entry.data = CompletableFuture.supplyAsync(() -> read(directory + name), readers);
+            }
+
+            ahead.add(entry);
+            reserved += entry.reserved;
+            next++;
+        }
+    }
+
+    /**
+     * Reads a Whole File on a Reader Thread
+     * @param name the file
+     * @return its data, or null if it has gone
+     */
+    protected static byte[] read(String name)
+    {
+        try (Storage.Handle handle = TransferEngine.store.open(name))
+        {
+            long size = handle.stat().size;
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException(name + " has grown too big to read whole");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            ChunkStore.readFully(handle, buffer, 0);
+            return buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+        }
+        catch (FileNotFoundException e)
+        {
+            return null;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Waits for a File Read Ahead
+     * @param entry the file
+     * @return its data, or null if it has gone
+     * @throws IOException if it couldn't be read
+     */
+    protected byte[] take(Entry entry) throws IOException
+    {
+        try
+        {
+            return entry.data.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading " + entry.name, e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Streams a File Too Big to Read Ahead
+     * Its size goes in the header first, so it must not shrink while it is sent
+     * @param out the archive
+     * @param entry the file
+     * @throws IOException
+     */
+    protected void stream(OutputStream out, Entry entry) throws IOException
+    {
+        BlockReader reader;
+        try
+        {
+            reader = TransferEngine.openRead(directory + entry.name, chunkSize, TFTPTCPServer.READ_AHEAD);
+        }
+        catch (FileNotFoundException e)
+        {
+            return;
+        }
+
+        try
+        {
+            Storage.Stat stat = reader.stat();
+            writeHeader(out, base + entry.name, stat.size, stat.modified, (byte) '0');
+
+            byte[] chunk = new byte[chunkSize];
+            long remaining = stat.size;
+            int bytesRead;
+            while (remaining > 0 && (bytesRead = (int) Math.min(reader.next(chunk), remaining)) > 0)
+            {
+                out.write(chunk, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+
+            if (remaining > 0)
+            {
+                throw new IOException("File changed during transfer: " + directory + entry.name);
+            }
+
+            pad(out, stat.size);
+            files++;
+            streamed++;
+            dataBytes += stat.size;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Pads File Data to a Whole Block
+     * @param out the archive
+     * @param size bytes of data written
+     * @throws IOException
+     */
+    protected void pad(OutputStream out, long size) throws IOException
+    {
+        written += size;
+        int padding = (int) ((BLOCK - size % BLOCK) % BLOCK);
+        out.write(new byte[padding], 0, padding);
+        written += padding;
+    }
+
+    /**
+     * Writes the Header of an Entry
+     * Names that don't fit the ustar name and prefix fields get a GNU long name entry first
+     * @param out the archive
+     * @param name name in the archive
+     * @param size bytes of data
+     * @param modified ms
+     * @param type entry type
+     * @throws IOException
+     */
+    protected void writeHeader(OutputStream out, String name, long size, long modified, byte type) throws IOException
+    {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] header = new byte[BLOCK];
+
+        int split = -1; // where the name is split between prefix and name
+        if (bytes.length > 100)
+        {
+            for (int i = bytes.length - 1; i > 0; i--)
+            {
+                if (bytes[i] == '/' && i <= 155 && bytes.length - i - 1 <= 100)
+                {
+                    split = i;
+                    break;
+                }
+            }
+
+            if (split < 0)
+            {
+                writeHeader(out, "././@LongLink", bytes.length + 1, 0, (byte) 'L');
+                out.write(bytes);
+                out.write(0);
+                pad(out, bytes.length + 1);
+                bytes = Arrays.copyOf(bytes, 100);
+            }
+        }
+
+        if (split < 0)
+        {
+            System.arraycopy(bytes, 0, header, 0, bytes.length);
+        }
+        else
+        {
+            System.arraycopy(bytes, split + 1, header, 0, bytes.length - split - 1);
+            System.arraycopy(bytes, 0, header, 345, split);
+        }
+
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        if (size < 1L << 33)
+        {
+            octal(header, 124, 12, size);
+        }
+        else
+        {
+            // GNU base 256 for files of 8 GB and over
+            header[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i++)
+            {
+                header[135 - i] = (byte) (size >>> (8 * i));
+            }
+        }
+        octal(header, 136, 12, modified / 1000);
+        header[156] = type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+        // the checksum is taken with its own field as spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : header)
+        {
+            sum += b & 0xFF;
+        }
+        octal(header, 148, 7, sum);
+
+        out.write(header);
+        written += BLOCK;
+    }
+
+    /**
+     * Writes a Zero Terminated Octal Field
+     * @param header the header
+     * @param offset where the field starts
+     * @param length bytes in the field, including the terminator
+     * @param value the value
+     */
+    protected static void octal(byte[] header, int offset, int length, long value)
+    {
+        String digits = Long.toOctalString(value);
+        int start = offset + length - 1 - digits.length();
+
+        Arrays.fill(header, offset, start, (byte) '0');
+        for (int i = 0; i < digits.length(); i++)
+        {
+            header[start + i] = (byte) digits.charAt(i);
+        }
+        header[offset + length - 1] = 0;
+    }
+}
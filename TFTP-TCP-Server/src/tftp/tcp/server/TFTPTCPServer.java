@@ -1,14 +1,37 @@
 package tftp.tcp.server;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import tftp.common.AdmissionController;
+import tftp.common.BandwidthShaper;
+import tftp.common.BlockReader;
+import tftp.common.BufferPool;
+import tftp.common.ChunkStore;
+import tftp.common.DeltaUpload;
+import tftp.common.DigestCache;
+import tftp.common.DiskWriter;
+import tftp.common.EventLog;
+import tftp.common.FlightEvents;
+import tftp.common.MeteredStorage;
+import tftp.common.Packets;
+import tftp.common.Storage;
+import tftp.common.TransferEngine;
 
 /**
  * TFTP Server Built on TCP
@@ -22,17 +45,68 @@ public class TFTPTCPServer extends Thread {
     protected DataOutputStream outToClient;
     
     // TFTP opcodes
-    protected static final byte RRQ [] = new byte[] {0,1};
-    protected static final byte WRQ [] = new byte[] {0,2};
-    protected static final byte DATA [] = new byte[] {0,3};
-    protected static final byte ERROR [] = new byte[] {0,5};
+    protected static final byte RRQ [] = Packets.RRQ;
+    protected static final byte WRQ [] = Packets.WRQ;
+    protected static final byte DATA [] = Packets.DATA;
+    protected static final byte ERROR [] = Packets.ERROR;
+    protected static final byte OACK [] = Packets.OACK;
+    protected static final byte DIGEST [] = Packets.DIGEST;
+    
+    // mode of requests followed by options, older clients send octet and nothing after it
+    protected static final String OPTIONS_MODE = "octet-options";
     
     protected String filename; // filename requested by client
+    protected String mode; // mode requested by client
+    protected Map<String, String> requestedOptions = new LinkedHashMap<>(); // every option in the request
+    protected Map<String, String> acceptedOptions = new LinkedHashMap<>(); // options sent back in the OACK
+    protected long bytesTransferred; // file data sent or received by this session
+    protected ArchiveSender archive; // set when a RRQ for a directory is sent as an archive
+    protected String summary; // how the transfer went, logged with its complete event
     
     // Error Handling
-    protected static final String ERROR_MSG = "File not found";
-    protected static final byte ERROR_CODE [] = new byte[] {0,1};
-    protected static byte SEPARATOR = 0;
+    protected static final String ERROR_MSG = Packets.ERROR_MSG;
+    protected static final byte ERROR_CODE [] = Packets.ERROR_CODE;
+    protected static byte SEPARATOR = Packets.SEPARATOR;
+    
+    // Server Busy Error
+    protected static final byte BUSY_ERROR_CODE [] = Packets.BUSY_ERROR_CODE;
+    protected static final String BUSY_MSG = Packets.BUSY_MSG;
+    
+    // Checksum Mismatch Error
+    protected static final byte CHECKSUM_ERROR_CODE [] = Packets.CHECKSUM_ERROR_CODE;
+    protected static final String CHECKSUM_MSG = Packets.CHECKSUM_MSG;
+    
+    // Upload Disk Writer Settings
+    protected static String FSYNC_POLICY = System.getProperty("tftp.fsync", DiskWriter.FSYNC_NONE); // none, end or interval
+    protected static int FSYNC_INTERVAL_MB = Integer.getInteger("tftp.fsync.mb", 64); // MB between syncs for interval policy
+    protected static int WRITE_BUFFER_SIZE = 64 * 1024; // size of each pooled upload buffer
+    protected static int WRITE_BUFFERS = 16; // buffers per upload, the disk can fall this far behind
+    
+    // delta uploads, clients with a copy already here send only what changed
+    protected static boolean DELTA_MODE = Boolean.parseBoolean(System.getProperty("tftp.delta", "true"));
+    
+    // per client, per subnet and global send limits, shared with the UDP front end
+    protected static BandwidthShaper shaper = TransferEngine.shaper;
+    protected static int SEND_CHUNK_SIZE = 8 * 1024; // bytes written to the socket per shaped send
+    protected static int READ_AHEAD = Integer.getInteger("tftp.readAhead", 8); // chunks read ahead of the socket
+    
+    // limits concurrent sessions and bytes in flight, shared with the UDP front end
+    protected static AdmissionController admission = TransferEngine.admission;
+    
+    // a RRQ naming a directory with the archive option gets a tar of the tree, tar.gz compresses it
+    protected static boolean ARCHIVE_MODE = Boolean.parseBoolean(System.getProperty("tftp.archive", "true"));
+    protected static long ARCHIVE_AHEAD = Integer.getInteger("tftp.archive.aheadKB", 8192) * 1024L; // bytes of files read ahead per archive
+    protected static int ARCHIVE_FILE = Integer.getInteger("tftp.archive.fileKB", 1024) * 1024; // bigger files are streamed, not read whole
+    
+    // deduplicating storage for uploads, manifests are only read while it is on
+    protected static boolean DEDUP = TransferEngine.DEDUP;
+    protected static ChunkStore store = TransferEngine.store;
+    
+    // digests of served files, valid while their mtime and size are unchanged
+    protected static DigestCache digests = TransferEngine.digests;
+    
+    // transfer events, one log for both front ends
+    protected static EventLog events = TransferEngine.events;
     
     
     /**
@@ -45,96 +119,620 @@ public class TFTPTCPServer extends Thread {
         welcomeSocket = new ServerSocket(9000);
     }
     
+    /**
+     * Constructs a TFTP TCP Session for One Connection
+     * @param slaveSocket the accepted connection
+     */
+    protected TFTPTCPServer(Socket slaveSocket)
+    {
+        this.slaveSocket = slaveSocket;
+    }
     
     
     @Override
     public void run()
     {
+        // Sessions Serve Their Own Connection
+        if (welcomeSocket == null)
+        {
+            serve();
+            return;
+        }
+        
         while (true)
         {
             try
             {
-                slaveSocket = welcomeSocket.accept();
+                Socket connection = welcomeSocket.accept();
                 
-                inFromClient = new DataInputStream(slaveSocket.getInputStream());
-                outToClient = new DataOutputStream(slaveSocket.getOutputStream());
-                
-                // extract opcode from request packet
-                byte[] opcode = new byte[2];
-                inFromClient.read(opcode,0,2);
-                
-                // extract FileName
-                extractFileName();
-                
-                // extract Mode
-                extractMode();
-                
-  
-                // If Client Sent WRQ
-                if (Arrays.equals(opcode,WRQ))
-                {   
-                    // create file output stream to write data to
-                    FileOutputStream fos = new FileOutputStream(filename);
-                    
-                    int byteRead;
-                    
-                    while ((byteRead = inFromClient.read()) != -1)
+                if (admission.enqueue())
+                {
+                    // each connection is served on its own thread
+                    new TFTPTCPServer(connection).start();
+                }
+                else
+                {
+                    // queue is full, refuse straight away
+                    outToClient = new DataOutputStream(connection.getOutputStream());
+                    sendErrorPacket(ERROR,BUSY_ERROR_CODE,BUSY_MSG);
+                    events.log(EventLog.ERROR, clientName(connection), null, 0, 0, BUSY_MSG);
+                    connection.close();
+                }
+            }
+            catch (IOException ex)
+            {
+                events.log(EventLog.ERROR, null, null, 0, 0, ex.toString());
+            }
+        }  
+    }
+    
+    
+    /**
+     * Serves a Single RRQ or WRQ
+     * Waits in the Admission Queue First
+     * Sends a Server Busy Error if not Admitted in Time
+     */
+    public void serve()
+    {
+        long bytes = 0; // bytes this transfer puts in flight
+        boolean admitted = false;
+        boolean queued = true; // the queue place enqueue took, given up by admit
+        long startTime = System.currentTimeMillis();
+        
+        FlightEvents.Complete complete = new FlightEvents.Complete();
+        complete.begin();
+        
+        try
+        {
+            inFromClient = new DataInputStream(slaveSocket.getInputStream());
+            outToClient = new DataOutputStream(slaveSocket.getOutputStream());
+            
+            // don't hold a session slot for a client that never finishes its request
+            slaveSocket.setSoTimeout(10000);
+            
+            // extract opcode from request packet
+            byte[] opcode = new byte[2];
+            inFromClient.readFully(opcode,0,2);
+            
+            // extract FileName
+            extractFileName();
+            
+            // extract Mode
+            extractMode();
+            
+            // extract Options, only announced ones - a WRQ's data follows the mode straight away
+            if (OPTIONS_MODE.equalsIgnoreCase(mode))
+            {
+                extractOptions();
+            }
+            
+            slaveSocket.setSoTimeout(0);
+            
+            events.log(EventLog.REQUEST, clientName(slaveSocket), filename, 0, 0, Arrays.equals(opcode,RRQ) ? "RRQ" : "WRQ");
+            
+            FlightEvents.Request received = new FlightEvents.Request();
+            if (received.shouldCommit())
+            {
+                received.transport = "tcp";
+                received.client = clientName(slaveSocket);
+                received.file = filename;
+                received.type = Arrays.equals(opcode,RRQ) ? "RRQ" : "WRQ";
+                received.commit();
+            }
+            
+            // a RRQ puts the whole file in flight, an archive its read ahead
+            if (Arrays.equals(opcode,RRQ))
+            {
+                archive = openArchive();
+                bytes = archive != null ? ARCHIVE_AHEAD : TransferEngine.length(filename);
+            }
+            
+            queued = false;
+            admitted = admission.admit(bytes);
+            
+            if (!admitted)
+            {
+                sendErrorPacket(ERROR,BUSY_ERROR_CODE,BUSY_MSG);
+                events.log(EventLog.ERROR, clientName(slaveSocket), filename, 0, System.currentTimeMillis() - startTime, BUSY_MSG);
+                return;
+            }
+            // If Client Sent WRQ
+            else if (Arrays.equals(opcode,WRQ))
+            {
+                receiveFile();
+                complete.blksize = WRITE_BUFFER_SIZE;
+            }
+            // If Client Sent RRQ for a Directory
+            else if (archive != null)
+            {
+                sendArchive();
+                complete.blksize = SEND_CHUNK_SIZE;
+            }
+            // If Client Sent RRQ
+            else if (Arrays.equals(opcode,RRQ))
+            {
+                sendFile();
+                complete.blksize = SEND_CHUNK_SIZE;
+            }
+            
+            events.log(EventLog.COMPLETE, clientName(slaveSocket), filename, bytesTransferred, System.currentTimeMillis() - startTime, summary);
+            
+            complete.end();
+            if (complete.shouldCommit())
+            {
+                complete.transport = "tcp";
+                complete.client = clientName(slaveSocket);
+                complete.file = filename;
+                complete.bytes = bytesTransferred;
+                complete.commit();
+            }
+        }
+        catch (AccessDeniedException ex)
+        {
+            // a name outside the served root
+            events.log(EventLog.ERROR, clientName(slaveSocket), filename, 0, System.currentTimeMillis() - startTime, ex.toString());
+            try
+            {
+                sendErrorPacket(ERROR,Packets.ACCESS_ERROR_CODE,Packets.ACCESS_MSG);
+            }
+            catch (IOException e)
+            {
+                // the connection is closed either way
+            }
+        }
+        catch (IOException | InterruptedException ex)
+        {
+            events.log(EventLog.ERROR, clientName(slaveSocket), filename, bytesTransferred, System.currentTimeMillis() - startTime, ex.toString());
+        }
+        finally
+        {
+            // a request that ended before admission still holds its queue place
+            if (queued)
+            {
+                admission.dequeue();
+            }
+            if (admitted)
+            {
+                admission.release(bytes);
+            }
+
+            // this thread is ending, the upload buffers in its magazine go back to the shared pool
+            BufferPool.forSize(WRITE_BUFFER_SIZE).flush();
+
+            // closing tells the client the file data has ended
+            try
+            {
+                slaveSocket.close();
+            }
+            catch (IOException ex)
+            {
+                events.log(EventLog.ERROR, clientName(slaveSocket), filename, 0, 0, ex.toString());
+            }
+        }
+    }
+    
+    /**
+     * Gets the Client Address and Port of a Connection
+     * @param connection the connection
+     * @return ip:port
+     */
+    public static String clientName(Socket connection)
+    {
+        return connection.getInetAddress().getHostAddress() + ":" + connection.getPort();
+    }
+    
+    
+    /**
+     * Serves a WRQ
+     * Reads File Data until the Client Closes the Connection
+     * @throws IOException
+     */
+    public void receiveFile() throws IOException
+    {
+        if (DELTA_MODE && requestedOptions.containsKey("delta"))
+        {
+            receiveDelta();
+            return;
+        }
+        
+        FlightEvents.FileOpen opened = new FlightEvents.FileOpen();
+        opened.begin();
+        
+        // create channel to write data to, chunked when deduplicating
+        Storage.Upload fos = TransferEngine.openWrite(filename);
+        
+        opened.end();
+        if (opened.shouldCommit())
+        {
+            opened.transport = "tcp";
+            opened.client = clientName(slaveSocket);
+            opened.file = filename;
+            opened.commit();
+        }
+        
+        try
+        {
+            WritableByteChannel channel = fos instanceof MeteredStorage.MeteredUpload
+                    ? ((MeteredStorage.MeteredUpload) fos).getChannel()
+                    : Channels.newChannel(fos);
+            
+            // disk writes happen on their own thread
+            DiskWriter writer = new DiskWriter(channel, FSYNC_POLICY, FSYNC_INTERVAL_MB, BufferPool.forSize(WRITE_BUFFER_SIZE), WRITE_BUFFERS);
+            writer.start();
+            
+            // with a digest the client sends the length first and the digest last
+            MessageDigest digest = null;
+            long remaining = Long.MAX_VALUE;
+            String clientDigest = null;
+            IOException pending = null; // failure that ended the upload, reported ahead of the writer's
+            
+            try
+            {
+                if (acceptedOptions.containsKey("digest"))
+                {
+                    sendOACK(acceptedOptions);
+                    digest = ChunkStore.newDigest();
+                    remaining = inFromClient.readLong();
+                }
+            
+                // fill whole buffers from the socket, hand them over when full
+                ByteBuffer buffer = acquire(writer);
+                int bytesRead;
+            
+                while (remaining > 0 && (bytesRead = inFromClient.read(buffer.array(), buffer.position(), (int) Math.min(buffer.remaining(), remaining))) != -1)
+                {
+                    // hash on the network thread as the data arrives
+                    if (digest != null)
                     {
-                        fos.write(byteRead);
+                        digest.update(buffer.array(), buffer.position(), bytesRead);
+                    }
+            
+                    buffer.position(buffer.position() + bytesRead);
+                    remaining -= bytesRead;
+                    bytesTransferred += bytesRead;
+            
+                    if (!buffer.hasRemaining())
+                    {
+                        writer.submit(buffer);
+                        buffer = acquire(writer);
                     }
-                    
-                    fos.close();
                 }
-                
-                // If Client Sent RRQ
-                if (Arrays.equals(opcode,RRQ))
+            
+                writer.submit(buffer); // last partly filled buffer
+            
+                if (digest != null)
                 {
-                    try
+                    // the client said how long the file is, a shorter one must not be kept
+                    if (remaining > 0)
                     {
-                        // try to create file input stream
-                        FileInputStream fis = new FileInputStream(filename);
-                        
-                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                        
-                        bos.write(DATA,0,DATA.length); // write opcode to indicate to client that this is data
-
-                        // read data from file
-                        // handles unlimited file size   
-                        int byteRead;
-                        while ((byteRead = fis.read()) != -1)
-                        {
-                            bos.write(byteRead);
-                        }
-                        
-                        byte[] fileData = bos.toByteArray();
-                        
-                        // send file data to client
-                        outToClient.write(fileData, 0, fileData.length);
-                        
+                        throw new EOFException("Connection closed " + remaining + " bytes before the end of the file");
+                    }
+                    clientDigest = readDigestPacket();
+                }
+            }
+            catch (IOException e)
+            {
+                pending = e;
+                throw e;
+            }
+            finally
+            {
+                // wait for the disk to catch up before publishing
+                try
+                {
+                    writer.finish();
+                }
+                catch (IOException e)
+                {
+                    if (pending == null)
+                    {
+                        throw e;
                     }
-                    catch (FileNotFoundException e)
+                    if (e != pending)
                     {
-                        // create error bytes to send to client
-                        ByteArrayOutputStream os = new ByteArrayOutputStream();
-                        os.write(ERROR, 0, ERROR.length);
-                        os.write(ERROR_CODE, 0, ERROR_CODE.length);
-                        os.write(ERROR_MSG.getBytes("UTF-8"), 0, ERROR_MSG.length());
-                        os.write(SEPARATOR);
-        
-                        byte[] error = os.toByteArray();
-                        
-                        // send error bytes to client
-                        outToClient.write(error,0,error.length);
-                    }  
-                }    
+                        pending.addSuppressed(e);
+                    }
+                }
             }
-            catch (IOException ex)
+            
+            if (digest == null)
+            {
+                fos.commit();
+            }
+            else if (!TransferEngine.verifyUpload(filename, fos, ChunkStore.toHex(digest.digest()), clientDigest))
+            {
+                sendErrorPacket(ERROR,CHECKSUM_ERROR_CODE,CHECKSUM_MSG);
+            }
+        }
+        finally
+        {
+            // discards the upload unless it was committed
+            fos.close();
+        }
+    }
+    
+    /**
+     * Serves a WRQ in Delta Mode
+     * Sends the checksums of the copy already stored, then rebuilds the new file from
+     * the blocks the client found in it and the literal bytes it sent for the rest.
+     * The new file is written aside and replaces the old copy once it is all rebuilt, the old copy
+     * is read through a handle opened beforehand, so it can't change underneath
+     * @throws IOException
+     */
+    public void receiveDelta() throws IOException
+    {
+        Storage.Handle old = null;
+        
+        try
+        {
+            old = store.open(filename);
+        }
+        catch (FileNotFoundException e)
+        {
+            // no copy yet, the client sends every byte as a literal
+        }
+        
+        try
+        {
+            int blockSize;
+            try
+            {
+                blockSize = DeltaUpload.blockSize(Integer.parseInt(requestedOptions.get("delta")), old == null ? 0 : old.stat().size);
+            }
+            catch (NumberFormatException e)
+            {
+                blockSize = DeltaUpload.blockSize(0, old == null ? 0 : old.stat().size);
+            }
+            
+            acceptedOptions.put("delta", Integer.toString(blockSize));
+            sendOACK(acceptedOptions);
+            
+            int count = DeltaUpload.writeSums(old, blockSize, outToClient);
+            long length = inFromClient.readLong();
+            
+            MessageDigest digest = acceptedOptions.containsKey("digest") ? ChunkStore.newDigest() : null;
+            long literal;
+            
+            // written aside and only swapped in once it is all rebuilt, chunked when deduplicating
+            boolean verified = true;
+            try (Storage.Upload upload = TransferEngine.openWrite(filename))
+            {
+                OutputStream fos = new BufferedOutputStream(upload, WRITE_BUFFER_SIZE);
+                literal = DeltaUpload.rebuild(old, blockSize, count, inFromClient, length, fos, digest);
+                fos.flush();
+                
+                if (digest == null)
+                {
+                    upload.commit();
+                }
+                else
+                {
+                    verified = TransferEngine.verifyUpload(filename, upload, ChunkStore.toHex(digest.digest()), readDigestPacket());
+                }
+            }
+            
+            bytesTransferred = literal;
+            summary = "delta " + literal + " of " + length + " bytes sent, " + (length - literal) / blockSize
+                    + " blocks of " + blockSize + " reused";
+            
+            if (!verified)
+            {
+                sendErrorPacket(ERROR,CHECKSUM_ERROR_CODE,CHECKSUM_MSG);
+            }
+        }
+        finally
+        {
+            if (old != null)
             {
-                System.err.println(ex);
+                old.close();
             }
+        }
+    }
+    
+    /**
+     * Takes an Empty Upload Buffer
+     * Waits while every buffer is queued for the disk, a long wait is recorded as a write stall
+     * @param writer the disk writer
+     * @return the buffer
+     * @throws IOException if the disk writer failed
+     */
+    protected ByteBuffer acquire(DiskWriter writer) throws IOException
+    {
+        FlightEvents.DiskWriteStall stall = new FlightEvents.DiskWriteStall();
+        stall.begin();
+        
+        ByteBuffer buffer = writer.acquire();
+        
+        stall.end();
+        if (stall.shouldCommit())
+        {
+            stall.transport = "tcp";
+            stall.client = clientName(slaveSocket);
+            stall.file = filename;
+            stall.bytes = bytesTransferred;
+            stall.commit();
+        }
+        return buffer;
+    }
+    
+    /**
+     * Serves a RRQ
+     * Sends the DATA Opcode Followed by the File Data
+     * @throws IOException
+     */
+    public void sendFile() throws IOException
+    {
+        try
+        {
+            FlightEvents.FileOpen opened = new FlightEvents.FileOpen();
+            opened.begin();
+            
+            // try to open the file, the first chunks are read while the OACK goes out
+            BlockReader fis = TransferEngine.openRead(filename, SEND_CHUNK_SIZE, READ_AHEAD);
+            
+            // file state the digest will be cached against
+            Storage.Stat stat = fis.stat();
+            long length = stat.size;
+            
+            opened.end();
+            if (opened.shouldCommit())
+            {
+                opened.transport = "tcp";
+                opened.client = clientName(slaveSocket);
+                opened.file = filename;
+                opened.bytes = length;
+                opened.commit();
+            }
+            
+            // with a digest the length goes first so the digest can follow the data
+            String fileDigest = null;
+            MessageDigest digest = null;
+            long remaining = Long.MAX_VALUE;
+            
+            if (acceptedOptions.containsKey("digest"))
+            {
+                sendOACK(acceptedOptions);
+                
+                // hash the data as it goes out, unless the digest is already known
+                fileDigest = TransferEngine.cachedDigest(filename);
+                if (fileDigest == null)
+                {
+                    digest = ChunkStore.newDigest();
+                }
+                remaining = length;
+            }
+            
+            outToClient.write(DATA,0,DATA.length); // write opcode to indicate to client that this is data
+            
+            if (acceptedOptions.containsKey("digest"))
+            {
+                outToClient.writeLong(length);
+            }
+
+            // send file data in chunks through the shaper
+            // handles unlimited file size
+            BandwidthShaper.Flow flow = shaper.open(slaveSocket.getInetAddress());
+            byte[] fileData = new byte[SEND_CHUNK_SIZE];
+            
+            try
+            {
+                int bytesRead;
+                while (remaining > 0 && (bytesRead = (int) Math.min(fis.next(fileData), remaining)) > 0)
+                {
+                    if (digest != null)
+                    {
+                        digest.update(fileData, 0, bytesRead);
+                    }
+                    
+                    flow.acquire(bytesRead);
+                    outToClient.write(fileData, 0, bytesRead);
+                    remaining -= bytesRead;
+                    bytesTransferred += bytesRead;
+                }
+            }
+            finally
+            {
+                flow.close();
+                fis.close();
+            }
+            
+            if (acceptedOptions.containsKey("digest"))
+            {
+                // file shrank while being sent, the client can't frame the digest
+                if (remaining > 0)
+                {
+                    throw new IOException("File changed during transfer: " + filename);
+                }
+                
+                if (fileDigest == null)
+                {
+                    fileDigest = ChunkStore.toHex(digest.digest());
+                    TransferEngine.sent(filename, stat, fileDigest);
+                }
+                sendDigestPacket(fileDigest);
+            }
+        }
+        catch (FileNotFoundException e)
+        {
+            sendErrorPacket(ERROR,ERROR_CODE,ERROR_MSG);
         }  
     }
     
+    /**
+     * Lists the Requested Directory if the Client Asked for an Archive
+     * The archive option is only acknowledged when the name is a directory
+     * @return the archive, or null to send a file
+     * @throws IOException
+     */
+    public ArchiveSender openArchive() throws IOException
+    {
+        String format = requestedOptions.get("archive");
+        
+        if (!ARCHIVE_MODE || !("tar".equalsIgnoreCase(format) || "tar.gz".equalsIgnoreCase(format)))
+        {
+            return null;
+        }
+        
+        ArchiveSender directory = ArchiveSender.open(filename, ARCHIVE_AHEAD, ARCHIVE_FILE, SEND_CHUNK_SIZE);
+        if (directory != null)
+        {
+            acceptedOptions.put("archive", format.toLowerCase());
+        }
+        return directory;
+    }
+    
+    /**
+     * Serves a RRQ for a Directory
+     * Sends the OACK, the DATA Opcode and the Archive in Length Framed Chunks,
+     * then the Digest of the Archive if the Client Asked for One
+     * @throws IOException
+     */
+    public void sendArchive() throws IOException
+    {
+        sendOACK(acceptedOptions);
+        outToClient.write(DATA,0,DATA.length);
+        
+        MessageDigest digest = acceptedOptions.containsKey("digest") ? ChunkStore.newDigest() : null;
+        BandwidthShaper.Flow flow = shaper.open(slaveSocket.getInetAddress());
+        ArchiveSender.FramedOutputStream framed = new ArchiveSender.FramedOutputStream(outToClient, flow, digest, SEND_CHUNK_SIZE);
+        
+        try
+        {
+            OutputStream out = acceptedOptions.get("archive").equals("tar.gz") ? new GZIPOutputStream(framed, SEND_CHUNK_SIZE) : framed;
+            archive.write(out);
+            out.close(); // ends the framing, the connection stays open for the digest
+        }
+        finally
+        {
+            flow.close();
+            bytesTransferred = framed.getBytes();
+        }
+        
+        summary = "archive of " + archive.getFiles() + " files, " + archive.getDataBytes() + " bytes of file data, "
+                + archive.getStreamed() + " streamed";
+        
+        if (digest != null)
+        {
+            sendDigestPacket(ChunkStore.toHex(digest.digest()));
+        }
+    }
+    
+    /**
+     * Sends a TFTP Error Packet
+     * @param opCode opCode is 05
+     * @param errorCode the errorCode of the packet
+     * @param errorMsg the error message of the packet
+     * @throws java.io.IOException
+     */
+    public void sendErrorPacket(byte[] opCode, byte[] errorCode, String errorMsg) throws IOException
+    {
+        // create error bytes to send to client
+        byte[] error = Packets.error(errorCode, errorMsg);
+        
+        // send error bytes to client
+        outToClient.write(error,0,error.length);
+    }
+    
     
     /**
      * Extracts File Name Bytes
@@ -150,7 +748,7 @@ public class TFTPTCPServer extends Thread {
         // While haven't reached filename separator
         // read 1 byte at a time
         // Don't know how big filename is!
-         while ((fileNameByte = inFromClient.read()) != 0)
+         while ((fileNameByte = inFromClient.read()) != 0 && fileNameByte != -1)
          {
              fileNameBytes.write(fileNameByte);
          }
@@ -171,15 +769,92 @@ public class TFTPTCPServer extends Thread {
         ByteArrayOutputStream modeBytes = new ByteArrayOutputStream();
         
         int modeByte;
-        while ((modeByte = inFromClient.read()) != 0)
+        while ((modeByte = inFromClient.read()) != 0 && modeByte != -1)
         {
             modeBytes.write(modeByte); 
         }
-        // mode could be stored, however only read for simplicity
+        mode = modeBytes.toString("US-ASCII");
+    }
+    
+    /**
+     * Extract TFTP Options
+     * Options are name and value pairs as in RFC 2347,
+     * over TCP the list ends with an empty name.
+     * The ones this server supports are kept for the OACK
+     * @throws IOException
+     */
+    public void extractOptions() throws IOException
+    {
+        requestedOptions = Packets.readRequestOptions(inFromClient);
+        Packets.acceptOptions(requestedOptions, acceptedOptions);
+    }
+    
+    /**
+     * Reads a Zero Terminated String from the Client
+     * @return the string
+     * @throws IOException
+     */
+    public String readString() throws IOException
+    {
+        return Packets.readString(inFromClient);
+    }
+    
+    /**
+     * Sends a TFTP Option Acknowledgement Packet
+     * Over TCP the list ends with an empty name
+     * @param options the accepted options
+     * @throws IOException
+     */
+    public void sendOACK(Map<String, String> options) throws IOException
+    {
+        byte[] OACKPacket = Packets.oack(options);
+        outToClient.write(OACKPacket, 0, OACKPacket.length);
+        outToClient.write(SEPARATOR);
+        outToClient.flush();
+        
+        events.log(EventLog.OACK, clientName(slaveSocket), filename, 0, 0, options.toString());
+    }
+    
+    /**
+     * Sends the Digest of the File Data
+     * @param fileDigest hex digest
+     * @throws IOException
+     */
+    public void sendDigestPacket(String fileDigest) throws IOException
+    {
+        byte[] digestPacket = Packets.digest(fileDigest);
+        outToClient.write(digestPacket, 0, digestPacket.length);
+    }
+    
+    /**
+     * Reads the Digest Packet Sent after the File Data
+     * @return hex digest, or null if the client sent something else
+     * @throws IOException
+     */
+    public String readDigestPacket() throws IOException
+    {
+        byte[] opcode = new byte[2];
+        inFromClient.readFully(opcode,0,2);
+        
+        if (!Arrays.equals(opcode,DIGEST))
+        {
+            return null;
+        }
+        return readString();
     }
   
-    public static void main(String[] args) throws IOException {
+    /**
+     * Starts the Accept Thread
+     * Used on its own or next to the UDP server in one process
+     * @throws IOException If the server port can't be bound
+     */
+    public static void listen() throws IOException
+    {
         new TFTPTCPServer().start();
-        System.out.println("TFTP Server Started"); 
+        System.out.println("TFTP TCP Server Started"); 
+    }
+  
+    public static void main(String[] args) throws IOException {
+        listen();
     }
 }
\ No newline at end of file
@@ -1,11 +1,13 @@
 package tftp.udp.client;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -13,9 +15,21 @@ import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
+import tftp.common.DatagramTransport;
+import tftp.common.EventLog;
+import tftp.common.FlightEvents;
+import tftp.common.Packets;
+import tftp.common.SocketTransport;
 
 /**
  * TFTP Client Built on UDP
@@ -23,10 +37,11 @@ import java.util.Scanner;
  */
 public class TFTPUDPClient {
     
-    protected DatagramSocket socket;
+    protected DatagramTransport socket; // a real socket, or a simulated one for loss testing
     protected InetAddress IPAddress;
     
     protected String filename; // filename provided by Client to store/retrieve
+    protected File directory; // where local files are read and written, null for the working directory
     
     // TFTP Packet opcodes
     protected static final byte WRQ [] = new byte[] {0,2};
@@ -34,20 +49,52 @@ public class TFTPUDPClient {
     protected static final byte RRQ [] = new byte[] {0,1};
     protected static final byte ACK [] = new byte[] {0,4};
     protected static final byte ERROR [] = new byte[] {0,5};
+    protected static final byte OACK [] = new byte[] {0,6};
+    protected static final byte DIGEST [] = new byte[] {0,10}; // extension, carries the digest of the file data
+    protected static final byte BLAST [] = new byte[] {0,11}; // extension, blast mode data with a 32 bit block number
+    protected static final byte NAK [] = new byte[] {0,12}; // extension, blast mode progress and missing blocks
     protected static byte SEPARATOR = 0;
     
     protected DatagramPacket packet;
-    protected DatagramPacket receivedPacket;
+    
+    // one transfer at a time, so the packets are reused instead of allocated per send and receive
+    protected DatagramPacket receivedPacket = new DatagramPacket(new byte[516], 516);
+    protected DatagramPacket sendPacket = new DatagramPacket(new byte[516], 516); // DATA and ACK packets
     
     protected byte[] blockNumber = new byte[] {0,0};
     
-    protected int TFTP_PORT = 9000; // port 69 would throw an exception
+    protected static final int SERVER_PORT = 9000; // port 69 would throw an exception
+    protected int TFTP_PORT = SERVER_PORT; // server TID, the session port once the server has replied
     
     protected static int MAX_RETRIES = 10; // max number of retransmits on socket timeout
     protected int retries; // current number of retransmit attempts
+    protected long retransmits; // over every transfer of this client
+    protected boolean succeeded; // the current transfer completed
     
     protected FileOutputStream fos; // File Output Stream to Write File Data To
     
+    // end to end check of the file data, "none" turns the digest option off
+    protected static String DIGEST_OPTION = System.getProperty("tftp.digest", "sha256");
+    protected MessageDigest digest; // hashes file data as it passes, null unless the server accepted
+    
+    // ask for RRQs to be blasted, for trusted LANs, servers without blast mode answer in standard mode
+    protected static boolean BLAST_MODE = Boolean.getBoolean("tftp.blast");
+    protected static String BLAST_RATE = System.getProperty("tftp.blast.rate", "0"); // Mbit/s, 0 leaves it to the server
+    protected static int NAK_INTERVAL = Integer.getInteger("tftp.blast.nakInterval", 20); // ms between NAKs
+    protected static int MAX_RANGES = 63; // gaps per NAK, fits the server's 516 byte receive buffer
+    
+    // retransmits and timeouts, written out by a background thread so the transfer never waits on the file
+    // kept out of the menu on the console unless tftp.events is "-"
+    protected static EventLog events = EventLog.open(System.getProperty("tftp.events", "tftp-client-events.log"), 1024);
+    
+    // flight recorder state of the current transfer
+    protected FlightEvents.ClientComplete complete;
+    protected int blksize = 512; // bytes per DATA block
+    protected long bytesTransferred;
+    protected long lastSendNanos; // last send of the packet being waited on
+    protected long rttTotal; // nanos, over every ACK received
+    protected int rttCount;
+    
     
     /**
      * Constructs a UDP Client
@@ -61,10 +108,21 @@ public class TFTPUDPClient {
         // generates TID values between 1025 and 65,535
         // because ports below 1025 require administrative rights
         int port = rn.nextInt((65535 - 1025) + 1) + 1025;
-        socket = new DatagramSocket(port);
+        socket = new SocketTransport(new DatagramSocket(port));
         IPAddress = InetAddress.getByName("127.0.0.1");
     }
     
+    /**
+     * Constructs a UDP Client over Another Transport
+     * @param socket the transport, a simulated network for loss testing
+     * @param server address of the server on that transport
+     */
+    public TFTPUDPClient(DatagramTransport socket, InetAddress server)
+    {
+        this.socket = socket;
+        IPAddress = server;
+    }
+    
     /**
      * Creates a Menu
      * @throws IOException
@@ -96,26 +154,93 @@ public class TFTPUDPClient {
              {
                  case 1:
                      System.out.print("Enter file name to store:");
-                     filename = fileInput.nextLine();
-                     sendRequest(WRQ,filename,"octet");
-                     receiveACK();
-                     sendToServer(); // start sending file data to server
+                     store(fileInput.nextLine());
                      break;
                      
                  case 2:
                      System.out.print("Enter file name to retrieve:");
-                     filename = fileInput.nextLine();
-                     sendRequest(RRQ,filename,"octet");
-                     writeToFile(); // start reading file data sent from server
+                     retrieve(fileInput.nextLine());
                      break;
                      
                  case 3:
-                     socket.close();
+                     close();
                      System.exit(0);
              }
         }
     }
     
+    /**
+     * Stores a File on the Server
+     * @param filename the file, read from the local directory
+     * @return true if the transfer completed
+     * @throws IOException if the server stopped answering
+     */
+    public boolean store(String filename) throws IOException
+    {
+        this.filename = filename;
+        sendRequest(WRQ,filename,"octet");
+        receiveACK();
+        
+        // server may refuse the request when busy
+        if (isErrorPacket(receivedPacket))
+        {
+            printError(receivedPacket);
+            return false;
+        }
+        
+        // the rest of the transfer goes to the session port
+        TFTP_PORT = receivedPacket.getPort();
+        
+        // an OACK means the server will check our digest
+        if (isOACKPacket(receivedPacket))
+        {
+            digest = newDigest();
+        }
+        
+        sendToServer(); // start sending file data to server
+        return succeeded;
+    }
+    
+    /**
+     * Retrieves a File from the Server
+     * @param filename the file, written to the local directory
+     * @return true if the transfer completed
+     * @throws IOException if the server stopped answering
+     */
+    public boolean retrieve(String filename) throws IOException
+    {
+        this.filename = filename;
+        sendRequest(RRQ,filename,"octet");
+        writeToFile(); // start reading file data sent from server
+        return succeeded;
+    }
+    
+    /**
+     * Sets the Directory Local Files are Read and Written in
+     * @param directory the directory, null for the working directory
+     */
+    public void setDirectory(File directory)
+    {
+        this.directory = directory;
+    }
+    
+    /**
+     * Gets the Number of Retransmits
+     * @return retransmits over every transfer of this client
+     */
+    public long getRetransmits()
+    {
+        return retransmits;
+    }
+    
+    /**
+     * Closes the Socket
+     */
+    public void close()
+    {
+        socket.close();
+    }
+    
     /**
      * Sends a Read/Write Packet
      * @param opCode The opCode is 01
@@ -125,71 +250,114 @@ public class TFTPUDPClient {
      */
     public void sendRequest(byte[] opCode, String filename, String mode) throws UnsupportedEncodingException, IOException
     {
+        // requests always go to the listening port
+        TFTP_PORT = SERVER_PORT;
+        blockNumber = new byte[] {0,0};
+        retries = 0;
+        digest = null;
+        succeeded = false;
+        
+        blksize = 512;
+        bytesTransferred = 0;
+        rttTotal = 0;
+        rttCount = 0;
+        complete = new FlightEvents.ClientComplete();
+        complete.begin();
+        
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         
         os.write(opCode, 0, opCode.length);
         os.write(filename.getBytes("UTF-8"), 0, filename.getBytes().length);
         os.write(SEPARATOR);
+
         os.write(mode.getBytes(),0,mode.getBytes().length);
         os.write(SEPARATOR);        
         
+        // ask for a digest of the file data, old servers ignore the option
+        if (!DIGEST_OPTION.equals("none"))
+        {
+            os.write("digest".getBytes("US-ASCII"), 0, "digest".length());
+            os.write(SEPARATOR);
+            os.write(DIGEST_OPTION.getBytes("US-ASCII"), 0, DIGEST_OPTION.length());
+            os.write(SEPARATOR);
+        }
+        
+        // ask to have the file blasted, the value is the rate wanted
+        if (BLAST_MODE && Arrays.equals(opCode, RRQ))
+        {
+            os.write("blast".getBytes("US-ASCII"), 0, "blast".length());
+            os.write(SEPARATOR);
+            os.write(BLAST_RATE.getBytes("US-ASCII"), 0, BLAST_RATE.length());
+            os.write(SEPARATOR);
+        }
+        
         byte[] requestPacket = os.toByteArray();
         
         packet = new DatagramPacket(requestPacket,requestPacket.length, IPAddress, TFTP_PORT);
         socket.send(packet);
+        lastSendNanos = System.nanoTime();
         socket.setSoTimeout(10000);  // 10 second timer 
+        
+        FlightEvents.ClientRequest sent = new FlightEvents.ClientRequest();
+        if (sent.shouldCommit())
+        {
+            sent.transport = "udp";
+            sent.server = serverName();
+            sent.file = filename;
+            sent.type = Arrays.equals(opCode, RRQ) ? "RRQ" : "WRQ";
+            sent.commit();
+        }
     }
     
     
     /**
      * Reads 512 Bytes of Data from File at a time
+     * Straight into the Send Packet, after its Opcode and Block Number
      * Sends File Data to Server
      * @throws java.io.IOException
      */
     public void sendToServer() throws IOException
     {
-        try
+        // create the input stream to read file data
+        try (FileInputStream fis = new FileInputStream(localFile()))
         {
-            // create the input stream to read file data
-            FileInputStream fis = new FileInputStream(filename);
-
-            // used to write a byte of file data
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] dataPacket = sendPacket.getData();
+            int length;
             
-            // start reading
-            int byteRead;
-            int totalBytesRead = 0;
-        
-            while ((byteRead = fis.read()) != -1)
+            // a block shorter than 512 bytes, even an empty one, is the last data packet
+            do
             {
-                bos.write(byteRead);
-                totalBytesRead++;
+                length = readBlock(fis, dataPacket, 4);
+                incrementBlockNumber();
+                sendDataPacket(DATA,blockNumber,length);
+                receiveACK();
+                
+                // the server replies with an error instead if it couldn't store the file
+                if (isErrorPacket(receivedPacket))
+                {
+                    printError(receivedPacket);
+                    return;
+                }
+                bytesTransferred += length;
+            }
+            while (length == 512);
             
-                if (totalBytesRead == 512)
+            // send our digest, the server replies with an error if its copy differs
+            if (digest != null)
+            {
+                sendDigestPacket(toHex(digest.digest()));
+                receiveACK();
+                
+                if (isErrorPacket(receivedPacket))
                 {
-                    byte[] fileData = bos.toByteArray(); // convert file data to byte array
-                    incrementBlockNumber();
-                    sendDataPacket(DATA,blockNumber,fileData);
-                    receiveACK();
-                    // carry on reading
-                    totalBytesRead = 0; // reset bytes read
-                    bos.reset(); // reset output stream  
+                    printError(receivedPacket);
+                    return;
                 }
+                System.out.println("Checksum verified by server");
             }
-        
-            // total bytes read was less than 512, It's the last data packet!
-            // send data packet
-            byte[] fileData = bos.toByteArray();
-            incrementBlockNumber();
-            sendDataPacket(DATA,blockNumber,fileData);
-        
-            // wait for last ACK
-            // close streams
-            receiveACK();
-            fis.close();
-            bos.close();
             
             System.out.println("The file " + filename + " has been transferred");
+            completed();
             
         }
         catch (FileNotFoundException ex)
@@ -198,58 +366,260 @@ public class TFTPUDPClient {
         }
     }
     
+    /**
+     * Reads a Block of File Data into a Packet
+     * Only stops short of 512 bytes at the end of the file
+     * @param in the file
+     * @param packet buffer the data is read into
+     * @param offset where the data starts in the packet
+     * @return bytes read
+     * @throws IOException
+     */
+    protected static int readBlock(InputStream in, byte[] packet, int offset) throws IOException
+    {
+        int length = 0;
+        int n;
+        while (length < 512 && (n = in.read(packet, offset + length, 512 - length)) != -1)
+        {
+            length += n;
+        }
+        return length;
+    }
+    
+    /**
+     * Gets the Local Copy of the File Being Transferred
+     * @return the file
+     */
+    protected File localFile()
+    {
+        return new File(directory, filename);
+    }
+    
     /**
      * Receives ACK Packets from Server
      * On Timeout Retransmits Last Sent Data Packet
-     * Stops Retransmitting when Max number of retries reached
+     * Stops Retransmitting when Max number of retries reached.
+     * ACKs of other blocks are dropped without restarting the timer - the server repeats
+     * its last ACK while our block is late, and taking the repeat for this block's would
+     * run ahead of the server
      * @throws IOException
      */
     public void receiveACK() throws IOException
     {
         boolean received = false;
+        long deadline = socket.currentTimeMillis() + 10000;
+        
+        FlightEvents.ClientAckWait wait = new FlightEvents.ClientAckWait();
+        wait.begin();
         
         while (!received)
         {
             try
             {
-                byte[] receiveData = new byte[4];
-                receivedPacket = new DatagramPacket(receiveData,receiveData.length);
-                socket.receive(receivedPacket);
-                received = true;
+                long remaining = deadline - socket.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    throw new SocketTimeoutException("Receive timed out");
+                }
+                socket.setSoTimeout((int) remaining);
+                
+                receivePacket();
+                received = !isStaleACK(receivedPacket);
             }
             catch (SocketTimeoutException e)
             {
-                if (retries != MAX_RETRIES)
+                if (retries == MAX_RETRIES)
                 {
-                    System.out.println("The Socket Timed Out!");
-                    System.out.println("Retransmitting Data Packet...");
-                    socket.send(packet);
-                    socket.setSoTimeout(10000);
-                    retries++;
+                    // server has gone away, give up on the transfer
+                    events.log(EventLog.TIMEOUT, serverName(), filename, 0, 0, "gave up after " + MAX_RETRIES + " retries");
+                    throw e;
                 }
+                
+                socket.send(packet);
+                lastSendNanos = System.nanoTime();
+                deadline = socket.currentTimeMillis() + 10000;
+                retries++;
+                retransmitted();
             }
         }
+        
+        retries = 0;
+        
+        long rtt = System.nanoTime() - lastSendNanos;
+        rttTotal += rtt;
+        rttCount++;
+        
+        wait.end();
+        if (wait.shouldCommit())
+        {
+            wait.transport = "udp";
+            wait.server = serverName();
+            wait.file = filename;
+            wait.blksize = blksize;
+            wait.bytes = bytesTransferred;
+            wait.rtt = rtt;
+            wait.commit();
+        }
+    }
+    
+    /**
+     * Checks for an ACK of a Block Other than the Current One
+     * @param receivedPacket the packet
+     * @return true if it is one
+     */
+    protected boolean isStaleACK(DatagramPacket receivedPacket)
+    {
+        byte[] data = receivedPacket.getData();
+        return receivedPacket.getLength() >= 4 && data[0] == ACK[0] && data[1] == ACK[1]
+                && (data[2] != blockNumber[0] || data[3] != blockNumber[1]);
+    }
+    
+    /**
+     * Records a Retransmit in the Event Log and the Flight Recorder
+     */
+    protected void retransmitted()
+    {
+        retransmits++;
+        events.log(EventLog.RETRANSMIT, serverName(), filename, 0, 0, "retry " + retries);
+        
+        FlightEvents.ClientRetransmit resent = new FlightEvents.ClientRetransmit();
+        if (resent.shouldCommit())
+        {
+            resent.transport = "udp";
+            resent.server = serverName();
+            resent.file = filename;
+            resent.blksize = blksize;
+            resent.retry = retries;
+            resent.bytes = bytesTransferred;
+            resent.commit();
+        }
+    }
+    
+    /**
+     * Records the End of a Transfer in the Flight Recorder
+     * Lasts from the request, the average RTT is over every ACK the client waited for
+     */
+    protected void completed()
+    {
+        succeeded = true;
+        complete.end();
+        if (complete.shouldCommit())
+        {
+            complete.transport = "udp";
+            complete.server = serverName();
+            complete.file = filename;
+            complete.blksize = blksize;
+            complete.bytes = bytesTransferred;
+            complete.rtt = rttCount == 0 ? 0 : rttTotal / rttCount;
+            complete.commit();
+        }
+    }
+    
+    /**
+     * Writes Received Data, Recording Slow Writes as Disk Write Stalls
+     * @param channel where the data goes, null for the output stream
+     * @param data buffer holding the data
+     * @param offset start of the data
+     * @param length bytes of data
+     * @param position file position, used with a channel
+     * @throws IOException
+     */
+    protected void write(FileChannel channel, byte[] data, int offset, int length, long position) throws IOException
+    {
+        FlightEvents.ClientDiskWriteStall stall = new FlightEvents.ClientDiskWriteStall();
+        stall.begin();
+        
+        if (channel == null)
+        {
+            fos.write(data, offset, length);
+        }
+        else
+        {
+            channel.write(ByteBuffer.wrap(data, offset, length), position);
+        }
+        bytesTransferred += length;
+        
+        stall.end();
+        if (stall.shouldCommit())
+        {
+            stall.transport = "udp";
+            stall.server = serverName();
+            stall.file = filename;
+            stall.bytes = bytesTransferred;
+            stall.commit();
+        }
+    }
+    
+    /**
+     * Gets the Server Address and Port Packets are Sent To
+     * @return ip:port
+     */
+    public String serverName()
+    {
+        return IPAddress.getHostAddress() + ":" + TFTP_PORT;
+    }
+    
+    /**
+     * Checks if a Packet is a TFTP Error Packet
+     * @param receivedPacket the packet
+     * @return true if the opcode is 05
+     */
+    public boolean isErrorPacket(DatagramPacket receivedPacket)
+    {
+        return hasOpcode(receivedPacket, ERROR);
+    }
+    
+    /**
+     * Checks the Opcode of a Packet in Place
+     * @param receivedPacket the packet
+     * @param opcode the opcode looked for
+     * @return true if the packet starts with it
+     */
+    protected static boolean hasOpcode(DatagramPacket receivedPacket, byte[] opcode)
+    {
+        byte[] data = receivedPacket.getData();
+        return receivedPacket.getLength() >= 2 && data[0] == opcode[0] && data[1] == opcode[1];
+    }
+    
+    /**
+     * Prints the Message of a TFTP Error Packet
+     * @param receivedPacket the error packet
+     */
+    public void printError(DatagramPacket receivedPacket)
+    {
+        // message sits between the error code and the separator
+        byte[] data = receivedPacket.getData();
+        int end = 4;
+        while (end < receivedPacket.getLength() && data[end] != SEPARATOR)
+        {
+            end++;
+        }
+        
+        System.out.println("Server Error: " + new String(data, 4, Math.max(0, end - 4)));
     }
         
     /**
      * Sends a TFTP Data Packet
+     * The file data is already in the send packet, after the opcode and block number
      * @param opCode opCode is 03
      * @param blockNo the current block number
-     * @param data the file data
+     * @param length bytes of file data
      * @throws java.io.IOException
      */
-    public void sendDataPacket(byte[] opCode, byte[] blockNo, byte[] data) throws IOException
+    public void sendDataPacket(byte[] opCode, byte[] blockNo, int length) throws IOException
     {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] dataPacket = sendPacket.getData();
         
-        os.write(opCode, 0, opCode.length);
-        os.write(blockNo, 0, blockNo.length);
-        os.write(data, 0, data.length);
+        System.arraycopy(opCode, 0, dataPacket, 0, opCode.length);
+        System.arraycopy(blockNo, 0, dataPacket, 2, blockNo.length);
         
-        byte[] dataPacket = os.toByteArray();
+        // hash the block on its first send, retransmits don't come through here
+        if (digest != null)
+        {
+            digest.update(dataPacket, 4, length);
+        }
         
-        packet = new DatagramPacket(dataPacket,dataPacket.length, IPAddress, TFTP_PORT);
-        socket.send(packet);
+        sendBuffered(4 + length);
         socket.setSoTimeout(10000);    
     }
     
@@ -282,97 +652,363 @@ public class TFTPUDPClient {
         
         boolean finishedReceiving = false;
         boolean fileCreated = false;
+        boolean awaitingDigest = false; // all data received, waiting for the server's digest
         
         while (!finishedReceiving)
         {
             try
             {
-                // maximum size of received packet
-                byte[] receiveData = new byte[516]; 
                 // Receive The Packet
-                receivedPacket = new DatagramPacket(receiveData,receiveData.length);
-                socket.receive(receivedPacket);
+                receivePacket();
                 
-                // Extract Opcode
-                ByteArrayInputStream bis = new ByteArrayInputStream(receivedPacket.getData());
+                // opcode and block number are read in place
+                byte[] data = receivedPacket.getData();
+                
+                // Client Has Received An Error Packet - File Not Found or Server Busy
+                if (hasOpcode(receivedPacket, ERROR))
+                {
+                    finishedReceiving = true;
+                    printError(receivedPacket);
+                }
+                
+                // Server Accepted Our Options - ACK with Block 0 to Start the Data
+                if (hasOpcode(receivedPacket, OACK) && !fileCreated)
+                {
+                    TFTP_PORT = receivedPacket.getPort();
+                    Map<String, String> options = readOptions(receivedPacket);
+                    
+                    if (options.containsKey("digest") && digest == null)
+                    {
+                        digest = newDigest();
+                    }
+                    sendACK(ACK,blockNumber);
+                    
+                    // the server is blasting the file, the digest is checked once it is all written
+                    if (options.containsKey("blast"))
+                    {
+                        fileCreated = true;
+                        
+                        if (!receiveBlast(Long.parseLong(options.get("tsize")), Integer.parseInt(options.get("blksize"))))
+                        {
+                            finishedReceiving = true;
+                        }
+                        else if (digest != null)
+                        {
+                            hashFile();
+                            awaitingDigest = true;
+                        }
+                        else
+                        {
+                            finishedReceiving = true;
+                            System.out.println("The file " + filename + " has been stored");
+                            completed();
+                        }
+                    }
+                }
                 
-                // Extract opcode
-                byte[] opcode = new byte[2];
-                bis.read(opcode,0,2);
+                // the server missed our last NAK and resent a block
+                if (hasOpcode(receivedPacket, BLAST) && awaitingDigest)
+                {
+                    socket.send(packet);
+                }
                 
-                // Client Has Received An Error Packet - File Not Found on Server
-                if (Arrays.equals(opcode,ERROR))
+                // Server Sent the Digest of the File - Compare with Ours
+                if (hasOpcode(receivedPacket, DIGEST) && awaitingDigest)
                 {
-                    bis.close();
+                    String serverDigest = new String(receivedPacket.getData(), 2, Math.max(0, receivedPacket.getLength() - 3), "US-ASCII");
+                    sendLastACK(ACK,blockNumber);
                     finishedReceiving = true;
-                    System.out.println("File Not Found on Server!");
+                    
+                    if (serverDigest.equalsIgnoreCase(toHex(digest.digest())))
+                    {
+                        System.out.println("The file " + filename + " has been stored");
+                        System.out.println("Checksum verified");
+                        completed();
+                    }
+                    else
+                    {
+                        System.out.println("Checksum mismatch - the file " + filename + " is corrupt");
+                    }
                 }
                 
-                if (Arrays.equals(opcode, DATA))
+                if (hasOpcode(receivedPacket, DATA) && receivedPacket.getLength() >= 4)
                 {
                     // If File has not been created already
                     if (fileCreated == false)
                     {
+                        // ACKs go to the session port the data came from
+                        TFTP_PORT = receivedPacket.getPort();
+                        
                         // Create File To Write Data To
-                        fos = new FileOutputStream(filename);
+                        fos = new FileOutputStream(localFile());
                         fileCreated = true;
                     }
                     
-                    // Extract Block Number of Data Packet
-                    bis.read(blockNumber,0, 2);
+                    // our ACK was lost and the server resent the block
+                    if (data[2] == blockNumber[0] && data[3] == blockNumber[1])
+                    {
+                        socket.send(packet);
+                        continue;
+                    }
+                    
+                    // a late copy of an older block must not be written again
+                    if (!Packets.isNextBlock(blockNumber, data[2], data[3]))
+                    {
+                        continue;
+                    }
+                    
+                    blockNumber[0] = data[2];
+                    blockNumber[1] = data[3];
+                    retries = 0;
                 
                     // Start Writing File Data
-                    int byteRead;
-                    int totalBytesRead = 0;
-                
-                    // while we haven't reached max file size of 512 bytes
-                    while ((byteRead = bis.read()) != -1) 
+                    // the packet length marks the end of the data, so zero bytes are kept
+                    int totalBytesRead = receivedPacket.getLength() - 4;
+                    write(null, data, 4, totalBytesRead, 0);
+                    
+                    if (digest != null)
                     {
-                        if (byteRead != 0)
-                        {
-                            fos.write(byteRead);
-                            totalBytesRead++;      
-                        }
-                        else
-                        {
-                            // When file data is < 512 bytes
-                            // and we've reached the end of the data (byteRead == 0)
-                            // but it's less than the max size of 512 bytes
-                            // stop reading remaining 0 bytes
-                            break;
-                        }
+                        digest.update(data, 4, totalBytesRead);
                     }
                 
                     if (totalBytesRead == 512)
                     {
                         sendACK(ACK,blockNumber); 
                     }
+                    
+                    // Last Data Packet - the Digest Follows
+                    if (totalBytesRead < 512 && digest != null)
+                    {
+                        sendACK(ACK,blockNumber);
+                        fos.close();
+                        awaitingDigest = true;
+                    }
                 
                     // If This Was Last Data Packet Sent?
-                    if (totalBytesRead < 512)
+                    if (totalBytesRead < 512 && digest == null)
                     {
                         sendLastACK(ACK,blockNumber);
-                        bis.close();
                         fos.close();
                         finishedReceiving = true;
                         System.out.println("The file " + filename + " has been stored");
+                        completed();
                     }
                 }
             }
             catch (SocketTimeoutException e)
             {
-                if (retries != MAX_RETRIES)
+                if (retries == MAX_RETRIES)
+                {
+                    // server has gone away, give up on the transfer
+                    if (fos != null)
+                    {
+                        fos.close();
+                    }
+                    events.log(EventLog.TIMEOUT, serverName(), filename, 0, 0, "gave up after " + MAX_RETRIES + " retries");
+                    throw e;
+                }
+                
+                socket.send(packet);
+                socket.setSoTimeout(10000);
+                retries++;
+                retransmitted();
+            }
+        }
+    }
+    
+    
+    /**
+     * Receives a File in Blast Mode
+     * Blocks arrive in any order and are written where they belong, a bitmap keeps
+     * track of the ones received. Every NAK interval the server is told how many have
+     * arrived and which are missing below the highest one seen, or up to the end of
+     * the file once the data has stopped coming
+     * @param size file length from the OACK
+     * @param blockSize bytes per block from the OACK
+     * @return true once every block is written, false if the server sent an error
+     * @throws IOException
+     */
+    public boolean receiveBlast(long size, int blockSize) throws IOException
+    {
+        long total = size / blockSize + 1; // the last block is short, maybe empty
+        BitSet received = new BitSet(); // bit n is set once block n + 1 is written
+        long count = 0;
+        long highest = 0;
+        
+        // blocks are bigger than standard ones, the rest of the transfer receives into this packet
+        receivedPacket = new DatagramPacket(new byte[blockSize + 6], blockSize + 6);
+        blksize = blockSize;
+        long lastNAK = socket.currentTimeMillis();
+        long lastData = lastNAK;
+        
+        try (RandomAccessFile file = new RandomAccessFile(localFile(), "rw"))
+        {
+            file.setLength(size);
+            FileChannel channel = file.getChannel();
+            
+            while (count < total)
+            {
+                long now = socket.currentTimeMillis();
+                
+                if (highest > 0 && now - lastNAK >= NAK_INTERVAL)
                 {
-                    System.out.println("Socket Timed Out!");
-                    System.out.println("Retransmitting Packet...");
+                    sendNAK(received, count, now - lastData >= NAK_INTERVAL ? total : highest);
+                    lastNAK = now;
+                }
+                
+                // no data for a whole timer, resend our last packet like any other timeout
+                if (now - lastData >= 10000)
+                {
+                    if (retries == MAX_RETRIES)
+                    {
+                        throw new SocketTimeoutException("Receive timed out");
+                    }
+                    
                     socket.send(packet);
-                    socket.setSoTimeout(10000);
                     retries++;
+                    lastData = now;
+                    retransmitted();
+                }
+                
+                try
+                {
+                    long wait = highest > 0 ? lastNAK + NAK_INTERVAL - now : lastData + 10000 - now;
+                    socket.setSoTimeout((int) Math.max(1, wait));
+                    receivePacket();
                 }
+                catch (SocketTimeoutException e)
+                {
+                    continue;
+                }
+                
+                if (receivedPacket.getPort() != TFTP_PORT)
+                {
+                    continue;
+                }
+                
+                byte[] data = receivedPacket.getData();
+                
+                if (isErrorPacket(receivedPacket))
+                {
+                    printError(receivedPacket);
+                    return false;
+                }
+                
+                // the server missed our ACK of its OACK
+                if (isOACKPacket(receivedPacket) && highest == 0)
+                {
+                    socket.send(packet);
+                    continue;
+                }
+                
+                if (receivedPacket.getLength() < 6 || data[0] != BLAST[0] || data[1] != BLAST[1])
+                {
+                    continue;
+                }
+                
+                lastData = socket.currentTimeMillis();
+                retries = 0;
+                
+                long number = ByteBuffer.wrap(data, 2, 4).getInt() & 0xFFFFFFFFL;
+                if (number < 1 || number > total || received.get((int) (number - 1)))
+                {
+                    continue;
+                }
+                
+                write(channel, data, 6, receivedPacket.getLength() - 6, (number - 1) * blockSize);
+                received.set((int) (number - 1));
+                count++;
+                highest = Math.max(highest, number);
             }
         }
+        
+        // every block is here, a NAK with no gaps ends the blast
+        sendNAK(received, count, 0);
+        blockNumber = new byte[] {(byte) (total >> 8), (byte) total};
+        return true;
     }
     
+    /**
+     * Sends a NAK Packet
+     * Carries the number of blocks received and the gaps below a limit, as first and last block
+     * @param received bitmap of the blocks received
+     * @param count blocks received
+     * @param limit highest block that may be reported missing
+     * @throws IOException
+     */
+    public void sendNAK(BitSet received, long count, long limit) throws IOException
+    {
+        ByteBuffer nak = ByteBuffer.allocate(6 + 8 * MAX_RANGES);
+        nak.put(NAK).putInt((int) count);
+        
+        int gap = received.nextClearBit(0);
+        while (gap < limit && nak.remaining() >= 8)
+        {
+            int end = received.nextSetBit(gap);
+            if (end < 0 || end > limit)
+            {
+                end = (int) limit;
+            }
+            
+            // bit n is block n + 1, so the gap runs from block gap + 1 to block end
+            nak.putInt(gap + 1).putInt(end);
+            gap = received.nextClearBit(end);
+        }
+        
+        packet = new DatagramPacket(nak.array(), nak.position(), IPAddress, TFTP_PORT);
+        socket.send(packet);
+    }
+    
+    /**
+     * Hashes the Received File
+     * Blast mode blocks arrive out of order, so the digest is taken once they are all written
+     * @throws IOException
+     */
+    public void hashFile() throws IOException
+    {
+        try (FileInputStream in = new FileInputStream(localFile()))
+        {
+            byte[] buffer = new byte[65536];
+            int length;
+            while ((length = in.read(buffer)) > 0)
+            {
+                digest.update(buffer, 0, length);
+            }
+        }
+    }
+    
+    /**
+     * Reads the Options of an OACK Packet
+     * @param receivedPacket the OACK
+     * @return option values by name
+     * @throws IOException
+     */
+    public Map<String, String> readOptions(DatagramPacket receivedPacket) throws IOException
+    {
+        Map<String, String> options = new LinkedHashMap<>();
+        byte[] data = receivedPacket.getData();
+        int start = 2;
+        String name = null;
+        
+        for (int i = 2; i < receivedPacket.getLength(); i++)
+        {
+            if (data[i] == SEPARATOR)
+            {
+                String value = new String(data, start, i - start, "US-ASCII");
+                if (name == null)
+                {
+                    name = value.toLowerCase();
+                }
+                else
+                {
+                    options.put(name, value);
+                    name = null;
+                }
+                start = i + 1;
+            }
+        }
+        return options;
+    }
     
     /**
      * Sends a TFTP ACK Packet
@@ -382,14 +1018,12 @@ public class TFTPUDPClient {
      */
     public void sendACK(byte[] opCode, byte[] blockNo) throws IOException
     {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] ACKPacket = sendPacket.getData();
         
-        os.write(opCode, 0, opCode.length);
-        os.write(blockNo, 0, blockNo.length);
+        System.arraycopy(opCode, 0, ACKPacket, 0, opCode.length);
+        System.arraycopy(blockNo, 0, ACKPacket, 2, blockNo.length);
         
-        byte[] ACKPacket = os.toByteArray();
-        packet = new DatagramPacket(ACKPacket, ACKPacket.length,IPAddress,TFTP_PORT);
-        socket.send(packet);
+        sendBuffered(4);
         socket.setSoTimeout(10000);
 
     }
@@ -401,15 +1035,104 @@ public class TFTPUDPClient {
      * @throws java.io.IOException
      */
     public void sendLastACK(byte[] opCode, byte[] blockNo) throws IOException
+    {
+        byte[] ACKPacket = sendPacket.getData();
+        
+        System.arraycopy(opCode, 0, ACKPacket, 0, opCode.length);
+        System.arraycopy(blockNo, 0, ACKPacket, 2, blockNo.length);
+        
+        sendBuffered(4);
+        socket.setSoTimeout(10000);  
+    }
+    
+    /**
+     * Sends the Packet Built in the Send Packet's Buffer
+     * It is kept as the last packet sent, for retransmits
+     * @param length bytes to send
+     * @throws IOException
+     */
+    protected void sendBuffered(int length) throws IOException
+    {
+        sendPacket.setLength(length);
+        sendPacket.setAddress(IPAddress);
+        sendPacket.setPort(TFTP_PORT);
+        packet = sendPacket;
+        socket.send(packet);
+        lastSendNanos = System.nanoTime();
+    }
+    
+    /**
+     * Receives into the Received Packet
+     * Its length is reset to the whole buffer first, the last receive shortened it
+     * @throws IOException
+     */
+    protected void receivePacket() throws IOException
+    {
+        receivedPacket.setLength(receivedPacket.getData().length);
+        socket.receive(receivedPacket);
+    }
+    
+    /**
+     * Sends the Digest of the File Data
+     * @param fileDigest hex digest
+     * @throws IOException
+     */
+    public void sendDigestPacket(String fileDigest) throws IOException
     {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
-        os.write(opCode, 0, opCode.length);
-        os.write(blockNo, 0, blockNo.length);
         
-        byte[] ACKPacket = os.toByteArray();
-        packet = new DatagramPacket(ACKPacket, ACKPacket.length,IPAddress,TFTP_PORT);
+        os.write(DIGEST, 0, DIGEST.length);
+        os.write(fileDigest.getBytes("US-ASCII"), 0, fileDigest.length());
+        os.write(SEPARATOR);
+        
+        byte[] digestPacket = os.toByteArray();
+        packet = new DatagramPacket(digestPacket, digestPacket.length, IPAddress, TFTP_PORT);
         socket.send(packet);
-        socket.setSoTimeout(10000);  
+        lastSendNanos = System.nanoTime();
+        socket.setSoTimeout(10000);
+    }
+    
+    /**
+     * Checks if a Packet is a TFTP Option Acknowledgement
+     * @param receivedPacket the packet
+     * @return true if the opcode is 06
+     */
+    public boolean isOACKPacket(DatagramPacket receivedPacket)
+    {
+        byte[] data = receivedPacket.getData();
+        return receivedPacket.getLength() >= 2 && data[0] == OACK[0] && data[1] == OACK[1];
+    }
+    
+    /**
+     * Creates the Digest Named by the Digest Option
+     * @return a new digest
+     */
+    public MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+    
+    /**
+     * Converts Bytes to a Hex String
+     * @param bytes the bytes
+     * @return lower case hex
+     */
+    public static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
     }
     
     public static void main(String[] args) throws IOException
@@ -0,0 +1,392 @@
+package tftp.udp.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binary Trace of the Packets a Server Sends and Receives
+ * Sessions hand packets to a bounded queue, a background thread writes them out.
+ * When the queue is full packets are dropped and counted, capturing never blocks a session.
+ * Without payloads DATA and BLAST packets keep only their header and length, the
+ * requests, ACKs, OACKs and NAKs a replay needs are always kept whole.
+ * Format, big endian, varints are unsigned LEB128:
+ *   header: [magic] int, [version] short, [flags] byte (1 = payloads), [start] long ms
+ *   record: [kind] byte (0 in, 1 out, 2 dropped, +4 for IPv6), [us since the last record] varint,
+ *     then for 2 [count] varint, otherwise [local port] short, [remote address] 4 or 16 bytes,
+ *     [remote port] short, [length] varint, [captured] varint, the captured bytes
+ * @author 105977
+ */
+public class PacketTrace extends Thread {
+
+    protected static final int MAGIC = 0x54465450; // "TFTP"
+    protected static final short VERSION = 1;
+
+    protected static final int IN = 0;
+    protected static final int OUT = 1;
+    protected static final int DROPPED = 2;
+    protected static final int IPV6 = 4;
+
+    protected boolean payloads; // keep DATA and BLAST payloads
+    protected long startNanos = System.nanoTime();
+    protected BlockingQueue<Record> queue;
+    protected AtomicLong dropped = new AtomicLong();
+    protected DataOutputStream out;
+    protected long lastMicros; // time of the last record written
+
+
+    /**
+     * One Captured Packet
+     */
+    public static class Record {
+        public long micros; // since the trace started
+        public boolean out; // sent by the server
+        public int localPort; // server TID, the listener port for requests
+        public InetAddress remote;
+        public int remotePort; // client TID
+        public int length; // bytes the packet had
+        public byte[] data; // bytes captured, the whole packet or its header
+
+        /**
+         * Gets the Opcode
+         * @return the opcode, -1 if the packet is too short
+         */
+        public int opcode()
+        {
+            return data.length < 2 ? -1 : (data[0] & 0xFF) << 8 | (data[1] & 0xFF);
+        }
+
+        /**
+         * Gets the Block Number of a DATA or ACK Packet
+         * @return the 16 bit block number, -1 if the packet is too short
+         */
+        public int block()
+        {
+            return data.length < 4 ? -1 : (data[2] & 0xFF) << 8 | (data[3] & 0xFF);
+        }
+
+        /**
+         * Gets the Client's Address and Port
+         * @return ip:port
+         */
+        public String client()
+        {
+            return remote.getHostAddress() + ":" + remotePort;
+        }
+    }
+
+    /**
+     * Reads a Trace Back Record by Record
+     */
+    public static class Reader implements Closeable {
+        protected DataInputStream in;
+        protected boolean payloads;
+        protected long start; // ms when capture started
+        protected long micros;
+        protected long dropped; // packets the capture couldn't keep up with
+
+        /**
+         * Opens a Trace
+         * @param file the trace file
+         * @throws IOException if it isn't a trace
+         */
+        public Reader(String file) throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+            if (in.readInt() != MAGIC || in.readShort() != VERSION)
+            {
+                in.close();
+                throw new IOException(file + " is not a packet trace");
+            }
+            payloads = (in.readByte() & 1) != 0;
+            start = in.readLong();
+        }
+
+        /**
+         * Reads the Next Record
+         * @return the record, or null at the end of the trace
+         * @throws IOException
+         */
+        public Record next() throws IOException
+        {
+            while (true)
+            {
+                int kind;
+                try
+                {
+                    kind = in.readUnsignedByte();
+                }
+                catch (EOFException e)
+                {
+                    return null;
+                }
+
+                micros += readVarint(in);
+
+                if ((kind & 3) == DROPPED)
+                {
+                    dropped += readVarint(in);
+                    continue;
+                }
+
+                Record record = new Record();
+                record.micros = micros;
+                record.out = (kind & 3) == OUT;
+                record.localPort = in.readUnsignedShort();
+                byte[] address = new byte[(kind & IPV6) != 0 ? 16 : 4];
+                in.readFully(address);
+                record.remote = InetAddress.getByAddress(address);
+                record.remotePort = in.readUnsignedShort();
+                record.length = (int) readVarint(in);
+                record.data = new byte[(int) readVarint(in)];
+                in.readFully(record.data);
+                return record;
+            }
+        }
+
+        /**
+         * Checks Whether DATA Payloads were Captured
+         * @return true if they were
+         */
+        public boolean hasPayloads()
+        {
+            return payloads;
+        }
+
+        /**
+         * Gets the Number of Packets Dropped While Capturing
+         * Complete once the whole trace has been read
+         * @return dropped packets
+         */
+        public long getDropped()
+        {
+            return dropped;
+        }
+
+        /**
+         * Gets When Capture Started
+         * @return ms
+         */
+        public long getStart()
+        {
+            return start;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Opens a Trace and Starts its Writer Thread
+     * @param file file to write, empty for no trace
+     * @param payloads keep DATA and BLAST payloads
+     * @param capacity packets queued before they are dropped
+     * @return the running trace, or null
+     */
+    public static PacketTrace open(String file, boolean payloads, int capacity)
+    {
+        if (file.isEmpty())
+        {
+            return null;
+        }
+
+        try
+        {
+            PacketTrace trace = new PacketTrace(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536)),
+                    payloads, capacity);
+            trace.start();
+            return trace;
+        }
+        catch (IOException e)
+        {
+            System.err.println("Can't open packet trace " + file + ", not capturing");
+            return null;
+        }
+    }
+
+    /**
+     * Constructs a Trace and Writes its Header
+     * @param out where the trace is written
+     * @param payloads keep DATA and BLAST payloads
+     * @param capacity packets queued before they are dropped
+     * @throws IOException
+     */
+    protected PacketTrace(DataOutputStream out, boolean payloads, int capacity) throws IOException
+    {
+        super("TFTP Packet Trace");
+        setDaemon(true);
+
+        this.out = out;
+        this.payloads = payloads;
+        queue = new ArrayBlockingQueue<>(capacity);
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeByte(payloads ? 1 : 0);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+
+    /**
+     * Records a Packet
+     * Returns straight away, the packet is dropped if the queue is full
+     * @param sent true if the server sent it
+     * @param localPort port of the socket it went through
+     * @param packet the packet
+     */
+    public void record(boolean sent, int localPort, DatagramPacket packet)
+    {
+        Record record = new Record();
+        record.micros = (System.nanoTime() - startNanos) / 1000;
+        record.out = sent;
+        record.localPort = localPort;
+        record.remote = packet.getAddress();
+        record.remotePort = packet.getPort();
+        record.length = packet.getLength();
+
+        byte[] data = packet.getData();
+        int offset = packet.getOffset();
+        int opcode = record.length < 2 ? -1 : data[offset + 1];
+        int captured = record.length;
+
+        // only the header of file data, unless payloads are kept
+        if (!payloads && data[offset] == 0 && (opcode == 3 || opcode == 11))
+        {
+            captured = Math.min(record.length, opcode == 3 ? 4 : 6);
+        }
+
+        record.data = new byte[captured];
+        System.arraycopy(data, offset, record.data, 0, captured);
+
+        if (!queue.offer(record))
+        {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the Number of Packets Dropped Because the Queue was Full
+     * @return dropped packets
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+
+    @Override
+    public void run()
+    {
+        long droppedWritten = 0;
+
+        while (true)
+        {
+            try
+            {
+                Record record = queue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (record == null)
+                {
+                    // quiet for a moment, make what was captured readable
+                    out.flush();
+                    continue;
+                }
+
+                long droppedNow = dropped.get();
+                if (droppedNow != droppedWritten)
+                {
+                    out.writeByte(DROPPED);
+                    writeVarint(out, 0);
+                    writeVarint(out, droppedNow - droppedWritten);
+                    droppedWritten = droppedNow;
+                }
+
+                write(record);
+            }
+            catch (IOException e)
+            {
+                // nowhere to report it, keep draining so sessions never notice
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes a Record
+     * Records from different sessions can be queued slightly out of order, a late one
+     * is written with no gap so times in the trace never go backwards
+     * @param record the record
+     * @throws IOException
+     */
+    protected void write(Record record) throws IOException
+    {
+        byte[] address = record.remote.getAddress();
+        long micros = Math.max(lastMicros, record.micros);
+
+        out.writeByte((record.out ? OUT : IN) | (address.length == 16 ? IPV6 : 0));
+        writeVarint(out, micros - lastMicros);
+        out.writeShort(record.localPort);
+        out.write(address);
+        out.writeShort(record.remotePort);
+        writeVarint(out, record.length);
+        writeVarint(out, record.data.length);
+        out.write(record.data);
+
+        lastMicros = micros;
+    }
+
+    /**
+     * Writes an Unsigned LEB128 Varint
+     * @param out the stream
+     * @param value a value of at least 0
+     * @throws IOException
+     */
+    protected static void writeVarint(DataOutputStream out, long value) throws IOException
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads an Unsigned LEB128 Varint
+     * @param in the stream
+     * @return the value
+     * @throws IOException
+     */
+    protected static long readVarint(DataInputStream in) throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; ; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,680 @@
+package tftp.udp.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import tftp.common.BlockReader;
+import tftp.common.ChunkStore;
+import tftp.common.DatagramTransport;
+import tftp.common.EventLog;
+import tftp.common.Packets;
+import tftp.common.Storage;
+import tftp.common.TransferEngine;
+
+/**
+ * Relay Mode, Serving an Upstream Server's Files from a Local Cache
+ * A RRQ for a file that isn't cached, or whose copy is older than the TTL, goes to the
+ * upstream server. Sessions wanting the same file share one fetch and stream it from a
+ * spool file as it arrives, once complete it is written to storage and later RRQs are
+ * served from there. A copy past its TTL is revalidated by asking upstream for the file's
+ * size and modification time, the transfer is ended at the OACK if they still match.
+ * While upstream is unreachable a stale copy stays in use
+ * @author 105977
+ */
+public class RelayCache {
+
+    // what a fetch has found out so far
+    protected static final int PENDING = 0; // waiting for upstream's first reply
+    protected static final int CURRENT = 1; // the cached copy can be served
+    protected static final int MISSING = 2; // upstream has no such file
+    protected static final int STREAMING = 3; // blocks are arriving in the spool
+    protected static final int DONE = 4; // every block is in the spool
+    protected static final int FAILED = 5;
+
+    protected static int TIMEOUT = 10000; // ms before the last packet to upstream is resent
+    protected static int MAX_RETRIES = 10;
+
+    // upstream's first reply is waited for less, so a stale copy is served before the client's timer runs out
+    protected static int REPLY_TIMEOUT = Integer.getInteger("tftp.relay.timeout", 2000); // ms
+    protected static int REPLY_RETRIES = 3;
+
+    protected InetSocketAddress upstream;
+    protected long ttl; // ms a copy is served without asking upstream
+    protected File spoolDir; // where files are kept while they arrive
+    protected Storage storage = TransferEngine.store;
+    protected EventLog events = TransferEngine.events;
+
+    // what upstream said about each cached copy, lost on a restart
+    protected Map<String, Copy> copies = new ConcurrentHashMap<>();
+
+    // fetches in progress, by file
+    protected Map<String, Fetch> fetches = new HashMap<>();
+
+
+    /**
+     * A Cached Copy as Upstream Last Described It
+     */
+    protected static class Copy {
+        protected long size;
+        protected long modified; // upstream's modification time, -1 if it didn't send one
+        protected long checked; // ms, when upstream last confirmed it
+
+        protected Copy(long size, long modified, long checked)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.checked = checked;
+        }
+    }
+
+    /**
+     * The Upstream Server Couldn't be Reached or Failed the Fetch
+     */
+    public static class UpstreamException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public UpstreamException(String message, Throwable cause)
+        {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * One Request to Upstream and the Sessions Waiting on It
+     * Runs the upstream side of the transfer on its own thread, the way the UDP client
+     * receives a file, writing each block to the spool as it is ACKed
+     */
+    protected class Fetch implements Runnable {
+        protected String filename;
+        protected Storage.Stat local; // cached copy when the fetch started, null if none
+        protected Copy copy; // what upstream said about it before
+
+        protected int state = PENDING;
+        protected IOException failure;
+        protected long size = -1; // upstream's tsize, -1 if it didn't send one
+        protected long modified = -1; // upstream's mtime, -1 if it didn't send one
+
+        protected File spoolFile;
+        protected FileChannel spool;
+        protected long available; // bytes in the spool
+        protected int readers = 1; // sessions streaming from the spool, and the fetch itself
+
+        protected Fetch(String filename, Storage.Stat local, Copy copy)
+        {
+            this.filename = filename;
+            this.local = local;
+            this.copy = copy;
+        }
+
+        @Override
+        public void run()
+        {
+            long start = System.currentTimeMillis();
+            DatagramTransport socket = null;
+
+            try
+            {
+                socket = TFTPUDPServer.transports.open();
+                fetch(socket);
+
+                if (state == CURRENT)
+                {
+                    events.log(EventLog.RELAY, upstreamName(), filename, 0, System.currentTimeMillis() - start, "current");
+                }
+                else if (state == MISSING)
+                {
+                    events.log(EventLog.RELAY, upstreamName(), filename, 0, System.currentTimeMillis() - start, "missing");
+                }
+                else
+                {
+                    commit();
+                    events.log(EventLog.RELAY, upstreamName(), filename, available, System.currentTimeMillis() - start, "fetched");
+                }
+            }
+            catch (IOException e)
+            {
+                fail(e);
+                events.log(EventLog.RELAY, upstreamName(), filename, available, System.currentTimeMillis() - start,
+                        (local != null && spool == null ? "serving stale copy, " : "failed, ") + e);
+            }
+            finally
+            {
+                if (socket != null)
+                {
+                    socket.close();
+                }
+
+                // later sessions start a new fetch or read the committed copy
+                synchronized (fetches)
+                {
+                    fetches.remove(filename, this);
+                }
+                release();
+            }
+        }
+
+        /**
+         * Requests the File from Upstream and Receives it
+         * Asks for its size and modification time, so a copy still current ends the
+         * transfer at the OACK, and for its digest to check what was received
+         * @param socket transport on a new port, the relay's TID
+         * @throws IOException if upstream fails or stops answering
+         */
+        protected void fetch(DatagramTransport socket) throws IOException
+        {
+            Map<String, String> options = new LinkedHashMap<>();
+            options.put("tsize", "0");
+            options.put("mtime", "0");
+            options.put("digest", "sha256");
+
+            byte[] request = Packets.request(Packets.RRQ, filename, options);
+            DatagramPacket last = new DatagramPacket(request, request.length, upstream);
+            byte[] ack = new byte[4];
+            DatagramPacket ackPacket = new DatagramPacket(ack, ack.length);
+            DatagramPacket received = new DatagramPacket(new byte[516], 516);
+            byte[] data = received.getData();
+
+            byte[] blockNumber = new byte[] {0,0};
+            InetSocketAddress peer = null; // upstream's session port, once it has replied
+            MessageDigest digest = null;
+            boolean awaitingDigest = false;
+            int retries = 0;
+
+            socket.send(last);
+            long deadline = socket.currentTimeMillis() + REPLY_TIMEOUT;
+
+            while (true)
+            {
+                try
+                {
+                    long remaining = deadline - socket.currentTimeMillis();
+                    if (remaining <= 0)
+                    {
+                        throw new SocketTimeoutException("Receive timed out");
+                    }
+                    socket.setSoTimeout((int) remaining);
+
+                    received.setLength(data.length);
+                    socket.receive(received);
+                }
+                catch (SocketTimeoutException e)
+                {
+                    int maxRetries = peer == null ? REPLY_RETRIES : MAX_RETRIES;
+                    if (retries == maxRetries)
+                    {
+                        throw new UpstreamException("No reply from " + upstreamName() + " after " + maxRetries + " retries", e);
+                    }
+                    socket.send(last);
+                    retries++;
+                    deadline = socket.currentTimeMillis() + (peer == null ? REPLY_TIMEOUT : TIMEOUT);
+                    continue;
+                }
+
+                // only upstream, from the session port it picked once it has replied
+                int length = received.getLength();
+                if (!upstream.getAddress().equals(received.getAddress()) || length < 2 || data[0] != 0
+                        || (peer != null && received.getPort() != peer.getPort()))
+                {
+                    continue;
+                }
+
+                if (data[1] == Packets.ERROR[1])
+                {
+                    if (length >= 4 && data[2] == Packets.ERROR_CODE[0] && data[3] == Packets.ERROR_CODE[1])
+                    {
+                        decide(MISSING);
+                        return;
+                    }
+                    throw new UpstreamException("Upstream error: " + new String(data, 4, Math.max(0, length - 5), StandardCharsets.UTF_8), null);
+                }
+
+                if (peer == null)
+                {
+                    peer = new InetSocketAddress(received.getAddress(), received.getPort());
+                    ackPacket.setSocketAddress(peer);
+                }
+
+                // Upstream Accepted Our Options - End Here if the Copy is Current, ACK Block 0 Otherwise
+                if (data[1] == Packets.OACK[1] && state == PENDING)
+                {
+                    Map<String, String> accepted = Packets.readRequestOptions(new ByteArrayInputStream(data, 2, length - 2));
+                    size = parse(accepted.get("tsize"));
+                    modified = parse(accepted.get("mtime"));
+
+                    if (current())
+                    {
+                        byte[] error = Packets.error(Packets.OPTION_ERROR_CODE, "Cached copy is current");
+                        socket.send(new DatagramPacket(error, error.length, peer));
+                        copies.put(filename, new Copy(size, modified, System.currentTimeMillis()));
+                        decide(CURRENT);
+                        return;
+                    }
+
+                    if (accepted.containsKey("digest"))
+                    {
+                        digest = ChunkStore.newDigest();
+                    }
+                    openSpool();
+
+                    ack[1] = Packets.ACK[1];
+                    last = ackPacket;
+                    socket.send(last);
+                    retries = 0;
+                    deadline = socket.currentTimeMillis() + TIMEOUT;
+                    continue;
+                }
+
+                if (data[1] == Packets.DATA[1] && length >= 4 && !awaitingDigest)
+                {
+                    // upstream ignored the options, the data starts straight away
+                    if (state == PENDING)
+                    {
+                        openSpool();
+                    }
+
+                    // our ACK was lost and upstream resent the block
+                    if (data[2] == blockNumber[0] && data[3] == blockNumber[1])
+                    {
+                        socket.send(last);
+                        continue;
+                    }
+
+                    if (!Packets.isNextBlock(blockNumber, data[2], data[3]))
+                    {
+                        continue;
+                    }
+                    blockNumber[0] = data[2];
+                    blockNumber[1] = data[3];
+
+                    int dataLength = length - 4;
+                    ByteBuffer block = ByteBuffer.wrap(data, 4, dataLength);
+                    while (block.hasRemaining())
+                    {
+                        spool.write(block, available + block.position() - 4);
+                    }
+                    if (digest != null)
+                    {
+                        digest.update(data, 4, dataLength);
+                    }
+
+                    // sessions waiting for this block can send it
+                    synchronized (this)
+                    {
+                        available += dataLength;
+                        notifyAll();
+                    }
+
+                    ack[1] = Packets.ACK[1];
+                    ack[2] = blockNumber[0];
+                    ack[3] = blockNumber[1];
+                    last = ackPacket;
+                    socket.send(last);
+                    retries = 0;
+                    deadline = socket.currentTimeMillis() + TIMEOUT;
+
+                    if (dataLength < 512)
+                    {
+                        if (digest == null)
+                        {
+                            decide(DONE);
+                            return;
+                        }
+                        awaitingDigest = true;
+                    }
+                    continue;
+                }
+
+                // Upstream Sent the Digest of the File - a Mismatch Isn't Cached
+                if (data[1] == Packets.DIGEST[1] && awaitingDigest)
+                {
+                    String expected = new String(data, 2, Math.max(0, length - 3), StandardCharsets.US_ASCII);
+                    if (!expected.equalsIgnoreCase(ChunkStore.toHex(digest.digest())))
+                    {
+                        throw new UpstreamException(Packets.CHECKSUM_MSG + " from " + upstreamName(), null);
+                    }
+
+                    socket.send(last);
+                    decide(DONE);
+                    return;
+                }
+
+                // the OACK was resent, our ACK of it was lost
+                if (data[1] == Packets.OACK[1] || (data[1] == Packets.DATA[1] && awaitingDigest))
+                {
+                    socket.send(last);
+                }
+            }
+        }
+
+        /**
+         * Checks Upstream's Size and Modification Time Against the Cached Copy
+         * With nothing known about the copy it is current if it was written after upstream's
+         * @return true if the cached copy can be served
+         */
+        protected boolean current()
+        {
+            if (local == null || modified < 0 || size != local.size)
+            {
+                return false;
+            }
+            return copy != null ? copy.modified == modified : modified <= local.modified;
+        }
+
+        /**
+         * Opens the Spool the Blocks are Written to and Sessions Read From
+         * @throws IOException
+         */
+        protected void openSpool() throws IOException
+        {
+            spoolFile = File.createTempFile("relay", ".part", spoolDir);
+            spool = FileChannel.open(spoolFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            decide(STREAMING);
+        }
+
+        /**
+         * Writes the Received File to Storage
+         * It replaces the cached copy only once it is complete
+         * @throws IOException
+         */
+        protected void commit() throws IOException
+        {
+            try (Storage.Upload out = TransferEngine.openWrite(filename))
+            {
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = 0;
+                while (position < available)
+                {
+                    position += spool.transferTo(position, available - position, target);
+                }
+                out.commit();
+            }
+            copies.put(filename, new Copy(available, modified, System.currentTimeMillis()));
+        }
+
+        /**
+         * Moves to the Next State and Wakes the Waiting Sessions
+         * @param state the new state
+         */
+        protected synchronized void decide(int state)
+        {
+            this.state = state;
+            notifyAll();
+        }
+
+        /**
+         * Records why the Fetch Failed
+         * Sessions still waiting serve the stale copy, or pass the failure on
+         * @param e the failure
+         */
+        protected synchronized void fail(IOException e)
+        {
+            failure = e;
+            decide(FAILED);
+        }
+
+        /**
+         * Waits Until Upstream's First Reply Says How to Serve the File
+         * @param blockSize bytes per block the session sends
+         * @return reader streaming from the spool, or null to serve the cached copy
+         * @throws FileNotFoundException if upstream has no such file
+         * @throws UpstreamException if upstream failed with no copy to fall back on
+         * @throws IOException
+         */
+        protected synchronized BlockReader join(int blockSize) throws IOException
+        {
+            try
+            {
+                while (state == PENDING)
+                {
+                    wait();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for " + filename, e);
+            }
+
+            if (state == MISSING)
+            {
+                throw new FileNotFoundException(filename);
+            }
+
+            // a stale copy is better than none
+            if (state == FAILED && spool == null)
+            {
+                if (local != null)
+                {
+                    return null;
+                }
+                throw failure instanceof UpstreamException ? failure : new UpstreamException(failure.toString(), failure);
+            }
+
+            // the spool is closed once the fetch is committed and its sessions are done
+            if (state == CURRENT || readers == 0)
+            {
+                return null;
+            }
+
+            readers++;
+            return new Reader(this, blockSize);
+        }
+
+        /**
+         * Drops a Reference to the Spool
+         * The last one closes and deletes it
+         */
+        protected synchronized void release()
+        {
+            if (--readers > 0 || spool == null)
+            {
+                return;
+            }
+
+            try
+            {
+                spool.close();
+            }
+            catch (IOException e)
+            {
+                // only the file is left behind
+            }
+            spoolFile.delete();
+        }
+    }
+
+    /**
+     * One Session's Blocks out of the Spool
+     * Waits for each block to arrive from upstream
+     */
+    protected static class Reader implements BlockReader {
+        protected Fetch fetch;
+        protected int blockSize;
+        protected long position; // next byte handed to the session
+        protected Storage.Stat stat;
+        protected boolean closed;
+
+        protected Reader(Fetch fetch, int blockSize)
+        {
+            this.fetch = fetch;
+            this.blockSize = blockSize;
+            stat = new Storage.Stat(Math.max(0, fetch.size), fetch.modified);
+        }
+
+        @Override
+        public Storage.Stat stat()
+        {
+            return stat;
+        }
+
+        /**
+         * Takes the Next Block
+         * @param block array of at least blockSize bytes the data is copied into
+         * @return bytes in the block, less than blockSize at the end of the file
+         * @throws IOException if the fetch failed
+         */
+        @Override
+        public int next(byte[] block) throws IOException
+        {
+            long end;
+
+            synchronized (fetch)
+            {
+                try
+                {
+                    while (fetch.state == STREAMING && fetch.available - position < blockSize)
+                    {
+                        fetch.wait();
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted reading " + fetch.filename, e);
+                }
+
+                if (fetch.state == FAILED)
+                {
+                    throw new UpstreamException("Fetch of " + fetch.filename + " failed", fetch.failure);
+                }
+                end = fetch.available;
+            }
+
+            ByteBuffer data = ByteBuffer.wrap(block, 0, (int) Math.min(blockSize, end - position));
+            while (data.hasRemaining())
+            {
+                fetch.spool.read(data, position + data.position());
+            }
+            position += data.limit();
+            return data.limit();
+        }
+
+        @Override
+        public void close()
+        {
+            if (!closed)
+            {
+                closed = true;
+                fetch.release();
+            }
+        }
+    }
+
+
+    /**
+     * Constructs a Relay Cache
+     * @param upstream the upstream server
+     * @param ttl ms a copy is served without asking upstream
+     * @param spoolDir where files are kept while they arrive
+     */
+    public RelayCache(InetSocketAddress upstream, long ttl, File spoolDir)
+    {
+        this.upstream = upstream;
+        this.ttl = ttl;
+        this.spoolDir = spoolDir;
+    }
+
+    /**
+     * Opens the Configured Relay
+     * tftp.relay.ttl is seconds a copy is served without asking upstream,
+     * tftp.relay.spool the directory files are kept in while they arrive
+     * @param upstream host or host:port of the upstream server, empty for no relay
+     * @return the relay, or null
+     */
+    public static RelayCache open(String upstream)
+    {
+        if (upstream.isEmpty())
+        {
+            return null;
+        }
+
+        int colon = upstream.lastIndexOf(':');
+        InetSocketAddress address = colon < 0
+                ? new InetSocketAddress(upstream, 9000)
+                : new InetSocketAddress(upstream.substring(0, colon), Integer.parseInt(upstream.substring(colon + 1)));
+
+        return new RelayCache(address, Long.getLong("tftp.relay.ttl", 300L) * 1000,
+                new File(System.getProperty("tftp.relay.spool", System.getProperty("java.io.tmpdir"))));
+    }
+
+
+    /**
+     * Opens a File for a RRQ
+     * A copy confirmed within the TTL is served from storage without asking upstream,
+     * otherwise the session joins the fetch of the file, starting it if there is none
+     * @param filename the file
+     * @param blockSize bytes per block the session sends
+     * @return reader streaming the fetch, or null to serve the cached copy from storage
+     * @throws FileNotFoundException if upstream has no such file
+     * @throws UpstreamException if upstream failed with no copy to fall back on
+     * @throws IOException
+     */
+    public BlockReader open(String filename, int blockSize) throws IOException
+    {
+        Storage.Stat local = storage.stat(filename);
+        Copy copy = copies.get(filename);
+
+        if (local != null && copy != null && copy.size == local.size && System.currentTimeMillis() - copy.checked < ttl)
+        {
+            return null;
+        }
+
+        Fetch fetch;
+        synchronized (fetches)
+        {
+            fetch = fetches.get(filename);
+            if (fetch == null)
+            {
+                fetch = new Fetch(filename, local, copy);
+                fetches.put(filename, fetch);
+
+                Thread thread = new Thread(fetch, "TFTP Relay " + filename);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        return fetch.join(blockSize);
+    }
+
+    /**
+     * Parses a Numeric Option
+     * @param value the value, may be null
+     * @return the number, or -1 if missing or not a number
+     */
+    protected static long parse(String value)
+    {
+        try
+        {
+            return value == null ? -1 : Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the Upstream Server's Address
+     * @return ip:port
+     */
+    public String upstreamName()
+    {
+        return upstream.getAddress().getHostAddress() + ":" + upstream.getPort();
+    }
+}
@@ -0,0 +1,426 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import tftp.common.DatagramTransport;
+import tftp.common.TimingWheel;
+
+/**
+ * Deterministic In Process Network
+ * Packets between endpoints are lost, duplicated, reordered, delayed and rate limited
+ * by seeded models, on a virtual clock. Time only moves when every open endpoint
+ * is blocked in receive with nothing to deliver, then it jumps straight to the next
+ * arrival or timeout - a 10 second timeout costs no real time at all.
+ * Its timing wheel runs on the same clock, so session expiry is as repeatable as the packets
+ * @author 105977
+ */
+public class SimulatedNetwork implements DatagramTransport.Factory {
+
+    protected static final int FIRST_EPHEMERAL_PORT = 49152;
+
+    // models
+    protected long seed;
+    protected double loss; // probability a packet is dropped
+    protected double duplicate; // probability a packet arrives twice
+    protected double reorder; // probability a packet is held back so later ones overtake it
+    protected long latency; // one way delay, ms
+    protected long jitter; // extra random delay up to this, ms
+    protected long reorderDelay; // extra delay of a reordered packet, ms
+    protected long bandwidth; // bytes per second leaving each endpoint, 0 for unlimited
+
+    protected InetAddress address = InetAddress.getLoopbackAddress(); // every endpoint shares it
+    protected volatile long now; // virtual time, ms, written under the lock only
+    protected long sequence; // keeps arrivals at the same time in send order
+    protected PriorityQueue<Delivery> inFlight = new PriorityQueue<>();
+    protected Map<Integer, Endpoint> endpoints = new HashMap<>();
+    protected int nextPort = FIRST_EPHEMERAL_PORT;
+    protected int blocked; // endpoints with a thread waiting in receive
+    protected boolean expiring; // timer actions are running, time stays put until they are done
+
+    // reads the clock without the lock, a thread scheduling a timer may hold the wheel
+    // while another holds the network and turns the wheel
+    protected TimingWheel timers = new TimingWheel(() -> TimeUnit.MILLISECONDS.toNanos(now), 1, TimeUnit.MILLISECONDS);
+
+    // counters
+    protected long sent;
+    protected long lost;
+    protected long duplicated;
+    protected long reordered;
+    protected long delivered;
+
+
+    /**
+     * A Packet on its Way
+     */
+    protected static class Delivery implements Comparable<Delivery> {
+        protected long time;
+        protected long sequence;
+        protected int sourcePort;
+        protected int destinationPort;
+        protected byte[] data;
+
+        @Override
+        public int compareTo(Delivery other)
+        {
+            if (time != other.time)
+            {
+                return Long.compare(time, other.time);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+
+    /**
+     * A Port on the Simulated Network
+     */
+    public class Endpoint implements DatagramTransport {
+
+        protected int port;
+        protected Random random; // own stream, so other endpoints' traffic doesn't change this one's fate
+        protected Deque<Delivery> received = new ArrayDeque<>();
+        protected int timeout;
+        protected long deadline = Long.MAX_VALUE; // virtual time the waiting receive gives up
+        protected boolean waiting;
+        protected boolean closed;
+        protected long linkFree; // virtual time the outgoing link is next idle
+
+        @Override
+        public void send(DatagramPacket packet) throws IOException
+        {
+            synchronized (SimulatedNetwork.this)
+            {
+                if (closed)
+                {
+                    throw new SocketException("Socket is closed");
+                }
+
+                sent++;
+
+                // every packet takes the same number of draws, so one outcome never shifts the next
+                double lossRoll = random.nextDouble();
+                double duplicateRoll = random.nextDouble();
+                double reorderRoll = random.nextDouble();
+                long delay = latency + (jitter > 0 ? (long) (random.nextDouble() * (jitter + 1)) : 0);
+                long duplicateDelay = 1 + (jitter > 0 ? (long) (random.nextDouble() * (jitter + 1)) : 0);
+
+                if (lossRoll < loss)
+                {
+                    lost++;
+                    return;
+                }
+
+                // serialisation on the sender's link
+                long departure = Math.max(now, linkFree);
+                if (bandwidth > 0)
+                {
+                    departure += packet.getLength() * 1000L / bandwidth;
+                }
+                linkFree = departure;
+
+                long arrival = departure + delay;
+                if (reorderRoll < reorder)
+                {
+                    arrival += reorderDelay;
+                    reordered++;
+                }
+
+                byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+                schedule(port, packet.getPort(), data, arrival);
+
+                if (duplicateRoll < duplicate)
+                {
+                    schedule(port, packet.getPort(), data, arrival + duplicateDelay);
+                    duplicated++;
+                }
+            }
+        }
+
+        @Override
+        public void receive(DatagramPacket packet) throws IOException
+        {
+            Delivery delivery;
+
+            synchronized (SimulatedNetwork.this)
+            {
+                deadline = timeout > 0 ? now + timeout : Long.MAX_VALUE;
+                waiting = true;
+                blocked++;
+
+                try
+                {
+                    while (received.isEmpty())
+                    {
+                        if (closed)
+                        {
+                            throw new SocketException("Socket closed");
+                        }
+                        if (now >= deadline)
+                        {
+                            throw new SocketTimeoutException("Receive timed out");
+                        }
+
+                        advance();
+                        if (received.isEmpty() && !closed && now < deadline)
+                        {
+                            waitForNetwork();
+                        }
+                    }
+                    delivery = received.poll();
+                }
+                finally
+                {
+                    waiting = false;
+                    deadline = Long.MAX_VALUE;
+                    blocked--;
+                }
+            }
+
+            // truncated to the buffer like a real socket
+            int length = Math.min(delivery.data.length, packet.getData().length - packet.getOffset());
+            System.arraycopy(delivery.data, 0, packet.getData(), packet.getOffset(), length);
+            packet.setLength(length);
+            packet.setAddress(address);
+            packet.setPort(delivery.sourcePort);
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException
+        {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public long currentTimeMillis()
+        {
+            return now();
+        }
+
+        @Override
+        public int getLocalPort()
+        {
+            return port;
+        }
+
+        @Override
+        public void close()
+        {
+            synchronized (SimulatedNetwork.this)
+            {
+                if (!closed)
+                {
+                    closed = true;
+                    endpoints.remove(port);
+                    advance();
+                    SimulatedNetwork.this.notifyAll();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Constructs a Simulated Network
+     * @param seed seed for every random model
+     * @param loss probability a packet is dropped
+     * @param duplicate probability a packet arrives twice
+     * @param reorder probability a packet is held back so later ones overtake it
+     * @param latency one way delay, ms
+     * @param jitter extra random delay up to this, ms
+     * @param reorderDelay extra delay of a reordered packet, ms
+     * @param bandwidth bytes per second leaving each endpoint, 0 for unlimited
+     */
+    public SimulatedNetwork(long seed, double loss, double duplicate, double reorder, long latency, long jitter, long reorderDelay, long bandwidth)
+    {
+        this.seed = seed;
+        this.loss = loss;
+        this.duplicate = duplicate;
+        this.reorder = reorder;
+        this.latency = latency;
+        this.jitter = jitter;
+        this.reorderDelay = reorderDelay;
+        this.bandwidth = bandwidth;
+    }
+
+
+    /**
+     * Opens an Endpoint on a Given Port
+     * @param port the port
+     * @return the endpoint
+     * @throws SocketException if the port is in use
+     */
+    public synchronized Endpoint bind(int port) throws SocketException
+    {
+        if (endpoints.containsKey(port))
+        {
+            throw new SocketException("Address already in use: " + port);
+        }
+
+        Endpoint endpoint = new Endpoint();
+        endpoint.port = port;
+        endpoint.random = new Random(seed * 31 + port);
+        endpoints.put(port, endpoint);
+        return endpoint;
+    }
+
+    /**
+     * Opens an Endpoint on the Next Free Ephemeral Port
+     * Ports are handed out in order, so a run is repeatable
+     * @return the endpoint
+     * @throws SocketException
+     */
+    @Override
+    public synchronized DatagramTransport open() throws SocketException
+    {
+        while (endpoints.containsKey(nextPort))
+        {
+            nextPort++;
+        }
+        return bind(nextPort++);
+    }
+
+    /**
+     * Gets the Address Every Endpoint Shares
+     * @return the address
+     */
+    public InetAddress getAddress()
+    {
+        return address;
+    }
+
+    /**
+     * Gets the Virtual Time
+     * @return ms since the network was created
+     */
+    public synchronized long now()
+    {
+        return now;
+    }
+
+    /**
+     * Gets the Timing Wheel on the Virtual Clock
+     * Timers expire as virtual time passes them, their actions run on whichever
+     * thread moved it
+     * @return the wheel
+     */
+    public TimingWheel timers()
+    {
+        return timers;
+    }
+
+    /**
+     * Summarises the Packets Seen So Far
+     * @return counters as text
+     */
+    public synchronized String stats()
+    {
+        return "sent " + sent + ", lost " + lost + ", duplicated " + duplicated
+                + ", reordered " + reordered + ", delivered " + delivered;
+    }
+
+
+    /**
+     * Puts a Packet in Flight
+     * @param sourcePort sending port
+     * @param destinationPort receiving port
+     * @param data packet data
+     * @param arrival virtual arrival time
+     */
+    protected void schedule(int sourcePort, int destinationPort, byte[] data, long arrival)
+    {
+        Delivery delivery = new Delivery();
+        delivery.time = arrival;
+        delivery.sequence = sequence++;
+        delivery.sourcePort = sourcePort;
+        delivery.destinationPort = destinationPort;
+        delivery.data = data;
+        inFlight.add(delivery);
+    }
+
+    /**
+     * Moves Virtual Time to the Next Event
+     * Only once every endpoint is waiting in receive and none of them can return yet,
+     * otherwise some thread still has work to do at the current time
+     */
+    protected void advance()
+    {
+        if (expiring || blocked < endpoints.size())
+        {
+            return;
+        }
+
+        long next = Long.MAX_VALUE;
+        for (Endpoint endpoint : endpoints.values())
+        {
+            if (!endpoint.waiting || !endpoint.received.isEmpty() || endpoint.deadline <= now)
+            {
+                return;
+            }
+            next = Math.min(next, endpoint.deadline);
+        }
+        if (!inFlight.isEmpty())
+        {
+            next = Math.min(next, inFlight.peek().time);
+        }
+        if (next == Long.MAX_VALUE)
+        {
+            return; // everyone waits forever, nothing can happen
+        }
+
+        now = Math.max(now, next);
+
+        // hand over everything that has arrived by now
+        while (!inFlight.isEmpty() && inFlight.peek().time <= now)
+        {
+            Delivery delivery = inFlight.poll();
+            Endpoint endpoint = endpoints.get(delivery.destinationPort);
+
+            if (endpoint != null)
+            {
+                endpoint.received.add(delivery);
+                delivered++;
+            }
+        }
+
+        // an action may close an endpoint, which mustn't move time again under it
+        expiring = true;
+        try
+        {
+            timers.expireDue();
+        }
+        finally
+        {
+            expiring = false;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Waits Until Another Thread Changes the Network
+     * @throws SocketException if interrupted
+     */
+    protected void waitForNetwork() throws SocketException
+    {
+        try
+        {
+            wait();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Interrupted");
+        }
+    }
+}
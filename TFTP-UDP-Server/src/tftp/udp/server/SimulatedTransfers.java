@@ -0,0 +1,227 @@
+package tftp.udp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import tftp.common.BlockReader;
+import tftp.common.Storage;
+import tftp.common.TransferEngine;
+import tftp.udp.client.TFTPUDPClient;
+
+/**
+ * Runs the Server and Client over a Simulated Network
+ * Repeatable lossy transfer scenarios for comparing retransmission behaviour across changes.
+ * Both ends are the real code, the client keeps its local files in a directory of its own.
+ * Scenario settings are system properties:
+ *   sim.seed, sim.loss, sim.duplicate, sim.reorder (probabilities),
+ *   sim.latency, sim.jitter, sim.reorderDelay (ms), sim.bandwidth (bytes/s, 0 unlimited),
+ *   sim.sizeKB, sim.transfers, sim.mode (rrq, wrq or both)
+ * @author 105977
+ */
+public class SimulatedTransfers {
+
+    protected SimulatedNetwork network;
+    protected File directory; // the client's local files
+    protected TFTPUDPClient client; // the current transfer's
+    protected long retransmits; // of the clients already closed
+
+
+    /**
+     * Constructs a Scenario Runner
+     * @param network the simulated network, already serving on the server port
+     * @param directory where the client reads and writes its files
+     */
+    public SimulatedTransfers(SimulatedNetwork network, File directory)
+    {
+        this.network = network;
+        this.directory = directory;
+    }
+
+
+    /**
+     * Reads a File from the Server
+     * @param filename the file
+     * @return the data received
+     * @throws IOException if the transfer fails
+     */
+    public byte[] read(String filename) throws IOException
+    {
+        open();
+        if (!client.retrieve(filename))
+        {
+            throw new IOException("RRQ of " + filename + " didn't complete");
+        }
+        return Files.readAllBytes(new File(directory, filename).toPath());
+    }
+
+    /**
+     * Writes a File to the Server
+     * @param filename the file
+     * @param data the data to send
+     * @throws IOException if the transfer fails
+     */
+    public void write(String filename, byte[] data) throws IOException
+    {
+        Files.write(new File(directory, filename).toPath(), data);
+        open();
+        if (!client.store(filename))
+        {
+            throw new IOException("WRQ of " + filename + " didn't complete");
+        }
+    }
+
+    /**
+     * Closes the Client
+     */
+    public void close()
+    {
+        if (client != null)
+        {
+            retransmits += client.getRetransmits();
+            client.close();
+            client = null;
+        }
+    }
+
+    /**
+     * Gets the Number of Client Retransmits
+     * @return retransmits over every transfer so far
+     */
+    public long getRetransmits()
+    {
+        return retransmits + (client != null ? client.getRetransmits() : 0);
+    }
+
+
+    /**
+     * Opens a New Client - Each Transfer Uses its Own TID
+     * The previous one stays open until now, so virtual time can't run on
+     * while this thread is busy between transfers
+     * @throws IOException
+     */
+    protected void open() throws IOException
+    {
+        TFTPUDPClient previous = client;
+
+        client = new TFTPUDPClient(network.open(), network.getAddress());
+        client.setDirectory(directory);
+
+        if (previous != null)
+        {
+            retransmits += previous.getRetransmits();
+            previous.close();
+        }
+    }
+
+    /**
+     * Reads a File Back from the Server's Storage
+     * @param filename the file
+     * @return its data
+     * @throws IOException
+     */
+    protected static byte[] readStored(String filename) throws IOException
+    {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] block = new byte[64 * 1024];
+        int length;
+
+        try (BlockReader in = TransferEngine.openRead(filename, block.length, 1))
+        {
+            do
+            {
+                length = in.next(block);
+                data.write(block, 0, length);
+            }
+            while (length == block.length);
+        }
+        return data.toByteArray();
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        long seed = Long.getLong("sim.seed", 1L);
+        SimulatedNetwork network = new SimulatedNetwork(seed,
+                Double.parseDouble(System.getProperty("sim.loss", "0.05")),
+                Double.parseDouble(System.getProperty("sim.duplicate", "0")),
+                Double.parseDouble(System.getProperty("sim.reorder", "0")),
+                Long.getLong("sim.latency", 20L),
+                Long.getLong("sim.jitter", 0L),
+                Long.getLong("sim.reorderDelay", 50L),
+                Long.getLong("sim.bandwidth", 0L));
+        int size = Integer.getInteger("sim.sizeKB", 1024) * 1024;
+        int transfers = Integer.getInteger("sim.transfers", 10);
+        String mode = System.getProperty("sim.mode", "both");
+
+        // the server opens its sessions on the simulated network and expires them on its clock
+        TFTPUDPServer.transports = network;
+        TFTPUDPServer.timers = network.timers();
+        TFTPUDPServer listener = new TFTPUDPServer(network.bind(TFTPUDPServer.PORT));
+        listener.setDaemon(true);
+        listener.start();
+
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        // names in the served root, the server refuses any outside it
+        String source = "sim" + System.nanoTime() + ".bin";
+        String upload = "sim" + System.nanoTime() + ".up";
+
+        // through the server's storage, so any backend can be tried
+        try (Storage.Upload out = TransferEngine.backend.create(source))
+        {
+            out.write(content);
+            out.commit();
+        }
+
+        File directory = Files.createTempDirectory("tftp-sim").toFile();
+        SimulatedTransfers client = new SimulatedTransfers(network, directory);
+        long wallStart = System.currentTimeMillis();
+        int failed = 0;
+
+        for (int i = 0; i < transfers; i++)
+        {
+            try
+            {
+                if (!mode.equals("wrq") && !Arrays.equals(client.read(source), content))
+                {
+                    System.out.println("Transfer " + i + ": RRQ data mismatch");
+                    failed++;
+                }
+                if (!mode.equals("rrq"))
+                {
+                    client.write(upload, content);
+                    if (!Arrays.equals(readStored(upload), content))
+                    {
+                        System.out.println("Transfer " + i + ": WRQ data mismatch");
+                        failed++;
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                System.out.println("Transfer " + i + ": " + e);
+                failed++;
+            }
+        }
+
+        client.close();
+        TransferEngine.backend.delete(source);
+        TransferEngine.backend.delete(upload);
+        new File(directory, source).delete();
+        new File(directory, upload).delete();
+        directory.delete();
+
+        long virtual = network.now();
+        long wall = System.currentTimeMillis() - wallStart;
+        int directions = mode.equals("both") ? 2 : 1;
+        long bytes = (long) size * transfers * directions;
+
+        System.out.println("Seed " + seed + ", " + transfers + " x " + mode + " of " + size / 1024 + " KB, " + failed + " failed");
+        System.out.println("Virtual time " + virtual + " ms, wall time " + wall + " ms, "
+                + String.format("%.2f", virtual > 0 ? bytes * 1000.0 / virtual / 1024 : 0) + " KB/s virtual");
+        System.out.println("Client retransmits " + client.getRetransmits() + ", packets " + network.stats());
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -2,16 +2,44 @@ package tftp.udp.server;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.AccessDeniedException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import tftp.common.AdmissionController;
+import tftp.common.BandwidthShaper;
+import tftp.common.BlockReader;
+import tftp.common.BufferPool;
+import tftp.common.ChunkStore;
+import tftp.common.DatagramTransport;
+import tftp.common.DigestCache;
+import tftp.common.DiskWriter;
+import tftp.common.EventLog;
+import tftp.common.FlightEvents;
+import tftp.common.MeteredStorage;
+import tftp.common.Packets;
+import tftp.common.RingWriter;
+import tftp.common.SocketTransport;
+import tftp.common.Storage;
+import tftp.common.TimingWheel;
+import tftp.common.TransferEngine;
 
 /**
  * TFTP Server Built on UDP
@@ -19,234 +47,1180 @@ import java.util.Arrays;
  */
 public class TFTPUDPServer extends Thread {
     
-    protected DatagramSocket socket;
+    protected DatagramTransport socket; // a real socket, or a simulated one for loss testing
     protected DatagramPacket receivedPacket;
     protected DatagramPacket packet;
+    protected DatagramPacket request; // RRQ or WRQ served by this session, null for the listener
     
     protected String filename; // filename requested by client
     protected int clientPort;
     protected InetAddress clientIP;
     
     // TFTP opcodes
-    protected static final byte RRQ [] = new byte[] {0,1};
-    protected static final byte WRQ [] = new byte[] {0,2};
-    protected static final byte ACK [] = new byte[] {0,4};
-    protected static final byte DATA [] = new byte[] {0,3};
-    protected static final byte ERROR [] = new byte[] {0,5};
+    protected static final byte RRQ [] = Packets.RRQ;
+    protected static final byte WRQ [] = Packets.WRQ;
+    protected static final byte ACK [] = Packets.ACK;
+    protected static final byte DATA [] = Packets.DATA;
+    protected static final byte ERROR [] = Packets.ERROR;
+    protected static final byte OACK [] = Packets.OACK;
+    protected static final byte DIGEST [] = Packets.DIGEST;
+    protected static final byte BLAST [] = Packets.BLAST;
+    protected static final byte NAK [] = Packets.NAK;
     
     // File Not Found Error Code
-    protected static final byte ERROR_CODE [] = new byte[] {0,1};
-    protected static final String ERROR_MSG = "File not found";
-    protected static byte SEPARATOR = 0;
+    protected static final byte ERROR_CODE [] = Packets.ERROR_CODE;
+    protected static final String ERROR_MSG = Packets.ERROR_MSG;
+    
+    // Server Busy Error
+    protected static final byte BUSY_ERROR_CODE [] = Packets.BUSY_ERROR_CODE;
+    protected static final String BUSY_MSG = Packets.BUSY_MSG;
+    
+    // Checksum Mismatch Error
+    protected static final byte CHECKSUM_ERROR_CODE [] = Packets.CHECKSUM_ERROR_CODE;
+    protected static final String CHECKSUM_MSG = Packets.CHECKSUM_MSG;
+    protected static byte SEPARATOR = Packets.SEPARATOR;
     
     protected byte[] blockNumber = new byte[2];
     
     protected ByteArrayInputStream bis; // used for reading packet data
-    protected FileOutputStream fos; // used to write data to file
-    protected FileInputStream fis; // used to read file data
-    protected ByteArrayOutputStream bos; // used to write file data
+    
+    // packets are built and received in buffers borrowed for the session, not allocated per packet
+    protected static BufferPool buffers = BufferPool.forSize(516);
+    protected ByteBuffer sendBuffer;
+    protected ByteBuffer receiveBuffer;
+    protected DatagramPacket sendPacket; // wraps the send buffer, reused for every packet built in it
+    protected ByteBuffer blastBuffer; // sized to the blast block size while blasting
+    protected DatagramPacket blastPacket;
+    protected Storage.Upload fos; // used to write data to file, published once it is all received
+    protected RingWriter ring; // hands WRQ blocks to a writer thread, null when they are written on this one
+    protected BlockReader fis; // reads file data ahead of the ACKs
+    
+    protected Map<String, String> requestedOptions = new LinkedHashMap<>(); // every option in the request
+    protected Map<String, String> acceptedOptions = new LinkedHashMap<>(); // options sent back in the OACK
+    protected MessageDigest digest; // hashes file data as it passes, null when not requested
+    protected long bytesTransferred; // file data sent or received by this session
+    protected String summary; // how the transfer went, logged with its complete event
+    
+    // round trips for flight recorder events
+    protected int blksize = 512; // bytes per DATA block of this session
+    protected long lastSendNanos; // last send of the packet being waited on
+    protected long rttTotal; // nanos, over every ACK received
+    protected int rttCount;
     
     protected static int MAX_RETRIES = 10; // max number of retransmits on socket timeout
     protected int retries; // current number of retransmit attempts
     
+    // sessions not heard from for this long are ended whatever they are waiting on, ms, 0 turns it off
+    protected static long SESSION_TIMEOUT = Long.getLong("tftp.session.timeout", 120000L);
+    protected static TimingWheel timers = TransferEngine.timers; // the simulator swaps in one on its virtual clock
+    protected TimingWheel.Timer expiry; // moved on lazily, from the time the client was last heard
+    protected volatile long lastHeard; // ms on the transport's clock, last packet from the client
+    protected volatile boolean expired;
+    
+    // per client, per subnet and global send limits, shared with the TCP front end
+    protected static BandwidthShaper shaper = TransferEngine.shaper;
+    protected BandwidthShaper.Flow flow; // shaped flow of the current RRQ
+    
+    // limits concurrent sessions and bytes in flight, shared with the TCP front end
+    protected static AdmissionController admission = TransferEngine.admission;
+    protected Set<String> activeClients; // ip:port of running sessions, one table per listener shard
+    
+    // listener sockets sharing the port through SO_REUSEPORT, the kernel spreads requests across them
+    protected static int PORT = Integer.getInteger("tftp.udp.port", 9000);
+    protected static int SHARDS = Integer.getInteger("tftp.shards", 1);
+    protected static int RECEIVE_BUFFER = Integer.getInteger("tftp.rcvbuf", 0); // bytes, 0 leaves the OS default
+    protected static int SEND_BUFFER = Integer.getInteger("tftp.sndbuf", 0); // bytes, 0 leaves the OS default
+    
+    // deduplicating storage for uploads, manifests are only read while it is on
+    protected static boolean DEDUP = TransferEngine.DEDUP;
+    protected static ChunkStore store = TransferEngine.store;
+    
+    // digests of served files, valid while their mtime and size are unchanged
+    protected static DigestCache digests = TransferEngine.digests;
+    
+    // WRQ blocks go through a ring of this many pooled buffers to a writer thread, so they are
+    // ACKed without waiting on the disk, off by default so blocks are written on the receive thread
+    protected static int WRITE_RING = Integer.getInteger("tftp.writeRing", 0);
+    protected static String FSYNC_POLICY = System.getProperty("tftp.fsync", DiskWriter.FSYNC_NONE); // none, end or interval
+    protected static int FSYNC_INTERVAL_MB = Integer.getInteger("tftp.fsync.mb", 64); // MB between syncs for interval policy
+    
+    // blocks each RRQ keeps read ahead of the client
+    protected static int READ_AHEAD = Integer.getInteger("tftp.readAhead", 8);
+    
+    // blast mode for trusted LANs, off unless enabled: RRQs asking for it are streamed
+    // at a set or probed rate and the client NAKs only the blocks it is missing
+    protected static boolean BLAST_MODE = Boolean.getBoolean("tftp.blast");
+    protected static int BLAST_RATE = Integer.getInteger("tftp.blast.rate", 0); // Mbit/s, 0 probes for the rate
+    protected static int BLAST_START_RATE = Integer.getInteger("tftp.blast.startRate", 100); // Mbit/s a probe starts at
+    protected static int BLAST_MAX_RATE = Integer.getInteger("tftp.blast.maxRate", 10000); // Mbit/s a probe stops at
+    protected static int BLAST_BLOCK_SIZE = Integer.getInteger("tftp.blast.blockSize", 1466); // fills a 1500 byte Ethernet frame
+    protected static int BLAST_TICK = Integer.getInteger("tftp.blast.tick", 2); // ms of data sent in one burst
+    
+    // packets of every socket are recorded here when capturing, for replaying the load later
+    protected static PacketTrace trace = PacketTrace.open(System.getProperty("tftp.trace", ""),
+            Boolean.parseBoolean(System.getProperty("tftp.trace.payloads", "true")), Integer.getInteger("tftp.trace.queue", 65536));
+    
+    // opens the session sockets, replaced by a simulated network for loss testing
+    protected static DatagramTransport.Factory transports = () ->
+    {
+        DatagramSocket session = new DatagramSocket();
+        tune(session);
+        return traced(new SocketTransport(session));
+    };
+    
+    // transfer events, one log for both front ends
+    protected static EventLog events = TransferEngine.events;
+    
+    // relay mode, RRQs are served from a local cache of an upstream server's files, host:port or empty for off
+    protected static RelayCache relay = RelayCache.open(System.getProperty("tftp.relay", ""));
+    
+    
+    /**
+     * Constructs TFTP UDP Client
+     * Creates a Socket
+     * @throws IOException If Socket can't be constructed
+     */
+    public TFTPUDPServer() throws IOException
+    {
+        this(traced(new SocketTransport(openListener(false))));
+    }
+    
+    /**
+     * Constructs a TFTP UDP Listener on an Open Socket
+     * @param socket transport bound to the server port
+     */
+    protected TFTPUDPServer(DatagramTransport socket)
+    {
+        this.socket = socket;
+        activeClients = ConcurrentHashMap.newKeySet();
+    }
+    
+    /**
+     * Constructs a TFTP UDP Session for One Transfer
+     * Creates a Socket on a New Port - the Server TID
+     * @param request the RRQ or WRQ received by the listener
+     * @param activeClients session table of the listener, the session removes itself when done
+     * @throws IOException If Socket can't be constructed
+     */
+    protected TFTPUDPServer(DatagramPacket request, Set<String> activeClients) throws IOException
+    {
+        this.request = request;
+        this.activeClients = activeClients;
+        socket = transports.open();
+        clientIP = request.getAddress();
+        clientPort = request.getPort();
+    }
+    
+    
+    /**
+     * Opens a Listener Socket on the Server Port
+     * @param reusePort share the port with other listeners through SO_REUSEPORT
+     * @return the bound socket, or null if SO_REUSEPORT isn't supported here
+     * @throws IOException If Socket can't be constructed
+     */
+    protected static DatagramSocket openListener(boolean reusePort) throws IOException
+    {
+        DatagramSocket listener;
+        
+        if (reusePort)
+        {
+            // the option is looked up by name, it only exists on newer JDKs and some platforms
+            DatagramChannel channel = DatagramChannel.open();
+            SocketOption<Boolean> option = null;
+            for (SocketOption<?> supported : channel.supportedOptions())
+            {
+                if (supported.name().equals("SO_REUSEPORT") && supported.type() == Boolean.class)
+                {
+                    @SuppressWarnings("unchecked")
+                    SocketOption<Boolean> reuse = (SocketOption<Boolean>) supported;
+                    option = reuse;
+                }
+            }
+            
+            if (option == null)
+            {
+                channel.close();
+                return null;
+            }
+            
+            channel.setOption(option, true);
+            listener = channel.socket();
+        }
+        else
+        {
+            listener = new DatagramSocket(null);
+        }
+        
+        // buffer sizes are set before binding so the receive queue is sized from the start
+        tune(listener);
+        listener.bind(new InetSocketAddress(PORT));
+        return listener;
+    }
+    
+    /**
+     * Records a Transport's Packets in the Trace When Capturing
+     * @param transport the transport
+     * @return the transport, wrapped if capturing
+     */
+    protected static DatagramTransport traced(DatagramTransport transport)
+    {
+        return trace == null ? transport : new TracingTransport(transport, trace);
+    }
+    
+    /**
+     * Applies the Configured Socket Buffer Sizes
+     * @param socket the socket
+     * @throws SocketException
+     */
+    protected static void tune(DatagramSocket socket) throws SocketException
+    {
+        if (RECEIVE_BUFFER > 0)
+        {
+            socket.setReceiveBufferSize(RECEIVE_BUFFER);
+        }
+        if (SEND_BUFFER > 0)
+        {
+            socket.setSendBufferSize(SEND_BUFFER);
+        }
+    }
+    
+    
+    @Override
+    public void run()
+    {
+        // Sessions Serve Their Own Transfer
+        if (request != null)
+        {
+            serve();
+            return;
+        }
+        
+        // maximum size of received packet
+        byte[] receiveData = new byte[516]; 
+        receivedPacket = new DatagramPacket(receiveData,receiveData.length);
+        
+        while (true)
+        {
+            try
+            {
+                // Receive The Packet
+                receivedPacket.setLength(receiveData.length);
+                socket.receive(receivedPacket);
+                
+                // Extract Opcode
+                bis = new ByteArrayInputStream(receivedPacket.getData());
+                byte[] opcode = new byte[2];
+                bis.read(opcode,0,2);
+                
+                // Extract Client Port and IP Address
+                clientPort = receivedPacket.getPort();
+                clientIP = receivedPacket.getAddress();
+                
+                // If Client Sent RRQ or WRQ
+                if (Arrays.equals(opcode,RRQ) || Arrays.equals(opcode,WRQ))
+                {
+                    String client = clientIP.getHostAddress() + ":" + clientPort;
+                    
+                    // a retransmitted request for a session that is already running
+                    if (activeClients.contains(client))
+                    {
+                        continue;
+                    }
+                    
+                    // copy the request, the receive buffer is reused
+                    byte[] requestData = Arrays.copyOf(receivedPacket.getData(), receivedPacket.getLength());
+                    TFTPUDPServer session = new TFTPUDPServer(new DatagramPacket(requestData, requestData.length, clientIP, clientPort), activeClients);
+                    
+                    if (admission.enqueue())
+                    {
+                        activeClients.add(client);
+                        session.start();
+                    }
+                    else
+                    {
+                        // queue is full, refuse straight away
+                        session.socket.close();
+                        sendErrorPacket(ERROR,BUSY_ERROR_CODE,BUSY_MSG);
+                        events.log(EventLog.ERROR, client, null, 0, 0, BUSY_MSG);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+
+            }
+        }
+    }
+    
+    
+    /**
+     * Serves a Single RRQ or WRQ
+     * Waits in the Admission Queue First
+     * Sends a Server Busy Error if not Admitted in Time
+     */
+    public void serve()
+    {
+        long bytes = 0; // bytes this transfer puts in flight
+        boolean admitted = false;
+        boolean queued = true; // the queue place enqueue took, given up by admit
+        boolean listed = true; // still in the listener's session table
+        long startTime = socket.currentTimeMillis();
+        
+        FlightEvents.Complete complete = new FlightEvents.Complete();
+        complete.begin();
+        
+        sendBuffer = buffers.acquire();
+        receiveBuffer = buffers.acquire();
+        sendPacket = new DatagramPacket(sendBuffer.array(), 0, clientIP, clientPort);
+        receivedPacket = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+        
+        lastHeard = socket.currentTimeMillis();
+        if (SESSION_TIMEOUT > 0)
+        {
+            expiry = new TimingWheel.Timer(this::expire);
+            timers.schedule(expiry, SESSION_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        
+        try
+        {
+            // Extract Opcode
+            bis = new ByteArrayInputStream(request.getData(), 0, request.getLength());
+            byte[] opcode = new byte[2];
+            bis.read(opcode,0,2);
+            
+            extractFileName();
+            extractOptions();
+            
+            events.log(EventLog.REQUEST, clientName(), filename, 0, 0, Arrays.equals(opcode,RRQ) ? "RRQ" : "WRQ");
+            
+            FlightEvents.Request received = new FlightEvents.Request();
+            if (received.shouldCommit())
+            {
+                received.transport = "udp";
+                received.client = clientName();
+                received.file = filename;
+                received.type = Arrays.equals(opcode,RRQ) ? "RRQ" : "WRQ";
+                received.commit();
+            }
+            
+            // a RRQ puts the whole file in flight
+            if (Arrays.equals(opcode,RRQ))
+            {
+                bytes = TransferEngine.length(filename);
+            }
+            
+            queued = false;
+            admitted = admission.admit(bytes);
+            
+            if (!admitted)
+            {
+                sendErrorPacket(ERROR,BUSY_ERROR_CODE,BUSY_MSG);
+                events.log(EventLog.ERROR, clientName(), filename, 0, socket.currentTimeMillis() - startTime, BUSY_MSG);
+                return;
+            }
+            else if (Arrays.equals(opcode,WRQ))
+            {
+                receiveFile();
+            }
+            else
+            {
+                sendFile();
+            }
+            
+            events.log(EventLog.COMPLETE, clientName(), filename, bytesTransferred, socket.currentTimeMillis() - startTime, summary);
+            
+            complete.end();
+            if (complete.shouldCommit())
+            {
+                complete.transport = "udp";
+                complete.client = clientName();
+                complete.file = filename;
+                complete.blksize = blksize;
+                complete.bytes = bytesTransferred;
+                complete.rtt = rttCount == 0 ? 0 : rttTotal / rttCount;
+                complete.commit();
+            }
+            
+            // the client may not have our final ACK, keep answering it while letting new requests in
+            if (Arrays.equals(opcode,WRQ))
+            {
+                admission.release(bytes);
+                admitted = false;
+                activeClients.remove(clientName());
+                listed = false;
+                dally();
+            }
+        }
+        catch (SocketTimeoutException e)
+        {
+            events.log(EventLog.TIMEOUT, clientName(), filename, bytesTransferred, socket.currentTimeMillis() - startTime, "gave up after " + MAX_RETRIES + " retries");
+        }
+        catch (AccessDeniedException e)
+        {
+            // a name outside the served root, the client is told rather than left retrying
+            events.log(EventLog.ERROR, clientName(), filename, 0, socket.currentTimeMillis() - startTime, e.toString());
+            try
+            {
+                sendErrorPacket(ERROR,Packets.ACCESS_ERROR_CODE,Packets.ACCESS_MSG);
+            }
+            catch (IOException ex)
+            {
+                // the client times out instead
+            }
+        }
+        catch (IOException | InterruptedException e)
+        {
+            if (expired)
+            {
+                events.log(EventLog.TIMEOUT, clientName(), filename, bytesTransferred, socket.currentTimeMillis() - startTime,
+                        "expired, nothing from the client for " + SESSION_TIMEOUT + " ms");
+            }
+            else
+            {
+                events.log(EventLog.ERROR, clientName(), filename, bytesTransferred, socket.currentTimeMillis() - startTime, e.toString());
+            }
+        }
+        finally
+        {
+            if (expiry != null)
+            {
+                timers.cancel(expiry);
+            }
+            
+            // a request that ended before admission still holds its queue place
+            if (queued)
+            {
+                admission.dequeue();
+            }
+            if (admitted)
+            {
+                admission.release(bytes);
+            }
+            
+            if (listed)
+            {
+                activeClients.remove(clientName());
+            }
+            socket.close();
+            
+            // this thread is ending, its magazine goes back to the shared pool
+            buffers.release(sendBuffer);
+            buffers.release(receiveBuffer);
+            buffers.flush();
+        }
+    }
+    
+    
+    /**
+     * Serves a WRQ
+     * Receives Data Packets on the Session Socket
+     * Writes Data To A File and ACKs each Packet
+     * @throws IOException
+     */
+    public void receiveFile() throws IOException
+    {
+        // Initialise Block Number
+        blockNumber[0] = 0;
+        blockNumber[1] = 0;
+        
+        // a digest option turns the first ACK into an OACK
+        if (acceptedOptions.containsKey("digest"))
+        {
+            digest = ChunkStore.newDigest();
+            sendOACK(acceptedOptions);
+        }
+        else
+        {
+            sendACK(ACK,blockNumber);
+        }
+        
+        FlightEvents.FileOpen opened = new FlightEvents.FileOpen();
+        opened.begin();
+        
+        fos = TransferEngine.openWrite(filename);
+        
+        opened.end();
+        if (opened.shouldCommit())
+        {
+            opened.transport = "udp";
+            opened.client = clientName();
+            opened.file = filename;
+            opened.commit();
+        }
+        
+        try
+        {
+            if (WRITE_RING > 0)
+            {
+                ring = new RingWriter(fos instanceof MeteredStorage.MeteredUpload
+                        ? ((MeteredStorage.MeteredUpload) fos).getChannel()
+                        : Channels.newChannel(fos), FSYNC_POLICY, FSYNC_INTERVAL_MB, buffers, WRITE_RING);
+                ring.start();
+            }
+            
+            boolean finishedReceiving = false;
+            
+            // ignored packets don't restart the timer
+            long deadline = socket.currentTimeMillis() + 10000;
+            IOException pending = null; // failure that ended the upload, reported ahead of the ring's
+            
+            try
+            {
+                while (!finishedReceiving)
+                {
+                    try
+                    {
+                        long remaining = deadline - socket.currentTimeMillis();
+                        if (remaining <= 0)
+                        {
+                            throw new SocketTimeoutException("Receive timed out");
+                        }
+                        socket.setSoTimeout((int) remaining);
+            
+                        receivePacket();
+            
+                        // ignore packets that aren't from this session's client
+                        if (!clientIP.equals(receivedPacket.getAddress()) || receivedPacket.getPort() != clientPort)
+                        {
+                            continue;
+                        }
+            
+                        // opcode and block number are read in place
+                        byte[] data = receivedPacket.getData();
+                        if (receivedPacket.getLength() < 4 || data[0] != DATA[0] || data[1] != DATA[1])
+                        {
+                            continue;
+                        }
+            
+                        // our ACK was lost and the client resent the block
+                        if (data[2] == blockNumber[0] && data[3] == blockNumber[1])
+                        {
+                            socket.send(packet);
+                            continue;
+                        }
+            
+                        // a late copy of an older block must not be written twice
+                        if (!isNextBlock(data[2], data[3]))
+                        {
+                            continue;
+                        }
+            
+                        blockNumber[0] = data[2];
+                        blockNumber[1] = data[3];
+                        retries = 0;
+                        deadline = socket.currentTimeMillis() + 10000;
+            
+                        // Write File Data, with the ring this only waits if the disk is a whole ring behind
+                        int dataLength = receivedPacket.getLength() - 4;
+                        FlightEvents.DiskWriteStall stall = new FlightEvents.DiskWriteStall();
+                        stall.begin();
+            
+                        if (ring != null)
+                        {
+                            ring.write(receivedPacket.getData(), 4, dataLength);
+                        }
+                        else
+                        {
+                            fos.write(receivedPacket.getData(), 4, dataLength);
+                        }
+            
+                        stall.end();
+                        if (stall.shouldCommit())
+                        {
+                            stall.transport = "udp";
+                            stall.client = clientName();
+                            stall.file = filename;
+                            stall.bytes = bytesTransferred;
+                            stall.commit();
+                        }
+                        bytesTransferred += dataLength;
+            
+                        if (digest != null)
+                        {
+                            digest.update(receivedPacket.getData(), 4, dataLength);
+                        }
+            
+                        if (dataLength == 512)
+                        {
+                            sendACK(ACK,blockNumber);
+                        }
+                        else if (digest != null)
+                        {
+                            // keep the timer running until the client's digest arrives
+                            sendACK(ACK,blockNumber);
+                            finishedReceiving = true;
+                        }
+                        else
+                        {
+                            // This Was The Last Data Sent, only confirmed once it is on disk and published
+                            finishRing();
+                            commitUpload();
+                            sendLastACK(ACK,blockNumber);
+                            finishedReceiving = true;
+                        }
+                    }
+                    catch (SocketTimeoutException e)
+                    {
+                        retransmit(e);
+                        deadline = socket.currentTimeMillis() + 10000;
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                pending = e;
+                throw e;
+            }
+            finally
+            {
+                // wait for the ring to drain before closing
+                try
+                {
+                    finishRing();
+                }
+                catch (IOException e)
+                {
+                    if (pending == null)
+                    {
+                        throw e;
+                    }
+                    if (e != pending)
+                    {
+                        pending.addSuppressed(e);
+                    }
+                }
+                finally
+                {
+                    bis.close();
+                }
+            }
+            
+            if (digest != null)
+            {
+                receiveDigest(ChunkStore.toHex(digest.digest()));
+            }
+        }
+        finally
+        {
+            // discards the upload unless it was committed
+            fos.close();
+        }
+    }
+    
+    /**
+     * Publishes the Upload Before its Last Block is ACKed
+     * The client is sent an ERROR instead if it can't be stored
+     * @throws IOException if the commit failed
+     */
+    protected void commitUpload() throws IOException
+    {
+        try
+        {
+            fos.commit();
+        }
+        catch (IOException e)
+        {
+            sendErrorPacket(ERROR,Packets.STORE_ERROR_CODE,Packets.STORE_MSG);
+            throw e;
+        }
+    }
+    
+    /**
+     * Waits for the Ring Writer to Flush Every Block Received
+     * Does nothing without a ring or once it has finished
+     * @throws IOException if a write or sync failed
+     */
+    protected void finishRing() throws IOException
+    {
+        if (ring != null)
+        {
+            ring.finish();
+            if (ring.getFullWaits() > 0)
+            {
+                summary = "ring full for " + ring.getFullWaits() + " blocks";
+            }
+        }
+    }
+    
+    
+    /**
+     * Waits for the Client's Digest of an Upload
+     * Re-ACKs the Last Block until it Arrives
+     * Commits the Upload if the Digests Match, Discards it Otherwise
+     * @param actual hex digest of the data received
+     * @throws IOException
+     */
+    public void receiveDigest(String actual) throws IOException
+    {
+        while (true)
+        {
+            try
+            {
+                receivePacket();
+                
+                // ignore packets that aren't from this session's client
+                if (!clientIP.equals(receivedPacket.getAddress()) || receivedPacket.getPort() != clientPort)
+                {
+                    continue;
+                }
+                
+                bis = new ByteArrayInputStream(receivedPacket.getData(), 0, receivedPacket.getLength());
+                byte[] opcode = new byte[2];
+                bis.read(opcode,0,2);
+                
+                // the client missed our last ACK and resent the block
+                if (Arrays.equals(opcode,DATA))
+                {
+                    socket.send(packet);
+                }
+                
+                if (Arrays.equals(opcode,DIGEST))
+                {
+                    String expected = readString();
+                    boolean verified;
+                    
+                    try
+                    {
+                        verified = TransferEngine.verifyUpload(filename, fos, actual, expected);
+                    }
+                    catch (IOException e)
+                    {
+                        sendErrorPacket(ERROR,Packets.STORE_ERROR_CODE,Packets.STORE_MSG);
+                        throw e;
+                    }
+                    
+                    if (verified)
+                    {
+                        sendLastACK(ACK,blockNumber);
+                    }
+                    else
+                    {
+                        sendErrorPacket(ERROR,CHECKSUM_ERROR_CODE,CHECKSUM_MSG);
+                    }
+                    return;
+                }
+            }
+            catch (SocketTimeoutException e)
+            {
+                retransmit(e);
+            }
+        }
+    }
+    
+    
+    /**
+     * Serves a RRQ
+     * Blocks of 512 Bytes are Read Ahead While Waiting for ACKs
+     * Sends each Data Packet and Waits for its ACK,
+     * or Blasts the File when the Client Asked and Blast Mode is On
+     * @throws IOException
+     */
+    public void sendFile() throws IOException
+    {
+        blockNumber[0] = 0;
+        blockNumber[1] = 0;
+        
+        try
+        {
+            int blastRate = blastRate();
+            boolean relayed = false; // streaming a file still arriving from upstream
+            
+            FlightEvents.FileOpen opened = new FlightEvents.FileOpen();
+            opened.begin();
+            
+            // a relayed file still arriving from upstream can't be read at random for blast resends
+            if (relay != null)
+            {
+                fis = relay.open(filename, 512);
+                relayed = fis != null;
+                if (relayed)
+                {
+                    blastRate = -1;
+                }
+            }
+            
+            int blockSize = blastRate < 0 ? 512 : BLAST_BLOCK_SIZE;
+            blksize = blockSize;
+            
+            // start reading ahead straight away, the first blocks load during the OACK round trip
+            if (fis == null)
+            {
+                fis = TransferEngine.openRead(filename, blockSize, READ_AHEAD);
+            }
+            
+            // file state the digest will be cached against
+            Storage.Stat stat = fis.stat();
+            
+            opened.end();
+            if (opened.shouldCommit())
+            {
+                opened.transport = "udp";
+                opened.client = clientName();
+                opened.file = filename;
+                opened.bytes = stat.size;
+                opened.commit();
+            }
+            
+            // DATA packets are sent through the shaper
+            flow = shaper.open(clientIP);
+            
+            // the client needs the block size and length to know which blocks it is missing
+            if (blastRate >= 0)
+            {
+                acceptedOptions.put("blast", Integer.toString(blastRate));
+                acceptedOptions.put("blksize", Integer.toString(blockSize));
+                acceptedOptions.put("tsize", Long.toString(stat.size));
+            }
+            
+            // RFC 2349 transfer size, and the modification time relays revalidate their copies with
+            if (requestedOptions.containsKey("tsize"))
+            {
+                acceptedOptions.put("tsize", Long.toString(stat.size));
+            }
+            if (requestedOptions.containsKey("mtime"))
+            {
+                acceptedOptions.put("mtime", Long.toString(stat.modified));
+            }
+            
+            // options are acknowledged before the first DATA packet
+            String fileDigest = null;
+            if (!acceptedOptions.isEmpty())
+            {
+                sendOACK(acceptedOptions);
+                receiveACK();
+            }
+            
+            // hash the blocks as they go out, unless the digest is already known
+            // the cache describes the stored copy, not one still arriving from upstream
+            if (acceptedOptions.containsKey("digest"))
+            {
+                fileDigest = relayed ? null : TransferEngine.cachedDigest(filename);
+                if (fileDigest == null)
+                {
+                    digest = ChunkStore.newDigest();
+                }
+            }
+            
+            if (blastRate >= 0)
+            {
+                blast(stat, blockSize, blastRate);
+            }
+            else
+            {
+                byte[] block = new byte[512];
+                int length;
+                
+                do
+                {
+                    // next block is normally already in memory
+                    length = fis.next(block);
+                    byte[] fileData = length == block.length ? block : Arrays.copyOf(block, length);
+                    
+                    incrementBlockNumber();
+                    sendDataPacket(DATA,blockNumber,fileData);
+                    
+                    // wait for ACK from Client, the last one after a block of less than 512 bytes
+                    receiveACK();
+                }
+                while (length == block.length);
+            }
+            
+            // finish with the digest so the client can check what it received
+            if (acceptedOptions.containsKey("digest"))
+            {
+                if (fileDigest == null)
+                {
+                    fileDigest = ChunkStore.toHex(digest.digest());
+                    if (!relayed)
+                    {
+                        TransferEngine.sent(filename, stat, fileDigest);
+                    }
+                }
+                
+                sendDigestPacket(fileDigest);
+                receiveACK();
+            }
+        }
+        catch (FileNotFoundException e)
+        {
+            sendErrorPacket(ERROR,ERROR_CODE,ERROR_MSG);
+        }
+        catch (RelayCache.UpstreamException e)
+        {
+            // tell the client rather than leave it retrying, the failure is still logged
+            sendErrorPacket(ERROR,Packets.UPSTREAM_ERROR_CODE,Packets.UPSTREAM_MSG);
+            throw e;
+        }
+        finally
+        {
+            // give this transfer's share of bandwidth back
+            if (flow != null)
+            {
+                flow.close();
+                flow = null;
+            }
+            
+            // stop reading ahead and close the file
+            if (fis != null)
+            {
+                fis.close();
+                fis = null;
+            }
+        }
+    }
+    
     
     /**
-     * Constructs TFTP UDP Client
-     * Creates a Socket
-     * @throws SocketException If Socket can't be constructed
+     * Picks the Blast Rate for a RRQ
+     * The lower of the client's and the server's rate when both set one
+     * @return Mbit/s, 0 to probe for it, -1 to serve the RRQ in standard mode
      */
-    public TFTPUDPServer() throws SocketException
+    protected int blastRate()
     {
-        socket = new DatagramSocket(9000);
+        String requested = requestedOptions.get("blast");
+        if (!BLAST_MODE || requested == null)
+        {
+            return -1;
+        }
+        
+        int rate;
+        try
+        {
+            rate = Integer.parseInt(requested);
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+        
+        if (rate <= 0 || (BLAST_RATE > 0 && BLAST_RATE < rate))
+        {
+            return BLAST_RATE;
+        }
+        return rate;
     }
     
-    
-    @Override
-    public void run()
+    /**
+     * Streams a File in Blast Mode
+     * Blocks go out in bursts every tick, paced to the rate, without waiting for ACKs.
+     * Between bursts the client's NAKs are read, they say how many blocks have arrived
+     * and list the gaps, which are resent ahead of new blocks.
+     * When probing, the rate goes up while NAKs show little loss and down when they show more.
+     * Ends once the client has every block
+     * @param stat the file being sent
+     * @param blockSize bytes per block
+     * @param rate Mbit/s, 0 to probe for it
+     * @throws IOException
+     */
+    public void blast(Storage.Stat stat, int blockSize, int rate) throws IOException
     {
-        // maximum size of received packet
-        byte[] receiveData = new byte[516]; 
+        long total = stat.size / blockSize + 1; // the last block is short, maybe empty
+        long next = 1; // next block sent for the first time
+        ArrayDeque<long[]> resend = new ArrayDeque<>(); // first and last block of each gap
         
-        while (true)
+        boolean probing = rate == 0;
+        double mbits = probing ? BLAST_START_RATE : rate;
+        double credit = 0; // bytes that may still go out this tick
+        long tickEnd = socket.currentTimeMillis();
+        long reported = 0; // highest block the client had seen at its last NAK
+        
+        long resent = 0;
+        
+        byte[] block = new byte[blockSize];
+        Storage.Handle blocks = null; // random access for resends, opened on the first one
+        boolean complete = false;
+        
+        // ignored packets don't restart the timer
+        long deadline = socket.currentTimeMillis() + 10000;
+        
+        BufferPool blastBuffers = BufferPool.forSize(blockSize + 6);
+        blastBuffer = blastBuffers.acquire();
+        blastPacket = new DatagramPacket(blastBuffer.array(), 0, clientIP, clientPort);
+        
+        try
         {
-            try
+            while (!complete)
             {
-                // Receive The Packet
-                receivedPacket = new DatagramPacket(receiveData,receiveData.length);
-                socket.receive(receivedPacket);
-                
-                // Extract Opcode
-                bis = new ByteArrayInputStream(receivedPacket.getData());
-                byte[] opcode = new byte[2];
-                bis.read(opcode,0,2);
-                
-                // Extract Client Port and IP Address
-                clientPort = receivedPacket.getPort();
-                clientIP = receivedPacket.getAddress();
-                
-                // If Client Sent WRQ
-                if (Arrays.equals(opcode,WRQ))
-                {
-                    // Initialise Block Number
-                    blockNumber[0] = 0;
-                    blockNumber[1] = 0;
-                    
-                    extractFileName();
-                    
-                    sendACK(ACK,blockNumber);
-                    
-                    fos = new FileOutputStream(filename);
-                }
-                
+                boolean sending = next <= total || !resend.isEmpty();
                 
-                // If Client Sent DATA
-                if (Arrays.equals(opcode,DATA))
+                if (sending && socket.currentTimeMillis() >= tickEnd)
                 {
-                    // Read Block Number of Data Packet
-                    bis.read(blockNumber,0, 2);
-                    
-                    // Write File Data
-                    int byteRead;
-                    int totalBytesRead = 0;
+                    // a tick's worth of data, a little more to catch up after a slow tick
+                    double perTick = mbits * 125000 * BLAST_TICK / 1000;
+                    credit = Math.min(credit + perTick, 2 * perTick);
+                    tickEnd = socket.currentTimeMillis() + BLAST_TICK;
                     
-                    while ((byteRead = bis.read()) != -1)
+                    while (credit > 0 && (next <= total || !resend.isEmpty()))
                     {
-                        if (byteRead != 0)
+                        long number;
+                        int length;
+                        
+                        if (!resend.isEmpty())
                         {
-                            fos.write(byteRead);
-                            totalBytesRead++;      
+                            long[] gap = resend.peek();
+                            number = gap[0]++;
+                            if (gap[0] > gap[1])
+                            {
+                                resend.poll();
+                            }
+                            
+                            if (blocks == null)
+                            {
+                                blocks = store.open(filename);
+                            }
+                            ByteBuffer buffer = ByteBuffer.wrap(block);
+                            ChunkStore.readFully(blocks, buffer, (number - 1) * blockSize);
+                            length = buffer.position();
+                            resent++;
                         }
                         else
                         {
-                            break;
+                            number = next++;
+                            length = fis.next(block);
+                            bytesTransferred += length;
+                            
+                            // the first pass is in order, so the digest is taken on the way
+                            if (digest != null)
+                            {
+                                digest.update(block, 0, length);
+                            }
                         }
+                        
+                        sendBlastPacket(number, block, length);
+                        credit -= length + 6;
                     }
-                    
-                    if (totalBytesRead == 512)
+                }
+                
+                // wait for NAKs until the next burst, or on the timer once everything is out
+                sending = next <= total || !resend.isEmpty();
+                long remaining = (sending ? tickEnd : deadline) - socket.currentTimeMillis();
+                
+                try
+                {
+                    if (remaining <= 0)
                     {
-                        sendACK(ACK,blockNumber); 
+                        if (sending)
+                        {
+                            continue;
+                        }
+                        throw new SocketTimeoutException("Receive timed out");
                     }
+                    socket.setSoTimeout((int) remaining);
+                    
+                    receivePacket();
                     
-                    // If This Was Last Data Sent?
-                    if (totalBytesRead < 512)
+                    byte[] data = receivedPacket.getData();
+                    if (!clientIP.equals(receivedPacket.getAddress()) || receivedPacket.getPort() != clientPort
+                            || receivedPacket.getLength() < 6 || data[0] != NAK[0] || data[1] != NAK[1])
                     {
-                        sendLastACK(ACK,blockNumber);
-                        bis.close();
-                        fos.close();
+                        continue;
                     }
-                }
-                
-                
-                // If Client Sent RRQ
-                if (Arrays.equals(opcode, RRQ))
-                {
-                    blockNumber[0] = 0;
-                    blockNumber[1] = 0;
                     
-                    extractFileName();
+                    deadline = socket.currentTimeMillis() + 10000;
+                    retries = 0;
                     
-                    try
+                    ByteBuffer nak = ByteBuffer.wrap(data, 2, receivedPacket.getLength() - 2);
+                    long received = nak.getInt() & 0xFFFFFFFFL;
+                    
+                    if (received >= total)
                     {
-                        // Used To Read File Data
-                        fis = new FileInputStream(filename);
+                        complete = true;
+                        continue;
+                    }
                     
-                        // Used To Write File Data
-                        bos = new ByteArrayOutputStream();
+                    // the gaps replace any still waiting, blocks not sent yet aren't missing
+                    long missing = 0;
+                    resend.clear();
+                    nak.mark();
+                    while (nak.remaining() >= 8)
+                    {
+                        long first = nak.getInt() & 0xFFFFFFFFL;
+                        long last = nak.getInt() & 0xFFFFFFFFL;
+                        missing += Math.max(0, last - first + 1);
+                        
+                        last = Math.min(last, next - 1);
+                        if (first >= 1 && first <= last)
+                        {
+                            resend.add(new long[] {first, last});
+                        }
+                    }
                     
-                        // start reading file data
-                        int byteRead;
-                        int totalBytesRead = 0;
-        
-                        while ((byteRead = fis.read()) != -1)
+                    // losses among the blocks seen since the last NAK mean the rate is more than
+                    // the path or the client can take, older gaps are already being resent
+                    long seen = received + missing; // the client's highest block
+                    if (probing && seen > reported)
+                    {
+                        long lost = 0;
+                        nak.reset();
+                        while (nak.remaining() >= 8)
                         {
-                            bos.write(byteRead);
-                            totalBytesRead++;
-                        
-                            if (totalBytesRead == 512)
-                            {
-                                byte[] fileData = bos.toByteArray(); // convert file data to byte array
-                                incrementBlockNumber();
-                                sendDataPacket(DATA,blockNumber,fileData);
-                            
-                                // wait for ACK from Client
-                                boolean received = false;
-                            
-                                while (!received)
-                                {
-                                    try
-                                    {
-                                        byte[] ACKPacket = new byte[4];
-                                        receivedPacket = new DatagramPacket(ACKPacket,ACKPacket.length);
-                                        socket.receive(receivedPacket);
-                                        received = true;
-                                    }
-                                    catch (SocketTimeoutException e)
-                                    {
-                                        if (retries != MAX_RETRIES)
-                                        {
-                                            System.out.println("Socket Timed Out!");
-                                            System.out.println("Retransmitting Packet...");
-                                            socket.send(packet);
-                                            socket.setSoTimeout(10000); // 10 second timer
-                                            retries++;
-                                        }
-                                    }
-                                }                          
-                                // carry on reading
-                                totalBytesRead = 0; // reset bytes read
-                                bos.reset(); // reset output stream 
-                            }
+                            long first = Math.max(nak.getInt() & 0xFFFFFFFFL, reported + 1);
+                            long last = Math.min(nak.getInt() & 0xFFFFFFFFL, seen);
+                            lost += Math.max(0, last - first + 1);
                         }
                         
-                        if (totalBytesRead < 512)
+                        double loss = (double) lost / (seen - reported);
+                        if (loss > 0.02)
                         {
-                            // total bytes read was less than 512, It's the last data packet!
-                            // send data packet
-                            byte[] fileData = bos.toByteArray();
-                            incrementBlockNumber();
-                            sendDataPacket(DATA,blockNumber,fileData);
-                            
-                            // wait for last ACK
-                            // close streams
-                            boolean received = false;
-                            while (!received)
-                            {
-                                try
-                                {
-                                    byte[] ACKPacket = new byte[4];
-                                    receivedPacket = new DatagramPacket(ACKPacket,ACKPacket.length);
-                                    socket.receive(receivedPacket);
-                                    received = true;
-                                    fis.close();
-                                    bos.close();
-                                }
-                                catch (SocketTimeoutException e)
-                                {
-                                    if (retries != MAX_RETRIES)
-                                    {
-                                        System.out.println("Socket Timed Out!");
-                                        System.out.println("Retransmitting Packet...");
-                                        socket.send(packet);
-                                        socket.setSoTimeout(10000);
-                                        retries++;
-                                    }
-                                }
-                            }
+                            mbits = Math.max(1, mbits * 0.75);
+                        }
+                        else if (loss < 0.005)
+                        {
+                            mbits = Math.min(BLAST_MAX_RATE, mbits * 1.125);
                         }
                     }
-                    catch (FileNotFoundException e)
+                    reported = Math.max(reported, seen);
+                }
+                catch (SocketTimeoutException e)
+                {
+                    // the client has gone quiet, resending the last block makes it NAK again
+                    if (!sending)
                     {
-                        sendErrorPacket(ERROR,ERROR_CODE,ERROR_MSG);
+                        retransmit(e);
+                        deadline = socket.currentTimeMillis() + 10000;
                     }
                 }
             }
-            catch (IOException e)
+        }
+        finally
+        {
+            if (blocks != null)
             {
-
+                blocks.close();
             }
+            
+            blastBuffers.release(blastBuffer);
+            blastBuffers.flush();
+            blastBuffer = null;
         }
+        
+        // the digest exchange that follows is numbered after the last block, as in standard mode
+        blockNumber = new byte[] {(byte) (total >> 8), (byte) total};
+        summary = String.format("blast %d blocks of %d, %d resent, %.0f Mbit/s%s", total, blockSize, resent, mbits, probing ? " probed" : "");
     }
     
+    /**
+     * Sends a Blast Mode Data Packet
+     * @param number block number, 32 bits
+     * @param data the file data
+     * @param length bytes of data
+     * @throws IOException
+     */
+    public void sendBlastPacket(long number, byte[] data, int length) throws IOException
+    {
+        blastBuffer.clear();
+        blastBuffer.put(BLAST).putInt((int) number).put(data, 0, length);
+        
+        // wait for the rate limits to allow the send
+        if (flow != null)
+        {
+            flow.acquire(blastBuffer.position());
+        }
+        
+        blastPacket.setLength(blastBuffer.position());
+        packet = blastPacket;
+        socket.send(packet);
+    }
     
     /**
      * Sends a TFTP ACK Packet
@@ -256,14 +1230,10 @@ public class TFTPUDPServer extends Thread {
      */
     public void sendACK(byte[] opCode, byte[] blockNo) throws IOException
     {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        
-        os.write(opCode, 0, opCode.length);
-        os.write(blockNo, 0, blockNo.length);
+        sendBuffer.clear();
+        sendBuffer.put(opCode).put(blockNo);
         
-        byte[] ACKPacket = os.toByteArray();
-        packet = new DatagramPacket(ACKPacket, ACKPacket.length,clientIP,clientPort);
-        socket.send(packet);
+        sendBuffered();
         socket.setSoTimeout(10000);
 
     }
@@ -276,13 +1246,59 @@ public class TFTPUDPServer extends Thread {
      */
     public void sendLastACK(byte[] opCode, byte[] blockNo) throws IOException
     {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        os.write(opCode, 0, opCode.length);
-        os.write(blockNo, 0, blockNo.length);
+        sendBuffer.clear();
+        sendBuffer.put(opCode).put(blockNo);
         
-        byte[] ACKPacket = os.toByteArray();
-        packet = new DatagramPacket(ACKPacket, ACKPacket.length,clientIP,clientPort);
+        sendBuffered();
+    }
+    
+    /**
+     * Sends the Packet Built in the Send Buffer
+     * It is kept as the last packet sent, for retransmits
+     * @throws IOException
+     */
+    protected void sendBuffered() throws IOException
+    {
+        sendPacket.setLength(sendBuffer.position());
+        packet = sendPacket;
         socket.send(packet);
+        lastSendNanos = System.nanoTime();
+    }
+    
+    /**
+     * Receives into the Receive Buffer
+     * The packet is reused, so its length is reset to the whole buffer first
+     * @throws IOException
+     */
+    protected void receivePacket() throws IOException
+    {
+        receivedPacket.setLength(receiveBuffer.capacity());
+        socket.receive(receivedPacket);
+        
+        if (receivedPacket.getPort() == clientPort && clientIP.equals(receivedPacket.getAddress()))
+        {
+            lastHeard = socket.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Ends the Session if the Client hasn't been Heard from in Time
+     * Runs on the timer thread. Packets only note when they arrived, the timer is
+     * moved on here instead, so a busy session doesn't touch the wheel for each one.
+     * Closing the socket wakes the session wherever it is waiting on the network
+     */
+    protected void expire()
+    {
+        long idle = socket.currentTimeMillis() - lastHeard;
+        
+        if (idle < SESSION_TIMEOUT)
+        {
+            timers.schedule(expiry, SESSION_TIMEOUT - idle, TimeUnit.MILLISECONDS);
+            return;
+        }
+        
+        expired = true;
+        socket.close();
     }
     
     /**
@@ -299,7 +1315,7 @@ public class TFTPUDPServer extends Thread {
         // While haven't reached filename separator
         // read 1 byte at a time
         // Don't know how big filename is!
-         while ((fileNameByte = bis.read()) != 0)
+         while ((fileNameByte = bis.read()) != 0 && fileNameByte != -1)
          {
              fileNameBytes.write(fileNameByte);
          }
@@ -312,6 +1328,59 @@ public class TFTPUDPServer extends Thread {
         fileNameBytes.close();       
     }
     
+    /**
+     * Extracts the Mode and any Options after the Filename
+     * Options are name and value pairs as in RFC 2347,
+     * the ones this server supports are kept for the OACK
+     * @throws IOException
+     */
+    public void extractOptions() throws IOException
+    {
+        readString(); // mode, data is always sent as octet
+        requestedOptions = Packets.readRequestOptions(bis);
+        Packets.acceptOptions(requestedOptions, acceptedOptions);
+    }
+    
+    /**
+     * Reads a Zero Terminated String from the Packet
+     * @return the string, empty at the end of the packet
+     * @throws IOException
+     */
+    public String readString() throws IOException
+    {
+        return Packets.readString(bis);
+    }
+    
+    /**
+     * Sends a TFTP Option Acknowledgement Packet
+     * @param options the accepted options
+     * @throws IOException
+     */
+    public void sendOACK(Map<String, String> options) throws IOException
+    {
+        byte[] OACKPacket = Packets.oack(options);
+        packet = new DatagramPacket(OACKPacket, OACKPacket.length, clientIP, clientPort);
+        socket.send(packet);
+        lastSendNanos = System.nanoTime();
+        socket.setSoTimeout(10000);
+        
+        events.log(EventLog.OACK, clientName(), filename, 0, 0, options.toString());
+    }
+    
+    /**
+     * Sends the Digest of the File Data
+     * @param fileDigest hex digest
+     * @throws IOException
+     */
+    public void sendDigestPacket(String fileDigest) throws IOException
+    {
+        byte[] digestPacket = Packets.digest(fileDigest);
+        packet = new DatagramPacket(digestPacket, digestPacket.length, clientIP, clientPort);
+        socket.send(packet);
+        lastSendNanos = System.nanoTime();
+        socket.setSoTimeout(10000);
+    }
+    
     
     
     /**
@@ -323,20 +1392,40 @@ public class TFTPUDPServer extends Thread {
      */
     public void sendDataPacket(byte[] opCode, byte[] blockNo, byte[] data) throws IOException
     {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        sendBuffer.clear();
+        sendBuffer.put(opCode).put(blockNo).put(data);
         
-        os.write(opCode, 0, opCode.length);
-        os.write(blockNo, 0, blockNo.length);
-        os.write(data, 0, data.length);
+        // hash the block on its first send, retransmits don't come through here
+        if (digest != null)
+        {
+            digest.update(data, 0, data.length);
+        }
+        bytesTransferred += data.length;
         
-        byte[] dataPacket = os.toByteArray();
+        // wait for the rate limits to allow the send
+        if (flow != null)
+        {
+            flow.acquire(sendBuffer.position());
+        }
         
-        packet = new DatagramPacket(dataPacket,dataPacket.length, clientIP, clientPort);
-        socket.send(packet);
+        sendBuffered();
         socket.setSoTimeout(10000);    
     }
     
     
+    /**
+     * Checks a Received Block Follows the Last One
+     * Accepts the client's numbering, where the 2nd byte counts to 9,
+     * and plain 16 bit numbering from other clients
+     * @param high 1st byte of the block number of a DATA packet
+     * @param low 2nd byte of the block number
+     * @return true if it is the next block
+     */
+    public boolean isNextBlock(byte high, byte low)
+    {
+        return Packets.isNextBlock(blockNumber, high, low);
+    }
+    
     /**
      * Increments Block Number 
      * Handles rounding of 2nd byte when it reaches 9
@@ -364,27 +1453,132 @@ public class TFTPUDPServer extends Thread {
     {
         boolean received = false;
         
+        FlightEvents.AckWait wait = new FlightEvents.AckWait();
+        wait.begin();
+        
+        // ignored packets don't restart the timer
+        long deadline = socket.currentTimeMillis() + 10000;
+        
         while (!received)
         {
             try
             {
-                byte[] receiveData = new byte[4];
-                receivedPacket = new DatagramPacket(receiveData,receiveData.length);
-                socket.receive(receivedPacket);
-                received = true;
+                long remaining = deadline - socket.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    throw new SocketTimeoutException("Receive timed out");
+                }
+                socket.setSoTimeout((int) remaining);
+                
+                receivePacket();
+                
+                // the client gave up, or a relay found its cached copy current in the OACK
+                byte[] data = receivedPacket.getData();
+                if (clientIP.equals(receivedPacket.getAddress()) && receivedPacket.getPort() == clientPort
+                        && receivedPacket.getLength() >= 4 && data[0] == ERROR[0] && data[1] == ERROR[1])
+                {
+                    throw new IOException("Client ended the transfer: " + new String(data, 4, receivedPacket.getLength() - 4, "UTF-8").trim());
+                }
+                
+                // only the ACK of the packet just sent counts, a stale or duplicate one would skip a block
+                received = clientIP.equals(receivedPacket.getAddress()) && receivedPacket.getPort() == clientPort
+                        && receivedPacket.getLength() == 4 && data[0] == ACK[0] && data[1] == ACK[1]
+                        && data[2] == blockNumber[0] && data[3] == blockNumber[1];
             }
             catch (SocketTimeoutException e)
             {
-                if (retries != MAX_RETRIES)
+                retransmit(e);
+                deadline = socket.currentTimeMillis() + 10000;
+            }
+        }
+        
+        retries = 0;
+        
+        long rtt = System.nanoTime() - lastSendNanos;
+        rttTotal += rtt;
+        rttCount++;
+        
+        wait.end();
+        if (wait.shouldCommit())
+        {
+            wait.transport = "udp";
+            wait.client = clientName();
+            wait.file = filename;
+            wait.blksize = blksize;
+            wait.bytes = bytesTransferred;
+            wait.rtt = rtt;
+            wait.commit();
+        }
+    }
+    
+    /**
+     * Retransmits the Last Sent Packet after a Timeout
+     * Gives Up once the Max Number of Retries is Reached
+     * @param e the timeout
+     * @throws IOException the timeout, when out of retries
+     */
+    public void retransmit(SocketTimeoutException e) throws IOException
+    {
+        if (retries == MAX_RETRIES)
+        {
+            throw e;
+        }
+        
+        socket.send(packet);
+        lastSendNanos = System.nanoTime();
+        socket.setSoTimeout(10000);
+        retries++;
+        
+        events.log(EventLog.RETRANSMIT, clientName(), filename, bytesTransferred, 0, "retry " + retries);
+        
+        FlightEvents.Retransmit resent = new FlightEvents.Retransmit();
+        if (resent.shouldCommit())
+        {
+            resent.transport = "udp";
+            resent.client = clientName();
+            resent.file = filename;
+            resent.blksize = blksize;
+            resent.retry = retries;
+            resent.bytes = bytesTransferred;
+            resent.commit();
+        }
+    }
+    
+    /**
+     * Answers Repeats of the Client's Final Packet
+     * Resends our last packet until the client has been quiet for three of its timers,
+     * so one lost repeat doesn't leave it retrying against a closed port
+     * @throws IOException
+     */
+    public void dally() throws IOException
+    {
+        socket.setSoTimeout(30000);
+        
+        try
+        {
+            while (true)
+            {
+                receivePacket();
+                
+                if (clientIP.equals(receivedPacket.getAddress()) && receivedPacket.getPort() == clientPort)
                 {
-                    System.out.println("Socket Timed Out!");
-                    System.out.println("Retransmitting Packet...");
                     socket.send(packet);
-                    socket.setSoTimeout(10000);
-                    retries++;
                 }
             }
         }
+        catch (SocketTimeoutException e)
+        {
+            // the client is done
+        }
+    }
+    
+    /**
+     * Gets the Client Address and Port of this Session
+     * @return ip:port
+     */
+    public String clientName()
+    {
+        return clientIP.getHostAddress() + ":" + clientPort;
     }
     
     /**
@@ -396,23 +1590,43 @@ public class TFTPUDPServer extends Thread {
      */
     public void sendErrorPacket(byte[] opCode, byte[] errorCode, String errorMsg) throws IOException
     {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        
-        os.write(opCode, 0, opCode.length);
-        os.write(errorCode, 0, errorCode.length);
-        os.write(errorMsg.getBytes("UTF-8"), 0, errorMsg.length());
-        os.write(SEPARATOR);
-        
-        byte[] errorPacket = os.toByteArray();
+        byte[] errorPacket = Packets.error(errorCode, errorMsg);
         
         packet = new DatagramPacket(errorPacket,errorPacket.length, clientIP, clientPort);
         socket.send(packet);
     }
     
     
+    /**
+     * Starts the Listener Threads
+     * Used on its own or next to the TCP server in one process
+     * @throws IOException If the server port can't be bound
+     */
+    public static void listen() throws IOException
+    {
+        int shards = Math.max(1, SHARDS);
+        DatagramSocket listener = openListener(shards > 1);
+        
+        if (listener == null)
+        {
+            System.out.println("SO_REUSEPORT not supported, using a single listener");
+            shards = 1;
+            listener = openListener(false);
+        }
+        
+        // one thread per shard, each with its own socket and session table
+        for (int i = 0; i < shards; i++)
+        {
+            TFTPUDPServer server = new TFTPUDPServer(traced(new SocketTransport(i == 0 ? listener : openListener(true))));
+            server.setName("TFTP Listener " + i);
+            server.start();
+        }
+        System.out.println("TFTP UDP Server Started" + (shards > 1 ? " with " + shards + " listeners" : "")); 
+    }
+    
+    
     public static void main(String[] args) throws IOException
     {
-        new TFTPUDPServer().start();
-        System.out.println("TFTP Server Started"); 
+        listen();
     }
 }
\ No newline at end of file
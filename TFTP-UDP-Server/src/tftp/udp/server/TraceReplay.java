@@ -0,0 +1,703 @@
+package tftp.udp.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import tftp.common.ChunkStore;
+import tftp.common.Packets;
+
+/**
+ * Replays a Captured Packet Trace Against a Server
+ * The client sessions in the trace are started again at the same offsets, or closer
+ * together when sped up, each asking for the same file with the same options. Each
+ * session then runs as a plain stop and wait client, uploads send blocks of the
+ * captured lengths, with the captured data when the trace has payloads and zeros
+ * otherwise. Blast mode sessions are replayed in standard mode. The report compares
+ * the trace with the replay: throughput, time to the first reply, time per block and
+ * packets the server sent again. Settings are system properties:
+ *   replay.server (host:port, 127.0.0.1:9000), replay.speed (1, 0 only reports the trace)
+ * @author 105977
+ */
+public class TraceReplay {
+
+    protected static final int RRQ = 1;
+    protected static final int WRQ = 2;
+    protected static final int DATA = 3;
+    protected static final int ACK = 4;
+    protected static final int ERROR = 5;
+    protected static final int OACK = 6;
+    protected static final int DIGEST = 10;
+    protected static final int BLAST = 11;
+
+    protected static int TIMEOUT = 10000; // same timer as the real client
+    protected static int MAX_RETRIES = 10;
+
+
+    /**
+     * What One Session Measured, in the Trace or the Replay
+     */
+    protected static class Result {
+        protected long start = -1; // us, when the request went out
+        protected long firstReply = -1; // us, when the server first answered
+        protected long end; // us, the last packet of the session
+        protected long bytes; // file data
+        protected int blocks;
+        protected int retransmits; // packets the server sent again
+        protected int clientRetransmits; // packets the client sent again, replay only
+        protected boolean failed; // ended with an error, or gave up
+    }
+
+    /**
+     * A Client Session Found in the Trace
+     */
+    protected static class Session {
+        protected String client;
+        protected int opcode; // RRQ or WRQ
+        protected String filename;
+        protected Map<String, String> options;
+        protected List<byte[]> uploads = new ArrayList<>(); // WRQ blocks, data or zeros of the captured length
+        protected Result original = new Result();
+
+        protected int lastOut = -1; // opcode and block of the last packet the server sent
+        protected int lastBlock = -1; // last new block of file data
+    }
+
+
+    protected InetSocketAddress server;
+    protected List<Session> sessions = new ArrayList<>();
+    protected boolean payloads;
+    protected long dropped;
+    protected long startMicros = System.nanoTime() / 1000; // replay clock
+
+
+    /**
+     * Constructs a Replay of a Trace
+     * @param file the trace file
+     * @param server the server to replay against
+     * @throws IOException if the trace can't be read
+     */
+    public TraceReplay(String file, InetSocketAddress server) throws IOException
+    {
+        this.server = server;
+
+        try (PacketTrace.Reader trace = new PacketTrace.Reader(file))
+        {
+            payloads = trace.hasPayloads();
+            Map<String, Session> current = new HashMap<>(); // latest session of each client TID
+            PacketTrace.Record record;
+
+            while ((record = trace.next()) != null)
+            {
+                add(current, record);
+            }
+            dropped = trace.getDropped();
+        }
+    }
+
+
+    /**
+     * Adds a Captured Packet to its Session
+     * A request starts a new session unless it repeats one the server hasn't answered yet
+     * @param current latest session of each client TID
+     * @param record the packet
+     * @throws IOException if a request can't be parsed
+     */
+    protected void add(Map<String, Session> current, PacketTrace.Record record) throws IOException
+    {
+        String client = record.client();
+        Session session = current.get(client);
+        int opcode = record.opcode();
+
+        if (!record.out && (opcode == RRQ || opcode == WRQ))
+        {
+            if (session != null && session.original.firstReply < 0)
+            {
+                return;
+            }
+
+            session = new Session();
+            session.client = client;
+            session.opcode = opcode;
+            ByteArrayInputStream request = new ByteArrayInputStream(record.data, 2, record.data.length - 2);
+            session.filename = Packets.readString(request);
+            Packets.readString(request); // mode
+            session.options = Packets.readRequestOptions(request);
+            session.original.start = record.micros;
+
+            current.put(client, session);
+            sessions.add(session);
+        }
+
+        // packets from the server's own requests, as a relay, belong to no client session
+        if (session == null)
+        {
+            return;
+        }
+
+        Result original = session.original;
+        original.end = record.micros;
+        int block = record.block();
+
+        if (record.out)
+        {
+            if (original.firstReply < 0)
+            {
+                original.firstReply = record.micros;
+            }
+
+            // the same packet as last time is a retransmit
+            int sent = opcode << 16 | (opcode == DATA || opcode == ACK ? block : 0);
+            if (sent == session.lastOut && opcode != BLAST)
+            {
+                original.retransmits++;
+            }
+            session.lastOut = sent;
+
+            if (opcode == ERROR)
+            {
+                original.failed = true;
+            }
+            if (opcode == DATA && block != session.lastBlock)
+            {
+                session.lastBlock = block;
+                original.blocks++;
+                original.bytes += record.length - 4;
+            }
+            if (opcode == BLAST)
+            {
+                original.blocks++;
+                original.bytes += record.length - 6;
+            }
+        }
+        else if (opcode == DIGEST)
+        {
+            session.lastOut = -1; // the server ACKs the digest with the last block number again
+        }
+        else if (opcode == DATA && session.opcode == WRQ && block != session.lastBlock)
+        {
+            session.lastBlock = block;
+            original.blocks++;
+            original.bytes += record.length - 4;
+
+            // the data itself when it was captured
+            byte[] data = new byte[record.length - 4];
+            System.arraycopy(record.data, 4, data, 0, Math.min(data.length, record.data.length - 4));
+            session.uploads.add(data);
+        }
+    }
+
+
+    /**
+     * Replays Every Session
+     * @param speed how much faster than captured sessions are started
+     * @return results in the order of the sessions
+     * @throws InterruptedException
+     */
+    public List<Result> replay(double speed) throws InterruptedException
+    {
+        ScheduledExecutorService starter = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService clients = Executors.newCachedThreadPool();
+        List<Future<Future<Result>>> started = new ArrayList<>();
+        long first = sessions.isEmpty() ? 0 : sessions.get(0).original.start;
+
+        startMicros = System.nanoTime() / 1000;
+        for (Session session : sessions)
+        {
+            long delay = (long) ((session.original.start - first) / speed);
+            started.add(starter.schedule(() -> clients.submit(() -> run(session)), delay, TimeUnit.MICROSECONDS));
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Future<Future<Result>> start : started)
+        {
+            try
+            {
+                results.add(start.get().get());
+            }
+            catch (ExecutionException e)
+            {
+                Result failed = new Result();
+                failed.failed = true;
+                results.add(failed);
+            }
+        }
+
+        starter.shutdown();
+        clients.shutdown();
+        return results;
+    }
+
+    /**
+     * Runs One Session as a Stop and Wait Client
+     * @param session the session
+     * @return what it measured
+     */
+    protected Result run(Session session)
+    {
+        Result result = new Result();
+
+        try (DatagramSocket socket = new DatagramSocket())
+        {
+            socket.setSoTimeout(TIMEOUT);
+            result.start = now();
+
+            if (session.opcode == RRQ)
+            {
+                download(socket, session, result);
+            }
+            else
+            {
+                upload(socket, session, result);
+            }
+        }
+        catch (IOException e)
+        {
+            result.failed = true;
+        }
+
+        result.end = now();
+        return result;
+    }
+
+    /**
+     * Runs a RRQ
+     * @param socket the client TID
+     * @param session the session
+     * @param result filled in as it goes
+     * @throws IOException if the server stops answering
+     */
+    protected void download(DatagramSocket socket, Session session, Result result) throws IOException
+    {
+        Map<String, String> options = new LinkedHashMap<>(session.options);
+        options.remove("blast");
+
+        byte[] request = Packets.request(Packets.RRQ, session.filename, options);
+        DatagramPacket last = new DatagramPacket(request, request.length, server);
+        DatagramPacket received = new DatagramPacket(new byte[516], 516);
+        byte[] ack = new byte[] {0,4,0,0};
+        byte[] blockNumber = new byte[] {0,0};
+        boolean digest = false; // the server accepted the digest option
+        boolean awaitingDigest = false;
+        int retries = 0;
+
+        socket.send(last);
+
+        while (true)
+        {
+            try
+            {
+                received.setLength(516);
+                socket.receive(received);
+            }
+            catch (SocketTimeoutException e)
+            {
+                if (retries++ == MAX_RETRIES)
+                {
+                    throw e;
+                }
+                socket.send(last);
+                result.clientRetransmits++;
+                continue;
+            }
+
+            if (!reply(received, last, result))
+            {
+                continue;
+            }
+
+            byte[] data = received.getData();
+            int opcode = data[1];
+            retries = 0;
+
+            if (opcode == ERROR)
+            {
+                result.failed = true;
+                return;
+            }
+
+            if (opcode == OACK && result.blocks == 0)
+            {
+                digest = accepted(received).containsKey("digest");
+                last = new DatagramPacket(ack, ack.length, received.getSocketAddress());
+                socket.send(last);
+            }
+            else if (opcode == DATA && received.getLength() >= 4)
+            {
+                // the server missed our ACK and sent the block again
+                if (result.blocks > 0 && data[2] == blockNumber[0] && data[3] == blockNumber[1])
+                {
+                    result.retransmits++;
+                    socket.send(last);
+                    continue;
+                }
+                if (awaitingDigest || !Packets.isNextBlock(blockNumber, data[2], data[3]))
+                {
+                    continue;
+                }
+
+                blockNumber[0] = data[2];
+                blockNumber[1] = data[3];
+                result.blocks++;
+                result.bytes += received.getLength() - 4;
+
+                ack = new byte[] {0,4,data[2],data[3]};
+                last = new DatagramPacket(ack, ack.length, received.getSocketAddress());
+                socket.send(last);
+
+                // the last block, the digest follows if the server accepted it
+                if (received.getLength() < 516)
+                {
+                    if (!digest)
+                    {
+                        return;
+                    }
+                    awaitingDigest = true;
+                }
+            }
+            else if (opcode == DIGEST && awaitingDigest)
+            {
+                socket.send(last);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the Options an OACK Accepted
+     * @param received the OACK
+     * @return the options
+     * @throws IOException
+     */
+    protected static Map<String, String> accepted(DatagramPacket received) throws IOException
+    {
+        return Packets.readRequestOptions(new ByteArrayInputStream(received.getData(), 2, received.getLength() - 2));
+    }
+
+    /**
+     * Runs a WRQ, Sending Blocks of the Captured Lengths
+     * @param socket the client TID
+     * @param session the session
+     * @param result filled in as it goes
+     * @throws IOException if the server stops answering
+     */
+    protected void upload(DatagramSocket socket, Session session, Result result) throws IOException
+    {
+        byte[] request = Packets.request(Packets.WRQ, session.filename, session.options);
+        DatagramPacket last = new DatagramPacket(request, request.length, server);
+        DatagramPacket received = new DatagramPacket(new byte[516], 516);
+        MessageDigest digest = null; // set once the server accepts the digest option
+
+        // an upload cut off by the end of the capture still ends with a short block
+        List<byte[]> blocks = new ArrayList<>(session.uploads);
+        if (blocks.isEmpty() || blocks.get(blocks.size() - 1).length == 512)
+        {
+            blocks.add(new byte[0]);
+        }
+
+        int expected = 0; // block number the next ACK must carry
+        int retries = 0;
+        boolean digestSent = false;
+        socket.send(last);
+
+        while (true)
+        {
+            try
+            {
+                received.setLength(516);
+                socket.receive(received);
+            }
+            catch (SocketTimeoutException e)
+            {
+                if (retries++ == MAX_RETRIES)
+                {
+                    throw e;
+                }
+                socket.send(last);
+                result.clientRetransmits++;
+                continue;
+            }
+
+            if (!reply(received, last, result))
+            {
+                continue;
+            }
+
+            byte[] data = received.getData();
+            int opcode = data[1];
+
+            if (opcode == ERROR)
+            {
+                result.failed = true;
+                return;
+            }
+
+            // the first reply is an OACK when options were accepted, an ACK of block 0 otherwise
+            boolean acked = opcode == OACK && expected == 0
+                    || opcode == ACK && received.getLength() >= 4 && ((data[2] & 0xFF) << 8 | (data[3] & 0xFF)) == expected;
+
+            if (opcode == OACK && expected == 0 && accepted(received).containsKey("digest"))
+            {
+                digest = ChunkStore.newDigest();
+            }
+
+            if (!acked)
+            {
+                if (opcode == ACK || opcode == OACK)
+                {
+                    result.retransmits++;
+                }
+                continue;
+            }
+            retries = 0;
+
+            if (digestSent || expected == blocks.size() && digest == null)
+            {
+                return;
+            }
+
+            if (expected == blocks.size())
+            {
+                // every block is ACKed, the server checks the digest and sends a last ACK
+                byte[] packet = Packets.digest(ChunkStore.toHex(digest.digest()));
+                last = new DatagramPacket(packet, packet.length, received.getSocketAddress());
+                socket.send(last);
+                digestSent = true;
+                continue;
+            }
+
+            byte[] block = blocks.get(expected);
+            expected++;
+
+            byte[] packet = new byte[4 + block.length];
+            packet[1] = DATA;
+            packet[2] = (byte) (expected >> 8);
+            packet[3] = (byte) expected;
+            System.arraycopy(block, 0, packet, 4, block.length);
+
+            if (digest != null)
+            {
+                digest.update(block);
+            }
+            result.blocks++;
+            result.bytes += block.length;
+
+            last = new DatagramPacket(packet, packet.length, received.getSocketAddress());
+            socket.send(last);
+        }
+    }
+
+    /**
+     * Checks a Packet Comes from the Server and Notes the First Reply
+     * @param received the packet
+     * @param last the last packet sent, to the listener until the server has answered
+     * @param result filled in with the time of the first reply
+     * @return true if it is from the server
+     */
+    protected boolean reply(DatagramPacket received, DatagramPacket last, Result result)
+    {
+        if (!server.getAddress().equals(received.getAddress()) || received.getLength() < 2 || received.getData()[0] != 0)
+        {
+            return false;
+        }
+        if (result.firstReply < 0)
+        {
+            result.firstReply = now();
+        }
+        return last.getPort() == server.getPort() || last.getPort() == received.getPort();
+    }
+
+    /**
+     * Gets the Time on the Replay Clock
+     * @return us since the replay started
+     */
+    protected long now()
+    {
+        return System.nanoTime() / 1000 - startMicros;
+    }
+
+
+    /**
+     * Prints the Trace and the Replay Side by Side
+     * @param results replay results, null to print only the trace
+     * @param speed how much faster the replay started sessions
+     */
+    public void report(List<Result> results, double speed)
+    {
+        List<Result> original = new ArrayList<>();
+        int reads = 0;
+        int blasts = 0;
+
+        for (Session session : sessions)
+        {
+            original.add(session.original);
+            reads += session.opcode == RRQ ? 1 : 0;
+            blasts += session.options.containsKey("blast") ? 1 : 0;
+        }
+
+        System.out.println("Trace of " + sessions.size() + " sessions, " + reads + " RRQ and " + (sessions.size() - reads) + " WRQ"
+                + (blasts > 0 ? ", " + blasts + " in blast mode" : "") + (payloads ? "" : ", without payloads")
+                + (dropped > 0 ? ", " + dropped + " packets dropped while capturing" : ""));
+
+        if (results == null)
+        {
+            row("", "trace", null);
+            summarise(original, null);
+            return;
+        }
+
+        System.out.println("Replayed against " + server.getHostString() + ":" + server.getPort() + " at " + speed + "x");
+        row("", "trace", "replay");
+        summarise(original, results);
+    }
+
+    /**
+     * Prints the Measures of the Trace and the Replay
+     * @param original results from the trace
+     * @param replayed results from the replay, may be null
+     */
+    protected static void summarise(List<Result> original, List<Result> replayed)
+    {
+        Stats before = new Stats(original);
+        Stats after = replayed == null ? null : new Stats(replayed);
+
+        row("Sessions failed", before.failed, after == null ? null : after.failed);
+        row("Bytes", before.bytes, after == null ? null : after.bytes);
+        row("Makespan (ms)", before.makespan / 1000.0, after == null ? null : after.makespan / 1000.0);
+        row("Throughput (MB/s)", before.throughput(), after == null ? null : after.throughput());
+        row("First reply mean (ms)", before.mean(before.firstReply), after == null ? null : after.mean(after.firstReply));
+        row("First reply p99 (ms)", before.percentile(before.firstReply, 0.99), after == null ? null : after.percentile(after.firstReply, 0.99));
+        row("Per block mean (ms)", before.mean(before.perBlock), after == null ? null : after.mean(after.perBlock));
+        row("Server retransmits", before.retransmits, after == null ? null : after.retransmits);
+        if (after != null)
+        {
+            row("Client retransmits", "", after.clientRetransmits);
+        }
+    }
+
+    /**
+     * Prints One Row of the Report, with the Change When Both are Numbers
+     * @param name the measure
+     * @param before from the trace
+     * @param after from the replay, may be null
+     */
+    protected static void row(String name, Object before, Object after)
+    {
+        String change = "";
+        if (before instanceof Number && after instanceof Number && ((Number) before).doubleValue() != 0)
+        {
+            double b = ((Number) before).doubleValue();
+            change = String.format("%+.1f%%", (((Number) after).doubleValue() - b) * 100 / b);
+        }
+
+        System.out.println(String.format("%-24s %14s %14s %10s", name, format(before), after == null ? "" : format(after), change));
+    }
+
+    /**
+     * Formats a Measure
+     * @param value the value
+     * @return text for the report
+     */
+    protected static String format(Object value)
+    {
+        return value instanceof Double ? String.format("%.3f", (Double) value) : String.valueOf(value);
+    }
+
+    /**
+     * Totals and Distributions over a Set of Results
+     */
+    protected static class Stats {
+        protected int failed;
+        protected long bytes;
+        protected long makespan; // us from the first request to the last packet
+        protected int retransmits;
+        protected int clientRetransmits;
+        protected long[] firstReply; // us, per session that was answered
+        protected long[] perBlock; // us, per session with data
+
+        protected Stats(List<Result> results)
+        {
+            long first = Long.MAX_VALUE;
+            long last = 0;
+            List<Long> replies = new ArrayList<>();
+            List<Long> blocks = new ArrayList<>();
+
+            for (Result result : results)
+            {
+                failed += result.failed ? 1 : 0;
+                bytes += result.bytes;
+                retransmits += result.retransmits;
+                clientRetransmits += result.clientRetransmits;
+
+                if (result.start >= 0)
+                {
+                    first = Math.min(first, result.start);
+                    last = Math.max(last, result.end);
+                }
+                if (result.firstReply >= 0)
+                {
+                    replies.add(result.firstReply - result.start);
+                }
+                if (result.blocks > 0)
+                {
+                    blocks.add((result.end - result.start) / result.blocks);
+                }
+            }
+
+            makespan = first == Long.MAX_VALUE ? 0 : last - first;
+            firstReply = replies.stream().mapToLong(Long::longValue).sorted().toArray();
+            perBlock = blocks.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+
+        protected double throughput()
+        {
+            return makespan == 0 ? 0 : bytes / (double) makespan; // bytes per us is MB/s
+        }
+
+        protected double mean(long[] values)
+        {
+            return values.length == 0 ? 0 : Arrays.stream(values).average().getAsDouble() / 1000;
+        }
+
+        protected double percentile(long[] values, double fraction)
+        {
+            return values.length == 0 ? 0 : values[(int) Math.min(values.length - 1, Math.ceil(fraction * values.length) - 1)] / 1000.0;
+        }
+    }
+
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        if (args.length != 1)
+        {
+            System.out.println("Usage: TraceReplay trace-file");
+            System.exit(2);
+        }
+
+        String target = System.getProperty("replay.server", "127.0.0.1:9000");
+        int colon = target.lastIndexOf(':');
+        InetSocketAddress server = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+        double speed = Double.parseDouble(System.getProperty("replay.speed", "1"));
+
+        TraceReplay replay = new TraceReplay(args[0], server);
+
+        List<Result> results = speed > 0 ? replay.replay(speed) : null;
+        replay.report(results, speed);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,70 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketException;
+import tftp.common.DatagramTransport;
+
+/**
+ * Datagram Transport that Records its Packets in a Trace
+ * Wraps the real transport, packets are recorded after they are sent or received
+ * @author 105977
+ */
+public class TracingTransport implements DatagramTransport {
+
+    protected DatagramTransport transport;
+    protected PacketTrace trace;
+    protected int localPort;
+
+
+    /**
+     * Constructs a Transport
+     * @param transport the transport packets go through
+     * @param trace where they are recorded
+     */
+    public TracingTransport(DatagramTransport transport, PacketTrace trace)
+    {
+        this.transport = transport;
+        this.trace = trace;
+        localPort = transport.getLocalPort();
+    }
+
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException
+    {
+        transport.send(packet);
+        trace.record(true, localPort, packet);
+    }
+
+    @Override
+    public void receive(DatagramPacket packet) throws IOException
+    {
+        transport.receive(packet);
+        trace.record(false, localPort, packet);
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException
+    {
+        transport.setSoTimeout(timeout);
+    }
+
+    @Override
+    public long currentTimeMillis()
+    {
+        return transport.currentTimeMillis();
+    }
+
+    @Override
+    public int getLocalPort()
+    {
+        return localPort;
+    }
+
+    @Override
+    public void close()
+    {
+        transport.close();
+    }
+}